@@ -21,6 +21,8 @@ package com.keepassdroid.tests.crypto;
 
 import static org.junit.Assert.assertArrayEquals;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -79,5 +81,85 @@ public class AESTest extends TestCase {
 		assertArrayEquals("Arrays differ on size: " + dataSize, outAndroid, outNative);
 	}
 	
+	public void testDirectUpdate() throws GeneralSecurityException {
+		int dataSize = mRand.nextInt(4096) + 18;
+		
+		byte[] input = new byte[dataSize];
+		mRand.nextBytes(input);
+		
+		byte[] keyArray = new byte[32];
+		mRand.nextBytes(keyArray);
+		SecretKeySpec key = new SecretKeySpec(keyArray, "AES");
+		
+		byte[] ivArray = new byte[16];
+		mRand.nextBytes(ivArray);
+		IvParameterSpec iv = new IvParameterSpec(ivArray);
+		
+		Cipher android = CipherFactory.getInstance("AES/CBC/PKCS5Padding", true);
+		android.init(Cipher.ENCRYPT_MODE, key, iv);
+		byte[] outAndroid = android.doFinal(input);
+		
+		Cipher nat = CipherFactory.getInstance("AES/CBC/PKCS5Padding");
+		nat.init(Cipher.ENCRYPT_MODE, key, iv);
+		
+		// Fed in two pieces so the second update starts with cached bytes
+		ByteBuffer in = ByteBuffer.allocateDirect(dataSize);
+		in.put(input);
+		in.flip();
+		ByteBuffer out = ByteBuffer.allocateDirect(dataSize + 32);
+		
+		int split = mRand.nextInt(dataSize);
+		ByteBuffer first = in.duplicate();
+		first.limit(split);
+		nat.update(first, out);
+		in.position(split);
+		nat.update(in, out);
+		out.put(nat.doFinal());
+		
+		byte[] outNative = new byte[out.position()];
+		out.flip();
+		out.get(outNative);
+		
+		assertArrayEquals("Direct update differs on size: " + dataSize, outAndroid, outNative);
+	}
+	
+	public void testReleaseAndReuse() throws GeneralSecurityException {
+		byte[] input = new byte[mRand.nextInt(4096) + 18];
+		mRand.nextBytes(input);
+		
+		byte[] ivArray = new byte[16];
+		mRand.nextBytes(ivArray);
+		IvParameterSpec iv = new IvParameterSpec(ivArray);
+		
+		Cipher android = CipherFactory.getInstance("AES/CBC/PKCS5Padding", true);
+		Cipher nat = CipherFactory.getInstance("AES/CBC/PKCS5Padding");
+		
+		// The released context goes back to the pool, so the next cipher may
+		// be keyed over it
+		for (int i = 0; i < 3; i++) {
+			byte[] keyArray = new byte[32];
+			mRand.nextBytes(keyArray);
+			SecretKeySpec key = new SecretKeySpec(keyArray, "AES");
+			
+			android.init(Cipher.ENCRYPT_MODE, key, iv);
+			nat.init(Cipher.ENCRYPT_MODE, key, iv);
+			nat.update(input, 0, 7);
+			
+			// Initializing again starts over
+			nat.init(Cipher.ENCRYPT_MODE, key, iv);
+			assertArrayEquals("Reused context differs", android.doFinal(input), nat.doFinal(input));
+			
+			CipherFactory.release(nat);
+			try {
+				nat.update(input);
+				fail("Released cipher still usable");
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+			
+			nat = CipherFactory.getInstance("AES/CBC/PKCS5Padding");
+		}
+	}
+	
 	
 }
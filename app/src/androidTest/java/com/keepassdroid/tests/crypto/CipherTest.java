@@ -24,9 +24,11 @@ import static org.junit.Assert.assertArrayEquals;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Random;
 
 import javax.crypto.BadPaddingException;
@@ -38,8 +40,10 @@ import javax.crypto.NoSuchPaddingException;
 import junit.framework.TestCase;
 
 import com.keepassdroid.crypto.CipherFactory;
+import com.keepassdroid.crypto.ParallelCBCDecryptor;
 import com.keepassdroid.stream.BetterCipherInputStream;
 import com.keepassdroid.stream.LEDataInputStream;
+import com.keepassdroid.stream.ParallelCBCInputStream;
 
 public class CipherTest extends TestCase {
 	private Random rand = new Random();
@@ -93,4 +97,31 @@ public class CipherTest extends TestCase {
 		
 		assertArrayEquals("Encryption and decryption failed", plaintext, decrypttext);
 	}
+
+	public void testParallelDecrypt() throws GeneralSecurityException, IOException {
+		byte[] key = new byte[32];
+		byte[] iv = new byte[16];
+		byte[] plaintext = new byte[10000];
+		
+		rand.nextBytes(key);
+		rand.nextBytes(iv);
+		rand.nextBytes(plaintext);
+		
+		Cipher encrypt = CipherFactory.getInstance(CipherFactory.AES_CIPHER, Cipher.ENCRYPT_MODE, key, iv);
+		byte[] secrettext = encrypt.doFinal(plaintext);
+		
+		// Small chunks so the content is split across several threads
+		ParallelCBCDecryptor decryptor = new ParallelCBCDecryptor("AES/CBC/PKCS5Padding", key, 4, 64);
+		byte[] buf = secrettext.clone();
+		int len = decryptor.decrypt(iv, buf, 0, buf.length, true, null);
+		
+		assertArrayEquals("Parallel decryption failed", plaintext, Arrays.copyOf(buf, len));
+		
+		ParallelCBCInputStream pis = new ParallelCBCInputStream(new ByteArrayInputStream(secrettext), decryptor, iv);
+		LEDataInputStream lis = new LEDataInputStream(pis);
+		
+		assertArrayEquals("Parallel stream decryption failed", plaintext, lis.readBytes(plaintext.length));
+		assertEquals("Stream did not end with the content", -1, pis.read());
+		pis.close();
+	}
 }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.tests.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import junit.framework.TestCase;
+
+import com.keepassdroid.crypto.CipherFactory;
+
+public class TwofishTest extends TestCase {
+	
+	private Random mRand = new Random();
+	
+	public void testKnownAnswer() throws GeneralSecurityException {
+		// Zero 128 bit key and block from the Twofish paper
+		byte[] expected = new byte[] {
+				(byte)0x9F, (byte)0x58, (byte)0x9F, (byte)0x5C, (byte)0xF6, (byte)0x12, (byte)0x2C, (byte)0x32,
+				(byte)0xB6, (byte)0xBF, (byte)0xEC, (byte)0x2F, (byte)0x2A, (byte)0xE8, (byte)0xC3, (byte)0x5A
+		};
+		
+		// A single block with a zero IV is the block cipher on its own
+		Cipher nat = CipherFactory.getInstance("TWOFISH/CBC/NoPadding");
+		nat.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(new byte[16], "AES"), new IvParameterSpec(new byte[16]));
+		
+		assertArrayEquals("Known answer differs", expected, nat.doFinal(new byte[16]));
+	}
+	
+	public void testEncrypt() throws GeneralSecurityException {
+		// Test above below and at the blocksize
+		testFinal(15, "TWOFISH/CBC/PKCS7PADDING");
+		testFinal(16, "TWOFISH/CBC/PKCS7PADDING");
+		testFinal(17, "TWOFISH/CBC/PKCS7PADDING");
+		
+		// Test random larger sizes
+		int size = mRand.nextInt(494) + 18;
+		testFinal(size, "TWOFISH/CBC/PKCS7PADDING");
+		testFinal(size & ~15, "TWOFISH/CBC/NoPadding");
+	}
+	
+	private void testFinal(int dataSize, String transformation) throws GeneralSecurityException {
+		
+		// Generate some input
+		byte[] input = new byte[dataSize];
+		mRand.nextBytes(input);
+		
+		// Generate key
+		byte[] keyArray = new byte[32];
+		mRand.nextBytes(keyArray);
+		SecretKeySpec key = new SecretKeySpec(keyArray, "AES");
+		
+		// Generate IV
+		byte[] ivArray = new byte[16];
+		mRand.nextBytes(ivArray);
+		IvParameterSpec iv = new IvParameterSpec(ivArray);
+		
+		Cipher bouncy = CipherFactory.getInstance(transformation, true);
+		bouncy.init(Cipher.ENCRYPT_MODE, key, iv);
+		byte[] outBouncy = bouncy.doFinal(input, 0, dataSize);
+		
+		Cipher nat = CipherFactory.getInstance(transformation);
+		nat.init(Cipher.ENCRYPT_MODE, key, iv);
+		byte[] outNative = nat.doFinal(input, 0, dataSize);
+		
+		assertArrayEquals("Arrays differ on size: " + dataSize, outBouncy, outNative);
+		
+		nat = CipherFactory.getInstance(transformation);
+		nat.init(Cipher.DECRYPT_MODE, key, iv);
+		
+		assertArrayEquals("Decryption differs on size: " + dataSize, input, nat.doFinal(outNative));
+	}
+	
+}
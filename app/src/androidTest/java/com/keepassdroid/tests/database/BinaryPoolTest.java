@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.tests.database;
+
+import junit.framework.TestCase;
+
+import com.keepassdroid.database.BinaryPool;
+import com.keepassdroid.database.PwEntryV4;
+import com.keepassdroid.database.PwGroupV4;
+import com.keepassdroid.database.security.ProtectedBinary;
+
+public class BinaryPoolTest extends TestCase {
+
+	public void testDeduplicate() {
+		PwGroupV4 root = new PwGroupV4();
+
+		PwEntryV4 first = new PwEntryV4();
+		first.binaries.put("a.txt", new ProtectedBinary(false, new byte[] { 1, 2, 3 }));
+		first.binaries.put("b.txt", new ProtectedBinary(false, new byte[] { 4, 5 }));
+		root.AddEntry(first, true);
+
+		PwEntryV4 second = new PwEntryV4();
+		second.binaries.put("copy.txt", new ProtectedBinary(false, new byte[] { 1, 2, 3 }));
+		second.binaries.put("protected.txt", new ProtectedBinary(true, new byte[] { 1, 2, 3 }));
+		root.AddEntry(second, true);
+
+		BinaryPool pool = new BinaryPool(root);
+
+		String a = pool.poolFind(first.binaries.get("a.txt"));
+		String b = pool.poolFind(first.binaries.get("b.txt"));
+		String copy = pool.poolFind(second.binaries.get("copy.txt"));
+		String prot = pool.poolFind(second.binaries.get("protected.txt"));
+
+		assertNotNull(a);
+		assertNotNull(b);
+		assertEquals(a, copy);
+		assertFalse(a.equals(b));
+		assertFalse(a.equals(prot));
+		assertEquals(3, pool.entrySet().size());
+
+		assertNull(pool.poolFind(new ProtectedBinary(false, new byte[] { 1, 2 })));
+	}
+}
@@ -21,22 +21,32 @@ package com.keepassdroid.tests.database;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.test.AndroidTestCase;
 
+import com.keepassdroid.database.CachedKey;
 import com.keepassdroid.database.PwDatabaseV4;
+import com.keepassdroid.database.PwEntryV4;
+import com.keepassdroid.database.PwGroupV4;
 import com.keepassdroid.database.exception.InvalidDBException;
 import com.keepassdroid.database.exception.PwDbOutputException;
 import com.keepassdroid.database.load.Importer;
 import com.keepassdroid.database.load.ImporterFactory;
 import com.keepassdroid.database.load.ImporterV4;
+import com.keepassdroid.database.load.LoadListener;
+import com.keepassdroid.database.load.SnapshotCache;
+import com.keepassdroid.database.load.VerifyResult;
 import com.keepassdroid.database.save.PwDbOutput;
 import com.keepassdroid.database.save.PwDbV4Output;
+import com.keepassdroid.database.security.ProtectedBinary;
 import com.keepassdroid.stream.CopyInputStream;
 import com.keepassdroid.tests.TestUtil;
 
@@ -69,6 +79,46 @@ public class Kdb4 extends AndroidTestCase {
 
     }
 
+    public void testProgressiveParsing() throws IOException, InvalidDBException {
+        Context ctx = getContext();
+
+        AssetManager am = ctx.getAssets();
+        InputStream is = am.open("test.kdbx", AssetManager.ACCESS_STREAMING);
+
+        final int[] counts = new int[3];
+        ImporterV4 importer = new ImporterV4();
+        importer.setLoadListener(new LoadListener() {
+            @Override
+            public void onRootLoaded(PwDatabaseV4 db) {
+                assertEquals(0, counts[1] + counts[2]);
+                assertEquals("test", db.rootGroup.getName());
+                counts[0]++;
+            }
+
+            @Override
+            public void onGroupLoaded(PwGroupV4 group) {
+                assertEquals(1, counts[0]);
+                assertNotNull(group.getName());
+                assertTrue(group.getParent().childGroups.contains(group));
+                counts[1]++;
+            }
+
+            @Override
+            public void onEntryLoaded(PwEntryV4 entry) {
+                assertEquals(1, counts[0]);
+                assertTrue(entry.getParent().childEntries.contains(entry));
+                counts[2]++;
+            }
+        });
+
+        PwDatabaseV4 db = importer.openDatabase(is, "12345", null);
+        is.close();
+
+        // Every group except the root, and every entry, was handed out once
+        assertEquals(db.getGroups().size() - 1, counts[1]);
+        assertEquals(db.getEntries().size(), counts[2]);
+    }
+
     public void testSaving() throws IOException, InvalidDBException, PwDbOutputException {
         Context ctx = getContext();
 
@@ -98,6 +148,145 @@ public class Kdb4 extends AndroidTestCase {
 
     }
 
+    public void testVerify() throws IOException, InvalidDBException {
+        Context ctx = getContext();
+
+        AssetManager am = ctx.getAssets();
+        InputStream is = am.open("test.kdbx", AssetManager.ACCESS_STREAMING);
+
+        VerifyResult result = new ImporterV4().verifyDatabase(is, "12345", null);
+        is.close();
+
+        assertTrue(result.isValid());
+        assertEquals(-1, result.corruptBlock);
+        assertTrue(result.bytes > 0);
+    }
+
+    public void testCompressedBinary() throws IOException, InvalidDBException, PwDbOutputException {
+        PwDatabaseV4 db = new PwDatabaseV4();
+        db.initNew("test.kdbx");
+        db.setMasterKey("12345", null);
+
+        byte[] text = new byte[10000];
+        Arrays.fill(text, (byte) 'a');
+
+        PwEntryV4 entry = new PwEntryV4((PwGroupV4) db.rootGroup);
+        entry.binaries.put("a.txt", new ProtectedBinary(false, text));
+        db.addEntryTo(entry, db.rootGroup);
+
+        byte[] data = save(db);
+        PwDatabaseV4 loaded = new ImporterV4().openDatabase(new ByteArrayInputStream(data), "12345", null);
+
+        // Kept as stored in the file, and written back out unchanged
+        ProtectedBinary binary = ((PwEntryV4) loaded.getEntries().get(0)).binaries.get("a.txt");
+        assertTrue(binary.isCompressed());
+        assertEquals(text.length, binary.length());
+        assertTrue(Arrays.equals(text, binary.getData()));
+
+        PwDatabaseV4 reloaded = new ImporterV4().openDatabase(new ByteArrayInputStream(save(loaded)), "12345", null);
+        ProtectedBinary resaved = ((PwEntryV4) reloaded.getEntries().get(0)).binaries.get("a.txt");
+        assertTrue(Arrays.equals(binary.getCompressedData(), resaved.getCompressedData()));
+    }
+
+    public void testCachedKey() throws IOException, InvalidDBException, PwDbOutputException {
+        PwDatabaseV4 db = new PwDatabaseV4();
+        db.initNew("test.kdbx");
+        db.setMasterKey("12345", null);
+
+        byte[] data = save(db);
+        CachedKey key = db.getCachedKey();
+        assertNotNull(key);
+
+        // No password, and the same seed needs no new transformation
+        ImporterV4 imp = new ImporterV4();
+        imp.setCachedKey(key);
+        PwDatabaseV4 reloaded = imp.openDatabase(new ByteArrayInputStream(data), null, null);
+        assertSame(key, reloaded.getCachedKey());
+        assertTrue(Arrays.equals(ImporterFactory.readHeaderHash(new ByteArrayInputStream(data)), imp.getHeaderHash()));
+
+        // Saving picks a new seed
+        data = save(reloaded);
+        imp = new ImporterV4();
+        imp.setCachedKey(key);
+        reloaded = imp.openDatabase(new ByteArrayInputStream(data), null, null);
+        assertNotSame(key, reloaded.getCachedKey());
+    }
+
+    public void testSnapshotCache() throws IOException, InvalidDBException, PwDbOutputException {
+        File dir = new File(getContext().getCacheDir(), "test-snapshots");
+        SnapshotCache snapshots = new SnapshotCache(dir);
+        snapshots.clear();
+
+        PwDatabaseV4 db = new PwDatabaseV4();
+        db.initNew("test.kdbx");
+        db.setMasterKey("12345", null);
+
+        PwEntryV4 entry = new PwEntryV4((PwGroupV4) db.rootGroup);
+        entry.setTitle("Title", db);
+        entry.setPassword("Password", db);
+        entry.binaries.put("a.txt", new ProtectedBinary(false, new byte[] {1, 2, 3}));
+        entry.history.add((PwEntryV4) entry.clone(true));
+        db.addEntryTo(entry, db.rootGroup);
+
+        byte[] data = save(db);
+
+        // Parsed and stored, then read back from the snapshot
+        byte[] parsed = openWithSnapshots(data, snapshots).getContentHash();
+        assertEquals(1, dir.listFiles().length);
+        assertTrue(Arrays.equals(parsed, openWithSnapshots(data, snapshots).getContentHash()));
+
+        // A damaged snapshot is dropped, and the file parsed again
+        File file = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(file.length() - 1);
+        raf.write(0);
+        raf.close();
+        assertTrue(Arrays.equals(parsed, openWithSnapshots(data, snapshots).getContentHash()));
+
+        snapshots.clear();
+    }
+
+    public void testReadOnly() throws IOException, InvalidDBException, PwDbOutputException {
+        PwDatabaseV4 db = new PwDatabaseV4();
+        db.initNew("test.kdbx");
+        db.setMasterKey("12345", null);
+
+        PwEntryV4 entry = new PwEntryV4((PwGroupV4) db.rootGroup);
+        entry.setPassword("current", db);
+        entry.setString("Secret", "after history", true);
+        PwEntryV4 old = (PwEntryV4) entry.clone(true);
+        old.setPassword("previous", db);
+        entry.history.add(old);
+        db.addEntryTo(entry, db.rootGroup);
+        db.customData.put("plugin", "data");
+
+        ImporterV4 importer = new ImporterV4();
+        importer.setReadOnly(true);
+        PwDatabaseV4 loaded = importer.openDatabase(new ByteArrayInputStream(save(db)), "12345", null);
+        assertTrue(importer.getMemoryEstimator().isLean());
+
+        // History is dropped, without upsetting protected values read after it
+        PwEntryV4 read = (PwEntryV4) loaded.getEntries().get(0);
+        assertEquals(0, read.history.size());
+        assertEquals("current", read.getPassword());
+        assertEquals("after history", read.strings.get("Secret").toString());
+        assertEquals(0, loaded.customData.size());
+    }
+
+    private PwDbOutput openWithSnapshots(byte[] data, SnapshotCache snapshots) throws IOException, InvalidDBException {
+        ImporterV4 imp = new ImporterV4();
+        imp.setSnapshotCache(snapshots);
+
+        return PwDbOutput.getInstance(imp.openDatabase(new ByteArrayInputStream(data), "12345", null), null);
+    }
+
+    private byte[] save(PwDatabaseV4 db) throws PwDbOutputException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        PwDbOutput.getInstance(db, bos).output();
+
+        return bos.toByteArray();
+    }
+
     @Override
     protected void setUp() throws Exception {
         super.setUp();
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.tests.database;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.keepassdroid.database.PwDatabaseV4XML;
+import com.keepassdroid.database.load.KdbxPullParser;
+
+public class KdbxPullParserTest extends TestCase {
+
+	private KdbxPullParser parse(String xml) throws Exception {
+		KdbxPullParser xpp = new KdbxPullParser();
+		xpp.setInput(new ByteArrayInputStream(xml.getBytes("UTF-8")), null);
+
+		return xpp;
+	}
+
+	public void testEvents() throws Exception {
+		KdbxPullParser xpp = parse("\ufeff<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>\n"
+				+ "<KeePassFile>\n\t<Meta><Generator>a &lt; b &amp; &#x4e2d;&#20013;</Generator><Unknown a='1' /></Meta>\n</KeePassFile>");
+
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+		// Names from the format are the shared constants
+		assertSame(PwDatabaseV4XML.ElemDocNode, xpp.getName());
+		assertEquals(1, xpp.getDepth());
+
+		assertEquals(XmlPullParser.TEXT, xpp.next());
+		assertTrue(xpp.isWhitespace());
+
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+		assertSame(PwDatabaseV4XML.ElemMeta, xpp.getName());
+
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+		assertSame(PwDatabaseV4XML.ElemGenerator, xpp.getName());
+		assertEquals("a < b & 中中", xpp.nextText());
+		assertSame(PwDatabaseV4XML.ElemGenerator, xpp.getName());
+
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+		assertEquals("Unknown", xpp.getName());
+		assertTrue(xpp.isEmptyElementTag());
+		assertEquals(1, xpp.getAttributeCount());
+		assertEquals("1", xpp.getAttributeValue(null, "a"));
+		assertEquals(3, xpp.getDepth());
+
+		assertEquals(XmlPullParser.END_TAG, xpp.next());
+		assertEquals("Unknown", xpp.getName());
+		assertEquals(3, xpp.getDepth());
+
+		assertEquals(XmlPullParser.END_TAG, xpp.next());
+		assertEquals(2, xpp.getDepth());
+		assertEquals(XmlPullParser.TEXT, xpp.next());
+		assertEquals(XmlPullParser.END_TAG, xpp.next());
+		assertSame(PwDatabaseV4XML.ElemDocNode, xpp.getName());
+		assertEquals(XmlPullParser.END_DOCUMENT, xpp.next());
+	}
+
+	public void testText() throws Exception {
+		KdbxPullParser xpp = parse("<Value Protected=\"True\">line1\r\nline2<!-- c --><![CDATA[<&>]]>é</Value>");
+
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+		assertSame(PwDatabaseV4XML.AttrProtected, xpp.getAttributeName(0));
+		assertEquals(PwDatabaseV4XML.ValTrue, xpp.getAttributeValue(null, PwDatabaseV4XML.AttrProtected));
+		assertFalse(xpp.isEmptyElementTag());
+		assertEquals("line1\nline2<&>é", xpp.nextText());
+	}
+
+	public void testSupplementary() throws Exception {
+		KdbxPullParser xpp = parse("<Title>\ud83d\ude00 &#x1F600;</Title>");
+
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+		assertEquals("\ud83d\ude00 \ud83d\ude00", xpp.nextText());
+	}
+
+	public void testBase64() throws Exception {
+		KdbxPullParser xpp = parse("<Root><UUID>AAECAwQFBgcICQoLDA0ODw==</UUID><Data/><Data></Data></Root>");
+
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+
+		byte[] expected = new byte[16];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = (byte) i;
+		}
+		assertTrue(Arrays.equals(expected, xpp.nextBase64()));
+
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+		assertEquals(0, xpp.nextBase64().length);
+		assertEquals(XmlPullParser.START_TAG, xpp.next());
+		assertEquals(0, xpp.nextBase64().length);
+		assertEquals(XmlPullParser.END_TAG, xpp.next());
+	}
+
+	public void testMismatchedEndTag() throws Exception {
+		KdbxPullParser xpp = parse("<Root><Meta></Root>");
+
+		xpp.next();
+		xpp.next();
+		try {
+			xpp.next();
+			fail("Mismatched end tag should fail");
+		} catch (XmlPullParserException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.tests.database;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.keepassdroid.database.PwCompressionAlgorithm;
+import com.keepassdroid.database.PwEntryV4;
+import com.keepassdroid.database.PwGroupV4;
+import com.keepassdroid.database.load.MemoryEstimator;
+import com.keepassdroid.database.security.ProtectedBinary;
+import com.keepassdroid.database.security.ProtectedString;
+
+public class MemoryEstimatorTest extends TestCase {
+
+	public void testProjection() {
+		MemoryEstimator memory = new MemoryEstimator(1000L);
+		memory.project(100, PwCompressionAlgorithm.None);
+		assertFalse(memory.isLean());
+
+		memory.project(1000, PwCompressionAlgorithm.Gzip);
+		assertTrue(memory.isLean());
+	}
+
+	public void testAccounting() throws Exception {
+		MemoryEstimator memory = new MemoryEstimator(1000000L);
+
+		PwGroupV4 root = new PwGroupV4();
+		PwGroupV4 child = new PwGroupV4();
+		root.AddGroup(child, true);
+
+		ProtectedBinary shared = new ProtectedBinary(false, new byte[100]);
+		memory.addPoolBinary(shared);
+
+		PwEntryV4 entry = new PwEntryV4();
+		entry.strings.put("Title", new ProtectedString(false, "title"));
+		entry.binaries.put("a", shared);
+
+		PwEntryV4 hist = new PwEntryV4();
+		hist.strings.put("Title", entry.strings.get("Title"));
+		hist.binaries.put("a", shared);
+		entry.history.add(hist);
+
+		memory.addEntry(child, entry);
+
+		MemoryEstimator.Usage usage = memory.getUsage(child);
+		assertEquals(1, usage.entries);
+		assertEquals(1, usage.historyEntries);
+		assertEquals(1, usage.binaries);
+
+		assertEquals(0, memory.getUsage(root).total());
+		assertEquals(usage.total(), memory.getTreeUsage(root).total());
+		assertEquals(usage.total(), memory.getTotal().total());
+		assertFalse(memory.isLean());
+
+		PwEntryV4 big = new PwEntryV4();
+		big.binaries.put("b", new ProtectedBinary(false, new byte[1000000]));
+		memory.addEntry(root, big);
+		assertTrue(memory.isLean());
+	}
+
+	public void testCompactBinary() throws Exception {
+		byte[] data = new byte[4096];
+		Arrays.fill(data, (byte) 'a');
+
+		ProtectedBinary plain = new ProtectedBinary(true, data);
+		ProtectedBinary compact = plain.compact();
+
+		assertTrue(compact.isCompressed());
+		assertTrue(compact.isProtected());
+		assertTrue(compact.residentSize() < data.length);
+		assertEquals(data.length, compact.length());
+		assertTrue(Arrays.equals(data, compact.getData()));
+		assertSame(compact.getData(), compact.getData());
+		assertTrue(compact.equals(plain));
+
+		ProtectedBinary inflated = ProtectedBinary.fromCompressed(true, compact.getCompressedData());
+		assertEquals(data.length, inflated.length());
+		assertTrue(Arrays.equals(plain.getHash(), inflated.getHash()));
+
+		// Gzip headers outweigh tiny contents
+		ProtectedBinary small = new ProtectedBinary(false, new byte[] { 1, 2, 3 });
+		assertSame(small, small.compact());
+	}
+
+	public void testUnreadableSource() throws Exception {
+		ProtectedBinary detached = ProtectedBinary.fromSource(false, false, 10, new byte[32],
+				new ProtectedBinary.Source() {
+			@Override
+			public byte[] read() throws IOException {
+				throw new IOException("Database file is no longer available.");
+			}
+		});
+
+		try {
+			detached.readData();
+		} catch (IOException e) {
+			return;
+		}
+
+		fail("Read failure was not reported.");
+	}
+
+	public void testEncodedString() throws Exception {
+		String value = "pä中😀";
+		ProtectedString encoded = new ProtectedString(true, value.getBytes("UTF-8"));
+
+		assertEquals(value, encoded.toString());
+		assertEquals(value.length(), encoded.length());
+		assertTrue(encoded.contentEquals(new ProtectedString(true, value)));
+		assertFalse(encoded.contentEquals(new ProtectedString(false, value)));
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.tests.output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import biz.source_code.base64Coder.Base64Coder;
+
+import com.keepassdroid.database.PwDatabaseV4XML;
+import com.keepassdroid.database.save.KdbxXmlWriter;
+
+public class KdbxXmlWriterTest extends TestCase {
+
+	public void testMarkup() throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		KdbxXmlWriter xml = new KdbxXmlWriter(bos);
+		xml.startTag(PwDatabaseV4XML.ElemString);
+		xml.startTag(PwDatabaseV4XML.ElemKey);
+		xml.text("a < b & \"c\"");
+		xml.endTag(PwDatabaseV4XML.ElemKey);
+		xml.startTag(PwDatabaseV4XML.ElemValue);
+		xml.attribute(PwDatabaseV4XML.AttrProtected, "\"x\"");
+		xml.endTag(PwDatabaseV4XML.ElemValue);
+		xml.endTag(PwDatabaseV4XML.ElemString);
+		xml.endDocument();
+
+		assertEquals("<String><Key>a &lt; b &amp; \"c\"</Key><Value Protected=\"&quot;x&quot;\" /></String>", bos.toString("UTF-8"));
+	}
+
+	public void testFilter() throws IOException {
+		// Control characters and unpaired surrogates aren't valid XML
+		String text = "a\u0001b\tc\né€😀\ud83dd";
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		KdbxXmlWriter xml = new KdbxXmlWriter(bos, 4);
+		xml.text(text);
+		xml.flush();
+
+		assertEquals("ab\tc\né€😀d", bos.toString("UTF-8"));
+	}
+
+	public void testBase64() throws IOException {
+		Random rand = new Random();
+		for (int len = 0; len < 40; len++) {
+			byte[] data = new byte[len];
+			rand.nextBytes(data);
+
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			KdbxXmlWriter xml = new KdbxXmlWriter(bos, 7);
+			xml.base64(data);
+			xml.flush();
+
+			assertEquals(String.valueOf(Base64Coder.encode(data)), bos.toString("US-ASCII"));
+		}
+	}
+}
@@ -28,6 +28,7 @@ import java.io.InputStream;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import android.content.res.AssetManager;
 import android.test.AndroidTestCase;
@@ -35,10 +36,16 @@ import android.test.AndroidTestCase;
 import com.keepassdroid.database.PwDatabaseV3Debug;
 import com.keepassdroid.database.PwDbHeader;
 import com.keepassdroid.database.PwDbHeaderV3;
+import com.keepassdroid.database.PwEntryV3;
+import com.keepassdroid.database.PwGroup;
+import com.keepassdroid.database.PwGroupV3;
 import com.keepassdroid.database.exception.PwDbOutputException;
+import com.keepassdroid.database.save.KdbRecordWriter;
 import com.keepassdroid.database.save.PwDbHeaderOutputV3;
 import com.keepassdroid.database.save.PwDbV3Output;
 import com.keepassdroid.database.save.PwDbV3OutputDebug;
+import com.keepassdroid.database.save.PwEntryOutputV3;
+import com.keepassdroid.database.save.PwGroupOutputV3;
 import com.keepassdroid.stream.NullOutputStream;
 import com.keepassdroid.tests.database.TestData;
  
@@ -142,4 +149,65 @@ public class PwManagerOutputTest extends AndroidTestCase {
 	assertArrayEquals("Databases do not match.", bExpected.toByteArray(), bActual.toByteArray());
   
   }
-}
\ No newline at end of file
+
+  public void testContentHash() throws PwDbOutputException {
+    byte[] first = new PwDbV3OutputDebug(mPM, null, true).getContentHash();
+    byte[] second = new PwDbV3OutputDebug(mPM, null, true).getContentHash();
+    assertArrayEquals("Content hash not stable", first, second);
+
+    PwEntryV3 entry = (PwEntryV3) mPM.entries.get(0);
+    String title = entry.title;
+    try {
+      entry.title = title + " changed";
+      byte[] changed = new PwDbV3OutputDebug(mPM, null, true).getContentHash();
+      assertFalse("Content hash missed a change", Arrays.equals(first, changed));
+    } finally {
+      entry.title = title;
+    }
+  }
+
+  public void testContentHashOfOutput() throws PwDbOutputException {
+    byte[] expected = new PwDbV3OutputDebug(mPM, null, true).getContentHash();
+
+    // Taken while saving, without the random header hash field
+    PwDbV3Output pos = new PwDbV3OutputDebug(mPM, new ByteArrayOutputStream(), true);
+    pos.output();
+    assertArrayEquals("Saved content hash differs", expected, pos.getContentHash());
+  }
+
+  public void testRecordWriter() throws IOException {
+    PwEntryV3 attached = (PwEntryV3) mPM.entries.get(0).clone();
+    byte[] data = new byte[10000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) i;
+    }
+    attached.setBinaryData(data, 0, data.length);
+    attached.binaryDesc = "attachment";
+
+    ByteArrayOutputStream bExpected = new ByteArrayOutputStream();
+    KdbRecordWriter writer = new KdbRecordWriter();
+
+    PwGroupOutputV3 pgo = new PwGroupOutputV3(bExpected);
+    for (PwGroup group : mPM.getGroups()) {
+      pgo.output((PwGroupV3) group);
+      writer.writeGroup((PwGroupV3) group);
+    }
+
+    PwEntryOutputV3 peo = new PwEntryOutputV3(bExpected);
+    for (int i = 0; i < mPM.entries.size(); i++) {
+      PwEntryV3 entry = (PwEntryV3) mPM.entries.get(i);
+      peo.output(entry);
+      writer.writeEntry(entry);
+    }
+    peo.output(attached);
+    writer.writeEntry(attached);
+
+    ByteArrayOutputStream bActual = new ByteArrayOutputStream();
+    writer.writeTo(bActual);
+    assertEquals("Length mismatch", bExpected.size(), writer.length());
+    assertArrayEquals("Records do not match.", bExpected.toByteArray(), bActual.toByteArray());
+
+    writer.wipe();
+    assertArrayEquals("Attachment was wiped", data, attached.getBinaryData());
+  }
+}
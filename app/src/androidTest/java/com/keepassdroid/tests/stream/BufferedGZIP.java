@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.tests.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import junit.framework.TestCase;
+
+import com.keepassdroid.stream.BufferedGZIPInputStream;
+import com.keepassdroid.stream.ParallelGZIPOutputStream;
+
+public class BufferedGZIP extends TestCase {
+
+	private static Random rand = new Random();
+
+	public void testEmpty() throws IOException {
+		byte[] orig = new byte[0];
+		assertArrayEquals(orig, decode(compress(orig), 1024));
+	}
+
+	public void testLarge() throws IOException {
+		byte[] orig = new byte[BufferedGZIPInputStream.DEFAULT_BUFFER_SIZE * 3 + 17];
+		for (int i = 0; i < orig.length; i++) {
+			orig[i] = (byte) ("<Value>".charAt(i % 7) + rand.nextInt(2));
+		}
+
+		assertArrayEquals(orig, decode(compress(orig), BufferedGZIPInputStream.DEFAULT_BUFFER_SIZE));
+		// Small buffers split the header and trailer across reads
+		assertArrayEquals(orig, decode(compress(orig), 16));
+	}
+
+	public void testMembers() throws IOException {
+		byte[] first = new byte[5000];
+		byte[] second = new byte[3000];
+		rand.nextBytes(first);
+		rand.nextBytes(second);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		bos.write(compress(first));
+		bos.write(compress(second));
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(first);
+		expected.write(second);
+
+		assertArrayEquals(expected.toByteArray(), decode(bos.toByteArray(), 1024));
+	}
+
+	public void testCorrupt() throws IOException {
+		byte[] data = compress(new byte[10000]);
+		// Stored CRC
+		data[data.length - 8] ^= 1;
+
+		try {
+			decode(data, 1024);
+			fail("Bad CRC should fail");
+		} catch (ZipException e) {
+			// expected
+		}
+	}
+
+	public void testCheckpoints() throws IOException, DataFormatException {
+		byte[] orig = new byte[300 * 1024];
+		for (int i = 0; i < orig.length; i++) {
+			orig[i] = (byte) ("<Value>".charAt(i % 7) + rand.nextInt(4));
+		}
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(bos, 2, 16 * 1024);
+		gzip.write(orig);
+		gzip.close();
+		byte[] data = bos.toByteArray();
+
+		final List<long[]> offsets = new ArrayList<long[]>();
+		final List<byte[]> windows = new ArrayList<byte[]>();
+		BufferedGZIPInputStream gis = new BufferedGZIPInputStream(new ByteArrayInputStream(data), 1024);
+		gis.setCheckpointListener(32 * 1024, new BufferedGZIPInputStream.CheckpointListener() {
+			@Override
+			public void onCheckpoint(long inputOffset, long outputOffset, byte[] window) {
+				offsets.add(new long[] {inputOffset, outputOffset});
+				windows.add(window);
+			}
+		});
+		byte[] buf = new byte[8192];
+		while ( gis.read(buf) != -1 );
+		gis.close();
+
+		assertTrue("Too few checkpoints: " + offsets.size(), offsets.size() > 4);
+
+		// Each one must restart decompression at the right place
+		for (int i = 0; i < offsets.size(); i++) {
+			int input = (int) offsets.get(i)[0];
+			int output = (int) offsets.get(i)[1];
+
+			Inflater inflater = new Inflater(true);
+			if ( windows.get(i).length > 0 ) {
+				inflater.setDictionary(windows.get(i));
+			}
+			inflater.setInput(data, input, data.length - input);
+			byte[] restarted = new byte[Math.min(4096, orig.length - output)];
+			assertEquals(restarted.length, inflater.inflate(restarted));
+			inflater.end();
+
+			byte[] expected = new byte[restarted.length];
+			System.arraycopy(orig, output, expected, 0, expected.length);
+			assertArrayEquals(expected, restarted);
+		}
+	}
+
+	private byte[] compress(byte[] data) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(bos);
+		gzip.write(data);
+		gzip.close();
+
+		return bos.toByteArray();
+	}
+
+	private byte[] decode(byte[] data, int bufferSize) throws IOException {
+		BufferedGZIPInputStream gis = new BufferedGZIPInputStream(new ByteArrayInputStream(data), bufferSize);
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read;
+		while ( (read = gis.read(buf)) != -1 ) {
+			decoded.write(buf, 0, read);
+		}
+		gis.close();
+
+		return decoded.toByteArray();
+	}
+}
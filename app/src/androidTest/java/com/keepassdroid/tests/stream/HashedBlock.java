@@ -107,4 +107,27 @@ public class HashedBlock extends TestCase {
 		
 		
 	}
+	
+	public void testCorruptBlock() throws IOException {
+		byte[] orig = new byte[5 * 1024];
+		rand.nextBytes(orig);
+		
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		HashedBlockOutputStream output = new HashedBlockOutputStream(bos, 1024);
+		output.write(orig);
+		output.close();
+		
+		// Index, hash and size come before the data of each block
+		byte[] encoded = bos.toByteArray();
+		encoded[3 * (40 + 1024) + 40 + 7] ^= 1;
+		
+		HashedBlockInputStream input = new HashedBlockInputStream(new ByteArrayInputStream(encoded));
+		byte[] buf = new byte[1024];
+		try {
+			while ( input.read(buf) != -1 );
+			fail("Corrupt block should fail");
+		} catch (IOException e) {
+			assertEquals(3, input.getBlockIndex());
+		}
+	}
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.tests.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+import com.keepassdroid.stream.ParallelGZIPOutputStream;
+
+public class ParallelGZIP extends TestCase {
+
+	private static Random rand = new Random();
+
+	public void testEmpty() throws IOException {
+		testRoundTrip(new byte[0]);
+	}
+
+	public void testSingleChunk() throws IOException {
+		testRoundTrip(makeData(1000));
+	}
+
+	public void testManyChunks() throws IOException {
+		// Repetitive data, so later chunks reference their dictionary
+		testRoundTrip(makeData(ParallelGZIPOutputStream.DEFAULT_CHUNK_SIZE * 9 + 123));
+	}
+
+	public void testRandom() throws IOException {
+		byte[] orig = new byte[ParallelGZIPOutputStream.DEFAULT_CHUNK_SIZE * 3 + 5];
+		rand.nextBytes(orig);
+
+		testRoundTrip(orig);
+	}
+
+	private byte[] makeData(int size) {
+		String[] words = { "<Entry>", "<String>", "<Key>Title</Key>", "<Value>", "</Value>", "</String>", "</Entry>", "example" };
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+		while ( bos.size() < size ) {
+			byte[] word = words[rand.nextInt(words.length)].getBytes();
+			bos.write(word, 0, Math.min(word.length, size - bos.size()));
+		}
+
+		return bos.toByteArray();
+	}
+
+	private void testRoundTrip(byte[] orig) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(bos, 3, ParallelGZIPOutputStream.DEFAULT_CHUNK_SIZE);
+		gzip.write(orig);
+		gzip.close();
+
+		GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read;
+		while ( (read = gis.read(buf)) != -1 ) {
+			decoded.write(buf, 0, read);
+		}
+
+		assertArrayEquals(orig, decoded.toByteArray());
+	}
+}
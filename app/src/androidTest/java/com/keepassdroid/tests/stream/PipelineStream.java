@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.tests.stream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.keepassdroid.stream.PipelineOutputStream;
+
+public class PipelineStream extends TestCase {
+
+	private static Random rand = new Random();
+
+	public void testOrdering() throws IOException {
+		byte[] orig = new byte[300 * 1024 + 17];
+		rand.nextBytes(orig);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		OutputStream first = new PipelineOutputStream(bos, "test 2", 4096, 3);
+		OutputStream second = new PipelineOutputStream(first, "test 1", 1000, 2);
+
+		// Mix of single bytes and odd sized writes
+		int pos = 0;
+		while ( pos < orig.length ) {
+			int len = Math.min(rand.nextInt(5000), orig.length - pos);
+			if ( len == 0 ) {
+				second.write(orig[pos]);
+				pos++;
+			} else {
+				second.write(orig, pos, len);
+				pos += len;
+			}
+		}
+		second.close();
+
+		assertArrayEquals(orig, bos.toByteArray());
+	}
+
+	public void testFailure() {
+		OutputStream failing = new OutputStream() {
+			@Override
+			public void write(int oneByte) throws IOException {
+				throw new IOException("Disk full");
+			}
+		};
+
+		OutputStream os = new PipelineOutputStream(failing, "test", 16, 2);
+
+		try {
+			byte[] buf = new byte[64];
+			for ( int i = 0; i < 100; i++ ) {
+				os.write(buf);
+			}
+			os.close();
+		} catch (IOException e) {
+			assertEquals("Disk full", e.getMessage());
+			return;
+		}
+
+		fail("Worker failure was not reported.");
+	}
+
+	public void testAbort() throws IOException {
+		final boolean[] closed = new boolean[1];
+		ByteArrayOutputStream bos = new ByteArrayOutputStream() {
+			@Override
+			public void close() throws IOException {
+				closed[0] = true;
+			}
+		};
+
+		PipelineOutputStream os = new PipelineOutputStream(bos, "test", 16, 2);
+		os.write(new byte[100]);
+		os.abort();
+
+		assertFalse("Base stream was closed on abort.", closed[0]);
+
+		try {
+			os.write(1);
+		} catch (IOException e) {
+			return;
+		}
+
+		fail("Write after abort was accepted.");
+	}
+}
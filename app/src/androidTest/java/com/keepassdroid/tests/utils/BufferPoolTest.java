@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.tests.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.keepassdroid.utils.BufferPool;
+import com.keepassdroid.utils.MemUtil;
+
+public class BufferPoolTest extends TestCase {
+
+	public void testReuse() {
+		byte[] buf = BufferPool.acquire(3000);
+		assertEquals(4096, buf.length);
+		buf[0] = 1;
+		BufferPool.release(buf);
+		BufferPool.release(buf);
+
+		byte[] again = BufferPool.acquire(4000);
+		assertSame(buf, again);
+		// Cleared on release
+		assertEquals(0, again[0]);
+
+		// Only released once, so not handed out twice
+		assertNotSame(buf, BufferPool.acquire(4000));
+	}
+
+	public void testOversized() {
+		byte[] buf = BufferPool.acquire(3 * 1024 * 1024);
+		assertEquals(3 * 1024 * 1024, buf.length);
+		buf[0] = 1;
+		BufferPool.release(buf);
+		// Not kept, but still cleared
+		assertEquals(0, buf[0]);
+		assertNotSame(buf, BufferPool.acquire(3 * 1024 * 1024));
+	}
+
+	public void testGzip() throws Exception {
+		Random rand = new Random();
+		byte[] data = new byte[50000];
+		rand.nextBytes(data);
+		Arrays.fill(data, 0, 20000, (byte) 'a');
+
+		byte[] compressed = MemUtil.compress(data);
+		assertTrue(Arrays.equals(data, MemUtil.decompress(compressed)));
+
+		// The trailer only gives the size of the last member
+		byte[] twice = new byte[compressed.length * 2];
+		System.arraycopy(compressed, 0, twice, 0, compressed.length);
+		System.arraycopy(compressed, 0, twice, compressed.length, compressed.length);
+
+		byte[] expected = new byte[data.length * 2];
+		System.arraycopy(data, 0, expected, 0, data.length);
+		System.arraycopy(data, 0, expected, data.length, data.length);
+		assertTrue(Arrays.equals(expected, MemUtil.decompress(twice)));
+	}
+}
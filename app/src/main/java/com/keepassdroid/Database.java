@@ -27,26 +27,42 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.SyncFailedException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.keepassdroid.database.PwDatabase;
 import com.keepassdroid.database.PwDatabaseV3;
+import com.keepassdroid.database.PwDatabaseV4;
+import com.keepassdroid.database.PwEntryV4;
 import com.keepassdroid.database.PwGroup;
+import com.keepassdroid.database.PwGroupV4;
+import com.keepassdroid.database.edit.SaveScheduler;
 import com.keepassdroid.database.exception.ContentFileNotFoundException;
 import com.keepassdroid.database.exception.InvalidDBException;
 import com.keepassdroid.database.exception.PwDbOutputException;
 import com.keepassdroid.database.load.Importer;
 import com.keepassdroid.database.load.ImporterFactory;
+import com.keepassdroid.database.load.ImporterV4;
+import com.keepassdroid.database.load.LoadListener;
+import com.keepassdroid.database.load.MemoryEstimator;
+import com.keepassdroid.database.load.SnapshotCache;
 import com.keepassdroid.database.save.PwDbOutput;
+import com.keepassdroid.database.save.PwDbV4Output;
 import com.keepassdroid.icons.DrawableFactory;
 import com.keepassdroid.search.SearchDbHelper;
+import com.keepassdroid.settings.PrefsUtil;
 import com.keepassdroid.utils.UriUtil;
 
 /**
@@ -61,13 +77,74 @@ public class Database {
     public boolean passwordEncodingError = false;
 
     public DrawableFactory drawFactory = new DrawableFactory();
+    public SaveScheduler saveScheduler = new SaveScheduler(this);
 
     private boolean loaded = false;
 
+    /** Delay used to batch up changes made by a progressive load */
+    private static final long CHANGE_DELAY = 200;
+
+    private static final String SNAPSHOT_DIR = "snapshots";
+
+    private final Object loadLock = new Object();
+    private ProgressiveLoad loading = null;
+    private boolean loadFailed = false;
+    private Set<PwGroup> changed = new HashSet<PwGroup>();
+    private boolean changesPosted = false;
+    private Runnable loadProgressListener = null;
+    private MemoryEstimator memoryUsage = null;
+    private FileState fileState = null;
+    // Kept open while loaded, so detached attachments can be read from it
+    private RandomAccessFile payloadFile = null;
+    private DatabasePrefetch prefetch = null;
+
     public boolean Loaded() {
         return loaded;
     }
 
+    /** Waits until a progressive load has read the whole database.
+     *
+     * @return false if the load failed or was abandoned
+     */
+    public boolean waitForLoad() {
+        synchronized (loadLock) {
+            while (loading != null) {
+                try {
+                    loadLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            return !loadFailed;
+        }
+    }
+
+    public boolean isFullyLoaded() {
+        synchronized (loadLock) {
+            return loading == null && !loadFailed;
+        }
+    }
+
+    public boolean loadFailed() {
+        synchronized (loadLock) {
+            return loadFailed;
+        }
+    }
+
+    /** Sets the listener told about groups changed by a progressive load, on
+     * the main thread. The changed groups are added to dirty beforehand.
+     */
+    public void setLoadProgressListener(Runnable listener) {
+        loadProgressListener = listener;
+    }
+
+    /** Estimated memory use of the loaded database by group, null if not known */
+    public MemoryEstimator getMemoryUsage() {
+        return memoryUsage;
+    }
+
     public void setLoaded() {
         loaded = true;
     }
@@ -84,20 +161,39 @@ public class Database {
         LoadData(ctx, uri, password, keyfile, status, !Importer.DEBUG);
     }
 
+    /** Loads the database, showing it before it has been read completely where
+     * the format allows.
+     *
+     * @param onRootLoaded Run on the loading thread once the root group can be shown
+     */
+    public void LoadData(Context ctx, Uri uri, String password, Uri keyfile, UpdateStatus status, Runnable onRootLoaded) throws IOException, FileNotFoundException, InvalidDBException {
+        LoadData(ctx, uri, password, keyfile, status, !Importer.DEBUG, onRootLoaded);
+    }
+
     public void LoadData(Context ctx, Uri uri, String password, Uri keyfile, UpdateStatus status, boolean debug) throws IOException, FileNotFoundException, InvalidDBException {
+        LoadData(ctx, uri, password, keyfile, status, debug, null);
+    }
+
+    private void LoadData(Context ctx, Uri uri, String password, Uri keyfile, UpdateStatus status, boolean debug, Runnable onRootLoaded) throws IOException, FileNotFoundException, InvalidDBException {
+        // Edits of the database closed before may still be on their way to the file
+        saveScheduler.awaitClosed();
+
         mUri = uri;
-        readOnly = false;
-        if (uri.getScheme().equals("file")) {
-            File file = new File(uri.getPath());
-            readOnly = !file.canWrite();
+        readOnly = PrefsUtil.openReadOnly(ctx);
+        FileState state = FileState.stat(uri);
+        if (!readOnly && uri.getScheme().equals("file")) {
+            readOnly = !new File(uri.getPath()).canWrite();
         }
 
-        InputStream is, kfIs;
-        try {
-            is = UriUtil.getUriInputStream(ctx, uri);
-        } catch (Exception e) {
-            Log.e("KPD", "Database::LoadData", e);
-            throw ContentFileNotFoundException.getInstance(uri);
+        InputStream is = openPrefetched(uri, state);
+        InputStream kfIs;
+        if ( is == null ) {
+            try {
+                is = UriUtil.getUriInputStream(ctx, uri);
+            } catch (Exception e) {
+                Log.e("KPD", "Database::LoadData", e);
+                throw ContentFileNotFoundException.getInstance(uri);
+            }
         }
 
         try {
@@ -106,8 +202,70 @@ public class Database {
             Log.e("KPD", "Database::LoadData", e);
             throw ContentFileNotFoundException.getInstance(keyfile);
         }
-        LoadData(ctx, is, password, kfIs, status, debug);
+        RandomAccessFile file = openPayloadFile(uri);
+        Importer imp;
+        try {
+            imp = LoadData(ctx, is, password, kfIs, status, debug, state.length, onRootLoaded, file);
+        } catch (IOException e) {
+            closePayloadFile(file);
+            throw e;
+        } catch (InvalidDBException e) {
+            closePayloadFile(file);
+            throw e;
+        }
+
+        state.headerHash = imp.getHeaderHash();
+        fileState = state;
+        setPayloadFile(usedPayloadFile(imp, file));
 
+        // Only kept for another try with a different password
+        cancelPrefetch();
+    }
+
+    /** Starts reading the file in the background, so a following LoadData
+     * of the same uri doesn't have to wait for it. It is also read from
+     * memory on retries, until cancelPrefetch.
+     */
+    public void prefetch(Context ctx, Uri uri) {
+        if ( uri == null || uri.toString().length() == 0 ) {
+            return;
+        }
+
+        DatabasePrefetch started;
+        synchronized (loadLock) {
+            if ( prefetch != null && prefetch.getUri().equals(uri) ) {
+                return;
+            }
+
+            if ( prefetch != null ) {
+                prefetch.cancel();
+            }
+            started = prefetch = new DatabasePrefetch(ctx, uri);
+        }
+
+        started.start();
+    }
+
+    public void cancelPrefetch() {
+        synchronized (loadLock) {
+            if ( prefetch != null ) {
+                prefetch.cancel();
+                prefetch = null;
+            }
+        }
+    }
+
+    private InputStream openPrefetched(Uri uri, FileState state) {
+        DatabasePrefetch current;
+        synchronized (loadLock) {
+            current = prefetch;
+        }
+
+        if ( current == null || !current.getUri().equals(uri) ) {
+            return null;
+        }
+
+        return current.open(state);
     }
 
     public void LoadData(Context ctx, InputStream is, String password, InputStream kfIs, boolean debug) throws IOException, InvalidDBException {
@@ -115,6 +273,10 @@ public class Database {
     }
 
     public void LoadData(Context ctx, InputStream is, String password, InputStream kfIs, UpdateStatus status, boolean debug) throws IOException, InvalidDBException {
+        LoadData(ctx, is, password, kfIs, status, debug, -1, null, null);
+    }
+
+    private Importer LoadData(Context ctx, InputStream is, String password, InputStream kfIs, UpdateStatus status, boolean debug, long fileSize, Runnable onRootLoaded, RandomAccessFile file) throws IOException, InvalidDBException {
 
         BufferedInputStream bis = new BufferedInputStream(is);
 
@@ -129,18 +291,365 @@ public class Database {
 
         bis.reset();  // Return to the start
 
-        pm = imp.openDatabase(bis, password, kfIs, status);
-        if ( pm != null ) {
-            PwGroup root = pm.rootGroup;
+        if ( imp instanceof ImporterV4 ) {
+            ((ImporterV4) imp).setFileSize(fileSize);
+            ((ImporterV4) imp).setSnapshotCache(getSnapshotCache(ctx));
+            ((ImporterV4) imp).setPayloadFile(file);
+            ((ImporterV4) imp).setReadOnly(readOnly);
+        }
 
-            pm.populateGlobals(root);
+        ProgressiveLoad progressive = null;
+        if ( onRootLoaded != null && imp instanceof ImporterV4 ) {
+            progressive = new ProgressiveLoad(ctx, password, onRootLoaded);
+            ((ImporterV4) imp).setLoadListener(progressive);
 
-            LoadData(ctx, pm, password, kfIs, status);
+            synchronized (loadLock) {
+                loading = progressive;
+                loadFailed = false;
+            }
         }
 
-        loaded = true;
+        boolean success = false;
+        try {
+            PwDatabase db = imp.openDatabase(bis, password, kfIs, status);
+
+            synchronized (loadLock) {
+                if ( progressive != null ) {
+                    progressive.checkCancelled();
+                }
+
+                pm = db;
+                if ( imp instanceof ImporterV4 ) {
+                    memoryUsage = ((ImporterV4) imp).getMemoryEstimator();
+                }
+                if ( pm != null ) {
+                    if ( readOnly ) {
+                        pm.freeze();
+                    }
+                    PwGroup root = pm.rootGroup;
+
+                    pm.populateGlobals(root);
+
+                    LoadData(ctx, pm, password, kfIs, status);
+                }
+
+                loaded = true;
+            }
+
+            success = true;
+        } finally {
+            if ( progressive != null ) {
+                endLoad(progressive, success);
+            }
+        }
+
+        return imp;
+    }
+
+    /** Opens the file again if it was changed by someone else, such as a sync
+     * client, since it was loaded or saved. The key from the last load is
+     * reused, so no password is needed, and the key transformation is skipped
+     * when the new file kept the same transform seed and rounds. The new
+     * database replaces the old one only once it has been read completely.
+     *
+     * @return false if the file is unchanged, or there are local edits that
+     * have not been saved yet
+     */
+    public boolean reloadIfChanged(Context ctx) throws IOException, InvalidDBException {
+        Uri uri;
+        FileState old;
+        PwDatabase current;
+        synchronized (loadLock) {
+            if ( !loaded || loading != null || pm == null || fileState == null ) {
+                return false;
+            }
+
+            uri = mUri;
+            old = fileState;
+            current = pm;
+        }
+
+        if ( saveScheduler.hasUnsavedEdits() || current.getCachedKey() == null ) {
+            return false;
+        }
+
+        FileState state = FileState.stat(uri);
+        if ( state.modified == old.modified && state.length == old.length && state.modified != -1 ) {
+            return false;
+        }
+
+        // A different time or size alone, such as a touch, is not a change
+        InputStream is = openUri(ctx, uri);
+        try {
+            state.headerHash = ImporterFactory.readHeaderHash(is);
+        } finally {
+            is.close();
+        }
+
+        if ( Arrays.equals(state.headerHash, old.headerHash) ) {
+            fileState = state;
+            return false;
+        }
+
+        BufferedInputStream bis = new BufferedInputStream(openUri(ctx, uri));
+        RandomAccessFile file = openPayloadFile(uri);
+        boolean replaced = false;
+        PwDatabase db;
+        try {
+            bis.mark(10);
+            Importer imp = ImporterFactory.createImporter(bis);
+            bis.reset();
+
+            if ( imp instanceof ImporterV4 ) {
+                ((ImporterV4) imp).setFileSize(state.length);
+                ((ImporterV4) imp).setSnapshotCache(getSnapshotCache(ctx));
+                ((ImporterV4) imp).setPayloadFile(file);
+                ((ImporterV4) imp).setReadOnly(current.isFrozen());
+            }
+            imp.setCachedKey(current.getCachedKey());
+
+            db = imp.openDatabase(bis, null, null, new UpdateStatus());
+            state.headerHash = imp.getHeaderHash();
+            if ( current.isFrozen() ) {
+                db.freeze();
+            }
+
+            db.populateGlobals(db.rootGroup);
+            synchronized (this) {
+                synchronized (loadLock) {
+                    if ( pm != current ) {
+                        // Cleared or loaded again while we were reading
+                        return false;
+                    }
+
+                    // Edited, or saved, while we were reading. Edits and saves
+                    // hold this lock, so none can start before the swap.
+                    if ( saveScheduler.hasUnsavedEdits() || fileState != old ) {
+                        return false;
+                    }
+
+                    pm = db;
+                    if ( imp instanceof ImporterV4 ) {
+                        memoryUsage = ((ImporterV4) imp).getMemoryEstimator();
+                    }
+                    fileState = state;
+                    dirty.clear();
+                    file = usedPayloadFile(imp, file);
+                    setPayloadFile(file);
+                    replaced = true;
+                }
+            }
+        } finally {
+            bis.close();
+            if ( !replaced ) {
+                closePayloadFile(file);
+            }
+        }
+
+        saveScheduler.invalidate();
+        PwDbOutput.release(current);
+        drawFactory.clear();
+        markAllGroupsAsDirty();
+
+        return true;
+    }
+
+    /** Null when snapshots are turned off, in which case any left are removed */
+    private static SnapshotCache getSnapshotCache(Context ctx) {
+        SnapshotCache snapshots = new SnapshotCache(new File(ctx.getCacheDir(), SNAPSHOT_DIR));
+        if ( ! PrefsUtil.useSnapshotCache(ctx) ) {
+            snapshots.clear();
+            return null;
+        }
+
+        return snapshots;
+    }
+
+    /** Saves replace the file rather than writing over it, so what was
+     * loaded stays readable through this until the next load.
+     */
+    private static RandomAccessFile openPayloadFile(Uri uri) {
+        if ( !uri.getScheme().equals("file") ) {
+            return null;
+        }
+
+        try {
+            return new RandomAccessFile(uri.getPath(), "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /** Closes the file unless the database read holds parts of it */
+    private static RandomAccessFile usedPayloadFile(Importer imp, RandomAccessFile file) {
+        if ( imp instanceof ImporterV4 && ((ImporterV4) imp).getPayloadIndex() != null ) {
+            return file;
+        }
+
+        closePayloadFile(file);
+        return null;
+    }
+
+    private void setPayloadFile(RandomAccessFile file) {
+        RandomAccessFile old;
+        synchronized (loadLock) {
+            old = payloadFile;
+            payloadFile = file;
+        }
+        closePayloadFile(old);
+    }
+
+    private static void closePayloadFile(RandomAccessFile file) {
+        if ( file == null ) {
+            return;
+        }
+
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w("KPD", "Database::closePayloadFile", e);
+        }
+    }
+
+    private InputStream openUri(Context ctx, Uri uri) throws FileNotFoundException {
+        try {
+            return UriUtil.getUriInputStream(ctx, uri);
+        } catch (Exception e) {
+            Log.e("KPD", "Database::reloadIfChanged", e);
+            throw ContentFileNotFoundException.getInstance(uri);
+        }
     }
 
+    /** What the file looked like when it was last loaded or saved */
+    static class FileState {
+        // -1 when the file is not on the local file system
+        public long modified = -1;
+        public long length = -1;
+        public byte[] headerHash;
+
+        public static FileState stat(Uri uri) {
+            FileState state = new FileState();
+            if ( uri.getScheme().equals("file") ) {
+                File file = new File(uri.getPath());
+                state.modified = file.lastModified();
+                state.length = file.length();
+            }
+
+            return state;
+        }
+    }
+
+    private void endLoad(ProgressiveLoad progressive, boolean success) {
+        synchronized (loadLock) {
+            if ( loading != progressive ) {
+                // Abandoned by clear
+                return;
+            }
+
+            loading = null;
+            loadFailed = !success;
+            loadLock.notifyAll();
+
+            if ( progressive.published ) {
+                postChanges(progressive);
+            }
+        }
+    }
+
+    /** Publishes a V4 database as it is read. Groups and entries are made
+     * available for lookup before their parent is marked dirty.
+     */
+    private class ProgressiveLoad implements LoadListener {
+        private Context ctx;
+        private String password;
+        private Runnable onRootLoaded;
+        private Handler handler = new Handler(Looper.getMainLooper());
+        private PwDatabaseV4 db;
+
+        // Guarded by loadLock
+        private boolean cancelled = false;
+        private boolean published = false;
+
+        public ProgressiveLoad(Context ctx, String password, Runnable onRootLoaded) {
+            this.ctx = ctx;
+            this.password = password;
+            this.onRootLoaded = onRootLoaded;
+        }
+
+        @Override
+        public void onRootLoaded(PwDatabaseV4 db) {
+            synchronized (loadLock) {
+                checkCancelled();
+
+                // Looked up from the UI while the load adds to them
+                db.groups = Collections.synchronizedMap(db.groups);
+                db.entries = Collections.synchronizedMap(db.entries);
+                db.groups.put(db.rootGroup.getId(), db.rootGroup);
+
+                this.db = db;
+                pm = db;
+                LoadData(ctx, db, password, null, null);
+                published = true;
+            }
+
+            onRootLoaded.run();
+        }
+
+        @Override
+        public void onGroupLoaded(PwGroupV4 group) {
+            synchronized (loadLock) {
+                checkCancelled();
+
+                db.groups.put(group.getId(), group);
+                changed.add(group.getParent());
+                postChanges(this);
+            }
+        }
+
+        @Override
+        public void onEntryLoaded(PwEntryV4 entry) {
+            synchronized (loadLock) {
+                checkCancelled();
+
+                db.entries.put(entry.getUUID(), entry);
+                changed.add(entry.getParent());
+                postChanges(this);
+            }
+        }
+
+        private void checkCancelled() {
+            if ( cancelled ) {
+                throw new CancellationException();
+            }
+        }
+    }
+
+    // Called with loadLock held
+    private void postChanges(ProgressiveLoad progressive) {
+        if ( changesPosted ) {
+            return;
+        }
+
+        changesPosted = true;
+        progressive.handler.postDelayed(deliverChanges, CHANGE_DELAY);
+    }
+
+    private Runnable deliverChanges = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (loadLock) {
+                dirty.addAll(changed);
+                changed.clear();
+                changesPosted = false;
+            }
+
+            Runnable listener = loadProgressListener;
+            if ( listener != null ) {
+                listener.run();
+            }
+        }
+    };
+
     public void LoadData(Context ctx, PwDatabase pm, String password, InputStream keyInputStream, UpdateStatus status) {
         if ( pm != null ) {
             passwordEncodingError = !pm.validatePasswordEncoding(password);
@@ -151,6 +660,9 @@ public class Database {
         loaded = true;
     }
 
+    /** Searches the entries read so far, so the results of a search made during
+     * a progressive load may be incomplete. See isFullyLoaded.
+     */
     public PwGroup Search(String str) {
         if (searchHelper == null) { return null; }
 
@@ -164,15 +676,48 @@ public class Database {
         SaveData(ctx, mUri);
     }
 
-    public void SaveData(Context ctx, Uri uri) throws IOException, PwDbOutputException {
+    public synchronized void SaveData(Context ctx, Uri uri) throws IOException, PwDbOutputException {
+        if (!waitForLoad()) {
+            throw new IOException("The database has not been loaded completely.");
+        }
+
+        saveScheduler.invalidate();
+
+        SaveData(ctx, pm, uri, null);
+    }
+
+    /** Writes db, which is normally pm, but the save scheduler may still be
+     * writing out a database that has been closed since. A file whose
+     * content still hashes to savedHash is left as it is.
+     *
+     * @return the content hash of what is now in the file
+     */
+    public synchronized byte[] SaveData(Context ctx, PwDatabase db, Uri uri, byte[] savedHash) throws IOException, PwDbOutputException {
+        if (db.isFrozen()) {
+            throw new IOException("The database was opened read-only.");
+        }
+
+        PwDbOutput pmo = getOutput(ctx, db, null);
+        if (savedHash != null && Arrays.equals(pmo.getContentHash(), savedHash)) {
+            // Nothing changed since the last save, so keep the file as it is
+            pmo.discard();
+            return savedHash;
+        }
+
         if (uri.getScheme().equals("file")) {
             String filename = uri.getPath();
             File tempFile = new File(filename + ".tmp");
-            FileOutputStream fos = new FileOutputStream(tempFile);
+            FileOutputStream fos;
+            try {
+                fos = new FileOutputStream(tempFile);
+            } catch (IOException e) {
+                pmo.discard();
+                throw e;
+            }
             //BufferedOutputStream bos = new BufferedOutputStream(fos);
 
             //PwDbV3Output pmo = new PwDbV3Output(pm, bos, App.getCalendar());
-            PwDbOutput pmo = PwDbOutput.getInstance(pm, fos);
+            pmo.setOutputStream(fos);
             pmo.output();
             //bos.flush();
             //bos.close();
@@ -196,25 +741,99 @@ public class Database {
             try {
                 os = ctx.getContentResolver().openOutputStream(uri);
             } catch (Exception e) {
+                pmo.discard();
                 throw new IOException("Failed to store database.");
             }
 
-            PwDbOutput pmo = PwDbOutput.getInstance(pm, os);
+            pmo.setOutputStream(os);
             pmo.output();
             os.close();
         }
 
+        if (db != pm) {
+            // Closed in the meantime, so there is nothing else to update
+            return pmo.getContentHash();
+        }
+
         mUri = uri;
 
+        // Our own save should not look like an outside change
+        FileState state = FileState.stat(uri);
+        InputStream is = null;
+        try {
+            is = UriUtil.getUriInputStream(ctx, uri);
+            state.headerHash = ImporterFactory.readHeaderHash(is);
+            fileState = state;
+        } catch (Exception e) {
+            Log.w("KPD", "Database::SaveData", e);
+            fileState = null;
+        } finally {
+            if ( is != null ) {
+                is.close();
+            }
+        }
+
+        return pmo.getContentHash();
+    }
+
+    private PwDbOutput getOutput(Context ctx, PwDatabase db, OutputStream os) {
+        PwDbOutput pmo = PwDbOutput.getInstance(db, os);
+
+        if (pmo instanceof PwDbV4Output) {
+            ((PwDbV4Output) pmo).setParallelCompression(PrefsUtil.useParallelCompression(ctx));
+        }
+
+        return pmo;
     }
 
     public void clear() {
+        // A database only partly read is never saved
+        boolean complete = isFullyLoaded();
+
+        synchronized (loadLock) {
+            // Stop a progressive load from adding to the database
+            if ( loading != null ) {
+                loading.cancelled = true;
+                loading = null;
+                loadFailed = true;
+                loadLock.notifyAll();
+            }
+
+            changed.clear();
+        }
+
+        // Edits still waiting on a background save are written out from the
+        // scheduler's thread, so closing doesn't wait for them. Detached
+        // binaries are read from the payload file, and the save cache kept,
+        // until then.
+        final RandomAccessFile file;
+        final PwDatabase closed;
+        synchronized (loadLock) {
+            file = payloadFile;
+            payloadFile = null;
+            closed = pm;
+        }
+        saveScheduler.close(complete ? closed : null, mUri, new Runnable() {
+            @Override
+            public void run() {
+                closePayloadFile(file);
+                PwDbOutput.release(closed);
+            }
+        });
+
         dirty.clear();
         drawFactory.clear();
 
-        pm = null;
+        synchronized (loadLock) {
+            pm = null;
+            memoryUsage = null;
+            fileState = null;
+            loaded = false;
+            loadFailed = false;
+        }
+
         mUri = null;
-        loaded = false;
+        readOnly = false;
         passwordEncodingError = false;
     }
 
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.keepassdroid.crypto.CipherFactory;
+import com.keepassdroid.crypto.NativeLib;
+import com.keepassdroid.database.load.ImporterFactory;
+import com.keepassdroid.utils.UriUtil;
+
+/** Reads a database file in the background while its password is typed, so
+ * loading can start from memory. The same bytes are used again when the
+ * password was wrong.
+ */
+class DatabasePrefetch implements Runnable {
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	// Larger files are left to be read while loading
+	private static final long MAX_FRACTION = 8;
+
+	private final Context ctx;
+	private final Uri uri;
+	private final Database.FileState state;
+	private final long maxSize;
+
+	private List<byte[]> chunks = new ArrayList<byte[]>();
+	private int lastLength = 0;
+	private byte[] headerHash = null;
+	private boolean done = false;
+	private boolean usable = false;
+	private volatile boolean cancelled = false;
+
+	DatabasePrefetch(Context ctx, Uri uri) {
+		this.ctx = ctx.getApplicationContext();
+		this.uri = uri;
+		state = Database.FileState.stat(uri);
+		maxSize = Runtime.getRuntime().maxMemory() / MAX_FRACTION;
+	}
+
+	void start() {
+		Thread t = new Thread(this, "Prefetch: " + uri.getLastPathSegment());
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public Uri getUri() {
+		return uri;
+	}
+
+	@Override
+	public void run() {
+		boolean read = false;
+		try {
+			read = read();
+			if ( read ) {
+				// Fails on anything but a database, which loading reports itself
+				headerHash = ImporterFactory.readHeaderHash(new ChunkInputStream(chunks));
+			}
+		} catch (Exception e) {
+			Log.w("KPD", "DatabasePrefetch::run", e);
+		}
+
+		warmUp();
+
+		synchronized (this) {
+			usable = read && !cancelled;
+			if ( !usable ) {
+				chunks = null;
+			}
+			done = true;
+			notifyAll();
+		}
+	}
+
+	/** Stops reading, and lets go of what has been read */
+	synchronized void cancel() {
+		cancelled = true;
+		if ( done ) {
+			chunks = null;
+			usable = false;
+		}
+	}
+
+	/** The prefetched contents, waiting for them to be read if needed. Null
+	 * when the file couldn't be read completely, or has changed since.
+	 */
+	InputStream open(Database.FileState current) {
+		List<byte[]> found;
+		synchronized (this) {
+			while ( !done ) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+
+			if ( !usable || current.modified != state.modified || current.length != state.length ) {
+				return null;
+			}
+			found = chunks;
+		}
+
+		// Only local files can be checked from their size and time, anything
+		// else has its header read again. The seeds in it change on every save.
+		if ( current.modified == -1 && !isHeaderUnchanged() ) {
+			return null;
+		}
+
+		return new ChunkInputStream(found);
+	}
+
+	private boolean isHeaderUnchanged() {
+		try {
+			InputStream is = UriUtil.getUriInputStream(ctx, uri);
+			try {
+				return Arrays.equals(headerHash, ImporterFactory.readHeaderHash(is));
+			} finally {
+				is.close();
+			}
+		} catch (Exception e) {
+			Log.w("KPD", "DatabasePrefetch::isHeaderUnchanged", e);
+			return false;
+		}
+	}
+
+	private boolean read() throws IOException {
+		if ( state.length > maxSize ) {
+			return false;
+		}
+
+		InputStream is;
+		try {
+			is = UriUtil.getUriInputStream(ctx, uri);
+		} catch (Exception e) {
+			Log.w("KPD", "DatabasePrefetch::read", e);
+			return false;
+		}
+
+		try {
+			long total = 0;
+			byte[] chunk = new byte[CHUNK_SIZE];
+			int length = 0;
+			while ( !cancelled ) {
+				if ( length == chunk.length ) {
+					chunks.add(chunk);
+					chunk = new byte[CHUNK_SIZE];
+					length = 0;
+				}
+
+				int read = is.read(chunk, length, chunk.length - length);
+				if ( read == -1 ) {
+					chunks.add(chunk);
+					lastLength = length;
+					return true;
+				}
+
+				length += read;
+				total += read;
+				if ( total > maxSize ) {
+					return false;
+				}
+			}
+		} finally {
+			is.close();
+		}
+
+		return false;
+	}
+
+	/** Loads the cipher providers and native code loading will need */
+	private void warmUp() {
+		try {
+			NativeLib.init();
+			CipherFactory.getInstance("AES/CBC/PKCS5Padding");
+			MessageDigest.getInstance("SHA-256");
+		} catch (Exception e) {
+			Log.w("KPD", "DatabasePrefetch::warmUp", e);
+		}
+	}
+
+	/** Holds on to the chunks itself, so a load in progress can finish after
+	 * the prefetch has been cancelled.
+	 */
+	private class ChunkInputStream extends InputStream {
+		private final List<byte[]> all;
+		private int chunk = 0;
+		private int pos = 0;
+
+		ChunkInputStream(List<byte[]> all) {
+			this.all = all;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			while ( chunk < all.size() ) {
+				int limit = (chunk == all.size() - 1) ? lastLength : CHUNK_SIZE;
+				if ( pos < limit ) {
+					int count = Math.min(length, limit - pos);
+					System.arraycopy(all.get(chunk), pos, b, offset, count);
+					pos += count;
+					return count;
+				}
+
+				chunk++;
+				pos = 0;
+			}
+
+			return -1;
+		}
+
+		/** Everything left, not just the rest of the current chunk, since
+		 * the importers size their buffers from it
+		 */
+		@Override
+		public int available() {
+			if ( chunk >= all.size() ) {
+				return 0;
+			}
+
+			long left = (long) (all.size() - 1 - chunk) * CHUNK_SIZE + lastLength - pos;
+			return (int) Math.min(left, Integer.MAX_VALUE);
+		}
+	}
+}
@@ -61,6 +61,8 @@ import com.keepassdroid.compat.ActivityCompat;
 import com.keepassdroid.database.PwDatabase;
 import com.keepassdroid.database.PwEntry;
 import com.keepassdroid.database.PwEntryV4;
+import com.keepassdroid.database.edit.OnFinish;
+import com.keepassdroid.database.edit.TouchEntry;
 import com.keepassdroid.database.exception.SamsungClipboardException;
 import com.keepassdroid.intents.Intents;
 import com.keepassdroid.utils.EmptyUtils;
@@ -159,8 +161,17 @@ public class EntryActivity extends LockCloseHideActivity {
 		// Refresh Menu contents in case onCreateMenuOptions was called before mEntry was set
 		ActivityCompat.invalidateOptionsMenu(this);
 		
-		// Update last access time.
-		mEntry.touch(false, false);
+		// Update last access time, unless the database can't be saved. This
+		// takes the database lock, which a background save may hold a while.
+		if (!readOnly) {
+			OnFinish afterTouch = new OnFinish(new OnFinish() {
+				@Override
+				public void run() {
+					populateText(R.id.entry_accessed, getDateTime(mEntry.getLastAccessTime()));
+				}
+			}, uiThreadCallback);
+			new Thread(new TouchEntry(db, mEntry, afterTouch)).start();
+		}
 		
 		fillData(false);
 
@@ -46,6 +46,7 @@ import com.keepassdroid.database.PwGroupV3;
 import com.keepassdroid.database.PwGroupV4;
 import com.keepassdroid.database.edit.AddGroup;
 import com.keepassdroid.dialog.ReadOnlyDialog;
+import com.keepassdroid.settings.PrefsUtil;
 import com.keepassdroid.view.ClickView;
 import com.keepassdroid.view.GroupAddEntryView;
 import com.keepassdroid.view.GroupRootView;
@@ -222,7 +223,8 @@ public abstract class GroupActivity extends GroupBaseActivity {
 	}
 	
 	protected void showWarnings() {
-		if (App.getDB().readOnly) {
+		// Only warn when the file could not be written, not when read-only was chosen
+		if (App.getDB().readOnly && !PrefsUtil.openReadOnly(this)) {
 		    SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 		    
 		    if (prefs.getBoolean(getString(R.string.show_read_only_warning), true)) {
@@ -61,6 +61,36 @@ public abstract class GroupBaseActivity extends LockCloseListActivity {
 	protected void onResume() {
 		super.onResume();
 		
+		App.getDB().setLoadProgressListener(loadProgress);
+		onLoadProgress();
+	}
+	
+	@Override
+	protected void onPause() {
+		super.onPause();
+		
+		App.getDB().setLoadProgressListener(null);
+	}
+	
+	/** Shows groups and entries as a progressive load adds them */
+	private Runnable loadProgress = new Runnable() {
+		@Override
+		public void run() {
+			if ( App.getDB().loadFailed() ) {
+				App.setShutdown();
+				setResult(KeePass.EXIT_LOCK);
+				finish();
+				return;
+			}
+			
+			onLoadProgress();
+		}
+	};
+	
+	/** Called as a progressive load adds groups and entries, and once more
+	 * when it is done, on the main thread.
+	 */
+	protected void onLoadProgress() {
 		refreshIfDirty();
 	}
 	
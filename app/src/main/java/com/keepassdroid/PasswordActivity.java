@@ -181,6 +181,19 @@ public class PasswordActivity extends LockingActivity {
 
         // Clear the shutdown flag
         App.clearShutdown();
+
+        // Read the file while the password is typed. Before InitTask has
+        // finished this is left to it.
+        if (mDbUri != null) {
+            App.getDB().prefetch(this, mDbUri);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        App.getDB().cancelPrefetch();
     }
 
     private void retrieveSettings() {
@@ -495,6 +508,8 @@ public class PasswordActivity extends LockingActivity {
 
             retrieveSettings();
 
+            App.getDB().prefetch(PasswordActivity.this, mDbUri);
+
             if (launch_immediately)
                 loadDatabase(password, mKeyUri);
         }
@@ -72,21 +72,23 @@ public class PwGroupListAdapter extends BaseAdapter {
 	private void filterAndSort() {
 		entriesForViewing = new ArrayList<PwEntry>();
 		
-		for (int i = 0; i < mGroup.childEntries.size(); i++) {
-			PwEntry entry = mGroup.childEntries.get(i);
-			if ( ! entry.isMetaStream() ) {
-				entriesForViewing.add(entry);
+		// A progressive load adds to the group while holding its lock, so
+		// take a copy of the children that stays put while shown
+		synchronized (mGroup) {
+			for (int i = 0; i < mGroup.childEntries.size(); i++) {
+				PwEntry entry = mGroup.childEntries.get(i);
+				if ( ! entry.isMetaStream() ) {
+					entriesForViewing.add(entry);
+				}
 			}
+			
+			groupsForViewing = new ArrayList<PwGroup>(mGroup.childGroups);
 		}
 		
 		boolean sortLists = prefs.getBoolean(mAct.getString(R.string.sort_key),	mAct.getResources().getBoolean(R.bool.sort_default)); 
 		if ( sortLists ) {
-			groupsForViewing = new ArrayList<PwGroup>(mGroup.childGroups);
-			
 			Collections.sort(entriesForViewing, entryComp);
 			Collections.sort(groupsForViewing, groupComp);
-		} else {
-			groupsForViewing = mGroup.childGroups;
 		}
 	}
 	
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.compat;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadPoolExecutor;
+
+public class ThreadPoolCompat {
+	private static Method allowCoreThreadTimeOut;
+	
+	static {
+		try {
+			allowCoreThreadTimeOut = ThreadPoolExecutor.class.getMethod("allowCoreThreadTimeOut", boolean.class);
+		} catch (Exception e) {
+			// Not available before API level 9, core threads then live until shutdown
+		}
+	}
+	
+	public static void allowCoreThreadTimeOut(ThreadPoolExecutor executor, boolean value) {
+		if ( allowCoreThreadTimeOut == null ) {
+			return;
+		}
+		
+		try {
+			allowCoreThreadTimeOut.invoke(executor, value);
+		} catch (Exception e) {
+			// Leave the core threads as they are
+		}
+	}
+
+}
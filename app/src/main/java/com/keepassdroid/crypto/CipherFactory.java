@@ -42,9 +42,9 @@ public class CipherFactory {
 	}
 	
 	public static Cipher getInstance(String transformation, boolean androidOverride) throws NoSuchAlgorithmException, NoSuchPaddingException {
-		// Return the native AES if it is possible
+		// Return the native AES or Twofish if it is possible
 		if ( (!deviceBlacklisted()) && (!androidOverride) && hasNativeImplementation(transformation) && NativeLib.loaded() ) {
-			return Cipher.getInstance(transformation, new AESProvider());
+			return NativeCipher.create(transformation);
 		} else {
 		try {
 				return Cipher.getInstance(transformation, new BouncyCastleProvider());
@@ -68,7 +68,18 @@ public class CipherFactory {
 	}
 	
 	private static boolean hasNativeImplementation(String transformation) {
-		return transformation.equals("AES/CBC/PKCS5Padding");
+		return transformation.equals("AES/CBC/PKCS5Padding")
+				|| transformation.equalsIgnoreCase("TWOFISH/CBC/PKCS7Padding")
+				|| transformation.equalsIgnoreCase("TWOFISH/CBC/NoPadding");
+	}
+	
+	/** Hands the native context of a cipher from getInstance back for reuse now,
+	 * instead of when it is garbage collected. Other ciphers are left alone.
+	 */
+	public static void release(Cipher cipher) {
+		if ( cipher instanceof NativeCipher ) {
+			((NativeCipher) cipher).close();
+		}
 	}
 	
 	
@@ -94,23 +105,23 @@ public class CipherFactory {
 	}
 	
 	public static Cipher getInstance(UUID uuid, int opmode, byte[] key, byte[] IV, boolean androidOverride) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+		Cipher cipher = CipherFactory.getInstance(getTransformation(uuid, opmode), androidOverride);
+		
+		cipher.init(opmode, new SecretKeySpec(key, "AES"), new IvParameterSpec(IV));
+		
+		return cipher;
+	}
+	
+	/** Transformation for a KeePass 2.x cipher UUID, to pass to getInstance */
+	public static String getTransformation(UUID uuid, int opmode) throws NoSuchAlgorithmException {
 		if ( uuid.equals(AES_CIPHER) ) {
-			Cipher cipher = CipherFactory.getInstance("AES/CBC/PKCS5Padding", androidOverride); 
-			
-			cipher.init(opmode, new SecretKeySpec(key, "AES"), new IvParameterSpec(IV));
-			
-			return cipher;
+			return "AES/CBC/PKCS5Padding";
 		} else if ( uuid.equals(TWOFISH_CIPHER) ) {
-			Cipher cipher;
 			if (opmode == Cipher.ENCRYPT_MODE) {
-				cipher = CipherFactory.getInstance("TWOFISH/CBC/ZeroBytePadding", androidOverride);
+				return "TWOFISH/CBC/ZeroBytePadding";
 			} else {
-				cipher = CipherFactory.getInstance("TWOFISH/CBC/NoPadding", androidOverride);
+				return "TWOFISH/CBC/NoPadding";
 			}
-
-			cipher.init(opmode, new SecretKeySpec(key, "AES"), new IvParameterSpec(IV));
-
-			return cipher;
 		}
 		
 		throw new NoSuchAlgorithmException("UUID unrecognized.");
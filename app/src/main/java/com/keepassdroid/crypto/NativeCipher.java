@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto;
+
+import java.io.Closeable;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+/** A cipher running in native code, whose native context can be released as
+ * soon as the caller is done with it rather than when it is garbage collected.
+ */
+public class NativeCipher extends Cipher implements Closeable {
+	
+	private final NativeCipherSpi mSpi;
+	
+	private NativeCipher(NativeCipherSpi spi, Provider provider, String transformation) {
+		super(spi, provider, transformation);
+		mSpi = spi;
+	}
+	
+	/** Creates a cipher for a transformation of the form algorithm/mode/padding */
+	static NativeCipher create(String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+		String[] parts = transformation.split("/");
+		if ( parts.length != 3 ) {
+			throw new NoSuchAlgorithmException("Invalid transformation: " + transformation);
+		}
+		
+		NativeCipherSpi spi;
+		Provider provider;
+		if ( parts[0].equalsIgnoreCase("AES") ) {
+			spi = new NativeAESCipherSpi();
+			provider = new AESProvider();
+		} else if ( parts[0].equalsIgnoreCase("TWOFISH") ) {
+			spi = new NativeTwofishCipherSpi();
+			provider = new TwofishProvider();
+		} else {
+			throw new NoSuchAlgorithmException("No native implementation of " + parts[0]);
+		}
+		
+		spi.engineSetMode(parts[1]);
+		spi.engineSetPadding(parts[2]);
+		
+		return new NativeCipher(spi, provider, transformation);
+	}
+	
+	/** Returns the native context to the pool. The cipher can be used again
+	 * after another call to init.
+	 */
+	public void close() {
+		mSpi.release();
+	}
+
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2009-2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.CipherSpi;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+
+import android.util.Log;
+
+/** CBC mode ciphers implemented in the native library. The JNI code keeps
+ * the cipher state, so subclasses only pick the algorithm.
+ */
+public abstract class NativeCipherSpi extends CipherSpi {
+	
+	// Must match the algorithm ids in kpd_jni.c
+	protected static final int ALGORITHM_AES = 0;
+	protected static final int ALGORITHM_TWOFISH = 1;
+	
+	private static boolean mIsStaticInit = false;
+	private static Map<PhantomReference<NativeCipherSpi>, Long> mCleanup = new ConcurrentHashMap<PhantomReference<NativeCipherSpi>, Long>();
+	private static ReferenceQueue<NativeCipherSpi> mQueue = new ReferenceQueue<NativeCipherSpi>();
+	
+	// Wiped contexts of released ciphers, taken by the next init instead of allocating
+	private static final int POOL_SIZE = 8;
+	private static final LinkedList<Long> mPool = new LinkedList<Long>();
+	
+	private static final int BLOCK_SIZE = 16;
+	private final int mAlgorithm;
+	private byte[] mIV;
+	
+	private boolean mIsInited = false;
+	private boolean mEncrypting = false;
+	private long mCtxPtr;
+	private PhantomReference<NativeCipherSpi> mCleanupRef;
+	
+	private boolean mPadding  = false;
+	
+	// Ciphers may be created on several threads at once, when decrypting in parallel
+	private static synchronized void staticInit() {
+		if ( mIsStaticInit ) {
+			return;
+		}
+		mIsStaticInit = true;
+		
+		// Start the cipher context cleanup thread to run forever
+		(new Thread(new Cleanup())).start();
+	}
+	
+	private static PhantomReference<NativeCipherSpi> addToCleanupQueue(NativeCipherSpi ref, long ptr) {
+		Log.d("KeepassDroid", "queued cipher context: " + ptr);
+		PhantomReference<NativeCipherSpi> phantom = new PhantomReference<NativeCipherSpi>(ref, mQueue);
+		mCleanup.put(phantom, ptr);
+		
+		return phantom;
+	}
+	
+	/** Work with the garbage collector to clean up openssl memory when the cipher
+	 *  context is garbage collected. Only ciphers that were never released get
+	 *  here.
+	 * @author bpellin
+	 *
+	 */
+	private static class Cleanup implements Runnable {
+
+		public void run() {
+			while (true) {
+				try {
+					Reference<? extends NativeCipherSpi> ref = mQueue.remove();
+					
+					Long ctx = mCleanup.remove(ref);
+					if ( ctx != null ) {
+						nCleanup(ctx);
+						Log.d("KeePassDroid", "Cleaned up cipher context: " + ctx);
+					}
+					
+				} catch (InterruptedException e) {
+					// Do nothing, but resume looping if mQueue.remove is interrupted
+				}
+			}
+		}
+		
+	}
+	
+	private static native void nCleanup(long ctxPtr);
+	private static native void nWipe(long ctxPtr);
+	private static native void nReset(long ctxPtr, int algorithm, boolean encrypting, byte[] key, byte[] iv);
+
+	protected NativeCipherSpi(int algorithm) {
+		mAlgorithm = algorithm;
+		
+		if ( ! mIsStaticInit ) {
+			staticInit();
+		}
+	}
+	
+	@Override
+	protected byte[] engineDoFinal(byte[] input, int inputOffset, int inputLen)
+			throws IllegalBlockSizeException, BadPaddingException {
+		int maxSize = engineGetOutputSize(inputLen);
+		byte[] output = new byte[maxSize];
+		
+		int finalSize;
+		
+		try {
+			finalSize = doFinal(input, inputOffset, inputLen, output, 0);
+		} catch (ShortBufferException e) {
+			// This shouldn't be possible rethrow as RuntimeException
+			throw new RuntimeException("Short buffer exception shouldn't be possible from here.");
+		}
+		
+		if ( maxSize == finalSize ) {
+			return output;
+		} else {
+			// TODO: Special doFinal to avoid this copy
+			byte[] exact = new byte[finalSize];
+			System.arraycopy(output, 0, exact, 0, finalSize);
+			return exact;
+		}
+	}
+
+	@Override
+	protected int engineDoFinal(byte[] input, int inputOffset, int inputLen,
+			byte[] output, int outputOffset) throws ShortBufferException,
+			IllegalBlockSizeException, BadPaddingException {
+		
+		int result = doFinal(input, inputOffset, inputLen, output, outputOffset);
+		
+		if ( result == -1 ) {
+			throw new ShortBufferException();
+		}
+		
+		return result;
+	}
+	
+	private int doFinal(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) 
+			throws ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+		
+		int outputSize = engineGetOutputSize(inputLen);
+		
+		int updateAmt;
+		if (input != null && inputLen > 0) {
+			updateAmt = nUpdate(mCtxPtr, input, inputOffset, inputLen, output, outputOffset, outputSize);
+		} else {
+			updateAmt = 0;
+		}
+		
+		int finalAmt = nFinal(mCtxPtr, mPadding, output, outputOffset + updateAmt, outputSize - updateAmt); 
+		
+		int out = updateAmt + finalAmt;
+		
+		
+		return out;
+	}
+	
+	private native int nFinal(long ctxPtr, boolean usePadding, byte[] output, int outputOffest, int outputSize)
+			throws ShortBufferException, IllegalBlockSizeException, BadPaddingException;
+
+	@Override
+	protected int engineGetBlockSize() {
+		return BLOCK_SIZE;
+	}
+
+	@Override
+	protected byte[] engineGetIV() {
+		return mIV.clone();
+	}
+
+	@Override
+	protected int engineGetOutputSize(int inputLen) {
+		if ( mCtxPtr == 0 ) {
+			throw new IllegalStateException("Cipher is not initialized.");
+		}
+		
+		return inputLen + nGetCacheSize(mCtxPtr) + BLOCK_SIZE;
+	}
+	
+	private native int nGetCacheSize(long ctxPtr);
+
+	@Override
+	protected AlgorithmParameters engineGetParameters() {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	@Override
+	protected void engineInit(int opmode, Key key, SecureRandom random)
+			throws InvalidKeyException {
+
+		byte[] ivArray = new byte[16];
+		random.nextBytes(ivArray);
+		
+		init(opmode, key, new IvParameterSpec(ivArray));
+	}
+
+	@Override
+	protected void engineInit(int opmode, Key key,
+			AlgorithmParameterSpec params, SecureRandom random)
+			throws InvalidKeyException, InvalidAlgorithmParameterException {
+		
+		IvParameterSpec ivparam;
+		
+		if ( params instanceof IvParameterSpec ) {
+			ivparam = (IvParameterSpec) params;
+		} else {
+			throw new InvalidAlgorithmParameterException("params must be an IvParameterSpec.");
+		}
+		
+		init(opmode, key, ivparam);
+	}
+	
+
+	@Override
+	protected void engineInit(int opmode, Key key, AlgorithmParameters params,
+			SecureRandom random) throws InvalidKeyException,
+			InvalidAlgorithmParameterException {
+		
+		try {
+			engineInit(opmode, key, params.getParameterSpec(AlgorithmParameterSpec.class), random);
+		} catch (InvalidParameterSpecException e) {
+			throw new InvalidAlgorithmParameterException(e);
+		}
+
+	}
+
+	private void init(int opmode, Key key, IvParameterSpec params) {
+		if ( ! mIsInited ) {
+			NativeLib.init();
+			mIsInited = true;
+		}
+		
+		mIV = params.getIV();
+		mEncrypting = opmode == Cipher.ENCRYPT_MODE;
+		byte[] keyBytes = key.getEncoded();
+		
+		if ( mCtxPtr != 0 ) {
+			// Initialized again, the context is reused for the new key and IV
+			nReset(mCtxPtr, mAlgorithm, mEncrypting, keyBytes, mIV);
+			return;
+		}
+		
+		Long pooled;
+		synchronized (mPool) {
+			pooled = mPool.poll();
+		}
+		
+		if ( pooled != null ) {
+			try {
+				nReset(pooled, mAlgorithm, mEncrypting, keyBytes, mIV);
+			} catch (RuntimeException e) {
+				nCleanup(pooled);
+				throw e;
+			}
+			mCtxPtr = pooled;
+		} else {
+			mCtxPtr = nInit(mAlgorithm, mEncrypting, keyBytes, mIV);
+		}
+		mCleanupRef = addToCleanupQueue(this, mCtxPtr);
+	}
+	
+	private native long nInit(int algorithm, boolean encrypting, byte[] key, byte[] iv);
+	
+	/** Wipes the native context and keeps it for the next cipher, instead of
+	 * waiting for this one to be garbage collected. The cipher has to be
+	 * initialized again before it is used.
+	 */
+	void release() {
+		if ( mCtxPtr == 0 ) {
+			return;
+		}
+		
+		long ctx = mCtxPtr;
+		mCtxPtr = 0;
+		mCleanup.remove(mCleanupRef);
+		mCleanupRef.clear();
+		mCleanupRef = null;
+		
+		nWipe(ctx);
+		synchronized (mPool) {
+			if ( mPool.size() < POOL_SIZE ) {
+				mPool.add(ctx);
+				return;
+			}
+		}
+		nCleanup(ctx);
+	}
+	
+	@Override
+	protected void engineSetMode(String mode) throws NoSuchAlgorithmException {
+		if ( ! mode.equalsIgnoreCase("CBC") ) {
+			throw new NoSuchAlgorithmException("This only supports CBC mode");
+		}
+	}
+
+	@Override
+	protected void engineSetPadding(String padding)
+			throws NoSuchPaddingException {
+		
+		if ( ! mIsInited ) {
+			NativeLib.init();
+		}
+		
+		if ( padding.length() == 0 || padding.equalsIgnoreCase("NoPadding") ) {
+			return;
+		}
+
+		// The same scheme for 16 byte blocks
+		if ( ! padding.equalsIgnoreCase("PKCS5Padding") && ! padding.equalsIgnoreCase("PKCS7Padding") ) {
+			throw new NoSuchPaddingException("Only supports PKCS5Padding and NoPadding.");
+		}
+		
+		mPadding = true;
+			
+	}
+	
+	@Override
+	protected byte[] engineUpdate(byte[] input, int inputOffset, int inputLen) {
+		int maxSize = engineGetOutputSize(inputLen);
+		byte output[] = new byte[maxSize];
+		
+		int updateSize = update(input, inputOffset, inputLen, output, 0);
+		
+		if ( updateSize == maxSize ) {
+			return output;
+		} else {
+			// TODO: We could optimize update for this case to avoid this extra copy
+			byte[] exact = new byte[updateSize];
+			System.arraycopy(output, 0, exact, 0, updateSize);
+			return exact;
+		}
+		
+	}
+
+	@Override
+	protected int engineUpdate(byte[] input, int inputOffset, int inputLen,
+			byte[] output, int outputOffset) throws ShortBufferException {
+		
+		int result = update(input, inputOffset, inputLen, output, outputOffset);
+		
+		if ( result == -1 ) {
+			throw new ShortBufferException("Insufficient buffer.");
+		}
+		
+		return result;
+		
+	}
+	
+	int update(byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset) {
+		int outputSize = engineGetOutputSize(inputLen);
+		
+		int out = nUpdate(mCtxPtr, input, inputOffset, inputLen, output, outputOffset, outputSize);
+		
+		
+		return out;
+		
+		
+	}
+	
+	private native int nUpdate(long ctxPtr, byte[] input, int inputOffset, int inputLen, byte[] output, int outputOffset, int outputSize);
+	
+	/** Direct buffers are passed to the native code without copying */
+	@Override
+	protected int engineUpdate(ByteBuffer input, ByteBuffer output) throws ShortBufferException {
+		if ( ! input.isDirect() || ! output.isDirect() ) {
+			return super.engineUpdate(input, output);
+		}
+		
+		int inputLen = input.remaining();
+		if ( inputLen == 0 ) {
+			return 0;
+		}
+		
+		int outputSize = engineGetOutputSize(inputLen);
+		if ( output.remaining() < outputSize ) {
+			throw new ShortBufferException("Insufficient buffer.");
+		}
+		
+		int out = nUpdateDirect(mCtxPtr, input, input.position(), inputLen, output, output.position(), outputSize);
+		
+		input.position(input.limit());
+		output.position(output.position() + out);
+		
+		return out;
+	}
+	
+	private native int nUpdateDirect(long ctxPtr, ByteBuffer input, int inputOffset, int inputLen, ByteBuffer output, int outputOffset, int outputSize);
+	
+}
\ No newline at end of file
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.keepassdroid.compat.ThreadPoolCompat;
+
+/** Decrypts CBC content on several threads. Each plaintext block depends only
+ * on its own ciphertext block and the one before it, so the content is split
+ * into chunks that each start from the last ciphertext block of the previous
+ * chunk as their IV.
+ *
+ * Every chunk gets its own cipher, with the padding of the transformation.
+ * Only the final chunk is finished with doFinal, which removes the padding.
+ * The others are given the first block of the following chunk as well, to
+ * push out the last block a padding cipher holds back.
+ */
+public class ParallelCBCDecryptor {
+	public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+	public static final int BLOCK_SIZE = 16;
+	private static final int IDLE_SECONDS = 10;
+	
+	private final String transformation;
+	private final byte[] key;
+	private final int threads;
+	private final int chunkSize;
+	private ExecutorService pool = null;
+	
+	public static boolean isUseful() {
+		return Runtime.getRuntime().availableProcessors() > 1;
+	}
+	
+	public ParallelCBCDecryptor(String transformation, byte[] key) throws GeneralSecurityException {
+		this(transformation, key, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+	}
+	
+	/** The transformation and key are checked here, so a problem with them is
+	 * not mistaken for corrupt content later.
+	 */
+	public ParallelCBCDecryptor(String transformation, byte[] key, int threads, int chunkSize) throws GeneralSecurityException {
+		if ( chunkSize < BLOCK_SIZE ) {
+			chunkSize = BLOCK_SIZE;
+		}
+		
+		this.transformation = transformation;
+		this.key = key.clone();
+		this.threads = Math.max(1, threads);
+		this.chunkSize = chunkSize - chunkSize % BLOCK_SIZE;
+		
+		CipherFactory.release(createCipher(new byte[BLOCK_SIZE]));
+	}
+	
+	/** Content decrypted by a call to decrypt, on top of those that came before */
+	public int getBatchSize() {
+		return threads * chunkSize;
+	}
+	
+	/** Decrypts in place.
+	 * 
+	 * @param iv the IV, or the ciphertext block before buf when continuing
+	 * @param last whether the content ends with buf, so padding is removed
+	 * @param next the ciphertext block following buf, when it isn't the last
+	 * @return the number of plaintext bytes written from off
+	 */
+	public int decrypt(byte[] iv, final byte[] buf, int off, int len, boolean last, byte[] next)
+			throws IOException, GeneralSecurityException {
+		if ( !last && next == null ) {
+			throw new IllegalArgumentException("The following block is needed to continue.");
+		}
+		if ( len % BLOCK_SIZE != 0 ) {
+			throw new IllegalBlockSizeException("Content is not a whole number of blocks.");
+		}
+		
+		int count = Math.max(1, (len + chunkSize - 1) / chunkSize);
+		if ( count == 1 || threads == 1 ) {
+			return decryptChunk(iv, buf, off, len, last ? null : next);
+		}
+		
+		// Taken before any chunk is decrypted over them
+		final int[] starts = new int[count];
+		final int[] lengths = new int[count];
+		final byte[][] ivs = new byte[count][];
+		final byte[][] nexts = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			starts[i] = off + i * chunkSize;
+			lengths[i] = Math.min(chunkSize, off + len - starts[i]);
+			ivs[i] = (i == 0) ? iv : copyBlock(buf, starts[i] - BLOCK_SIZE);
+		}
+		for (int i = 0; i < count - 1; i++) {
+			nexts[i] = copyBlock(buf, starts[i + 1]);
+		}
+		nexts[count - 1] = last ? null : next;
+		
+		ExecutorService pool = getPool();
+		List<Future<Integer>> pending = new ArrayList<Future<Integer>>();
+		for (int i = 1; i < count; i++) {
+			final int chunk = i;
+			pending.add(pool.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return decryptChunk(ivs[chunk], buf, starts[chunk], lengths[chunk], nexts[chunk]);
+				}
+			}));
+		}
+		
+		int total;
+		try {
+			// The first chunk on this thread, while the others are decrypted
+			total = decryptChunk(ivs[0], buf, starts[0], lengths[0], nexts[0]);
+			for (Future<Integer> result : pending) {
+				total += result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while decrypting");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof GeneralSecurityException ) {
+				throw (GeneralSecurityException) cause;
+			} else if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			} else if ( cause instanceof Error ) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause.getMessage());
+		} finally {
+			for (Future<Integer> result : pending) {
+				result.cancel(false);
+			}
+		}
+		
+		return total;
+	}
+	
+	/** Decrypts one chunk in place, finishing with doFinal when next is null */
+	private int decryptChunk(byte[] iv, byte[] buf, int off, int len, byte[] next) throws GeneralSecurityException {
+		Cipher cipher = createCipher(iv);
+		try {
+			if ( next == null ) {
+				return cipher.doFinal(buf, off, len, buf, off);
+			}
+			
+			int done = cipher.update(buf, off, len, buf, off);
+			if ( done < len ) {
+				byte[] rest = cipher.update(next);
+				if ( rest == null || rest.length < len - done ) {
+					throw new IllegalBlockSizeException("Cipher held back more than a block.");
+				}
+				System.arraycopy(rest, 0, buf, off + done, len - done);
+				Arrays.fill(rest, (byte) 0);
+			}
+			
+			return len;
+		} finally {
+			// One cipher per chunk, so the contexts are reused rather than left to the collector
+			CipherFactory.release(cipher);
+		}
+	}
+	
+	private Cipher createCipher(byte[] iv) throws GeneralSecurityException {
+		Cipher cipher = CipherFactory.getInstance(transformation);
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		
+		return cipher;
+	}
+	
+	private synchronized ExecutorService getPool() {
+		if ( pool == null ) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads - 1, threads - 1,
+					IDLE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Load: decrypt");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			
+			// Idle threads go away even if close is never called
+			ThreadPoolCompat.allowCoreThreadTimeOut(executor, true);
+			pool = executor;
+		}
+		
+		return pool;
+	}
+	
+	public synchronized void close() {
+		if ( pool != null ) {
+			pool.shutdownNow();
+			pool = null;
+		}
+		Arrays.fill(key, (byte) 0);
+	}
+	
+	/** Copy of the cipher block at offset */
+	public static byte[] copyBlock(byte[] buf, int offset) {
+		byte[] block = new byte[BLOCK_SIZE];
+		System.arraycopy(buf, offset, block, 0, BLOCK_SIZE);
+		return block;
+	}
+}
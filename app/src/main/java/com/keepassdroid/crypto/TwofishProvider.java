@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.crypto;
+
+import java.security.Provider;
+
+public final class TwofishProvider extends Provider {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4262384817946352765L;
+
+	public TwofishProvider() {
+		super("TwofishProvider", 1.0, "");
+		put("Cipher.TWOFISH",com.keepassdroid.crypto.NativeTwofishCipherSpi.class.getName());
+	}
+
+}
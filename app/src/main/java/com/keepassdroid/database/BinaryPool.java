@@ -19,6 +19,7 @@
  */
 package com.keepassdroid.database;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -28,6 +29,38 @@ import com.keepassdroid.database.security.ProtectedBinary;
 
 public class BinaryPool {
 	private HashMap<String, ProtectedBinary> pool = new HashMap<String, ProtectedBinary>();
+	// Built on the first lookup, so loading a pool doesn't hash every binary
+	private HashMap<BinaryKey, String> index = null;
+	
+	/** Identifies a binary by its content hash, so lookups don't need to compare
+	 * the data against every other binary in the pool.
+	 */
+	private static class BinaryKey {
+		private final byte[] hash;
+		private final boolean protect;
+		private final int hashCode;
+		
+		public BinaryKey(ProtectedBinary pb) {
+			hash = pb.getHash();
+			protect = pb.isProtected();
+			hashCode = Arrays.hashCode(hash) ^ (protect ? 1 : 0);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof BinaryKey)) {
+				return false;
+			}
+			
+			BinaryKey rhs = (BinaryKey) o;
+			return protect == rhs.protect && Arrays.equals(hash, rhs.hash);
+		}
+	}
 	
 	public BinaryPool() {
 		
@@ -42,7 +75,12 @@ public class BinaryPool {
 	}
 	
 	public ProtectedBinary put(String key, ProtectedBinary value) {
-		return pool.put(key, value);
+		ProtectedBinary old = pool.put(key, value);
+		
+		// Rebuilt with the new contents when next needed
+		index = null;
+		
+		return old;
 	}
 	
 	public Set<Entry<String, ProtectedBinary>> entrySet() {
@@ -74,17 +112,35 @@ public class BinaryPool {
 	private void poolAdd(ProtectedBinary pb) {
 		assert(pb != null);
 		
-		if (poolFind(pb) != null) return;
+		BinaryKey binKey = new BinaryKey(pb);
+		HashMap<BinaryKey, String> index = getIndex();
+		if (index.containsKey(binKey)) return;
 		
-		pool.put(String.valueOf(pool.size()), pb);
+		String key = String.valueOf(pool.size());
+		pool.put(key, pb);
+		index.put(binKey, key);
 	}
 	
 	public String poolFind(ProtectedBinary pb) {
-		for (Entry<String, ProtectedBinary> pair : pool.entrySet()) {
-			if (pair.getValue().equals(pb)) return pair.getKey();
+		return getIndex().get(new BinaryKey(pb));
+	}
+	
+	private HashMap<BinaryKey, String> getIndex() {
+		if (index == null) {
+			index = new HashMap<BinaryKey, String>();
+			for (Entry<String, ProtectedBinary> pair : pool.entrySet()) {
+				BinaryKey binKey = new BinaryKey(pair.getValue());
+				String key = pair.getKey();
+				
+				// Keep one key for equal contents, the same one whatever the map order
+				String existing = index.get(binKey);
+				if (existing == null || key.compareTo(existing) < 0) {
+					index.put(binKey, key);
+				}
+			}
 		}
 		
-		return null;
+		return index;
 	}
 	
 	private void build(PwGroupV4 rootGroup) {
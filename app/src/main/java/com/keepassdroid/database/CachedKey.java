@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database;
+
+import java.util.Arrays;
+
+/** Composite key of an open database, with the result of its last key
+ * transformation. It lets the file be opened again without the password,
+ * and without the transformation if the seed and rounds are unchanged.
+ */
+public class CachedKey {
+	private final byte[] masterKey;
+	private final byte[] transformSeed;
+	private final long rounds;
+	private final byte[] transformedKey;
+	
+	public CachedKey(byte[] masterKey, byte[] transformSeed, long rounds, byte[] transformedKey) {
+		this.masterKey = masterKey.clone();
+		this.transformSeed = transformSeed.clone();
+		this.rounds = rounds;
+		this.transformedKey = transformedKey.clone();
+	}
+	
+	public byte[] getMasterKey() {
+		return masterKey.clone();
+	}
+	
+	/** The transformed key, or null if it was made from a different key, seed or rounds */
+	public byte[] getTransformedKey(byte[] masterKey, byte[] transformSeed, long rounds) {
+		if ( this.rounds != rounds || ! Arrays.equals(this.transformSeed, transformSeed)
+				|| ! Arrays.equals(this.masterKey, masterKey) ) {
+			return null;
+		}
+		
+		return transformedKey.clone();
+	}
+}
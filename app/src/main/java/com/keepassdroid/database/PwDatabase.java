@@ -55,6 +55,9 @@ public abstract class PwDatabase {
     public Map<PwGroupId, PwGroup> groups = new HashMap<PwGroupId, PwGroup>();
     public Map<UUID, PwEntry> entries = new HashMap<UUID, PwEntry>();
 
+    private CachedKey cachedKey = null;
+    private boolean frozen = false;
+
 
     private static boolean isKDBExtension(String filename) {
         if (filename == null) { return false; }
@@ -85,7 +88,16 @@ public abstract class PwDatabase {
         NullOutputStream nos = new NullOutputStream();
         DigestOutputStream dos = new DigestOutputStream(nos, md);
 
-        byte[] transformedMasterKey = transformMasterKey(masterSeed2, masterKey, numRounds);
+        byte[] transformedMasterKey = null;
+        if (cachedKey != null) {
+            transformedMasterKey = cachedKey.getTransformedKey(masterKey, masterSeed2, numRounds);
+        }
+
+        if (transformedMasterKey == null) {
+            transformedMasterKey = transformMasterKey(masterSeed2, masterKey, numRounds);
+            cachedKey = new CachedKey(masterKey, masterSeed2, numRounds, transformedMasterKey);
+        }
+
         dos.write(masterSeed);
         dos.write(transformedMasterKey);
 
@@ -104,6 +116,28 @@ public abstract class PwDatabase {
     }
 
 
+    /** Marks the database as opened for viewing only. Parts that are only
+     * needed for saving may have been left out, so it must not be saved.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /** The key this database was last opened or saved with */
+    public CachedKey getCachedKey() {
+        return cachedKey;
+    }
+
+    /** Uses the key from an earlier load instead of a password and key file */
+    public void setCachedKey(CachedKey key) {
+        masterKey = key.getMasterKey();
+        cachedKey = key;
+    }
+
     public abstract byte[] getMasterKey(String key, InputStream keyInputStream) throws InvalidKeyFileException, IOException;
 
     public void setMasterKey(String key, InputStream keyInputStream)
@@ -263,6 +297,7 @@ public abstract class PwDatabase {
 
         parent.childGroups.add(newGroup);
         newGroup.setParent(parent);
+        parent.markModified();
         groups.put(newGroup.getId(), newGroup);
 
         parent.touch(true, true);
@@ -271,6 +306,7 @@ public abstract class PwDatabase {
     public void removeGroupFrom(PwGroup remove, PwGroup parent) {
         // Remove group from parent group
         parent.childGroups.remove(remove);
+        parent.markModified();
 
         groups.remove(remove.getId());
     }
@@ -279,6 +315,7 @@ public abstract class PwDatabase {
         // Add entry to parent
         if (parent != null) {
             parent.childEntries.add(newEntry);
+            parent.markModified();
         }
         newEntry.setParent(parent);
 
@@ -289,6 +326,7 @@ public abstract class PwDatabase {
         // Remove entry for parent
         if (parent != null) {
             parent.childEntries.remove(remove);
+            parent.markModified();
         }
         entries.remove(remove.getUUID());
     }
@@ -27,6 +27,7 @@ import java.security.NoSuchAlgorithmException;
 
 import com.keepassdroid.database.exception.InvalidDBVersionException;
 import com.keepassdroid.stream.LEDataInputStream;
+import com.keepassdroid.utils.BufferPool;
 import com.keepassdroid.utils.Types;
 
 public class PwDbHeaderV4 extends PwDbHeader {
@@ -103,74 +104,89 @@ public class PwDbHeaderV4 extends PwDbHeader {
 		
 		int fieldSize = dis.readUShort();
 		
-		byte[] fieldData = null;
-		if ( fieldSize > 0 ) {
-			fieldData = new byte[fieldSize];
-			
-			int readSize = dis.read(fieldData);
-			if ( readSize != fieldSize ) {
-				throw new IOException("Header ended early.");
-			}
-		}
-		
 		switch ( fieldID ) {
-			case PwDbHeaderV4Fields.EndOfHeader:
-				return true;
-				
-			case PwDbHeaderV4Fields.CipherID:
-				setCipher(fieldData);
-				break;
-				
-			case PwDbHeaderV4Fields.CompressionFlags:
-				setCompressionFlags(fieldData);
-				break;
-				
 			case PwDbHeaderV4Fields.MasterSeed:
-				masterSeed = fieldData;
-				break;
+				masterSeed = readField(dis, fieldSize);
+				return false;
 				
 			case PwDbHeaderV4Fields.TransformSeed:
-				transformSeed = fieldData;
-				break;
-				
-			case PwDbHeaderV4Fields.TransformRounds:
-				setTransformRounds(fieldData);
-				break;
+				transformSeed = readField(dis, fieldSize);
+				return false;
 				
 			case PwDbHeaderV4Fields.EncryptionIV:
-				encryptionIV = fieldData;
-				break;
+				encryptionIV = readField(dis, fieldSize);
+				return false;
 				
 			case PwDbHeaderV4Fields.ProtectedStreamKey:
-				protectedStreamKey = fieldData;
-				break;
+				protectedStreamKey = readField(dis, fieldSize);
+				return false;
 				
 			case PwDbHeaderV4Fields.StreamStartBytes:
-				streamStartBytes = fieldData;
-				break;
+				streamStartBytes = readField(dis, fieldSize);
+				return false;
+		}
+		
+		// The remaining fields are parsed straight away, so the data is only borrowed
+		byte[] fieldData = BufferPool.acquire(fieldSize);
+		try {
+			if ( dis.readBytes(fieldData, 0, fieldSize) != fieldSize ) {
+				throw new IOException("Header ended early.");
+			}
 			
-			case PwDbHeaderV4Fields.InnerRandomStreamID:
-				setRandomStreamID(fieldData);
-				break;
+			switch ( fieldID ) {
+				case PwDbHeaderV4Fields.EndOfHeader:
+					return true;
+					
+				case PwDbHeaderV4Fields.CipherID:
+					setCipher(fieldData, fieldSize);
+					break;
+					
+				case PwDbHeaderV4Fields.CompressionFlags:
+					setCompressionFlags(fieldData, fieldSize);
+					break;
+					
+				case PwDbHeaderV4Fields.TransformRounds:
+					setTransformRounds(fieldData, fieldSize);
+					break;
 				
-			default:
-				throw new IOException("Invalid header type.");
-			
+				case PwDbHeaderV4Fields.InnerRandomStreamID:
+					setRandomStreamID(fieldData, fieldSize);
+					break;
+					
+				default:
+					throw new IOException("Invalid header type.");
+				
+			}
+		} finally {
+			BufferPool.release(fieldData);
 		}
 		
 		return false;
 	}
 	
-	private void setCipher(byte[] pbId) throws IOException {
-		if ( pbId == null || pbId.length != 16 ) {
+	private byte[] readField(LEDataInputStream dis, int fieldSize) throws IOException {
+		if ( fieldSize == 0 ) {
+			return null;
+		}
+		
+		byte[] fieldData = dis.readBytes(fieldSize);
+		if ( fieldData.length != fieldSize ) {
+			throw new IOException("Header ended early.");
+		}
+		
+		return fieldData;
+	}
+	
+	private void setCipher(byte[] pbId, int size) throws IOException {
+		if ( size != 16 ) {
 			throw new IOException("Invalid cipher ID.");
 		}
 		
 		db.dataCipher = Types.bytestoUUID(pbId);
 	}
 	
-	private void setCompressionFlags(byte[] pbFlags) throws IOException {
-		if ( pbFlags == null || pbFlags.length != 4 ) {
+	private void setCompressionFlags(byte[] pbFlags, int size) throws IOException {
+		if ( size != 4 ) {
 			throw new IOException("Invalid compression flags.");
 		}
 		
@@ -183,8 +199,8 @@ public class PwDbHeaderV4 extends PwDbHeader {
 		
 	}
 	
-	private void setTransformRounds(byte[] rounds) throws IOException {
-		if ( rounds == null || rounds.length != 8 ) {
+	private void setTransformRounds(byte[] rounds, int size) throws IOException {
+		if ( size != 8 ) {
 			throw new IOException("Invalid rounds.");
 		}
 		
@@ -199,8 +215,8 @@ public class PwDbHeaderV4 extends PwDbHeader {
 		
 	}
 	
-	private void setRandomStreamID(byte[] streamID) throws IOException {
-		if ( streamID == null || streamID.length != 4 ) {
+	private void setRandomStreamID(byte[] streamID, int size) throws IOException {
+		if ( size != 4 ) {
 			throw new IOException("Invalid stream id.");
 		}
 		
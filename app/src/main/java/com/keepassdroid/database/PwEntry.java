@@ -39,6 +39,7 @@ public abstract class PwEntry implements Cloneable {
 	}
 	
 	public PwIconStandard icon = PwIconStandard.FIRST;
+	private long revision = 0;
 
 	public PwEntry() {
 		
@@ -170,6 +171,21 @@ public abstract class PwEntry implements Cloneable {
 	
 	public void touchLocation() { }
 	
+	/** Changes whenever this entry is modified */
+	public long getRevision() {
+		return revision;
+	}
+	
+	/** Records a change to this entry, which is part of its parent's contents */
+	public void markModified() {
+		revision = PwGroup.nextRevision();
+		
+		PwGroup parent = getParent();
+		if (parent != null) {
+			parent.markModified();
+		}
+	}
+	
 	public abstract void setParent(PwGroup parent);
 	
 	public boolean isSearchingEnabled() {
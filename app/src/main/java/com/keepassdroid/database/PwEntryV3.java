@@ -44,6 +44,7 @@ package com.keepassdroid.database;
 
 // PhoneID
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Random;
@@ -107,6 +108,8 @@ public class PwEntryV3 extends PwEntry {
 	/** A string describing what is in pBinaryData */
 	public String           binaryDesc;
 	private byte[]          binaryData;
+	// A slice of the buffer the database was read into, kept instead of binaryData
+	private ByteBuffer      binarySlice;
 
 	private static Date getDefaultDate() {
 		Calendar cal = Calendar.getInstance();
@@ -250,25 +253,66 @@ public class PwEntryV3 extends PwEntry {
 	 * @return the actual binaryData byte array.
 	 */
 	public byte[] getBinaryData() {
+		if ( binarySlice != null ) {
+			// Callers may keep or change the array, so it has to be our own
+			binaryData = new byte[binarySlice.remaining()];
+			binarySlice.duplicate().get(binaryData);
+			binarySlice = null;
+		}
+		
 		return binaryData;
 	}
 
-
+	/**
+	 * @return the binary data without copying it, which must not be modified,
+	 * or null if there is none.
+	 */
+	public ByteBuffer getBinaryBuffer() {
+		if ( binarySlice != null ) {
+			return binarySlice.duplicate();
+		}
+		
+		if ( binaryData != null ) {
+			return ByteBuffer.wrap(binaryData);
+		}
+		
+		return null;
+	}
 
 	/** Securely erase old data before copying new. */
 	public void setBinaryData( byte[] buf, int offset, int len ) {
+		clearBinaryData();
+		binaryData = new byte[len];
+		System.arraycopy( buf, offset, binaryData, 0, len );
+	}
+
+	/** Keeps the remaining bytes of data without copying them. The caller
+	 * must not use that part of the buffer any more.
+	 */
+	public void setBinaryData( ByteBuffer data ) {
+		clearBinaryData();
+		binarySlice = data.slice();
+	}
+
+	private void clearBinaryData() {
 		if( binaryData != null ) {
 			fill( binaryData, (byte)0 );
 			binaryData = null;
 		}
-		binaryData = new byte[len];
-		System.arraycopy( buf, offset, binaryData, 0, len );
+		
+		if ( binarySlice != null ) {
+			ByteBuffer old = binarySlice.duplicate();
+			while ( old.hasRemaining() ) {
+				old.put((byte) 0);
+			}
+			binarySlice = null;
+		}
 	}
 
 	// Determine if this is a MetaStream entry
 	@Override
 	public boolean isMetaStream() {
-		if ( binaryData == null ) return false;
+		if ( binaryData == null && binarySlice == null ) return false;
 		if ( additional == null || additional.length() == 0 ) return false;
 		if ( ! binaryDesc.equals(PMS_ID_BINDESC) ) return false;
 		if ( title == null ) return false;
@@ -316,10 +360,11 @@ public class PwEntryV3 extends PwEntry {
 
 		binaryDesc = source.binaryDesc;
 
-		if ( source.binaryData != null ) {
-			int descLen = source.binaryData.length;
-			binaryData = new byte[descLen]; 
-			System.arraycopy(source.binaryData, 0, binaryData, 0, descLen);
+		ByteBuffer data = source.getBinaryBuffer();
+		if ( data != null ) {
+			binarySlice = null;
+			binaryData = new byte[data.remaining()];
+			data.get(binaryData);
 		}
 
 		parent = source.parent;
@@ -343,10 +388,11 @@ public class PwEntryV3 extends PwEntry {
 		
 		newEntry.binaryDesc = binaryDesc;
 
-		if ( binaryData != null ) {
-			int descLen = binaryData.length;
-			newEntry.binaryData = new byte[descLen]; 
-			System.arraycopy(binaryData, 0, newEntry.binaryData, 0, descLen);
+		newEntry.binarySlice = null;
+		ByteBuffer data = getBinaryBuffer();
+		if ( data != null ) {
+			newEntry.binaryData = new byte[data.remaining()];
+			data.get(newEntry.binaryData);
 		}
 
 		newEntry.parent = parent;
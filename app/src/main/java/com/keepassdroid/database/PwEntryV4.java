@@ -93,6 +93,10 @@ public class PwEntryV4 extends PwEntry implements ITimeLogger {
 		public Set<Entry<String, String>> entrySet() {
 			return windowSeqPairs.entrySet();
 		}
+		
+		public int size() {
+			return windowSeqPairs.size();
+		}
 
 	}
 	
@@ -155,6 +159,7 @@ public class PwEntryV4 extends PwEntry implements ITimeLogger {
 		
 		PwEntryV4 src = (PwEntryV4) source;
 		assign(src);
+		markModified();
 	}
 
 	private void assign(PwEntryV4 source) {
@@ -280,18 +285,22 @@ public class PwEntryV4 extends PwEntry implements ITimeLogger {
 
 	public void setCreationTime(Date date) {
 		creation = date;
+		markModified();
 	}
 
 	public void setExpiryTime(Date date) {
 		expireDate = date;
+		markModified();
 	}
 
 	public void setLastAccessTime(Date date) {
 		lastAccess = date;
+		markModified();
 	}
 
 	public void setLastModificationTime(Date date) {
 		lastMod = date;
+		markModified();
 	}
 
 	@Override
@@ -308,6 +317,7 @@ public class PwEntryV4 extends PwEntry implements ITimeLogger {
 	@Override
 	public void setUUID(UUID u) {
 		uuid = u;
+		markModified();
 	}
 	
 	public String getString(String key) {
@@ -321,6 +331,7 @@ public class PwEntryV4 extends PwEntry implements ITimeLogger {
 	public void setString(String key, String value, boolean protect) {
 		ProtectedString ps = new ProtectedString(protect, value);
 		strings.put(key, ps);
+		markModified();
 	}
 
 	public Date getLocationChanged() {
@@ -333,10 +344,12 @@ public class PwEntryV4 extends PwEntry implements ITimeLogger {
 
 	public void setLocationChanged(Date date) {
 		parentGroupLastMod = date;
+		markModified();
 	}
 
 	public void setUsageCount(long count) {
 		usageCount = count;
+		markModified();
 	}
 	
 	@Override
@@ -346,6 +359,7 @@ public class PwEntryV4 extends PwEntry implements ITimeLogger {
 
 	public void setExpires(boolean exp) {
 		expires = exp;
+		markModified();
 	}
 
 	@Override
@@ -378,6 +392,7 @@ public class PwEntryV4 extends PwEntry implements ITimeLogger {
 		PwEntryV4 copy = cloneDeep();
 		copy.history = new ArrayList<PwEntryV4>();
 		history.add(copy);
+		markModified();
 		
 		if (db != null) maintainBackups(db);
 	}
@@ -467,11 +482,13 @@ public class PwEntryV4 extends PwEntry implements ITimeLogger {
 		super.touch(modified, touchParents);
 		
 		++usageCount;
+		markModified();
 	}
 
 	@Override
 	public void touchLocation() {
 		parentGroupLastMod = new Date();
+		markModified();
 	}
 	
 	@Override
@@ -24,6 +24,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.keepassdroid.utils.StrUtil;
 
@@ -32,6 +33,9 @@ public abstract class PwGroup {
 	public List<PwEntry> childEntries = new ArrayList<PwEntry>();
 	public String name = "";
 	public PwIconStandard icon;
+	private long revision = 0;
+	
+	private static final AtomicLong lastRevision = new AtomicLong();
 
 	public abstract PwGroup getParent();
 	public abstract void setParent(PwGroup parent);
@@ -46,6 +50,28 @@ public abstract class PwGroup {
 	public PwIcon getIcon() {
 		return icon;
 	}
+	
+	/** Records a change to this group or its direct children. This counts as a
+	 * change to all the parent groups too, since their subtrees contain it.
+	 */
+	public void markModified() {
+		long next = nextRevision();
+		for (PwGroup group = this; group != null; group = group.getParent()) {
+			group.revision = next;
+		}
+	}
+	
+	/** Revisions are unique across all groups and entries, so a later change
+	 * always has a higher revision than anything recorded before it.
+	 */
+	static long nextRevision() {
+		return lastRevision.incrementAndGet();
+	}
+	
+	/** Changes whenever anything in this group's subtree is modified */
+	public long getRevision() {
+		return revision;
+	}
 
 	public void sortGroupsByName() {
 		Collections.sort(childGroups, new GroupNameComparator());
@@ -75,6 +75,7 @@ public class PwGroupV4 extends PwGroup implements ITimeLogger {
 		
 		if ( updateLocationChanged ) subGroup.parentGroupLastMod = new Date(System.currentTimeMillis());
 		
+		markModified();
 	}
 	
 	public void AddEntry(PwEntryV4 pe, boolean takeOwnership) {
@@ -89,6 +90,8 @@ public class PwGroupV4 extends PwGroup implements ITimeLogger {
 		if ( takeOwnership ) pe.parent = this;
 		
 		if ( updateLocationChanged ) pe.setLocationChanged(new Date(System.currentTimeMillis()));
+		
+		markModified();
 	}
 	
 	@Override
@@ -127,6 +130,7 @@ public class PwGroupV4 extends PwGroup implements ITimeLogger {
 	public void setId(PwGroupId id) {
 		PwGroupIdV4 id4 = (PwGroupIdV4) id;
 		uuid = id4.getId();
+		markModified();
 	}
 
 	@Override
@@ -165,29 +169,34 @@ public class PwGroupV4 extends PwGroup implements ITimeLogger {
 
 	public void setCreationTime(Date date) {
 		creation = date;
-		
+		markModified();
 	}
 
 	public void setExpiryTime(Date date) {
 		expireDate = date;
+		markModified();
 	}
 
 	@Override
 	public void setLastAccessTime(Date date) {
 		lastAccess = date;
+		markModified();
 	}
 
 	@Override
 	public void setLastModificationTime(Date date) {
 		lastMod = date;
+		markModified();
 	}
 
 	public void setLocationChanged(Date date) {
 		parentGroupLastMod = date;
+		markModified();
 	}
 
 	public void setUsageCount(long count) {
 		usageCount = count;
+		markModified();
 	}
 
 	public boolean expires() {
@@ -196,6 +205,7 @@ public class PwGroupV4 extends PwGroup implements ITimeLogger {
 
 	public void setExpires(boolean exp) {
 		expires = exp;
+		markModified();
 	}
 
 	@Override
@@ -218,6 +228,7 @@ public class PwGroupV4 extends PwGroup implements ITimeLogger {
 		super.initNewGroup(nm, newId);
 		
 		lastAccess = lastMod = creation = parentGroupLastMod = new Date();
+		markModified();
 	}
 	
 	public boolean isSearchEnabled() {
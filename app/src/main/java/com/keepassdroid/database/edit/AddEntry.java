@@ -47,11 +47,16 @@ public class AddEntry extends RunnableOnFinish {
 	
 	@Override
 	public void run() {
-		mDb.pm.addEntryTo(mEntry, mEntry.getParent());
+		// The parent may still be filling up
+		mDb.waitForLoad();
+
+		synchronized (mDb) {
+			mDb.pm.addEntryTo(mEntry, mEntry.getParent());
 		
-		// Commit to disk
-		SaveDB save = new SaveDB(ctx, mDb, mFinish);
-		save.run();
+			// Commit to disk
+			SaveDB save = new SaveDB(ctx, mDb, mFinish, false, true);
+			save.run();
+		}
 	}
 	
 	private class AfterAdd extends OnFinish {
@@ -55,19 +55,23 @@ public class AddGroup extends RunnableOnFinish {
 	
 	@Override
 	public void run() {
-		PwDatabase pm = mDb.pm;
+		mDb.waitForLoad();
+
+		synchronized (mDb) {
+			PwDatabase pm = mDb.pm;
 		
-		// Generate new group
-		mGroup = pm.createGroup();
-		mGroup.initNewGroup(mName, pm.newGroupId());
-		mGroup.icon = mDb.pm.iconFactory.getIcon(mIconID);
-		pm.addGroupTo(mGroup, mParent);
+			// Generate new group
+			mGroup = pm.createGroup();
+			mGroup.initNewGroup(mName, pm.newGroupId());
+			mGroup.icon = mDb.pm.iconFactory.getIcon(mIconID);
+			pm.addGroupTo(mGroup, mParent);
 		
-		//mParent.sortGroupsByName();
+			//mParent.sortGroupsByName();
 		
-		// Commit to disk
-		SaveDB save = new SaveDB(ctx, mDb, mFinish, mDontSave);
-		save.run();
+			// Commit to disk
+			SaveDB save = new SaveDB(ctx, mDb, mFinish, mDontSave, true);
+			save.run();
+		}
 	}
 	
 	private class AfterAdd extends OnFinish {
@@ -53,26 +53,28 @@ public class DeleteEntry extends RunnableOnFinish {
 	
 	@Override
 	public void run() {
-		PwDatabase pm = mDb.pm;
-		PwGroup parent = mEntry.getParent();
+		mDb.waitForLoad();
 
-		// Remove Entry from parent
-		boolean recycle = pm.canRecycle(mEntry);
-		if (recycle) {
-			pm.recycle(mEntry);
-		}
-		else {
-			pm.deleteEntry(mEntry);
-		}
-		
-		// Save
-		mFinish = new AfterDelete(mFinish, parent, mEntry, recycle);
+		synchronized (mDb) {
+			PwDatabase pm = mDb.pm;
+			PwGroup parent = mEntry.getParent();
+
+			// Remove Entry from parent
+			boolean recycle = pm.canRecycle(mEntry);
+			if (recycle) {
+				pm.recycle(mEntry);
+			}
+			else {
+				pm.deleteEntry(mEntry);
+			}
 		
-		// Commit database
-		SaveDB save = new SaveDB(ctx, mDb, mFinish, mDontSave);
-		save.run();
-	
+			// Save
+			mFinish = new AfterDelete(mFinish, parent, mEntry, recycle);
 		
+			// Commit database
+			SaveDB save = new SaveDB(ctx, mDb, mFinish, mDontSave, true);
+			save.run();
+		}
 	}
 
 	private class AfterDelete extends OnFinish {
@@ -64,35 +64,39 @@ public class DeleteGroup extends RunnableOnFinish {
 	
 	@Override
 	public void run() {
+		// Child entries may still be loading
+		mDb.waitForLoad();
+
+		synchronized (mDb) {
+			// Remove child entries
+			List<PwEntry> childEnt = new ArrayList<PwEntry>(mGroup.childEntries);
+			for ( int i = 0; i < childEnt.size(); i++ ) {
+				DeleteEntry task = new DeleteEntry(mAct, mDb, childEnt.get(i), null, true);
+				task.run();
+			}
 		
-		// Remove child entries
-		List<PwEntry> childEnt = new ArrayList<PwEntry>(mGroup.childEntries);
-		for ( int i = 0; i < childEnt.size(); i++ ) {
-			DeleteEntry task = new DeleteEntry(mAct, mDb, childEnt.get(i), null, true);
-			task.run();
-		}
-		
-		// Remove child groups
-		List<PwGroup> childGrp = new ArrayList<PwGroup>(mGroup.childGroups);
-		for ( int i = 0; i < childGrp.size(); i++ ) {
-			DeleteGroup task = new DeleteGroup(mDb, childGrp.get(i), mAct, null, true);
-			task.run();
-		}
+			// Remove child groups
+			List<PwGroup> childGrp = new ArrayList<PwGroup>(mGroup.childGroups);
+			for ( int i = 0; i < childGrp.size(); i++ ) {
+				DeleteGroup task = new DeleteGroup(mDb, childGrp.get(i), mAct, null, true);
+				task.run();
+			}
 		
 		
-		// Remove from parent
-		PwGroup parent = mGroup.getParent();
-		if ( parent != null ) {
-			parent.childGroups.remove(mGroup);
-		}
+			// Remove from parent
+			PwGroup parent = mGroup.getParent();
+			if ( parent != null ) {
+				parent.childGroups.remove(mGroup);
+				parent.markModified();
+			}
 		
-		// Remove from PwDatabaseV3
-		mDb.pm.getGroups().remove(mGroup);
+			// Remove from PwDatabaseV3
+			mDb.pm.getGroups().remove(mGroup);
 		
-		// Save
-		SaveDB save = new SaveDB(mAct, mDb, mFinish, mDontSave);
-		save.run();
-
+			// Save
+			SaveDB save = new SaveDB(mAct, mDb, mFinish, mDontSave, true);
+			save.run();
+		}
 	}
 	
 	private class AfterDelete extends OnFinish {
@@ -21,14 +21,18 @@ package com.keepassdroid.database.edit;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.CancellationException;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 
 import com.android.keepass.R;
 import com.keepassdroid.Database;
+import com.keepassdroid.UIToastTask;
 import com.keepassdroid.app.App;
 import com.keepassdroid.database.exception.ArcFourException;
 import com.keepassdroid.database.exception.ContentFileNotFoundException;
@@ -39,6 +43,7 @@ import com.keepassdroid.database.exception.InvalidDBVersionException;
 import com.keepassdroid.database.exception.InvalidKeyFileException;
 import com.keepassdroid.database.exception.InvalidPasswordException;
 import com.keepassdroid.database.exception.KeyFileEmptyException;
+import com.keepassdroid.settings.PrefsUtil;
 
 public class LoadDB extends RunnableOnFinish {
     private Uri mUri;
@@ -47,6 +52,7 @@ public class LoadDB extends RunnableOnFinish {
     private Database mDb;
     private Context mCtx;
     private boolean mRememberKeyfile;
+    private boolean mPublished = false;
 
     public LoadDB(Database db, Context ctx, Uri uri, String pass, Uri key, OnFinish finish) {
         super(finish);
@@ -64,51 +70,88 @@ public class LoadDB extends RunnableOnFinish {
     @Override
     public void run() {
         try {
-            mDb.LoadData(mCtx, mUri, mPass, mKey, mStatus);
-
-            saveFileData(mUri, mKey);
-
+            if (PrefsUtil.useProgressiveLoad(mCtx)) {
+                mDb.LoadData(mCtx, mUri, mPass, mKey, mStatus, new Runnable() {
+                    @Override
+                    public void run() {
+                        publish();
+                    }
+                });
+            } else {
+                mDb.LoadData(mCtx, mUri, mPass, mKey, mStatus);
+            }
+
+        } catch (CancellationException e) {
+            // The database was closed while it was still loading
+            if ( ! mPublished ) {
+                finish(false);
+            }
+            return;
         } catch (ArcFourException e) {
-            finish(false, mCtx.getString(R.string.error_arc4));
+            failed(mCtx.getString(R.string.error_arc4));
             return;
         } catch (InvalidPasswordException e) {
-            finish(false, mCtx.getString(R.string.InvalidPassword));
+            failed(mCtx.getString(R.string.InvalidPassword));
             return;
         } catch (ContentFileNotFoundException e) {
-            finish(false, mCtx.getString(R.string.file_not_found_content));
+            failed(mCtx.getString(R.string.file_not_found_content));
             return;
         } catch (FileNotFoundException e) {
-            finish(false, mCtx.getString(R.string.FileNotFound));
+            failed(mCtx.getString(R.string.FileNotFound));
             return;
         } catch (IOException e) {
-            finish(false, e.getMessage());
+            failed(e.getMessage());
             return;
         } catch (KeyFileEmptyException e) {
-            finish(false, mCtx.getString(R.string.keyfile_is_empty));
+            failed(mCtx.getString(R.string.keyfile_is_empty));
             return;
         } catch (InvalidAlgorithmException e) {
-            finish(false, mCtx.getString(R.string.invalid_algorithm));
+            failed(mCtx.getString(R.string.invalid_algorithm));
             return;
         } catch (InvalidKeyFileException e) {
-            finish(false, mCtx.getString(R.string.keyfile_does_not_exist));
+            failed(mCtx.getString(R.string.keyfile_does_not_exist));
             return;
         } catch (InvalidDBSignatureException e) {
-            finish(false, mCtx.getString(R.string.invalid_db_sig));
+            failed(mCtx.getString(R.string.invalid_db_sig));
             return;
         } catch (InvalidDBVersionException e) {
-            finish(false, mCtx.getString(R.string.unsupported_db_version));
+            failed(mCtx.getString(R.string.unsupported_db_version));
             return;
         } catch (InvalidDBException e) {
-            finish(false, mCtx.getString(R.string.error_invalid_db));
+            failed(mCtx.getString(R.string.error_invalid_db));
             return;
         } catch (OutOfMemoryError e) {
-            finish(false, mCtx.getString(R.string.error_out_of_memory));
+            failed(mCtx.getString(R.string.error_out_of_memory));
             return;
         }
 
+        if ( ! mPublished ) {
+            publish();
+        }
+    }
+
+    /** Shows the database, which may still be loading */
+    private void publish() {
+        mPublished = true;
+
+        saveFileData(mUri, mKey);
+
         finish(true);
     }
 
+    private void failed(String message) {
+        if ( ! mPublished ) {
+            finish(false, message);
+            return;
+        }
+
+        // Already on screen, so lock it. The open activities are told through
+        // the database's load progress listener.
+        Handler handler = new Handler(Looper.getMainLooper());
+        handler.post(new UIToastTask(mCtx, message));
+        App.setShutdown();
+    }
+
     private void saveFileData(Uri uri, Uri key) {
         if ( ! mRememberKeyfile ) {
             key = null;
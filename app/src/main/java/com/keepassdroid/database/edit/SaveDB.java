@@ -20,15 +20,20 @@
 package com.keepassdroid.database.edit;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 
 import java.io.IOException;
 
+import com.android.keepass.R;
 import com.keepassdroid.Database;
 import com.keepassdroid.database.exception.PwDbOutputException;
+import com.keepassdroid.settings.PrefsUtil;
 
 public class SaveDB extends RunnableOnFinish {
 	private Database mDb;
 	private boolean mDontSave;
+	private boolean mDeferrable = false;
 	private Context mCtx;
 
 	public SaveDB(Context ctx, Database db, OnFinish finish, boolean dontSave) {
@@ -39,6 +44,18 @@ public class SaveDB extends RunnableOnFinish {
 		mCtx = ctx;
 	}
 
+	/**
+	 * @param deferrable The save may be left to the background save scheduler,
+	 *   in which case the edit is reported as finished before it is on disk.
+	 *   If that save fails the user is told, and the edit is kept and saved
+	 *   again later rather than reverted, so finish never sees a failure.
+	 */
+	public SaveDB(Context ctx, Database db, OnFinish finish, boolean dontSave, boolean deferrable) {
+		this(ctx, db, finish, dontSave);
+		
+		mDeferrable = deferrable;
+	}
+
 	public SaveDB(Context ctx, Database db, OnFinish finish) {
 		super(finish);
 		
@@ -51,22 +68,53 @@ public class SaveDB extends RunnableOnFinish {
 	public void run() {
 
 		if ( ! mDontSave ) {
+			if ( mDeferrable && PrefsUtil.useBackgroundSave(mCtx) ) {
+				mDb.saveScheduler.schedule(mCtx, new AfterBackgroundSave(mCtx));
+				finish(true);
+				return;
+			}
+			
 			try {
 				mDb.SaveData(mCtx);
 			} catch (IOException e) {
 				finish(false, e.getMessage());
 				return;
 			} catch (PwDbOutputException e) {
-				// TODO: Restore
-				throw new RuntimeException(e);
-				/*
 				finish(false, e.getMessage());
 				return;
-				*/
 			}
 		}
 
 		finish(true);
 	}
 
+	/** Lets the user know if a background save failed */
+	private static class AfterBackgroundSave extends OnFinish {
+		private Context mCtx;
+		
+		public AfterBackgroundSave(Context ctx) {
+			mCtx = ctx.getApplicationContext();
+		}
+		
+		@Override
+		public void run() {
+			if ( mSuccess ) {
+				return;
+			}
+			
+			String error = mCtx.getString(R.string.error_background_save);
+			if ( mMessage != null && mMessage.length() > 0 ) {
+				error = error + " " + mMessage;
+			}
+			mMessage = error;
+			
+			new Handler(Looper.getMainLooper()).post(new Runnable() {
+				@Override
+				public void run() {
+					displayMessage(mCtx);
+				}
+			});
+		}
+	}
+
 }
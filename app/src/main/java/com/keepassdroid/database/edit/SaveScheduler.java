@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.edit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.keepassdroid.Database;
+import com.keepassdroid.database.PwDatabase;
+import com.keepassdroid.database.exception.PwDbOutputException;
+
+/** Write-behind saving of database edits.
+ *
+ * Edits scheduled within a short window of each other are written with a
+ * single save on a background thread. Callers are told once their edit is on
+ * disk, or that the save failed, through the OnFinish passed to schedule.
+ * A failed save is tried again later, waiting longer after each failure.
+ */
+public class SaveScheduler {
+	/** Time to wait for further edits before saving */
+	public static final long DEFAULT_DELAY = 1500;
+
+	/** Longest time an edit may wait while edits keep coming in */
+	public static final long DEFAULT_MAX_LATENCY = 10000;
+
+	/** Longest wait before trying a failed save again */
+	public static final long MAX_RETRY_DELAY = 60000;
+
+	private Database mDb;
+	private long delay;
+	private long maxLatency;
+	private ScheduledExecutorService executor;
+
+	private Context mCtx;
+	private List<OnFinish> waiting = new ArrayList<OnFinish>();
+	private Future<?> pending = null;
+	private long firstRequest = 0;
+	private boolean dirty = false;
+	private byte[] savedHash = null;
+	private int failures = 0;
+	private int closing = 0;
+	// Edits taken by a save that hasn't finished yet
+	private boolean saving = false;
+
+	public SaveScheduler(Database db) {
+		this(db, DEFAULT_DELAY, DEFAULT_MAX_LATENCY);
+	}
+
+	public SaveScheduler(Database db, long delay, long maxLatency) {
+		mDb = db;
+		this.delay = delay;
+		this.maxLatency = maxLatency;
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Save: scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** Requests a save of the database, which happens after a short delay.
+	 *
+	 * @param onSaved Run with the result once the edit is on disk, may be null
+	 */
+	public synchronized void schedule(Context ctx, OnFinish onSaved) {
+		mCtx = ctx.getApplicationContext();
+		dirty = true;
+
+		if (onSaved != null) {
+			waiting.add(onSaved);
+		}
+
+		long now = System.currentTimeMillis();
+		if (pending == null) {
+			firstRequest = now;
+		} else if (!pending.cancel(false)) {
+			// Already running, so this edit needs a save of its own
+			firstRequest = now;
+		}
+
+		long wait = Math.min(delay, firstRequest + maxLatency - now);
+		pending = executor.schedule(saveTask, Math.max(wait, 0), TimeUnit.MILLISECONDS);
+	}
+
+	/** Starts any pending save straight away, without waiting for it */
+	public synchronized Future<?> flushAsync() {
+		if (!dirty) {
+			return null;
+		}
+
+		if (pending != null) {
+			pending.cancel(false);
+		}
+
+		pending = executor.submit(saveTask);
+		return pending;
+	}
+
+	public synchronized boolean isDirty() {
+		return dirty;
+	}
+
+	/** Whether there are edits not yet on disk, including those of a save
+	 * that is being written right now
+	 */
+	public synchronized boolean hasUnsavedEdits() {
+		return dirty || saving;
+	}
+
+	/** The database was written by other means, so the last saved content
+	 * can't be relied on to skip saves any more.
+	 */
+	public synchronized void invalidate() {
+		savedHash = null;
+	}
+
+	/** Called as the database is closed. Pending edits are written out in the
+	 * background, from the database passed in, since the Database no longer
+	 * holds it by then. They are only tried once, as a later retry could
+	 * overwrite the file after it has been opened again.
+	 *
+	 * @param db the database being closed, or null to drop its edits
+	 * @param afterwards run once any save still using db has finished, may be null
+	 */
+	public synchronized void close(PwDatabase db, Uri uri, Runnable afterwards) {
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+
+		if (dirty && db != null && uri != null) {
+			closing++;
+			executor.submit(new ClosedSave(db, uri, waiting, mCtx, savedHash));
+		}
+
+		if (afterwards != null) {
+			// Saves run one at a time on the executor, so this comes after them
+			executor.submit(afterwards);
+		}
+
+		waiting = new ArrayList<OnFinish>();
+		dirty = false;
+		savedHash = null;
+		failures = 0;
+	}
+
+	/** Waits until the edits of closed databases have been written */
+	public synchronized void awaitClosed() {
+		while (closing > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private Runnable saveTask = new Runnable() {
+		@Override
+		public void run() {
+			save();
+		}
+	};
+
+	private void save() {
+		List<OnFinish> finished;
+		Context ctx;
+		PwDatabase db;
+		Uri uri;
+		byte[] hash;
+		synchronized (this) {
+			if (!dirty) {
+				// Taken over by close
+				return;
+			}
+
+			finished = waiting;
+			waiting = new ArrayList<OnFinish>();
+			dirty = false;
+			saving = true;
+			pending = null;
+			ctx = mCtx;
+			hash = savedHash;
+
+			// Taken now, so the save goes ahead if the database is closed meanwhile
+			db = mDb.pm;
+			uri = mDb.mUri;
+		}
+
+		boolean success = true;
+		boolean retry = false;
+		String message = null;
+
+		if (db != null) {
+			try {
+				if (!mDb.waitForLoad()) {
+					throw new IOException("The database has not been loaded completely.");
+				}
+				hash = mDb.SaveData(ctx, db, uri, hash);
+			} catch (IOException e) {
+				success = false;
+				message = e.getMessage();
+				retry = mDb.isFullyLoaded();
+			} catch (PwDbOutputException e) {
+				success = false;
+				message = e.getMessage();
+				retry = true;
+			} catch (RuntimeException e) {
+				// The executor would swallow this, and the edits with it
+				success = false;
+				message = e.getMessage();
+			}
+		}
+
+		synchronized (this) {
+			saving = false;
+			if (success) {
+				savedHash = hash;
+				failures = 0;
+			} else if (retry && db == mDb.pm) {
+				// Keep the edits marked as unsaved, and try again after a while
+				dirty = true;
+				failures++;
+				if (pending == null) {
+					long wait = Math.min(delay << Math.min(failures, 16), MAX_RETRY_DELAY);
+					pending = executor.schedule(saveTask, wait, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+
+		report(finished, success, message);
+	}
+
+	private static void report(List<OnFinish> finished, boolean success, String message) {
+		for (OnFinish finish : finished) {
+			finish.setResult(success, message);
+			finish.run();
+		}
+	}
+
+	private class ClosedSave implements Runnable {
+		private PwDatabase db;
+		private Uri uri;
+		private List<OnFinish> finished;
+		private Context ctx;
+		private byte[] hash;
+
+		public ClosedSave(PwDatabase db, Uri uri, List<OnFinish> finished, Context ctx, byte[] hash) {
+			this.db = db;
+			this.uri = uri;
+			this.finished = finished;
+			this.ctx = ctx;
+			this.hash = hash;
+		}
+
+		@Override
+		public void run() {
+			boolean success = true;
+			String message = null;
+			try {
+				mDb.SaveData(ctx, db, uri, hash);
+			} catch (IOException e) {
+				success = false;
+				message = e.getMessage();
+			} catch (PwDbOutputException e) {
+				success = false;
+				message = e.getMessage();
+			} catch (RuntimeException e) {
+				success = false;
+				message = e.getMessage();
+			} finally {
+				synchronized (SaveScheduler.this) {
+					closing--;
+					SaveScheduler.this.notifyAll();
+				}
+			}
+
+			report(finished, success, message);
+		}
+	}
+}
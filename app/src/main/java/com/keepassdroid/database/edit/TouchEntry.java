@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.edit;
+
+import com.keepassdroid.Database;
+import com.keepassdroid.database.PwEntry;
+
+/** Records that an entry was viewed. The access time is not saved on its
+ * own, it goes to disk with the next edit.
+ */
+public class TouchEntry extends RunnableOnFinish {
+	private Database mDb;
+	private PwEntry mEntry;
+	
+	public TouchEntry(Database db, PwEntry entry, OnFinish finish) {
+		super(finish);
+		
+		mDb = db;
+		mEntry = entry;
+	}
+	
+	@Override
+	public void run() {
+		// A background save may be writing the entry out
+		synchronized (mDb) {
+			mEntry.touch(false, false);
+		}
+		
+		finish(true);
+	}
+}
@@ -48,14 +48,18 @@ public class UpdateEntry extends RunnableOnFinish {
 
 	@Override
 	public void run() {
-		// Update entry with new values
-		mOldE.assign(mNewE);
-		mOldE.touch(true, true);
+		mDb.waitForLoad();
+
+		synchronized (mDb) {
+			// Update entry with new values
+			mOldE.assign(mNewE);
+			mOldE.touch(true, true);
 		
 		
-		// Commit to disk
-		SaveDB save = new SaveDB(ctx, mDb, mFinish);
-		save.run();
+			// Commit to disk
+			SaveDB save = new SaveDB(ctx, mDb, mFinish, false, true);
+			save.run();
+		}
 	}
 	
 	private class AfterUpdate extends OnFinish {
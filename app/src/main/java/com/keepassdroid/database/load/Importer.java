@@ -23,12 +23,25 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import com.keepassdroid.UpdateStatus;
+import com.keepassdroid.database.CachedKey;
 import com.keepassdroid.database.PwDatabase;
 import com.keepassdroid.database.exception.InvalidDBException;
 
 public abstract class Importer {
 
 	public static final boolean DEBUG = true;
+	
+	protected CachedKey cachedKey = null;
+	
+	/** Opens the database with a key kept from an earlier load, the password
+	 * and key file passed to openDatabase are then ignored.
+	 */
+	public void setCachedKey(CachedKey key) {
+		cachedKey = key;
+	}
+	
+	/** SHA-256 of the header of the last file read, as ImporterFactory.readHeaderHash gives it */
+	public abstract byte[] getHeaderHash();
 
 	public abstract PwDatabase openDatabase( InputStream inStream, String password, InputStream keyInputStream)
 		throws IOException, InvalidDBException;
@@ -36,5 +49,11 @@ public abstract class Importer {
 	public abstract PwDatabase openDatabase( InputStream inStream, String password, InputStream keyInputStream, UpdateStatus status )
 		throws IOException, InvalidDBException;
 
+	/** Derives the key, decrypts the file and checks its hashes, without
+	 * building the database. A wrong key is still reported by exception.
+	 */
+	public abstract VerifyResult verifyDatabase( InputStream inStream, String password, InputStream keyInputStream )
+		throws IOException, InvalidDBException;
+
 
 }
@@ -19,11 +19,14 @@
  */
 package com.keepassdroid.database.load;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+import com.keepassdroid.database.PwDatabaseV4;
 import com.keepassdroid.database.PwDbHeaderV3;
 import com.keepassdroid.database.PwDbHeaderV4;
+import com.keepassdroid.database.exception.InvalidDBException;
 import com.keepassdroid.database.exception.InvalidDBSignatureException;
 import com.keepassdroid.stream.LEDataInputStream;
 
@@ -51,4 +54,30 @@ public class ImporterFactory {
 		throw new InvalidDBSignatureException();
 		
 	}
+	
+	/** SHA-256 of the file header, which changes whenever the file is saved
+	 * with new seeds. Only the header is read.
+	 */
+	public static byte[] readHeaderHash(InputStream is) throws InvalidDBException, IOException
+	{
+		BufferedInputStream bis = new BufferedInputStream(is);
+		bis.mark(10);
+		
+		int sig1 = LEDataInputStream.readInt(bis);
+		int sig2 = LEDataInputStream.readInt(bis);
+		bis.reset();
+		
+		if ( PwDbHeaderV3.matchesHeader(sig1, sig2) ) {
+			byte[] buf = new LEDataInputStream(bis).readBytes(PwDbHeaderV3.BUF_SIZE);
+			if ( buf.length != PwDbHeaderV3.BUF_SIZE ) {
+				throw new IOException("File too short for header");
+			}
+			
+			return ImporterV3.hashHeader(buf);
+		} else if ( PwDbHeaderV4.matchesHeader(sig1, sig2) ) {
+			return new PwDbHeaderV4(new PwDatabaseV4()).loadFromFile(bis);
+		}
+		
+		throw new InvalidDBSignatureException();
+	}
 }
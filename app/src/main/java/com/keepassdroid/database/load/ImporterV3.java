@@ -49,27 +49,32 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import android.util.Log;
 
 import com.android.keepass.R;
 import com.keepassdroid.UpdateStatus;
-import com.keepassdroid.crypto.CipherFactory;
+import com.keepassdroid.crypto.ParallelCBCDecryptor;
 import com.keepassdroid.database.PwDatabaseV3;
-import com.keepassdroid.database.PwDate;
 import com.keepassdroid.database.PwDbHeader;
 import com.keepassdroid.database.PwDbHeaderV3;
 import com.keepassdroid.database.PwEncryptionAlgorithm;
@@ -81,10 +86,8 @@ import com.keepassdroid.database.exception.InvalidDBSignatureException;
 import com.keepassdroid.database.exception.InvalidDBVersionException;
 import com.keepassdroid.database.exception.InvalidKeyFileException;
 import com.keepassdroid.database.exception.InvalidPasswordException;
-import com.keepassdroid.stream.LEDataInputStream;
 import com.keepassdroid.stream.LEDataOutputStream;
 import com.keepassdroid.stream.NullOutputStream;
-import com.keepassdroid.utils.Types;
 
 /**
  * Load a v3 database file.
@@ -94,6 +97,11 @@ import com.keepassdroid.utils.Types;
  */
 public class ImporterV3 extends Importer {
 
+	// Below this many records, starting threads costs more than it saves
+	private static final int MIN_PARALLEL_RECORDS = 512;
+
+	private byte[] headerHash = null;
+
 	public ImporterV3() {
 		super();
 	}
@@ -137,10 +145,84 @@ public class ImporterV3 extends Importer {
 		// Load entire file, most of it's encrypted.
 		int fileSize = inStream.available();
 		byte[] filebuf = new byte[fileSize + 16]; // Pad with a blocksize (Twofish uses 128 bits), since Android 4.3 tries to write more to the buffer
-		inStream.read(filebuf, 0, fileSize);
+		fileSize = readFully(inStream, filebuf, fileSize);
+		inStream.close();
+
+		PwDbHeaderV3 hdr = readHeader(filebuf, fileSize);
+
+		status.updateMessage(R.string.creating_db_key);
+		newManager = createDB();
+		makeKey(newManager, hdr, password, kfIs);
+
+		status.updateMessage(R.string.decrypting_db);
+		int contentSize = decrypt(newManager, hdr, filebuf, fileSize);
+		int end = PwDbHeaderV3.BUF_SIZE + contentSize;
+
+		// Find where each record starts first, so they can be read in parallel
+		KdbRecordReader reader = new KdbRecordReader(filebuf, PwDbHeaderV3.BUF_SIZE, end);
+		int[] groupStarts = reader.index(PwDbHeaderV3.BUF_SIZE, hdr.numGroups);
+		int[] entryStarts = reader.index(groupStarts[hdr.numGroups], hdr.numEntries);
+		reader.shareBinariesIfLarge();
+
+		PwGroupV3[] groups = new PwGroupV3[hdr.numGroups];
+		PwEntryV3[] entries = new PwEntryV3[hdr.numEntries];
+		readRecords(newManager, reader, groupStarts, groups, entryStarts, entries);
+		reader.wipeUnshared(entries);
+
+		// Added in file order, which the tree is built from
+		for (PwGroupV3 group : groups) {
+			group.populateBlankFields(newManager);
+			newManager.groups.add(group);
+		}
+		for (PwEntryV3 entry : entries) {
+			entry.populateBlankFields(newManager);
+			newManager.entries.add(entry);
+		}
+
+		newManager.constructTree(null);
+		
+		return newManager;
+	}
+
+	public VerifyResult verifyDatabase( InputStream inStream, String password, InputStream kfIs )
+	throws IOException, InvalidDBException
+	{
+		int fileSize = inStream.available();
+		byte[] filebuf = new byte[fileSize + 16]; // Padded as in openDatabase
+		fileSize = readFully(inStream, filebuf, fileSize);
 		inStream.close();
 
-		// Parse header (unencrypted)
+		PwDbHeaderV3 hdr = readHeader(filebuf, fileSize);
+
+		PwDatabaseV3 newManager = createDB();
+		makeKey(newManager, hdr, password, kfIs);
+
+		// There is only one hash over the whole content, so a corrupt file
+		// can't be told apart from a wrong key, and there are no blocks to report
+		long start = System.currentTimeMillis();
+		decrypt(newManager, hdr, filebuf, fileSize);
+
+		return new VerifyResult(fileSize, System.currentTimeMillis() - start);
+	}
+
+	/** A single read may return less than is available, so keep reading until
+	 * length bytes are in or the stream ends. Returns the number read.
+	 */
+	private static int readFully(InputStream inStream, byte[] buf, int length) throws IOException {
+		int total = 0;
+		while ( total < length ) {
+			int read = inStream.read(buf, total, length - total);
+			if ( read == -1 ) {
+				break;
+			}
+			total += read;
+		}
+		
+		return total;
+	}
+
+	/** Parses the unencrypted header */
+	private PwDbHeaderV3 readHeader(byte[] filebuf, int fileSize) throws IOException, InvalidDBException {
 		if( fileSize < PwDbHeaderV3.BUF_SIZE )
 			throw new IOException( "File too short for header" );
 		PwDbHeaderV3 hdr = new PwDbHeaderV3();
@@ -154,9 +236,38 @@ public class ImporterV3 extends Importer {
 			throw new InvalidDBVersionException();
 		}
 
-		status.updateMessage(R.string.creating_db_key);
-		newManager = createDB();
-		newManager.setMasterKey(password, kfIs);
+		headerHash = hashHeader(filebuf);
+
+		return hdr;
+	}
+
+	static byte[] hashHeader(byte[] buf) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("No SHA-256 algorithm");
+		}
+
+		md.update(buf, 0, PwDbHeaderV3.BUF_SIZE);
+		return md.digest();
+	}
+
+	@Override
+	public byte[] getHeaderHash() {
+		return headerHash;
+	}
+
+	private void makeKey(PwDatabaseV3 newManager, PwDbHeaderV3 hdr, String password, InputStream kfIs)
+	throws IOException, InvalidDBException
+	{
+		if( cachedKey != null ) {
+			newManager.setCachedKey(cachedKey);
+		} else {
+			newManager.setMasterKey(password, kfIs);
+		}
+
+
 
 		// Select algorithm
 		if( (hdr.flags & PwDbHeaderV3.FLAG_RIJNDAEL) != 0 ) {
@@ -176,43 +287,51 @@ public class ImporterV3 extends Importer {
 
 		// Generate transformedMasterKey from masterKey
 		newManager.makeFinalKey(hdr.masterSeed, hdr.transformSeed, newManager.numKeyEncRounds);
+	}
 
-		status.updateMessage(R.string.decrypting_db);
-		// Initialize Rijndael algorithm
-		Cipher cipher;
-		try {
-			if ( newManager.algorithm == PwEncryptionAlgorithm.Rjindal ) {
-				cipher = CipherFactory.getInstance("AES/CBC/PKCS5Padding");
-			} else if ( newManager.algorithm == PwEncryptionAlgorithm.Twofish ) {
-				cipher = CipherFactory.getInstance("TWOFISH/CBC/PKCS7PADDING");
-			} else {
-				throw new IOException( "Encryption algorithm is not supported" );
-			}
+	/** Decrypts the content in place and checks its hash.
+	 *
+	 * @return the size of the decrypted content
+	 */
+	private int decrypt(PwDatabaseV3 newManager, PwDbHeaderV3 hdr, byte[] filebuf, int fileSize)
+	throws IOException, InvalidDBException
+	{
+		String transformation;
+		if ( newManager.algorithm == PwEncryptionAlgorithm.Rjindal ) {
+			transformation = "AES/CBC/PKCS5Padding";
+		} else if ( newManager.algorithm == PwEncryptionAlgorithm.Twofish ) {
+			transformation = "TWOFISH/CBC/PKCS7PADDING";
+		} else {
+			throw new IOException( "Encryption algorithm is not supported" );
+		}
 
+		// Decrypt! The first bytes aren't encrypted (that's the header)
+		int encryptedPartSize;
+		ParallelCBCDecryptor decryptor = null;
+		try {
+			decryptor = new ParallelCBCDecryptor(transformation, newManager.finalKey);
+			encryptedPartSize = decryptor.decrypt(hdr.encryptionIV, filebuf, PwDbHeaderV3.BUF_SIZE,
+					fileSize - PwDbHeaderV3.BUF_SIZE, true, null);
 		} catch (NoSuchAlgorithmException e1) {
 			throw new IOException("No such algorithm");
 		} catch (NoSuchPaddingException e1) {
 			throw new IOException("No such pdading");
-		}
-
-		try {
-			cipher.init( Cipher.DECRYPT_MODE, new SecretKeySpec( newManager.finalKey, "AES" ), new IvParameterSpec( hdr.encryptionIV ) );
 		} catch (InvalidKeyException e1) {
 			throw new IOException("Invalid key");
 		} catch (InvalidAlgorithmParameterException e1) {
 			throw new IOException("Invalid algorithm parameter.");
-		}
-
-		// Decrypt! The first bytes aren't encrypted (that's the header)
-		int encryptedPartSize;
-		try {
-			encryptedPartSize = cipher.doFinal(filebuf, PwDbHeaderV3.BUF_SIZE, fileSize - PwDbHeaderV3.BUF_SIZE, filebuf, PwDbHeaderV3.BUF_SIZE );
 		} catch (ShortBufferException e1) {
 			throw new IOException("Buffer too short");
 		} catch (IllegalBlockSizeException e1) {
 			throw new IOException("Invalid block size");
 		} catch (BadPaddingException e1) {
 			throw new InvalidPasswordException();
+		} catch (GeneralSecurityException e1) {
+			throw new IOException(e1.getMessage());
+		} finally {
+			if ( decryptor != null ) {
+				decryptor.close();
+			}
 		}
 
 		// Copy decrypted data for testing
@@ -236,52 +355,7 @@ public class ImporterV3 extends Importer {
 			throw new InvalidPasswordException();
 		}
 
-		// Import all groups
-
-		int pos = PwDbHeaderV3.BUF_SIZE;
-		PwGroupV3 newGrp = new PwGroupV3();
-		for( int i = 0; i < hdr.numGroups; ) {
-			int fieldType = LEDataInputStream.readUShort( filebuf, pos );
-			pos += 2;
-			int fieldSize = LEDataInputStream.readInt( filebuf, pos );
-			pos += 4;
-
-			if( fieldType == 0xFFFF ) {
-
-				// End-Group record.  Save group and count it.
-				newGrp.populateBlankFields(newManager);
-				newManager.groups.add(newGrp);
-				newGrp = new PwGroupV3();
-				i++;
-			}
-			else {
-				readGroupField(newManager, newGrp, fieldType, filebuf, pos);
-			}
-			pos += fieldSize;
-		}
-
-		// Import all entries
-		PwEntryV3 newEnt = new PwEntryV3();
-		for( int i = 0; i < hdr.numEntries; ) {
-			int fieldType = LEDataInputStream.readUShort( filebuf, pos );
-			int fieldSize = LEDataInputStream.readInt( filebuf, pos + 2 );
-
-			if( fieldType == 0xFFFF ) {
-				// End-Group record.  Save group and count it.
-				newEnt.populateBlankFields(newManager);
-				newManager.entries.add(newEnt);
-				newEnt = new PwEntryV3();
-				i++;
-			}
-			else {
-				readEntryField(newManager, newEnt, filebuf, pos);
-			}
-			pos += 2 + 4 + fieldSize;
-		}
-
-		newManager.constructTree(null);
-		
-		return newManager;
+		return encryptedPartSize;
 	}
 
 	/**
@@ -327,111 +401,74 @@ public class ImporterV3 extends Importer {
 	}
 
 
-	/**
-	 * Parse and save one record from binary file.
-	 * @param buf
-	 * @param offset
-	 * @return If >0, 
-	 * @throws UnsupportedEncodingException 
-	 */
-	void readGroupField(PwDatabaseV3 db, PwGroupV3 grp, int fieldType, byte[] buf, int offset) throws UnsupportedEncodingException {
-		switch( fieldType ) {
-		case 0x0000 :
-			// Ignore field
-			break;
-		case 0x0001 :
-			grp.groupId = LEDataInputStream.readInt(buf, offset);
-			break;
-		case 0x0002 :
-			grp.name = Types.readCString(buf, offset);
-			break;
-		case 0x0003 :
-			grp.tCreation = new PwDate(buf, offset);
-			break;
-		case 0x0004 :
-			grp.tLastMod = new PwDate(buf, offset);
-			break;
-		case 0x0005 :
-			grp.tLastAccess = new PwDate(buf, offset);
-			break;
-		case 0x0006 :
-			grp.tExpire = new PwDate(buf, offset);
-			break;
-		case 0x0007 :
-			grp.icon = db.iconFactory.getIcon(LEDataInputStream.readInt(buf, offset));
-			break;
-		case 0x0008 :
-			grp.level = LEDataInputStream.readUShort(buf, offset);
-			break;
-		case 0x0009 :
-			grp.flags = LEDataInputStream.readInt(buf, offset);
-			break;
+	/** Reads the records indexed, on several threads when there are enough of them */
+	private void readRecords(final PwDatabaseV3 db, final KdbRecordReader reader,
+			final int[] groupStarts, final PwGroupV3[] groups,
+			final int[] entryStarts, final PwEntryV3[] entries) throws IOException {
+		final int total = groups.length + entries.length;
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		if ( threads < 2 || total < MIN_PARALLEL_RECORDS ) {
+			readRecords(db, reader, groupStarts, groups, entryStarts, entries, 0, total);
+			return;
 		}
-	}
 
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Load: records");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 
+		try {
+			// More slices than threads, as entries with attachments take longer
+			int slice = Math.max(MIN_PARALLEL_RECORDS / 4, total / (threads * 4));
+			List<Future<Void>> pending = new ArrayList<Future<Void>>();
+			for (int from = 0; from < total; from += slice) {
+				final int start = from;
+				final int stop = Math.min(total, from + slice);
+				pending.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						readRecords(db, reader, groupStarts, groups, entryStarts, entries, start, stop);
+						return null;
+					}
+				}));
+			}
 
-	void readEntryField(PwDatabaseV3 db, PwEntryV3 ent, byte[] buf, int offset)
-	throws UnsupportedEncodingException
-	{
-		int fieldType = LEDataInputStream.readUShort(buf, offset);
-		offset += 2;
-		int fieldSize = LEDataInputStream.readInt(buf, offset);
-		offset += 4;
-
-		switch( fieldType ) {
-		case 0x0000 :
-			// Ignore field
-			break;
-		case 0x0001 :
-			ent.setUUID(Types.bytestoUUID(buf, offset));
-			break;
-		case 0x0002 :
-			ent.groupId = LEDataInputStream.readInt(buf, offset);
-			break;
-		case 0x0003 :
-			int iconId = LEDataInputStream.readInt(buf, offset);
-			
-			// Clean up after bug that set icon ids to -1
-			if (iconId == -1) {
-				iconId = 0;
+			for (Future<Void> result : pending) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof IOException ) {
+				throw (IOException) cause;
+			} else if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			} else if ( cause instanceof Error ) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause.getMessage());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Reads records from up to stop, numbering the groups first and then the entries */
+	private void readRecords(PwDatabaseV3 db, KdbRecordReader reader, int[] groupStarts, PwGroupV3[] groups,
+			int[] entryStarts, PwEntryV3[] entries, int from, int stop) throws UnsupportedEncodingException {
+		for (int i = from; i < stop; i++) {
+			if ( i < groups.length ) {
+				groups[i] = reader.readGroup(db, groupStarts[i]);
+			} else {
+				int e = i - groups.length;
+				entries[e] = reader.readEntry(db, entryStarts[e]);
 			}
-			
-			ent.icon = db.iconFactory.getIcon(iconId);
-			break;
-		case 0x0004 :
-			ent.title = Types.readCString(buf, offset); 
-			break;
-		case 0x0005 :
-			ent.url = Types.readCString(buf, offset);
-			break;
-		case 0x0006 :
-			ent.username = Types.readCString(buf, offset);
-			break;
-		case 0x0007 :
-			ent.setPassword(buf, offset, Types.strlen(buf, offset));
-			break;
-		case 0x0008 :
-			ent.additional = Types.readCString(buf, offset);
-			break;
-		case 0x0009 :
-			ent.tCreation = new PwDate(buf, offset);
-			break;
-		case 0x000A :
-			ent.tLastMod = new PwDate(buf, offset);
-			break;
-		case 0x000B :
-			ent.tLastAccess = new PwDate(buf, offset);
-			break;
-		case 0x000C :
-			ent.tExpire = new PwDate(buf, offset);
-			break;
-		case 0x000D :
-			ent.binaryDesc = Types.readCString(buf, offset);
-			break;
-		case 0x000E :
-			ent.setBinaryData(buf, offset, fieldSize);
-			break;
 		}
 	}
 }
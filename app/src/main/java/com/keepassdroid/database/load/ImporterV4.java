@@ -23,29 +23,28 @@ import static com.keepassdroid.database.PwDatabaseV4XML.*;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Stack;
 import java.util.UUID;
-import java.util.zip.GZIPInputStream;
 
 import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
 
 import org.bouncycastle.crypto.StreamCipher;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import biz.source_code.base64Coder.Base64Coder;
 
 import com.keepassdroid.UpdateStatus;
 import com.keepassdroid.crypto.CipherFactory;
+import com.keepassdroid.crypto.ParallelCBCDecryptor;
 import com.keepassdroid.crypto.PwStreamCipherFactory;
 import com.keepassdroid.database.BinaryPool;
 import com.keepassdroid.database.ITimeLogger;
@@ -63,8 +62,12 @@ import com.keepassdroid.database.exception.InvalidPasswordException;
 import com.keepassdroid.database.security.ProtectedBinary;
 import com.keepassdroid.database.security.ProtectedString;
 import com.keepassdroid.stream.BetterCipherInputStream;
+import com.keepassdroid.stream.BufferedGZIPInputStream;
+import com.keepassdroid.stream.CountInputStream;
 import com.keepassdroid.stream.HashedBlockInputStream;
 import com.keepassdroid.stream.LEDataInputStream;
+import com.keepassdroid.stream.ParallelCBCInputStream;
+import com.keepassdroid.utils.BufferPool;
 import com.keepassdroid.utils.EmptyUtils;
 import com.keepassdroid.utils.MemUtil;
 import com.keepassdroid.utils.Types;
@@ -74,6 +77,14 @@ public class ImporterV4 extends Importer {
 	private StreamCipher randomStream;
 	private PwDatabaseV4 db;
 	private BinaryPool binPool = new BinaryPool();
+	private LoadListener listener = null;
+	private MemoryEstimator memory = null;
+	private long fileSize = -1;
+	private SnapshotCache snapshots = null;
+	private RandomAccessFile payloadFile = null;
+	private PayloadIndex payloadIndex = null;
+	private long bodyOffset = -1;
+	private boolean readOnly = false;
 
 		private byte[] hashOfHeader = null;
 	
@@ -81,6 +92,55 @@ public class ImporterV4 extends Importer {
 		return new PwDatabaseV4();
 
 	}
+	
+	/** Hands out groups and entries as they are read, so the database can be
+	 * shown before loading has finished.
+	 */
+	public void setLoadListener(LoadListener listener) {
+		this.listener = listener;
+	}
+
+	/** Size of the database file, used to project its memory use up front */
+	public void setFileSize(long fileSize) {
+		this.fileSize = fileSize;
+	}
+	
+	/** Replaces the default estimator, which budgets half of the maximum heap */
+	public void setMemoryEstimator(MemoryEstimator memory) {
+		this.memory = memory;
+	}
+	
+	/** Reads the contents from a snapshot of the same file when there is one,
+	 * and stores one after parsing the file otherwise.
+	 */
+	public void setSnapshotCache(SnapshotCache snapshots) {
+		this.snapshots = snapshots;
+	}
+	
+	/** The file being read, kept open by the caller. Large attachments in
+	 * lean databases are then left in it and read again when used.
+	 */
+	public void setPayloadFile(RandomAccessFile file) {
+		this.payloadFile = file;
+	}
+	
+	/** Index into the file set by setPayloadFile, once it has been read */
+	public PayloadIndex getPayloadIndex() {
+		return payloadIndex;
+	}
+	
+	/** Reads the database for viewing only. Entry history and deleted objects
+	 * are dropped, and everything is held in lean forms, so the database read
+	 * must not be saved.
+	 */
+	public void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+	
+	/** Memory use of the database read, broken down by group */
+	public MemoryEstimator getMemoryEstimator() {
+		return memory;
+	}
 
 	@Override
 	public PwDatabaseV4 openDatabase(InputStream inStream, String password,
@@ -97,47 +157,47 @@ public class ImporterV4 extends Importer {
 		db = createDB();
 		
 		PwDbHeaderV4 header = new PwDbHeaderV4(db);
-		
-		hashOfHeader = header.loadFromFile(inStream);
-			
-		db.setMasterKey(password, keyInputStream);
-		db.makeFinalKey(header.masterSeed, header.transformSeed, (int)db.numKeyEncRounds);
-		
-		// Attach decryptor
-		Cipher cipher;
+		if ( payloadFile != null ) {
+			inStream = new CountInputStream(inStream);
+		}
+		HashedBlockInputStream hashed = openBody(inStream, header, password, keyInputStream);
 		try {
-			cipher = CipherFactory.getInstance(db.dataCipher, Cipher.DECRYPT_MODE, db.finalKey, header.encryptionIV);
-		} catch (NoSuchAlgorithmException e) {
-			throw new IOException("Invalid algorithm.");
-		} catch (NoSuchPaddingException e) {
-			throw new IOException("Invalid algorithm.");
-		} catch (InvalidKeyException e) {
-			throw new IOException("Invalid algorithm.");
-		} catch (InvalidAlgorithmParameterException e) {
-			throw new IOException("Invalid algorithm.");
+			return readBody(hashed, header);
+		} finally {
+			// Shuts down the decryption threads and wipes their key
+			hashed.close();
 		}
+	}
+	
+	private PwDatabaseV4 readBody(HashedBlockInputStream hashed, PwDbHeaderV4 header)
+			throws IOException, InvalidDBException {
 		
-		InputStream decrypted = new BetterCipherInputStream(inStream, cipher, 50 * 1024);
-		LEDataInputStream dataDecrypted = new LEDataInputStream(decrypted);
-		byte[] storedStartBytes = null;
-		try {
-			storedStartBytes = dataDecrypted.readBytes(32);
-			if ( storedStartBytes == null || storedStartBytes.length != 32 ) {
-				throw new InvalidPasswordException();
-			}
-		} catch (IOException e) {
-			throw new InvalidPasswordException();
+		if ( memory == null ) {
+			memory = new MemoryEstimator();
+		}
+		memory.project(fileSize, db.compressionAlgorithm);
+		if ( readOnly ) {
+			memory.forceLean();
 		}
 		
-		if ( ! Arrays.equals(storedStartBytes, header.streamStartBytes) ) {
-			throw new InvalidPasswordException();
+		if ( snapshots != null && snapshots.load(hashOfHeader, db, memory) ) {
+			return db;
+		}
+		
+		boolean gzip = db.compressionAlgorithm == PwCompressionAlgorithm.Gzip;
+		if ( payloadFile != null ) {
+			payloadIndex = new PayloadIndex(payloadFile, bodyOffset, db.dataCipher,
+					db.finalKey, header.encryptionIV, gzip);
+			hashed.setBlockListener(payloadIndex);
 		}
-
-		HashedBlockInputStream hashed = new HashedBlockInputStream(dataDecrypted); 
 		
 		InputStream decompressed;
-		if ( db.compressionAlgorithm == PwCompressionAlgorithm.Gzip ) {
-			decompressed = new GZIPInputStream(hashed); 
+		if ( gzip ) {
+			BufferedGZIPInputStream gzipStream = new BufferedGZIPInputStream(hashed);
+			if ( payloadIndex != null ) {
+				gzipStream.setCheckpointListener(CHECKPOINT_SPACING, payloadIndex);
+			}
+			decompressed = gzipStream;
 		} else {
 			decompressed = hashed;
 		}
@@ -154,10 +214,114 @@ public class ImporterV4 extends Importer {
 		}
 		
 		ReadXmlStreamed(decompressed);
+		
+		// A snapshot without history would lose it for later, writable loads
+		if ( snapshots != null && !readOnly ) {
+			snapshots.store(hashOfHeader, db);
+		}
 
 		return db;
+	}
+	
+	@Override
+	public byte[] getHeaderHash() {
+		return hashOfHeader;
+	}
+	
+	@Override
+	public VerifyResult verifyDatabase(InputStream inStream, String password,
+			InputStream keyInputStream) throws IOException, InvalidDBException {
+		
+		CountInputStream counted = new CountInputStream(inStream);
+		
+		db = createDB();
+		
+		PwDbHeaderV4 header = new PwDbHeaderV4(db);
+		HashedBlockInputStream hashed = openBody(counted, header, password, keyInputStream);
 		
+		long start = System.currentTimeMillis();
+		
+		byte[] buf = BufferPool.acquire(64 * 1024);
+		try {
+			// Reading to the end checks every block hash, and the gzip CRC
+			InputStream content = hashed;
+			if ( db.compressionAlgorithm == PwCompressionAlgorithm.Gzip ) {
+				content = new BufferedGZIPInputStream(hashed);
+			}
+			
+			while ( content.read(buf, 0, buf.length) != -1 );
+		} catch (IOException e) {
+			return new VerifyResult(hashed.getBlockIndex(), e.getMessage(),
+					counted.getCount(), System.currentTimeMillis() - start);
+		} finally {
+			BufferPool.release(buf);
+			hashed.close();
+		}
 		
+		return new VerifyResult(counted.getCount(), System.currentTimeMillis() - start);
+	}
+	
+	/** Reads the header, derives the key and checks it against the start of
+	 * the encrypted content. Returns the content as hashed blocks.
+	 */
+	private HashedBlockInputStream openBody(InputStream inStream, PwDbHeaderV4 header,
+			String password, InputStream keyInputStream) throws IOException, InvalidDBException {
+		
+		hashOfHeader = header.loadFromFile(inStream);
+		if ( inStream instanceof CountInputStream ) {
+			bodyOffset = ((CountInputStream) inStream).getCount();
+		}
+			
+		if ( cachedKey != null ) {
+			db.setCachedKey(cachedKey);
+		} else {
+			db.setMasterKey(password, keyInputStream);
+		}
+		db.makeFinalKey(header.masterSeed, header.transformSeed, (int)db.numKeyEncRounds);
+		
+		// Attach decryptor
+		InputStream decrypted;
+		try {
+			if ( ParallelCBCDecryptor.isUseful() ) {
+				ParallelCBCDecryptor decryptor = new ParallelCBCDecryptor(
+						CipherFactory.getTransformation(db.dataCipher, Cipher.DECRYPT_MODE), db.finalKey);
+				decrypted = new ParallelCBCInputStream(inStream, decryptor, header.encryptionIV);
+			} else {
+				Cipher cipher = CipherFactory.getInstance(db.dataCipher, Cipher.DECRYPT_MODE, db.finalKey, header.encryptionIV);
+				decrypted = new BetterCipherInputStream(inStream, cipher, 50 * 1024);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Invalid algorithm.");
+		}
+		
+		LEDataInputStream dataDecrypted = new LEDataInputStream(decrypted);
+		boolean success = false;
+		try {
+			byte[] storedStartBytes = null;
+			try {
+				storedStartBytes = dataDecrypted.readBytes(32);
+				if ( storedStartBytes == null || storedStartBytes.length != 32 ) {
+					throw new InvalidPasswordException();
+				}
+			} catch (IOException e) {
+				throw new InvalidPasswordException();
+			}
+			
+			if ( ! Arrays.equals(storedStartBytes, header.streamStartBytes) ) {
+				throw new InvalidPasswordException();
+			}
+			
+			success = true;
+			return new HashedBlockInputStream(dataDecrypted);
+		} finally {
+			if ( ! success ) {
+				try {
+					dataDecrypted.close();
+				} catch (IOException e) {
+					// Already failing
+				}
+			}
+		}
 	}
 	
 	private enum KdbContext {
@@ -186,10 +350,14 @@ public class ImporterV4 extends Importer {
 	
     
     private static final long DEFAULT_HISTORY_DAYS = 365;
+	// Decompressed bytes between gzip restart points in the payload index
+	private static final long CHECKPOINT_SPACING = 1024 * 1024;
+	private static final int MIN_DETACHED_SIZE = 64 * 1024;
 	
 	private boolean readNextNode = true;
 	private Stack<PwGroupV4> ctxGroups = new Stack<PwGroupV4>();
 	private PwGroupV4 ctxGroup = null;
+	private boolean ctxGroupAdded = false;
 	private PwEntryV4 ctxEntry = null;
 	private String ctxStringName = null;
 	private ProtectedString ctxStringValue = null;
@@ -216,10 +384,7 @@ public class ImporterV4 extends Importer {
 	}
 	
 	private static XmlPullParser CreatePullParser(InputStream readerStream) throws XmlPullParserException {
-		XmlPullParserFactory xppf = XmlPullParserFactory.newInstance();
-		xppf.setNamespaceAware(false);
-		
-		XmlPullParser xpp = xppf.newPullParser();
+		XmlPullParser xpp = new KdbxPullParser();
 		xpp.setInput(readerStream, null);
 		
 		return xpp;
@@ -394,6 +559,7 @@ public class ImporterV4 extends Importer {
 				if ( key != null ) {
 					ProtectedBinary pbData = ReadProtectedBinary(xpp);
 					binPool.put(key, pbData);
+					memory.addPoolBinary(pbData);
 				} else {
 					ReadUnknown(xpp);
 				}
@@ -429,6 +595,7 @@ public class ImporterV4 extends Importer {
 				db.rootGroup = new PwGroupV4();
 				ctxGroups.push((PwGroupV4)db.rootGroup);
 				ctxGroup = ctxGroups.peek();
+				ctxGroupAdded = false;
 				
 				return SwitchContext(ctx, KdbContext.Group, xpp);
 			} else if ( name.equalsIgnoreCase(ElemDeletedObjects) ) {
@@ -462,14 +629,17 @@ public class ImporterV4 extends Importer {
 			} else if ( name.equalsIgnoreCase(ElemLastTopVisibleEntry) ) {
 				ctxGroup.lastTopVisibleEntry = ReadUuid(xpp);
 			} else if ( name.equalsIgnoreCase(ElemGroup) ) {
+				AddCurrentGroup();
+				
 				ctxGroup = new PwGroupV4();
-				ctxGroups.peek().AddGroup(ctxGroup, true);
 				ctxGroups.push(ctxGroup);
+				ctxGroupAdded = false;
 				
 				return SwitchContext(ctx, KdbContext.Group, xpp);
 			} else if ( name.equalsIgnoreCase(ElemEntry) ) {
+				AddCurrentGroup();
+				
 				ctxEntry = new PwEntryV4();
-				ctxGroup.AddEntry(ctxEntry, true);
 				
 				entryInHistory = false;
 				return SwitchContext(ctx, KdbContext.Entry, xpp);
@@ -588,7 +758,10 @@ public class ImporterV4 extends Importer {
 		case EntryHistory:
 			if ( name.equalsIgnoreCase(ElemEntry) ) {
 				ctxEntry = new PwEntryV4();
-				ctxHistoryBase.history.add(ctxEntry);
+				// Still read, to keep the inner random stream in step
+				if ( ! readOnly ) {
+					ctxHistoryBase.history.add(ctxEntry);
+				}
 				
 				entryInHistory = true;
 				return SwitchContext(ctx, KdbContext.Entry, xpp);
@@ -600,7 +773,9 @@ public class ImporterV4 extends Importer {
 		case RootDeletedObjects:
 			if ( name.equalsIgnoreCase(ElemDeletedObject) ) {
 				ctxDeletedObject = new PwDeletedObject();
-				db.deletedObjects.add(ctxDeletedObject);
+				if ( ! readOnly ) {
+					db.deletedObjects.add(ctxDeletedObject);
+				}
 				
 				return SwitchContext(ctx, KdbContext.DeletedObject, xpp);
 			} else {
@@ -657,7 +832,10 @@ public class ImporterV4 extends Importer {
 			return KdbContext.Meta;
 		} else if ( ctx == KdbContext.CustomDataItem && name.equalsIgnoreCase(ElemStringDictExItem) ) {
 			if ( customDataKey != null && customDataValue != null) {
-				db.customData.put(customDataKey, customDataValue);
+				// Kept for other applications, so only needed when saving
+				if ( ! readOnly ) {
+					db.customData.put(customDataKey, customDataValue);
+				}
 			} else assert(false);
 			
 			customDataKey = null;
@@ -665,9 +843,7 @@ public class ImporterV4 extends Importer {
 			
 			return KdbContext.CustomData;
 		} else if ( ctx == KdbContext.Group && name.equalsIgnoreCase(ElemGroup) ) {
-			if ( ctxGroup.uuid == null || ctxGroup.uuid.equals(PwDatabaseV4.UUID_ZERO) ) {
-				ctxGroup.uuid = UUID.randomUUID();
-			}
+			AddCurrentGroup();
 			
 			ctxGroups.pop();
 			
@@ -675,7 +851,9 @@ public class ImporterV4 extends Importer {
 				ctxGroup = null;
 				return KdbContext.Root;
 			} else {
+				// Groups further up the stack were added before their children were read
 				ctxGroup = ctxGroups.peek();
+				ctxGroupAdded = true;
 				return KdbContext.Group;
 			}
 		} else if ( ctx == KdbContext.GroupTimes && name.equalsIgnoreCase(ElemTimes) ) {
@@ -690,10 +868,24 @@ public class ImporterV4 extends Importer {
 				return KdbContext.EntryHistory;
 			}
 			
+			memory.addEntry(ctxGroup, ctxEntry);
+			
+			// Entries are only added once complete, so they are never seen half read
+			synchronized (ctxGroup) {
+				ctxGroup.AddEntry(ctxEntry, true);
+			}
+			
+			if ( listener != null ) {
+				listener.onEntryLoaded(ctxEntry);
+			}
+			
 			return KdbContext.Group;
 		} else if ( ctx == KdbContext.EntryTimes && name.equalsIgnoreCase(ElemTimes) ) {
 			return KdbContext.Entry;
 		} else if ( ctx == KdbContext.EntryString && name.equalsIgnoreCase(ElemString) ) {
+			if ( entryInHistory && memory.isLean() && !readOnly ) {
+				ctxStringValue = ShareHistoryString(ctxStringName, ctxStringValue);
+			}
 			ctxEntry.strings.put(ctxStringName, ctxStringValue);
 			ctxStringName = null;
 			ctxStringValue = null;
@@ -777,16 +969,54 @@ public class ImporterV4 extends Importer {
 		}
 	}
 	
+	/** Adds the group being read to its parent, once its own fields are known.
+	 * This happens when its first entry or subgroup starts, or at its end.
+	 */
+	private void AddCurrentGroup() {
+		if ( ctxGroupAdded ) return;
+		ctxGroupAdded = true;
+		
+		if ( ctxGroup.uuid == null || ctxGroup.uuid.equals(PwDatabaseV4.UUID_ZERO) ) {
+			ctxGroup.uuid = UUID.randomUUID();
+		}
+		
+		if ( ctxGroups.size() == 1 ) {
+			if ( listener != null ) {
+				listener.onRootLoaded(db);
+			}
+			
+			return;
+		}
+		
+		PwGroupV4 parent = ctxGroups.get(ctxGroups.size() - 2);
+		synchronized (parent) {
+			parent.AddGroup(ctxGroup, true);
+		}
+		
+		if ( listener != null ) {
+			listener.onGroupLoaded(ctxGroup);
+		}
+	}
+	
 	private UUID ReadUuid(XmlPullParser xpp) throws IOException, XmlPullParserException {
-		String encoded = ReadString(xpp);
+		byte[] buf;
+		if (xpp.getAttributeCount() == 0) {
+			buf = ReadBase64(xpp);
+		} else {
+			String encoded = ReadString(xpp);
+			
+			if (encoded == null || encoded.length() == 0 ) {
+				return PwDatabaseV4.UUID_ZERO;
+			}
+			
+			// TODO: Switch to framework Base64 once API level 8 is the minimum
+			buf = Base64Coder.decode(encoded);
+		}
 		
-		if (encoded == null || encoded.length() == 0 ) {
+		if (buf.length == 0) {
 			return PwDatabaseV4.UUID_ZERO;
 		}
 		
-		// TODO: Switch to framework Base64 once API level 8 is the minimum
-		byte[] buf = Base64Coder.decode(encoded);
-		
 		return Types.bytestoUUID(buf);
 	}
 	
@@ -840,10 +1070,34 @@ public class ImporterV4 extends Importer {
 		
 	}
 	
+	/** Most fields are unchanged between versions of an entry. Reuses the
+	 * value from the entry itself or the previous history entry when equal.
+	 */
+	private ProtectedString ShareHistoryString(String key, ProtectedString value) {
+		ProtectedString current = ctxHistoryBase.strings.get(key);
+		if ( current != null && current.contentEquals(value) ) {
+			return current;
+		}
+		
+		int count = ctxHistoryBase.history.size();
+		if ( count >= 2 ) {
+			ProtectedString previous = ctxHistoryBase.history.get(count - 2).strings.get(key);
+			if ( previous != null && previous.contentEquals(value) ) {
+				return previous;
+			}
+		}
+		
+		return value;
+	}
+	
 	private ProtectedString ReadProtectedString(XmlPullParser xpp) throws XmlPullParserException, IOException {
 		byte[] buf = ProcessNode(xpp);
 		
 		if ( buf != null) {
+			if ( memory.isLean() ) {
+				return new ProtectedString(true, buf);
+			}
+			
 			try {
 				return new ProtectedString(true, new String(buf, "UTF-8"));
 			} catch (UnsupportedEncodingException e) {
@@ -871,18 +1125,62 @@ public class ImporterV4 extends Importer {
 		
 		byte[] buf = ProcessNode(xpp);
 		
-		if ( buf != null ) return new ProtectedBinary(true, buf);
+		if ( buf != null ) {
+			ProtectedBinary pb = new ProtectedBinary(true, buf);
+			return memory.isLean() ? pb.compact() : pb;
+		}
 		
-		String base64 = ReadString(xpp);
-		if ( base64.length() == 0 ) return ProtectedBinary.EMPTY;
+		byte[] data = ReadBase64(xpp);
+		if ( data.length == 0 ) return ProtectedBinary.EMPTY;
 		
-		byte[] data = Base64Coder.decode(base64);
+		if ( payloadIndex != null && memory.isLean() && data.length >= MIN_DETACHED_SIZE ) {
+			ProtectedBinary pb = detachBinary(xpp, compressed, data);
+			if ( pb != null ) {
+				return pb;
+			}
+		}
 		
 		if (compressed) {
-			data = MemUtil.decompress(data);
+			// Only inflated when the attachment is used
+			return ProtectedBinary.fromCompressed(false, data);
+		}
+		
+		ProtectedBinary pb = new ProtectedBinary(false, data);
+		return memory.isLean() ? pb.compact() : pb;
+	}
+	
+	/** Leaves the binary just read in the database file, when its Base64 text
+	 * can be read back as is. Protected binaries are kept, as decoding them
+	 * again would need the inner random stream at that point. So are those
+	 * with no restart point of the gzip stream close before them, as every
+	 * read would inflate the document from far back.
+	 */
+	private ProtectedBinary detachBinary(XmlPullParser xpp, boolean compressed, byte[] data) throws IOException {
+		if ( !(xpp instanceof KdbxPullParser) ) {
+			return null;
 		}
 		
-		return new ProtectedBinary(false, data);
+		KdbxPullParser parser = (KdbxPullParser) xpp;
+		long start = parser.getTextStart();
+		long length = parser.getTextEnd() - start;
+		if ( length != (data.length + 2) / 3 * 4 ) {
+			return null;
+		}
+		
+		if ( !payloadIndex.isNearCheckpoint(start, CHECKPOINT_SPACING) ) {
+			return null;
+		}
+		
+		byte[] contents = compressed ? MemUtil.decompress(data) : data;
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not implemented here.");
+		}
+		
+		return ProtectedBinary.fromSource(false, compressed, contents.length, md.digest(contents),
+				payloadIndex.base64Source(start, (int) length));
 	}
 	
 	private String ReadString(XmlPullParser xpp) throws IOException, XmlPullParserException {
@@ -901,12 +1199,6 @@ public class ImporterV4 extends Importer {
 		
 	}
 	
-	private String ReadStringRaw(XmlPullParser xpp) throws XmlPullParserException, IOException {
-		
-		//readNextNode = false;
-		return xpp.nextText();
-	}
-
 	private byte[] ProcessNode(XmlPullParser xpp) throws XmlPullParserException, IOException {
 		assert(xpp.getEventType() == XmlPullParser.START_TAG);
 		
@@ -915,23 +1207,31 @@ public class ImporterV4 extends Importer {
 		if ( xpp.getAttributeCount() > 0 ) {
 			String protect = xpp.getAttributeValue(null, AttrProtected);
 			if ( protect != null && protect.equalsIgnoreCase(ValTrue) ) {
-				String encrypted = ReadStringRaw(xpp);
+				buf = ReadBase64(xpp);
 				
-				if ( encrypted.length() > 0 ) {
-					buf = Base64Coder.decode(encrypted);
+				if ( buf.length > 0 ) {
 					byte[] plainText = new byte[buf.length];
 					
 					randomStream.processBytes(buf, 0, buf.length, plainText, 0);
 					
 					return plainText;
-				} else {
-					buf = new byte[0];
 				}
 			}
 		}
 		
 		return buf;
 	}
+	
+	/** Reads the Base64 content of the current element, without building a
+	 * String for it when the parser supports that.
+	 */
+	private byte[] ReadBase64(XmlPullParser xpp) throws XmlPullParserException, IOException {
+		if (xpp instanceof KdbxPullParser) {
+			return ((KdbxPullParser) xpp).nextBase64();
+		}
+		
+		return Base64Coder.decode(xpp.nextText());
+	}
 
 	private KdbContext SwitchContext(KdbContext ctxCurrent, KdbContext ctxNew,
 			XmlPullParser xpp) throws XmlPullParserException, IOException {
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.load;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import com.keepassdroid.database.PwDatabaseV3;
+import com.keepassdroid.database.PwDate;
+import com.keepassdroid.database.PwEntryV3;
+import com.keepassdroid.database.PwGroupV3;
+import com.keepassdroid.database.PwIconStandard;
+import com.keepassdroid.utils.Types;
+
+/** Decodes the groups and entries of a decrypted KDB file, through a little
+ * endian view of the buffer it was decrypted into. Only absolute reads are
+ * made, so records can be decoded on several threads at once.
+ *
+ * When large attachments make up most of the content, entries are given
+ * slices of the buffer rather than copies of them. Small attachments are
+ * always copied, as any slice keeps the whole buffer in memory. Everything
+ * else in the buffer is then cleared by {@link #wipeUnshared}.
+ */
+class KdbRecordReader {
+	private static final int END_FIELD_TYPE = 0xFFFF;
+	private static final int BINARY_DATA_FIELD_TYPE = 0x000E;
+	private static final int MIN_SHARED_SIZE = 64 * 1024;
+
+	private final byte[] content;
+	private final ByteBuffer view;
+	private final int start;
+	private final int end;
+	private long binaryBytes = 0;
+	private boolean shareBinaries = false;
+
+	/**
+	 * @param start of the first record
+	 * @param end of the decrypted content
+	 */
+	KdbRecordReader(byte[] content, int start, int end) {
+		this.content = content;
+		this.start = start;
+		this.end = end;
+		view = ByteBuffer.wrap(content, 0, end).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Finds the start of count records from pos, only reading the type and
+	 * size of each field.
+	 * 
+	 * @return the offset of each record, followed by the end of the last one
+	 */
+	int[] index(int pos, int count) throws IOException {
+		int[] starts = new int[count + 1];
+		for (int i = 0; i < count; i++) {
+			starts[i] = pos;
+
+			int fieldType;
+			do {
+				if ( pos + 6 > end ) {
+					throw new IOException("Invalid data format");
+				}
+
+				fieldType = view.getShort(pos) & 0xFFFF;
+				int fieldSize = view.getInt(pos + 2);
+				pos += 6;
+
+				if ( fieldSize < 0 || fieldSize > end - pos ) {
+					throw new IOException("Invalid data format");
+				}
+				if ( fieldType == BINARY_DATA_FIELD_TYPE && fieldSize >= MIN_SHARED_SIZE ) {
+					binaryBytes += fieldSize;
+				}
+				pos += fieldSize;
+			} while ( fieldType != END_FIELD_TYPE );
+		}
+		starts[count] = pos;
+
+		return starts;
+	}
+
+	/** Decides whether entries share the buffer, once everything is indexed.
+	 * The whole buffer stays in memory while they do, so that is only worth
+	 * it when attachments large enough to be shared take up at least half
+	 * of it.
+	 */
+	void shareBinariesIfLarge() {
+		shareBinaries = binaryBytes * 2 >= end - start;
+	}
+
+	PwGroupV3 readGroup(PwDatabaseV3 db, int pos) throws UnsupportedEncodingException {
+		PwGroupV3 grp = new PwGroupV3();
+		while ( true ) {
+			int fieldType = view.getShort(pos) & 0xFFFF;
+			int fieldSize = view.getInt(pos + 2);
+			pos += 6;
+
+			if ( fieldType == END_FIELD_TYPE ) {
+				return grp;
+			}
+
+			readGroupField(db, grp, fieldType, pos);
+			pos += fieldSize;
+		}
+	}
+
+	PwEntryV3 readEntry(PwDatabaseV3 db, int pos) throws UnsupportedEncodingException {
+		PwEntryV3 ent = new PwEntryV3();
+		while ( true ) {
+			int fieldType = view.getShort(pos) & 0xFFFF;
+			int fieldSize = view.getInt(pos + 2);
+			pos += 6;
+
+			if ( fieldType == END_FIELD_TYPE ) {
+				return ent;
+			}
+
+			readEntryField(db, ent, fieldType, fieldSize, pos);
+			pos += fieldSize;
+		}
+	}
+
+	/** Clears everything but the attachments shared with entries, so the
+	 * buffer doesn't keep passwords and other fields around.
+	 */
+	void wipeUnshared(PwEntryV3[] entries) {
+		if ( !shareBinaries ) {
+			return;
+		}
+
+		// Entries are in file order, so their slices are too
+		int pos = 0;
+		for (PwEntryV3 entry : entries) {
+			ByteBuffer data = entry.getBinaryBuffer();
+			if ( data == null || !data.hasArray() || data.array() != content ) {
+				continue;
+			}
+
+			int offset = data.arrayOffset() + data.position();
+			Arrays.fill(content, pos, offset, (byte) 0);
+			pos = offset + data.remaining();
+		}
+		Arrays.fill(content, pos, content.length, (byte) 0);
+	}
+
+	private void readGroupField(PwDatabaseV3 db, PwGroupV3 grp, int fieldType, int offset) throws UnsupportedEncodingException {
+		switch( fieldType ) {
+		case 0x0000 :
+			// Ignore field
+			break;
+		case 0x0001 :
+			grp.groupId = view.getInt(offset);
+			break;
+		case 0x0002 :
+			grp.name = Types.readCString(content, offset);
+			break;
+		case 0x0003 :
+			grp.tCreation = new PwDate(content, offset);
+			break;
+		case 0x0004 :
+			grp.tLastMod = new PwDate(content, offset);
+			break;
+		case 0x0005 :
+			grp.tLastAccess = new PwDate(content, offset);
+			break;
+		case 0x0006 :
+			grp.tExpire = new PwDate(content, offset);
+			break;
+		case 0x0007 :
+			grp.icon = getIcon(db, view.getInt(offset));
+			break;
+		case 0x0008 :
+			grp.level = view.getShort(offset) & 0xFFFF;
+			break;
+		case 0x0009 :
+			grp.flags = view.getInt(offset);
+			break;
+		}
+	}
+
+	private void readEntryField(PwDatabaseV3 db, PwEntryV3 ent, int fieldType, int fieldSize, int offset)
+	throws UnsupportedEncodingException
+	{
+		switch( fieldType ) {
+		case 0x0000 :
+			// Ignore field
+			break;
+		case 0x0001 :
+			ent.setUUID(Types.bytestoUUID(content, offset));
+			break;
+		case 0x0002 :
+			ent.groupId = view.getInt(offset);
+			break;
+		case 0x0003 :
+			int iconId = view.getInt(offset);
+			
+			// Clean up after bug that set icon ids to -1
+			if (iconId == -1) {
+				iconId = 0;
+			}
+			
+			ent.icon = getIcon(db, iconId);
+			break;
+		case 0x0004 :
+			ent.title = Types.readCString(content, offset); 
+			break;
+		case 0x0005 :
+			ent.url = Types.readCString(content, offset);
+			break;
+		case 0x0006 :
+			ent.username = Types.readCString(content, offset);
+			break;
+		case 0x0007 :
+			ent.setPassword(content, offset, Types.strlen(content, offset));
+			break;
+		case 0x0008 :
+			ent.additional = Types.readCString(content, offset);
+			break;
+		case 0x0009 :
+			ent.tCreation = new PwDate(content, offset);
+			break;
+		case 0x000A :
+			ent.tLastMod = new PwDate(content, offset);
+			break;
+		case 0x000B :
+			ent.tLastAccess = new PwDate(content, offset);
+			break;
+		case 0x000C :
+			ent.tExpire = new PwDate(content, offset);
+			break;
+		case 0x000D :
+			ent.binaryDesc = Types.readCString(content, offset);
+			break;
+		case BINARY_DATA_FIELD_TYPE :
+			if ( shareBinaries && fieldSize >= MIN_SHARED_SIZE ) {
+				ByteBuffer slice = view.duplicate();
+				slice.limit(offset + fieldSize).position(offset);
+				ent.setBinaryData(slice);
+			} else {
+				ent.setBinaryData(content, offset, fieldSize);
+			}
+			break;
+		}
+	}
+
+	/** The icon factory isn't thread safe */
+	private static PwIconStandard getIcon(PwDatabaseV3 db, int iconId) {
+		synchronized (db.iconFactory) {
+			return db.iconFactory.getIcon(iconId);
+		}
+	}
+}
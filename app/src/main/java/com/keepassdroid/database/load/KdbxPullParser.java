@@ -0,0 +1,1014 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import biz.source_code.base64Coder.Base64Coder;
+
+import com.keepassdroid.database.PwDatabaseV4XML;
+
+/** Pull parser for the KDBX document, which works directly on the UTF-8 bytes.
+ *
+ * Element and attribute names from the KDBX format are recognized by their
+ * bytes and returned as the PwDatabaseV4XML constants, so no String is built
+ * for them. Text is decoded into a reusable character buffer, and is only
+ * turned into a String when asked for. Anything else is handled like a generic
+ * non-validating parser would, without namespace processing or DTD support.
+ */
+public class KdbxPullParser implements XmlPullParser {
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	private static final byte[] CDATA_START = ascii("[CDATA[");
+	private static final byte[] CDATA_END = ascii("]]>");
+	private static final byte[] COMMENT_START = ascii("--");
+	private static final byte[] COMMENT_END = ascii("-->");
+	private static final byte[] PI_END = ascii("?>");
+
+	/** Names from the format, as an open addressing table keyed by their bytes */
+	private static final int NAME_TABLE_SIZE = 512;
+	private static final byte[][] nameKeys = new byte[NAME_TABLE_SIZE][];
+	private static final String[] nameValues = new String[NAME_TABLE_SIZE];
+
+	static {
+		for (Field field : PwDatabaseV4XML.class.getFields()) {
+			if (field.getType() != String.class || !Modifier.isStatic(field.getModifiers())) {
+				continue;
+			}
+
+			String fieldName = field.getName();
+			if (!fieldName.startsWith("Elem") && !fieldName.startsWith("Attr")) {
+				continue;
+			}
+
+			try {
+				addName((String) field.get(null));
+			} catch (IllegalAccessException e) {
+				// Skip it, the name just won't be shared
+			}
+		}
+	}
+
+	private static void addName(String name) {
+		byte[] key;
+		try {
+			key = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+
+		int slot = hash(key, key.length) & (NAME_TABLE_SIZE - 1);
+		while (nameKeys[slot] != null) {
+			if (nameValues[slot].equals(name)) {
+				return;
+			}
+			slot = (slot + 1) & (NAME_TABLE_SIZE - 1);
+		}
+
+		nameKeys[slot] = key;
+		nameValues[slot] = name;
+	}
+
+	private static int hash(byte[] b, int len) {
+		int h = 0;
+		for (int i = 0; i < len; i++) {
+			h = 31 * h + b[i];
+		}
+
+		return h ^ (h >>> 16);
+	}
+
+	private InputStream is;
+	private byte[] in = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	// Offset in the document of in[0]
+	private long bufferStart = 0;
+	private boolean started = false;
+
+	private int type = START_DOCUMENT;
+	private String name;
+	private boolean empty;
+	private boolean pendingEnd = false;
+
+	private String[] elements = new String[16];
+	private int depth = 0;
+
+	private char[] text = new char[256];
+	private int textLen = 0;
+	private String textString;
+	private long textStart;
+	private long textEnd;
+
+	private String[] attrNames = new String[4];
+	private String[] attrValues = new String[4];
+	private int attrCount = 0;
+
+	private byte[] nameBuf = new byte[64];
+
+	@Override
+	public void setInput(InputStream inputStream, String inputEncoding) throws XmlPullParserException {
+		if (inputEncoding != null && !inputEncoding.equalsIgnoreCase("UTF-8")) {
+			throw new XmlPullParserException("Only UTF-8 is supported", this, null);
+		}
+
+		is = inputStream;
+		pos = 0;
+		limit = 0;
+		bufferStart = 0;
+		started = false;
+		type = START_DOCUMENT;
+		name = null;
+		empty = false;
+		pendingEnd = false;
+		depth = 0;
+		textLen = 0;
+		textString = null;
+		attrCount = 0;
+	}
+
+	@Override
+	public void setInput(Reader in) throws XmlPullParserException {
+		throw new XmlPullParserException("Only byte streams are supported", this, null);
+	}
+
+	@Override
+	public int next() throws XmlPullParserException, IOException {
+		if (type == END_TAG) {
+			depth--;
+			elements[depth] = null;
+		} else if (type == END_DOCUMENT) {
+			return type;
+		}
+
+		attrCount = 0;
+		textLen = 0;
+		textString = null;
+
+		if (pendingEnd) {
+			// The end of an empty element
+			pendingEnd = false;
+			type = END_TAG;
+			return type;
+		}
+
+		name = null;
+		empty = false;
+
+		if (!started) {
+			started = true;
+			skipByteOrderMark();
+		}
+
+		while (true) {
+			int c = peek();
+
+			if (c == -1) {
+				if (depth > 0) {
+					throw new XmlPullParserException("Unexpected end of document", this, null);
+				}
+
+				type = END_DOCUMENT;
+				return type;
+			}
+
+			if (c != '<') {
+				if (textLen == 0) {
+					textStart = bufferStart + pos;
+				}
+				readText();
+				continue;
+			}
+
+			if (!ensure(2)) {
+				throw new XmlPullParserException("Unexpected end of document", this, null);
+			}
+
+			int c2 = in[pos + 1];
+			if (c2 == '!' || c2 == '?') {
+				pos += 2;
+				if (c2 == '?') {
+					skipPast(PI_END);
+				} else if (lookingAt(COMMENT_START)) {
+					pos += COMMENT_START.length;
+					skipPast(COMMENT_END);
+				} else if (lookingAt(CDATA_START)) {
+					pos += CDATA_START.length;
+					readCData();
+				} else {
+					skipDocType();
+				}
+
+				continue;
+			}
+
+			// Markup ends any text. Whitespace outside the document element isn't reported.
+			if (textLen > 0 && depth > 0) {
+				textEnd = bufferStart + pos;
+				type = TEXT;
+				return type;
+			}
+			textLen = 0;
+
+			pos++;
+			if (c2 == '/') {
+				pos++;
+				readEndTag();
+			} else {
+				readStartTag();
+			}
+
+			return type;
+		}
+	}
+
+	@Override
+	public int nextToken() throws XmlPullParserException, IOException {
+		return next();
+	}
+
+	@Override
+	public int getEventType() throws XmlPullParserException {
+		return type;
+	}
+
+	@Override
+	public String getName() {
+		if (type == START_TAG || type == END_TAG) {
+			return name;
+		}
+
+		return null;
+	}
+
+	@Override
+	public boolean isEmptyElementTag() throws XmlPullParserException {
+		if (type != START_TAG) {
+			throw new XmlPullParserException("Wrong event type", this, null);
+		}
+
+		return empty;
+	}
+
+	@Override
+	public String getText() {
+		if (type != TEXT) {
+			return null;
+		}
+
+		if (textString == null) {
+			textString = new String(text, 0, textLen);
+		}
+
+		return textString;
+	}
+
+	@Override
+	public char[] getTextCharacters(int[] holderForStartAndLength) {
+		if (type != TEXT) {
+			holderForStartAndLength[0] = -1;
+			holderForStartAndLength[1] = -1;
+			return null;
+		}
+
+		holderForStartAndLength[0] = 0;
+		holderForStartAndLength[1] = textLen;
+		return text;
+	}
+
+	@Override
+	public boolean isWhitespace() throws XmlPullParserException {
+		if (type != TEXT) {
+			throw new XmlPullParserException("Wrong event type", this, null);
+		}
+
+		for (int i = 0; i < textLen; i++) {
+			char ch = text[i];
+			if (ch != ' ' && ch != '\t' && ch != '\n' && ch != '\r') {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	public String nextText() throws XmlPullParserException, IOException {
+		if (!nextContent()) {
+			return "";
+		}
+
+		String result = getText();
+		requireEndTag();
+
+		return result;
+	}
+
+	/** Offset in the document of the next byte to be parsed */
+	public long getOffset() {
+		return bufferStart + pos;
+	}
+
+	/** Byte range of the current text in the document. It only holds the
+	 * text as returned when its length equals the number of characters,
+	 * as there were no entities, line endings or markup to remove.
+	 */
+	public long getTextStart() {
+		return textStart;
+	}
+
+	public long getTextEnd() {
+		return textEnd;
+	}
+
+	/** Like nextText, but decodes the Base64 content straight from the
+	 * character buffer.
+	 */
+	public byte[] nextBase64() throws XmlPullParserException, IOException {
+		if (!nextContent()) {
+			return new byte[0];
+		}
+
+		byte[] data;
+		try {
+			data = Base64Coder.decode(text, 0, textLen);
+		} catch (IllegalArgumentException e) {
+			throw new XmlPullParserException(e.getMessage(), this, e);
+		}
+
+		requireEndTag();
+
+		return data;
+	}
+
+	/** Moves from a start tag to its text, returning false if it has none */
+	private boolean nextContent() throws XmlPullParserException, IOException {
+		if (type != START_TAG) {
+			throw new XmlPullParserException("Precondition: START_TAG", this, null);
+		}
+
+		int t = next();
+		if (t == END_TAG) {
+			return false;
+		}
+		if (t != TEXT) {
+			throw new XmlPullParserException("Text expected", this, null);
+		}
+
+		return true;
+	}
+
+	private void requireEndTag() throws XmlPullParserException, IOException {
+		if (next() != END_TAG) {
+			throw new XmlPullParserException("END_TAG expected", this, null);
+		}
+	}
+
+	@Override
+	public int nextTag() throws XmlPullParserException, IOException {
+		int t = next();
+		if (t == TEXT && isWhitespace()) {
+			t = next();
+		}
+
+		if (t != START_TAG && t != END_TAG) {
+			throw new XmlPullParserException("Expected start or end tag", this, null);
+		}
+
+		return t;
+	}
+
+	@Override
+	public void require(int type, String namespace, String name) throws XmlPullParserException, IOException {
+		if (type != this.type || (namespace != null && namespace.length() > 0) || (name != null && !name.equals(getName()))) {
+			throw new XmlPullParserException("Expected " + TYPES[type] + " " + name, this, null);
+		}
+	}
+
+	@Override
+	public int getAttributeCount() {
+		return type == START_TAG ? attrCount : -1;
+	}
+
+	@Override
+	public String getAttributeName(int index) {
+		checkAttribute(index);
+		return attrNames[index];
+	}
+
+	@Override
+	public String getAttributeValue(int index) {
+		checkAttribute(index);
+		return attrValues[index];
+	}
+
+	@Override
+	public String getAttributeValue(String namespace, String name) {
+		for (int i = 0; i < attrCount; i++) {
+			String attr = attrNames[i];
+			if (attr == name || attr.equals(name)) {
+				return attrValues[i];
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	public String getAttributeNamespace(int index) {
+		checkAttribute(index);
+		return NO_NAMESPACE;
+	}
+
+	@Override
+	public String getAttributePrefix(int index) {
+		checkAttribute(index);
+		return null;
+	}
+
+	@Override
+	public String getAttributeType(int index) {
+		checkAttribute(index);
+		return "CDATA";
+	}
+
+	@Override
+	public boolean isAttributeDefault(int index) {
+		checkAttribute(index);
+		return false;
+	}
+
+	private void checkAttribute(int index) {
+		if (type != START_TAG || index < 0 || index >= attrCount) {
+			throw new IndexOutOfBoundsException();
+		}
+	}
+
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public String getNamespace() {
+		return NO_NAMESPACE;
+	}
+
+	@Override
+	public String getPrefix() {
+		return null;
+	}
+
+	@Override
+	public String getNamespace(String prefix) {
+		return null;
+	}
+
+	@Override
+	public int getNamespaceCount(int depth) throws XmlPullParserException {
+		return 0;
+	}
+
+	@Override
+	public String getNamespacePrefix(int pos) throws XmlPullParserException {
+		throw new XmlPullParserException("Namespaces aren't processed", this, null);
+	}
+
+	@Override
+	public String getNamespaceUri(int pos) throws XmlPullParserException {
+		throw new XmlPullParserException("Namespaces aren't processed", this, null);
+	}
+
+	@Override
+	public void setFeature(String name, boolean state) throws XmlPullParserException {
+		if (state) {
+			throw new XmlPullParserException("Unsupported feature: " + name, this, null);
+		}
+	}
+
+	@Override
+	public boolean getFeature(String name) {
+		return false;
+	}
+
+	@Override
+	public void setProperty(String name, Object value) throws XmlPullParserException {
+		throw new XmlPullParserException("Unsupported property: " + name, this, null);
+	}
+
+	@Override
+	public Object getProperty(String name) {
+		return null;
+	}
+
+	@Override
+	public String getInputEncoding() {
+		return "UTF-8";
+	}
+
+	@Override
+	public void defineEntityReplacementText(String entityName, String replacementText) throws XmlPullParserException {
+		throw new XmlPullParserException("Entity definitions aren't supported", this, null);
+	}
+
+	@Override
+	public int getLineNumber() {
+		return -1;
+	}
+
+	@Override
+	public int getColumnNumber() {
+		return -1;
+	}
+
+	@Override
+	public String getPositionDescription() {
+		String desc = TYPES[type];
+		if (name != null && (type == START_TAG || type == END_TAG)) {
+			desc += " " + name;
+		}
+
+		return desc + " at depth " + depth;
+	}
+
+	private void readStartTag() throws XmlPullParserException, IOException {
+		name = readName();
+
+		while (true) {
+			skipWhitespace();
+
+			int c = read();
+			if (c == '>') {
+				break;
+			} else if (c == '/') {
+				if (read() != '>') {
+					throw new XmlPullParserException("Expected '>'", this, null);
+				}
+				empty = true;
+				pendingEnd = true;
+				break;
+			} else if (c == -1) {
+				throw new XmlPullParserException("Unexpected end of document", this, null);
+			}
+
+			pos--;
+			readAttribute();
+		}
+
+		if (depth == elements.length) {
+			String[] grown = new String[depth * 2];
+			System.arraycopy(elements, 0, grown, 0, depth);
+			elements = grown;
+		}
+		elements[depth++] = name;
+
+		type = START_TAG;
+	}
+
+	private void readEndTag() throws XmlPullParserException, IOException {
+		String endName = readName();
+		skipWhitespace();
+		if (read() != '>') {
+			throw new XmlPullParserException("Expected '>'", this, null);
+		}
+
+		if (depth == 0) {
+			throw new XmlPullParserException("Unexpected end tag " + endName, this, null);
+		}
+
+		String open = elements[depth - 1];
+		if (open != endName && !open.equals(endName)) {
+			throw new XmlPullParserException("Expected end tag " + open + " but found " + endName, this, null);
+		}
+
+		name = open;
+		type = END_TAG;
+	}
+
+	private void readAttribute() throws XmlPullParserException, IOException {
+		String attrName = readName();
+		skipWhitespace();
+		if (read() != '=') {
+			throw new XmlPullParserException("Expected '=' after " + attrName, this, null);
+		}
+		skipWhitespace();
+
+		int quote = read();
+		if (quote != '"' && quote != '\'') {
+			throw new XmlPullParserException("Expected quoted value for " + attrName, this, null);
+		}
+
+		textLen = 0;
+		while (true) {
+			int c = read();
+			if (c == quote) {
+				break;
+			} else if (c == -1 || c == '<') {
+				throw new XmlPullParserException("Unterminated attribute value", this, null);
+			} else if (c == '&') {
+				readEntity();
+			} else if (c == '\t' || c == '\n' || c == '\r') {
+				// Attribute value normalization
+				if (c == '\r' && peek() == '\n') {
+					pos++;
+				}
+				appendChar(' ');
+			} else {
+				appendByte(c);
+			}
+		}
+
+		if (attrCount == attrNames.length) {
+			String[] names = new String[attrCount * 2];
+			String[] values = new String[attrCount * 2];
+			System.arraycopy(attrNames, 0, names, 0, attrCount);
+			System.arraycopy(attrValues, 0, values, 0, attrCount);
+			attrNames = names;
+			attrValues = values;
+		}
+
+		attrNames[attrCount] = attrName;
+		attrValues[attrCount] = new String(text, 0, textLen);
+		attrCount++;
+		textLen = 0;
+	}
+
+	/** Reads a tag or attribute name, sharing the String for known names */
+	private String readName() throws XmlPullParserException, IOException {
+		int len = 0;
+		while (true) {
+			if (pos == limit && !fill()) {
+				break;
+			}
+
+			byte b = in[pos];
+			if (b == '>' || b == '/' || b == '=' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+				break;
+			}
+
+			if (len == nameBuf.length) {
+				byte[] grown = new byte[len * 2];
+				System.arraycopy(nameBuf, 0, grown, 0, len);
+				nameBuf = grown;
+			}
+			nameBuf[len++] = b;
+			pos++;
+		}
+
+		if (len == 0) {
+			throw new XmlPullParserException("Expected a name", this, null);
+		}
+
+		int slot = hash(nameBuf, len) & (NAME_TABLE_SIZE - 1);
+		while (nameKeys[slot] != null) {
+			byte[] key = nameKeys[slot];
+			if (key.length == len && regionEquals(key, nameBuf, len)) {
+				return nameValues[slot];
+			}
+			slot = (slot + 1) & (NAME_TABLE_SIZE - 1);
+		}
+
+		return new String(nameBuf, 0, len, "UTF-8");
+	}
+
+	private static boolean regionEquals(byte[] a, byte[] b, int len) {
+		for (int i = 0; i < len; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/** Appends character data up to the next markup to the text buffer */
+	private void readText() throws XmlPullParserException, IOException {
+		while (true) {
+			if (pos == limit && !fill()) {
+				return;
+			}
+
+			// Plain ASCII runs are copied straight across
+			int avail = limit - pos;
+			if (text.length - textLen < avail) {
+				growText(avail);
+			}
+
+			byte[] b = in;
+			char[] t = text;
+			int p = pos;
+			int n = textLen;
+			int end = limit;
+			while (p < end) {
+				byte c = b[p];
+				if (c < 0 || c == '<' || c == '&' || c == '\r') {
+					break;
+				}
+				t[n++] = (char) c;
+				p++;
+			}
+			pos = p;
+			textLen = n;
+
+			if (p < end) {
+				int c = b[p];
+				if (c == '<') {
+					return;
+				}
+
+				pos++;
+				if (c == '&') {
+					readEntity();
+				} else if (c == '\r') {
+					// Line ending normalization
+					if (peek() == '\n') {
+						pos++;
+					}
+					appendChar('\n');
+				} else {
+					appendByte(c & 0xFF);
+				}
+			}
+		}
+	}
+
+	private void readCData() throws XmlPullParserException, IOException {
+		while (true) {
+			if (!ensure(CDATA_END.length)) {
+				throw new XmlPullParserException("Unterminated CDATA section", this, null);
+			}
+
+			if (lookingAt(CDATA_END)) {
+				pos += CDATA_END.length;
+				return;
+			}
+
+			int c = read();
+			if (c == '\r') {
+				if (peek() == '\n') {
+					pos++;
+				}
+				appendChar('\n');
+			} else {
+				appendByte(c);
+			}
+		}
+	}
+
+	private void readEntity() throws XmlPullParserException, IOException {
+		int len = 0;
+		while (true) {
+			int c = read();
+			if (c == ';') {
+				break;
+			}
+			if (c == -1 || len == nameBuf.length || len > 12) {
+				throw new XmlPullParserException("Unterminated entity reference", this, null);
+			}
+			nameBuf[len++] = (byte) c;
+		}
+
+		if (len > 1 && nameBuf[0] == '#') {
+			int cp;
+			try {
+				if (nameBuf[1] == 'x') {
+					cp = Integer.parseInt(new String(nameBuf, 2, len - 2, "US-ASCII"), 16);
+				} else {
+					cp = Integer.parseInt(new String(nameBuf, 1, len - 1, "US-ASCII"));
+				}
+			} catch (NumberFormatException e) {
+				throw new XmlPullParserException("Invalid character reference", this, e);
+			}
+
+			appendCodePoint(cp);
+			return;
+		}
+
+		String entity = new String(nameBuf, 0, len, "US-ASCII");
+		if (entity.equals("amp")) {
+			appendChar('&');
+		} else if (entity.equals("lt")) {
+			appendChar('<');
+		} else if (entity.equals("gt")) {
+			appendChar('>');
+		} else if (entity.equals("quot")) {
+			appendChar('"');
+		} else if (entity.equals("apos")) {
+			appendChar('\'');
+		} else {
+			throw new XmlPullParserException("Unresolved entity &" + entity + ";", this, null);
+		}
+	}
+
+	/** Decodes the UTF-8 sequence starting with the byte which was just read */
+	private void appendByte(int c) throws IOException {
+		if (c < 0x80) {
+			appendChar((char) c);
+			return;
+		}
+
+		int extra;
+		int cp;
+		if ((c & 0xE0) == 0xC0) {
+			extra = 1;
+			cp = c & 0x1F;
+		} else if ((c & 0xF0) == 0xE0) {
+			extra = 2;
+			cp = c & 0x0F;
+		} else if ((c & 0xF8) == 0xF0) {
+			extra = 3;
+			cp = c & 0x07;
+		} else {
+			appendChar('�');
+			return;
+		}
+
+		for (int i = 0; i < extra; i++) {
+			int next = peek();
+			if (next == -1 || (next & 0xC0) != 0x80) {
+				appendChar('�');
+				return;
+			}
+			pos++;
+			cp = (cp << 6) | (next & 0x3F);
+		}
+
+		appendCodePoint(cp);
+	}
+
+	private void appendCodePoint(int cp) {
+		if (cp < 0x10000) {
+			appendChar((char) cp);
+		} else if (cp <= 0x10FFFF) {
+			// Character.highSurrogate and lowSurrogate need API 19
+			appendChar((char) (0xD7C0 + (cp >> 10)));
+			appendChar((char) (0xDC00 | (cp & 0x3FF)));
+		} else {
+			appendChar('�');
+		}
+	}
+
+	private void appendChar(char ch) {
+		if (textLen == text.length) {
+			growText(1);
+		}
+
+		text[textLen++] = ch;
+	}
+
+	private void growText(int extra) {
+		char[] grown = new char[Math.max(text.length * 2, textLen + extra)];
+		System.arraycopy(text, 0, grown, 0, textLen);
+		text = grown;
+	}
+
+	private void skipWhitespace() throws IOException {
+		while (true) {
+			int c = peek();
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	private void skipPast(byte[] end) throws XmlPullParserException, IOException {
+		while (true) {
+			if (!ensure(end.length)) {
+				throw new XmlPullParserException("Unexpected end of document", this, null);
+			}
+
+			if (lookingAt(end)) {
+				pos += end.length;
+				return;
+			}
+			pos++;
+		}
+	}
+
+	private void skipDocType() throws XmlPullParserException, IOException {
+		int nesting = 0;
+		while (true) {
+			int c = read();
+			if (c == -1) {
+				throw new XmlPullParserException("Unexpected end of document", this, null);
+			} else if (c == '[') {
+				nesting++;
+			} else if (c == ']') {
+				nesting--;
+			} else if (c == '>' && nesting <= 0) {
+				return;
+			}
+		}
+	}
+
+	private void skipByteOrderMark() throws IOException {
+		if (ensure(3) && in[pos] == (byte) 0xEF && in[pos + 1] == (byte) 0xBB && in[pos + 2] == (byte) 0xBF) {
+			pos += 3;
+		}
+	}
+
+	private boolean lookingAt(byte[] seq) throws IOException {
+		if (!ensure(seq.length)) {
+			return false;
+		}
+
+		for (int i = 0; i < seq.length; i++) {
+			if (in[pos + i] != seq[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private int read() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+
+		return in[pos++] & 0xFF;
+	}
+
+	private int peek() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+
+		return in[pos] & 0xFF;
+	}
+
+	/** Makes sure at least n bytes are buffered, unless the stream ends first */
+	private boolean ensure(int n) throws IOException {
+		if (limit - pos >= n) {
+			return true;
+		}
+
+		System.arraycopy(in, pos, in, 0, limit - pos);
+		bufferStart += pos;
+		limit -= pos;
+		pos = 0;
+
+		while (limit < n) {
+			int read = is.read(in, limit, in.length - limit);
+			if (read == -1) {
+				return false;
+			}
+			limit += read;
+		}
+
+		return true;
+	}
+
+	private boolean fill() throws IOException {
+		bufferStart += limit;
+		pos = 0;
+		limit = 0;
+
+		int read;
+		do {
+			read = is.read(in, 0, in.length);
+		} while (read == 0);
+
+		if (read == -1) {
+			return false;
+		}
+
+		limit = read;
+		return true;
+	}
+
+	private static byte[] ascii(String text) {
+		byte[] out = new byte[text.length()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = (byte) text.charAt(i);
+		}
+
+		return out;
+	}
+}
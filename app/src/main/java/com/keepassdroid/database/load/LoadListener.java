@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.load;
+
+import com.keepassdroid.database.PwDatabaseV4;
+import com.keepassdroid.database.PwEntryV4;
+import com.keepassdroid.database.PwGroupV4;
+
+/** Receives the parts of a database while it is still being read.
+ *
+ * Groups are added to their parent, while holding the parent's lock, once
+ * their own fields have been read. Their entries and subgroups follow. Entries
+ * are only added once they have been read completely. All calls are made on
+ * the loading thread.
+ */
+public interface LoadListener {
+	/** Meta and the fields of the root group have been read */
+	public void onRootLoaded(PwDatabaseV4 db);
+
+	public void onGroupLoaded(PwGroupV4 group);
+
+	public void onEntryLoaded(PwEntryV4 entry);
+}
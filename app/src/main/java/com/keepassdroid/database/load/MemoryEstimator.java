@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.load;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.keepassdroid.database.PwCompressionAlgorithm;
+import com.keepassdroid.database.PwEntryV4;
+import com.keepassdroid.database.PwGroup;
+import com.keepassdroid.database.PwGroupV4;
+import com.keepassdroid.database.security.ProtectedBinary;
+import com.keepassdroid.database.security.ProtectedString;
+
+/** Estimates the heap used by a V4 database while it is read, and decides
+ * when the importer should switch to keeping it in leaner forms.
+ *
+ * The figures are approximate. They are meant for comparing against the
+ * budget and between groups, not as exact object sizes.
+ */
+public class MemoryEstimator {
+	public static final float DEFAULT_BUDGET_FRACTION = 0.5f;
+	
+	// Rough heap use per byte of file, for gzip compressed and plain content
+	private static final int GZIP_EXPANSION = 6;
+	private static final int PLAIN_EXPANSION = 2;
+	
+	// Entry object with its times, uuid, maps and auto type
+	private static final int ENTRY_OVERHEAD = 512;
+	// Map node, key and value objects for one string or binary
+	private static final int FIELD_OVERHEAD = 96;
+	
+	public static class Usage {
+		public int entries = 0;
+		public int historyEntries = 0;
+		public int binaries = 0;
+		public long stringBytes = 0;
+		public long binaryBytes = 0;
+		
+		public long total() {
+			return (long) (entries + historyEntries) * ENTRY_OVERHEAD + stringBytes + binaryBytes;
+		}
+		
+		private void add(Usage rhs) {
+			entries += rhs.entries;
+			historyEntries += rhs.historyEntries;
+			binaries += rhs.binaries;
+			stringBytes += rhs.stringBytes;
+			binaryBytes += rhs.binaryBytes;
+		}
+	}
+	
+	private final long budget;
+	private long projected = 0;
+	private boolean lean = false;
+	private Usage total = new Usage();
+	private Map<PwGroupV4, Usage> groups = new IdentityHashMap<PwGroupV4, Usage>();
+	// Binaries are shared between entries and history through the pool, count each once
+	private Map<ProtectedBinary, Boolean> counted = new IdentityHashMap<ProtectedBinary, Boolean>();
+	// Pool binaries not yet referenced by an entry
+	private Map<ProtectedBinary, Boolean> pooled = new IdentityHashMap<ProtectedBinary, Boolean>();
+	private long pooledBytes = 0;
+	
+	public MemoryEstimator() {
+		this(DEFAULT_BUDGET_FRACTION);
+	}
+	
+	/** Budget as a fraction of the largest heap this process may grow to */
+	public MemoryEstimator(float fraction) {
+		this((long) (Runtime.getRuntime().maxMemory() * fraction));
+	}
+	
+	public MemoryEstimator(long budget) {
+		this.budget = budget;
+	}
+	
+	/** Projects the footprint from the file size, before any content is read */
+	public void project(long fileSize, PwCompressionAlgorithm compression) {
+		if (fileSize <= 0) {
+			return;
+		}
+		
+		int expansion = (compression == PwCompressionAlgorithm.Gzip) ? GZIP_EXPANSION : PLAIN_EXPANSION;
+		projected = fileSize * expansion;
+		
+		if (projected > budget) {
+			lean = true;
+		}
+	}
+	
+	/** Holds the database in lean forms from the start, whatever its size */
+	public void forceLean() {
+		lean = true;
+	}
+	
+	/** Whether the database should be held in lean forms from here on */
+	public boolean isLean() {
+		return lean;
+	}
+	
+	public long getBudget() {
+		return budget;
+	}
+	
+	public long getProjected() {
+		return projected;
+	}
+	
+	/** Binaries from the pool in Meta are read before any entry. They are
+	 * counted against the first group that refers to them.
+	 */
+	public void addPoolBinary(ProtectedBinary binary) {
+		if (pooled.put(binary, Boolean.TRUE) == null) {
+			pooledBytes += binary.residentSize();
+			checkBudget();
+		}
+	}
+	
+	public void addEntry(PwGroupV4 group, PwEntryV4 entry) {
+		Usage usage = new Usage();
+		
+		usage.entries++;
+		addFields(usage, entry, null, null);
+		
+		PwEntryV4 previous = null;
+		for (PwEntryV4 hist : entry.history) {
+			usage.historyEntries++;
+			addFields(usage, hist, entry, previous);
+			previous = hist;
+		}
+		
+		Usage groupUsage = groups.get(group);
+		if (groupUsage == null) {
+			groupUsage = new Usage();
+			groups.put(group, groupUsage);
+		}
+		groupUsage.add(usage);
+		total.add(usage);
+		
+		checkBudget();
+	}
+	
+	private void addFields(Usage usage, PwEntryV4 entry, PwEntryV4 owner, PwEntryV4 previous) {
+		for (Map.Entry<String, ProtectedString> pair : entry.strings.entrySet()) {
+			usage.stringBytes += FIELD_OVERHEAD;
+			
+			String key = pair.getKey();
+			ProtectedString value = pair.getValue();
+			if ((owner != null && owner.strings.get(key) == value)
+					|| (previous != null && previous.strings.get(key) == value)) {
+				// Shared with another version of the entry
+				continue;
+			}
+			usage.stringBytes += 2 * key.length() + value.residentSize();
+		}
+		
+		for (ProtectedBinary binary : entry.binaries.values()) {
+			usage.binaryBytes += FIELD_OVERHEAD;
+			addBinary(usage, binary);
+		}
+	}
+	
+	private void addBinary(Usage usage, ProtectedBinary binary) {
+		if (counted.put(binary, Boolean.TRUE) == null) {
+			usage.binaries++;
+			usage.binaryBytes += binary.residentSize();
+			
+			if (pooled.remove(binary) != null) {
+				pooledBytes -= binary.residentSize();
+			}
+		}
+	}
+	
+	private void checkBudget() {
+		if (!lean && total.total() + pooledBytes > budget) {
+			lean = true;
+		}
+	}
+	
+	/** Usage of the whole database, including binaries no entry refers to */
+	public Usage getTotal() {
+		Usage usage = new Usage();
+		usage.add(total);
+		usage.binaries += pooled.size();
+		usage.binaryBytes += pooledBytes;
+		
+		return usage;
+	}
+	
+	/** Usage of the entries directly in a group, with their history */
+	public Usage getUsage(PwGroupV4 group) {
+		Usage usage = new Usage();
+		
+		Usage own = groups.get(group);
+		if (own != null) {
+			usage.add(own);
+		}
+		
+		return usage;
+	}
+	
+	/** Usage of a group and all of its subgroups */
+	public Usage getTreeUsage(PwGroupV4 group) {
+		Usage usage = getUsage(group);
+		
+		for (PwGroup child : group.childGroups) {
+			usage.add(getTreeUsage((PwGroupV4) child));
+		}
+		
+		return usage;
+	}
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.load;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Cipher;
+
+import biz.source_code.base64Coder.Base64Coder;
+
+import com.keepassdroid.crypto.CipherFactory;
+import com.keepassdroid.database.security.ProtectedBinary;
+import com.keepassdroid.stream.BetterCipherInputStream;
+import com.keepassdroid.stream.BufferedGZIPInputStream;
+import com.keepassdroid.stream.HashedBlockInputStream;
+
+/** Locates byte ranges of the decrypted XML document of a .kdbx file, so
+ * they can be read again from the file instead of being kept in memory.
+ *
+ * It is built while the file is loaded, from the hashed blocks and the
+ * restart points of the gzip stream. A range is read by decrypting from
+ * the cipher block before the hashed block holding the nearest restart
+ * point, and inflating from there.
+ */
+public class PayloadIndex implements HashedBlockInputStream.BlockListener,
+		BufferedGZIPInputStream.CheckpointListener {
+	
+	// The stream start bytes come before the first hashed block
+	private final static int START_BYTES_SIZE = 32;
+	private final static int CIPHER_BLOCK_SIZE = 16;
+	
+	private static class Block {
+		final long index;
+		// From the start of the decrypted content
+		final long offset;
+		// Of the first byte of data, in the hashed stream
+		final long dataOffset;
+		
+		Block(long index, long offset, long dataOffset) {
+			this.index = index;
+			this.offset = offset;
+			this.dataOffset = dataOffset;
+		}
+	}
+	
+	private static class Checkpoint {
+		final long input;
+		final long output;
+		final byte[] window;
+		
+		Checkpoint(long input, long output, byte[] window) {
+			this.input = input;
+			this.output = output;
+			this.window = window;
+		}
+	}
+	
+	private final long bodyOffset;
+	private final UUID cipherUuid;
+	private final byte[] key;
+	private final byte[] iv;
+	private final boolean gzip;
+	private RandomAccessFile file;
+	
+	private List<Block> blocks = new ArrayList<Block>();
+	private long dataLength = 0;
+	private List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+	
+	/**
+	 * @param bodyOffset of the encrypted content in the file, just past the header
+	 */
+	public PayloadIndex(RandomAccessFile file, long bodyOffset, UUID cipherUuid,
+			byte[] key, byte[] iv, boolean gzip) {
+		this.file = file;
+		this.bodyOffset = bodyOffset;
+		this.cipherUuid = cipherUuid;
+		this.key = key.clone();
+		this.iv = iv.clone();
+		this.gzip = gzip;
+	}
+	
+	@Override
+	public void onBlock(long index, long offset, int length) {
+		blocks.add(new Block(index, START_BYTES_SIZE + offset, dataLength));
+		dataLength += length;
+	}
+	
+	@Override
+	public void onCheckpoint(long inputOffset, long outputOffset, byte[] window) {
+		checkpoints.add(new Checkpoint(inputOffset, outputOffset, window));
+	}
+	
+	/** Whether a read at offset has no more than distance bytes of the
+	 * document to inflate and throw away first. Without compression any
+	 * offset is close.
+	 */
+	public synchronized boolean isNearCheckpoint(long offset, long distance) {
+		if ( !gzip ) {
+			return true;
+		}
+		
+		Checkpoint checkpoint = findCheckpoint(offset);
+		return checkpoint != null && offset - checkpoint.output <= distance;
+	}
+	
+	/** Stops further reads, the file itself is closed by its owner */
+	public synchronized void detach() {
+		file = null;
+	}
+	
+	/** Reads length bytes of the document, starting at offset */
+	public synchronized byte[] read(long offset, int length) throws IOException {
+		if ( file == null ) {
+			throw new IOException("Database file is no longer available.");
+		}
+		
+		// Where decompression can start, in the hashed and in the document stream
+		long hashedStart = offset;
+		long documentStart = offset;
+		byte[] window = null;
+		if ( gzip ) {
+			Checkpoint checkpoint = findCheckpoint(offset);
+			if ( checkpoint == null ) {
+				throw new IOException("Offset is not indexed.");
+			}
+			hashedStart = checkpoint.input;
+			documentStart = checkpoint.output;
+			window = checkpoint.window;
+		}
+		
+		Block block = findBlock(hashedStart);
+		if ( block == null ) {
+			throw new IOException("Offset is not indexed.");
+		}
+		
+		// CBC needs the previous cipher block as its IV
+		long cipherStart = block.offset / CIPHER_BLOCK_SIZE * CIPHER_BLOCK_SIZE;
+		byte[] blockIv;
+		if ( cipherStart == 0 ) {
+			blockIv = iv;
+		} else {
+			blockIv = new byte[CIPHER_BLOCK_SIZE];
+			file.seek(bodyOffset + cipherStart - CIPHER_BLOCK_SIZE);
+			file.readFully(blockIv);
+		}
+		
+		Cipher cipher;
+		try {
+			cipher = CipherFactory.getInstance(cipherUuid, Cipher.DECRYPT_MODE, key, blockIv);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Invalid algorithm.");
+		}
+		
+		InputStream decrypted = new BetterCipherInputStream(
+				new RandomAccessInputStream(file, bodyOffset + cipherStart), cipher, 16 * 1024);
+		skipFully(decrypted, block.offset - cipherStart);
+		
+		HashedBlockInputStream hashed = new HashedBlockInputStream(decrypted, block.index);
+		Inflater inflater = null;
+		try {
+			skipFully(hashed, hashedStart - block.dataOffset);
+			
+			InputStream content = hashed;
+			if ( gzip ) {
+				inflater = new Inflater(true);
+				if ( window.length > 0 ) {
+					inflater.setDictionary(window);
+				}
+				content = new InflaterInputStream(hashed, inflater);
+			}
+			
+			skipFully(content, offset - documentStart);
+			
+			byte[] data = new byte[length];
+			readFully(content, data);
+			return data;
+		} finally {
+			if ( inflater != null ) {
+				inflater.end();
+			}
+			hashed.close();
+		}
+	}
+	
+	/** Loads the binary stored as Base64 text at this range of the document
+	 * when it is used.
+	 */
+	public ProtectedBinary.Source base64Source(final long offset, final int length) {
+		return new ProtectedBinary.Source() {
+			@Override
+			public byte[] read() throws IOException {
+				byte[] text = PayloadIndex.this.read(offset, length);
+				char[] chars = new char[text.length];
+				for (int i = 0; i < text.length; i++) {
+					chars[i] = (char) text[i];
+				}
+				
+				try {
+					return Base64Coder.decode(chars);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(e.getMessage());
+				}
+			}
+		};
+	}
+	
+	private Checkpoint findCheckpoint(long offset) {
+		Checkpoint found = null;
+		for (Checkpoint checkpoint : checkpoints) {
+			if ( checkpoint.output > offset ) {
+				break;
+			}
+			found = checkpoint;
+		}
+		
+		return found;
+	}
+	
+	private Block findBlock(long dataOffset) {
+		if ( dataOffset >= dataLength ) {
+			return null;
+		}
+		
+		// Binary search for the last block starting at or before dataOffset
+		int low = 0;
+		int high = blocks.size() - 1;
+		while ( low < high ) {
+			int mid = (low + high + 1) >>> 1;
+			if ( blocks.get(mid).dataOffset <= dataOffset ) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		
+		return blocks.isEmpty() ? null : blocks.get(low);
+	}
+	
+	// Read rather than skip, as the hashed and cipher streams don't support it
+	private static void skipFully(InputStream is, long count) throws IOException {
+		byte[] buf = new byte[(int) Math.min(count, 8192)];
+		while ( count > 0 ) {
+			int read = is.read(buf, 0, (int) Math.min(count, buf.length));
+			if ( read <= 0 ) {
+				throw new EOFException();
+			}
+			count -= read;
+		}
+	}
+	
+	private static void readFully(InputStream is, byte[] data) throws IOException {
+		int count = 0;
+		while ( count < data.length ) {
+			int read = is.read(data, count, data.length - count);
+			if ( read <= 0 ) {
+				throw new EOFException();
+			}
+			count += read;
+		}
+	}
+	
+	private static class RandomAccessInputStream extends InputStream {
+		private final RandomAccessFile file;
+		private long position;
+		
+		RandomAccessInputStream(RandomAccessFile file, long position) {
+			this.file = file;
+			this.position = position;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] b, int offset, int length) throws IOException {
+			file.seek(position);
+			int read = file.read(b, offset, length);
+			if ( read > 0 ) {
+				position += read;
+			}
+			return read;
+		}
+	}
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.load;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.util.Log;
+
+import com.keepassdroid.crypto.CipherFactory;
+import com.keepassdroid.database.PwDatabaseV4;
+import com.keepassdroid.database.save.SnapshotOutputV4;
+import com.keepassdroid.stream.BetterCipherInputStream;
+
+/** Keeps decrypted .kdbx contents in an app private directory, in the form
+ * written by SnapshotOutputV4, so an unchanged file can be opened again
+ * without inflating and parsing its XML.
+ *
+ * Snapshots are named after the hash of the file header, which has new seeds
+ * on every save. They are encrypted and authenticated with keys derived from
+ * the final key of the file, so they can only be read after the password has
+ * been checked against the file itself.
+ */
+public class SnapshotCache {
+	private static final String TAG = "KPD";
+	
+	private static final int MAGIC = 0x4B445353; // KDSS
+	private static final int VERSION = 1;
+	private static final int IV_SIZE = 16;
+	private static final int MAC_SIZE = 32;
+	private static final int MAC_OFFSET = 8 + IV_SIZE;
+	private static final int HEADER_SIZE = MAC_OFFSET + MAC_SIZE;
+	
+	public static final int DEFAULT_MAX_SNAPSHOTS = 3;
+	
+	private final File dir;
+	private final int maxSnapshots;
+	
+	public SnapshotCache(File dir) {
+		this(dir, DEFAULT_MAX_SNAPSHOTS);
+	}
+	
+	public SnapshotCache(File dir, int maxSnapshots) {
+		this.dir = dir;
+		this.maxSnapshots = maxSnapshots;
+	}
+	
+	/** Fills in the database from the snapshot of the file with this header,
+	 * which must already have its final key.
+	 * 
+	 * @return false if there is no usable snapshot, in which case the database
+	 * is left without contents
+	 */
+	public boolean load(byte[] headerHash, PwDatabaseV4 db, MemoryEstimator memory) {
+		File file = getFile(headerHash);
+		if (!file.exists()) {
+			return false;
+		}
+		
+		try {
+			byte[][] keys = deriveKeys(db.finalKey);
+			
+			// Nothing is parsed before the whole file has been authenticated
+			byte[] iv = checkFile(file, keys[1]);
+			if (iv == null) {
+				Log.w(TAG, "Discarding snapshot which failed authentication");
+				file.delete();
+				return false;
+			}
+			
+			Cipher cipher = CipherFactory.getInstance(CipherFactory.AES_CIPHER, Cipher.DECRYPT_MODE, keys[0], iv);
+			
+			InputStream is = new FileInputStream(file);
+			try {
+				skipFully(is, HEADER_SIZE);
+				InputStream decrypted = new BufferedInputStream(new BetterCipherInputStream(is, cipher, 64 * 1024), 64 * 1024);
+				
+				new SnapshotInputV4(db, decrypted, memory).input();
+			} finally {
+				is.close();
+				CipherFactory.release(cipher);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to read snapshot", e);
+			discard(file, db);
+			return false;
+		} catch (GeneralSecurityException e) {
+			Log.w(TAG, "Failed to read snapshot", e);
+			discard(file, db);
+			return false;
+		} catch (RuntimeException e) {
+			Log.w(TAG, "Failed to read snapshot", e);
+			discard(file, db);
+			return false;
+		}
+		
+		file.setLastModified(System.currentTimeMillis());
+		return true;
+	}
+	
+	/** Stores the contents of a database just read from the file with this header */
+	public void store(byte[] headerHash, PwDatabaseV4 db) {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			return;
+		}
+		
+		File file = getFile(headerHash);
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			byte[][] keys = deriveKeys(db.finalKey);
+			
+			byte[] iv = new byte[IV_SIZE];
+			new SecureRandom().nextBytes(iv);
+			Cipher cipher = CipherFactory.getInstance(CipherFactory.AES_CIPHER, Cipher.ENCRYPT_MODE, keys[0], iv);
+			Mac mac = getMac(keys[1]);
+			
+			MacOutputStream macOut = new MacOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024), mac);
+			try {
+				DataOutputStream header = new DataOutputStream(macOut);
+				header.writeInt(MAGIC);
+				header.writeInt(VERSION);
+				header.write(iv);
+				
+				// Filled in once the contents are written, and taken as zeros by the MAC
+				header.write(new byte[MAC_SIZE]);
+				
+				CipherOutputStream cos = new CipherOutputStream(macOut, cipher);
+				new SnapshotOutputV4(db, new BufferedOutputStream(cos, 64 * 1024)).output();
+				cos.close();
+			} finally {
+				macOut.close();
+				CipherFactory.release(cipher);
+			}
+			
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				raf.seek(MAC_OFFSET);
+				raf.write(mac.doFinal());
+			} finally {
+				raf.close();
+			}
+			
+			if (!temp.renameTo(file)) {
+				throw new IOException("Failed to store snapshot.");
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to write snapshot", e);
+			temp.delete();
+			return;
+		} catch (GeneralSecurityException e) {
+			Log.w(TAG, "Failed to write snapshot", e);
+			temp.delete();
+			return;
+		}
+		
+		prune();
+	}
+	
+	/** Removes all snapshots */
+	public void clear() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		
+		for (File file : files) {
+			file.delete();
+		}
+	}
+	
+	private File getFile(byte[] headerHash) {
+		StringBuilder name = new StringBuilder();
+		for (byte b : headerHash) {
+			name.append(Character.forDigit((b >> 4) & 0xF, 16));
+			name.append(Character.forDigit(b & 0xF, 16));
+		}
+		
+		return new File(dir, name.toString());
+	}
+	
+	/** Keeps the most recently used snapshots */
+	private void prune() {
+		File[] files = dir.listFiles();
+		if (files == null || files.length <= maxSnapshots) {
+			return;
+		}
+		
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? 1 : (l == r ? 0 : -1);
+			}
+		});
+		
+		for (int i = maxSnapshots; i < files.length; i++) {
+			files[i].delete();
+		}
+	}
+	
+	private void discard(File file, PwDatabaseV4 db) {
+		file.delete();
+		
+		db.rootGroup = null;
+		db.deletedObjects.clear();
+		db.customIcons.clear();
+		db.customData.clear();
+	}
+	
+	/** Checks the MAC of the whole file, and returns its IV when it matches */
+	private byte[] checkFile(File file, byte[] macKey) throws IOException, GeneralSecurityException {
+		if (file.length() < HEADER_SIZE) {
+			return null;
+		}
+		
+		Mac mac = getMac(macKey);
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] header = new byte[HEADER_SIZE];
+			dis.readFully(header);
+			
+			DataInputStream fields = new DataInputStream(new ByteArrayInputStream(header));
+			if (fields.readInt() != MAGIC || fields.readInt() != VERSION) {
+				return null;
+			}
+			
+			byte[] iv = new byte[IV_SIZE];
+			fields.readFully(iv);
+			byte[] stored = new byte[MAC_SIZE];
+			fields.readFully(stored);
+			
+			// The MAC was computed with zeros in its own place
+			Arrays.fill(header, MAC_OFFSET, HEADER_SIZE, (byte) 0);
+			mac.update(header);
+			
+			byte[] buf = new byte[64 * 1024];
+			int read;
+			while ((read = dis.read(buf)) != -1) {
+				mac.update(buf, 0, read);
+			}
+			
+			if (!MessageDigest.isEqual(stored, mac.doFinal())) {
+				return null;
+			}
+			
+			return iv;
+		} finally {
+			dis.close();
+		}
+	}
+	
+	/** Separate keys for encryption and authentication, bound to this version of the file */
+	private static byte[][] deriveKeys(byte[] finalKey) throws GeneralSecurityException {
+		Mac mac = getMac(finalKey);
+		
+		byte[] encKey = mac.doFinal(ascii("snapshot encryption"));
+		byte[] macKey = mac.doFinal(ascii("snapshot authentication"));
+		
+		return new byte[][] {encKey, macKey};
+	}
+	
+	private static Mac getMac(byte[] key) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		
+		return mac;
+	}
+	
+	private static byte[] ascii(String text) {
+		byte[] data = new byte[text.length()];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) text.charAt(i);
+		}
+		
+		return data;
+	}
+	
+	private static void skipFully(InputStream is, long count) throws IOException {
+		while (count > 0) {
+			long skipped = is.skip(count);
+			if (skipped <= 0) {
+				throw new IOException("Snapshot is truncated.");
+			}
+			count -= skipped;
+		}
+	}
+	
+	/** Passes what is written on, and adds it to the MAC */
+	private static class MacOutputStream extends FilterOutputStream {
+		private final Mac mac;
+		
+		public MacOutputStream(OutputStream os, Mac mac) {
+			super(os);
+			this.mac = mac;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			mac.update((byte) b);
+			out.write(b);
+		}
+		
+		@Override
+		public void write(byte[] buf, int offset, int count) throws IOException {
+			mac.update(buf, offset, count);
+			out.write(buf, offset, count);
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.load;
+
+import static com.keepassdroid.database.save.SnapshotOutputV4.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.UUID;
+
+import com.keepassdroid.database.ITimeLogger;
+import com.keepassdroid.database.PwDatabaseV4;
+import com.keepassdroid.database.PwDatabaseV4.MemoryProtectionConfig;
+import com.keepassdroid.database.PwDeletedObject;
+import com.keepassdroid.database.PwEntryV4;
+import com.keepassdroid.database.PwGroupV4;
+import com.keepassdroid.database.PwIconCustom;
+import com.keepassdroid.database.security.ProtectedBinary;
+import com.keepassdroid.database.security.ProtectedString;
+
+/** Reads the contents of a database written by SnapshotOutputV4. The header
+ * fields, such as the cipher and compression, are expected to have been read
+ * into the database already.
+ */
+public class SnapshotInputV4 {
+	private PwDatabaseV4 db;
+	private DataInputStream in;
+	private MemoryEstimator memory;
+	private ProtectedBinary[] binaries;
+	
+	public SnapshotInputV4(PwDatabaseV4 db, InputStream is, MemoryEstimator memory) {
+		this.db = db;
+		in = new DataInputStream(is);
+		this.memory = memory;
+	}
+	
+	public void input() throws IOException {
+		readMeta();
+		readBinaries();
+		
+		PwGroupV4 root = new PwGroupV4();
+		readGroup(root);
+		db.rootGroup = root;
+		
+		int count = readCount();
+		for (int i = 0; i < count; i++) {
+			PwDeletedObject deleted = new PwDeletedObject();
+			deleted.uuid = readUuid();
+			deleted.setDeletionTime(readDate());
+			db.deletedObjects.add(deleted);
+		}
+		
+		if (in.read() != -1) {
+			throw new IOException("Unexpected data after the snapshot.");
+		}
+	}
+	
+	private void readMeta() throws IOException {
+		db.name = readString();
+		db.nameChanged = readDate();
+		db.description = readString();
+		db.descriptionChanged = readDate();
+		db.defaultUserName = readString();
+		db.defaultUserNameChanged = readDate();
+		db.maintenanceHistoryDays = in.readLong();
+		db.color = readString();
+		db.keyLastChanged = readDate();
+		db.keyChangeRecDays = in.readLong();
+		db.keyChangeForceDays = in.readLong();
+		
+		MemoryProtectionConfig mp = db.memoryProtection;
+		mp.protectTitle = in.readBoolean();
+		mp.protectUserName = in.readBoolean();
+		mp.protectPassword = in.readBoolean();
+		mp.protectUrl = in.readBoolean();
+		mp.protectNotes = in.readBoolean();
+		mp.autoEnableVisualHiding = in.readBoolean();
+		
+		db.recycleBinEnabled = in.readBoolean();
+		db.recycleBinUUID = readUuid();
+		db.recycleBinChanged = readDate();
+		db.entryTemplatesGroup = readUuid();
+		db.entryTemplatesGroupChanged = readDate();
+		db.historyMaxItems = in.readInt();
+		db.historyMaxSize = in.readLong();
+		db.lastSelectedGroup = readUuid();
+		db.lastTopVisibleGroup = readUuid();
+		
+		int count = readCount();
+		for (int i = 0; i < count; i++) {
+			PwIconCustom icon = new PwIconCustom(readUuid(), readBytes());
+			db.customIcons.add(icon);
+			db.iconFactory.put(icon);
+		}
+		
+		count = readCount();
+		for (int i = 0; i < count; i++) {
+			String key = readString();
+			db.customData.put(key, readString());
+		}
+	}
+	
+	private void readBinaries() throws IOException {
+		binaries = new ProtectedBinary[readCount()];
+		
+		for (int i = 0; i < binaries.length; i++) {
+			int flags = in.readByte();
+			boolean protect = (flags & FLAG_PROTECTED) != 0;
+			
+			if ((flags & FLAG_COMPRESSED) != 0) {
+				int length = in.readInt();
+				byte[] hash = readBytes();
+				binaries[i] = ProtectedBinary.fromCompressed(protect, readBytes(), length, hash);
+			} else {
+				ProtectedBinary binary = new ProtectedBinary(protect, readBytes());
+				binaries[i] = memory.isLean() ? binary.compact() : binary;
+			}
+		}
+	}
+	
+	private void readGroup(PwGroupV4 group) throws IOException {
+		group.uuid = readUuid();
+		group.name = readString();
+		group.notes = readString();
+		group.icon = db.iconFactory.getIcon(in.readInt());
+		group.customIcon = readCustomIcon();
+		readTimes(group);
+		group.isExpanded = in.readBoolean();
+		group.defaultAutoTypeSequence = readString();
+		group.enableAutoType = readBoolean();
+		group.enableSearching = readBoolean();
+		group.lastTopVisibleEntry = readUuid();
+		
+		int count = readCount();
+		for (int i = 0; i < count; i++) {
+			PwEntryV4 entry = new PwEntryV4();
+			readEntry(entry);
+			
+			int historyCount = readCount();
+			for (int j = 0; j < historyCount; j++) {
+				PwEntryV4 hist = new PwEntryV4();
+				readEntry(hist);
+				entry.history.add(hist);
+			}
+			
+			memory.addEntry(group, entry);
+			group.AddEntry(entry, true);
+		}
+		
+		count = readCount();
+		for (int i = 0; i < count; i++) {
+			PwGroupV4 child = new PwGroupV4();
+			readGroup(child);
+			group.AddGroup(child, true);
+		}
+	}
+	
+	private void readEntry(PwEntryV4 entry) throws IOException {
+		entry.setUUID(readUuid());
+		entry.icon = db.iconFactory.getIcon(in.readInt());
+		entry.customIcon = readCustomIcon();
+		entry.foregroundColor = readString();
+		entry.backgroupColor = readString();
+		entry.overrideURL = readString();
+		entry.tags = readString();
+		readTimes(entry);
+		
+		int count = readCount();
+		for (int i = 0; i < count; i++) {
+			String key = readString();
+			boolean protect = in.readBoolean();
+			byte[] value = readBytes();
+			
+			if (memory.isLean()) {
+				entry.strings.put(key, new ProtectedString(protect, value));
+			} else {
+				entry.strings.put(key, new ProtectedString(protect, new String(value, "UTF-8")));
+			}
+		}
+		
+		count = readCount();
+		for (int i = 0; i < count; i++) {
+			String key = readString();
+			
+			int index = in.readInt();
+			if (index < 0 || index >= binaries.length) {
+				throw new IOException("Invalid binary reference.");
+			}
+			entry.binaries.put(key, binaries[index]);
+		}
+		
+		entry.autoType.enabled = in.readBoolean();
+		entry.autoType.obfuscationOptions = in.readLong();
+		entry.autoType.defaultSequence = readString();
+		
+		count = readCount();
+		for (int i = 0; i < count; i++) {
+			String window = readString();
+			entry.autoType.put(window, readString());
+		}
+	}
+	
+	private PwIconCustom readCustomIcon() throws IOException {
+		UUID uuid = readUuid();
+		if (uuid.equals(PwDatabaseV4.UUID_ZERO)) {
+			return PwIconCustom.ZERO;
+		}
+		
+		return db.iconFactory.getIcon(uuid);
+	}
+	
+	private void readTimes(ITimeLogger it) throws IOException {
+		it.setLastModificationTime(readDate());
+		it.setCreationTime(readDate());
+		it.setLastAccessTime(readDate());
+		it.setExpiryTime(readDate());
+		it.setExpires(in.readBoolean());
+		it.setUsageCount(in.readLong());
+		it.setLocationChanged(readDate());
+	}
+	
+	private int readCount() throws IOException {
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("Invalid count.");
+		}
+		
+		return count;
+	}
+	
+	private byte[] readBytes() throws IOException {
+		byte[] data = new byte[readCount()];
+		in.readFully(data);
+		
+		return data;
+	}
+	
+	private String readString() throws IOException {
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		} else if (length < 0) {
+			throw new IOException("Invalid string length.");
+		}
+		
+		byte[] data = new byte[length];
+		in.readFully(data);
+		
+		return new String(data, "UTF-8");
+	}
+	
+	private Date readDate() throws IOException {
+		long time = in.readLong();
+		if (time == NULL_DATE) {
+			return null;
+		}
+		
+		return new Date(time);
+	}
+	
+	private Boolean readBoolean() throws IOException {
+		int value = in.readByte();
+		if (value == NULL_BOOLEAN) {
+			return null;
+		}
+		
+		return value != 0;
+	}
+	
+	private UUID readUuid() throws IOException {
+		long msb = in.readLong();
+		return new UUID(msb, in.readLong());
+	}
+}
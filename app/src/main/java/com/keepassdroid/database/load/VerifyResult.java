@@ -0,0 +1,52 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.load;
+
+/** Outcome of checking a database file without loading its contents */
+public class VerifyResult {
+	/** Index of the first corrupt block, or -1 if there is no such block */
+	public final long corruptBlock;
+	/** What was wrong with the file, or null if it is intact */
+	public final String error;
+	/** File bytes checked */
+	public final long bytes;
+	/** Time taken to check them after deriving the key, in milliseconds */
+	public final long millis;
+	
+	public VerifyResult(long bytes, long millis) {
+		this(-1, null, bytes, millis);
+	}
+	
+	public VerifyResult(long corruptBlock, String error, long bytes, long millis) {
+		this.corruptBlock = corruptBlock;
+		this.error = error;
+		this.bytes = bytes;
+		this.millis = millis;
+	}
+	
+	public boolean isValid() {
+		return error == null;
+	}
+	
+	/** Bytes checked per second */
+	public long getThroughput() {
+		return bytes * 1000 / Math.max(millis, 1);
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.save;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import com.keepassdroid.database.PwDatabaseV4;
+import com.keepassdroid.database.security.ProtectedBinary;
+
+/** Serialized XML of groups and entries, kept from one save to the next.
+ *
+ * A fragment is valid for as long as the revision of its owner hasn't changed.
+ * Group fragments refer to the fragments of their entries and subgroups.
+ * Anything which depends on the state of a particular save (protected values,
+ * which are encrypted with a new inner stream key each time, and binary pool
+ * references) is stored as a splice point and rendered again on replay.
+ */
+class FragmentCache {
+
+	private static final WeakHashMap<PwDatabaseV4, FragmentCache> caches = new WeakHashMap<PwDatabaseV4, FragmentCache>();
+
+	public static synchronized FragmentCache getInstance(PwDatabaseV4 db) {
+		FragmentCache cache = caches.get(db);
+		if (cache == null) {
+			cache = new FragmentCache();
+			caches.put(db, cache);
+		}
+
+		return cache;
+	}
+
+	/** Drops the cache of a database which was closed, once any save using it
+	 * has finished. Protected values are the entries' own arrays rather than
+	 * copies, so they go with the database, but the serialized text is wiped.
+	 */
+	public static void release(PwDatabaseV4 db) {
+		FragmentCache cache;
+		synchronized (FragmentCache.class) {
+			cache = caches.remove(db);
+		}
+
+		if (cache != null) {
+			synchronized (cache) {
+				cache.wipe();
+			}
+		}
+	}
+
+	/** Protected value, re-encrypted with the inner random stream on each save */
+	public static class ProtectedValue {
+		public final byte[] data;
+
+		public ProtectedValue(byte[] data) {
+			this.data = data;
+		}
+	}
+
+	/** Reference into the binary pool, whose ids are assigned on each save */
+	public static class BinaryRef {
+		public final ProtectedBinary binary;
+
+		public BinaryRef(ProtectedBinary binary) {
+			this.binary = binary;
+		}
+	}
+
+	public static class Fragment {
+		public final Object owner;
+		public final long revision;
+
+		/** Raw byte arrays, splice points and child fragments, in document order */
+		public final List<Object> segments = new ArrayList<Object>();
+		private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		private long size = 0;
+
+		public Fragment(Object owner, long revision) {
+			this.owner = owner;
+			this.revision = revision;
+		}
+
+		public void write(byte[] b, int offset, int count) {
+			pending.write(b, offset, count);
+		}
+
+		public long pendingSize() {
+			return pending.size();
+		}
+
+		/** Moves any bytes recorded so far into a raw segment */
+		public void cut() {
+			if (pending.size() > 0) {
+				byte[] raw = pending.toByteArray();
+				segments.add(raw);
+				size += raw.length;
+				pending.reset();
+			}
+		}
+
+		public void finish() {
+			cut();
+			pending = null;
+		}
+	}
+
+	private IdentityHashMap<Object, Fragment> fragments = new IdentityHashMap<Object, Fragment>();
+	private String signature = null;
+	private long budget = Runtime.getRuntime().maxMemory() / 8;
+	private long size = 0;
+
+	private FragmentCache() {
+	}
+
+	/** Drops everything if settings which affect the serialized groups changed */
+	public void validate(String signature) {
+		if (!signature.equals(this.signature)) {
+			clear();
+			this.signature = signature;
+		}
+	}
+
+	public Fragment get(Object owner, long revision) {
+		Fragment fragment = fragments.get(owner);
+		if (fragment != null && fragment.revision == revision) {
+			return fragment;
+		}
+
+		return null;
+	}
+
+	public void put(Fragment fragment) {
+		Fragment old = fragments.put(fragment.owner, fragment);
+		if (old != null) {
+			size -= old.size;
+		}
+
+		size += fragment.size;
+	}
+
+	public boolean fits(long extra) {
+		return size + extra <= budget;
+	}
+
+	public void clear() {
+		fragments.clear();
+		size = 0;
+	}
+
+	private void wipe() {
+		for (Fragment fragment : fragments.values()) {
+			for (Object segment : fragment.segments) {
+				if (segment instanceof byte[]) {
+					Arrays.fill((byte[]) segment, (byte) 0);
+				}
+			}
+			fragment.segments.clear();
+		}
+
+		clear();
+	}
+
+	/** Keeps only the fragments used by the save which just completed, so that
+	 * groups and entries which were deleted or changed don't hold on to memory.
+	 */
+	public void retainReachable(Fragment root) {
+		IdentityHashMap<Object, Fragment> reachable = new IdentityHashMap<Object, Fragment>();
+		size = 0;
+
+		List<Fragment> todo = new ArrayList<Fragment>();
+		todo.add(root);
+		while (todo.size() > 0) {
+			Fragment fragment = todo.remove(todo.size() - 1);
+			reachable.put(fragment.owner, fragment);
+			size += fragment.size;
+
+			for (Object segment : fragment.segments) {
+				if (segment instanceof Fragment) {
+					todo.add((Fragment) segment);
+				}
+			}
+		}
+
+		fragments = reachable;
+	}
+}
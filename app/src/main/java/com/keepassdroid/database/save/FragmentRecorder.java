@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.save;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Stack;
+
+import com.keepassdroid.database.save.FragmentCache.Fragment;
+
+/** Passes the serialized document through to the base stream, while recording
+ * the bytes of each group and entry into the fragment cache.
+ */
+class FragmentRecorder extends OutputStream {
+
+	public interface SpliceWriter {
+		/** Writes the current rendering of a splice point */
+		public void writeSplice(Object splice, OutputStream os) throws IOException;
+	}
+
+	private OutputStream baseStream;
+	private FragmentCache cache;
+	private SpliceWriter spliceWriter;
+	private Stack<Fragment> recording = new Stack<Fragment>();
+	private Fragment root = null;
+	private boolean enabled;
+
+	public FragmentRecorder(OutputStream os, FragmentCache cache, SpliceWriter spliceWriter) {
+		baseStream = os;
+		this.cache = cache;
+		this.spliceWriter = spliceWriter;
+		enabled = cache != null;
+	}
+
+	/** Returns a valid cached fragment for the group or entry, if there is one */
+	public Fragment getCached(Object owner, long revision) {
+		if (!enabled) {
+			return null;
+		}
+
+		return cache.get(owner, revision);
+	}
+
+	public void begin(Object owner, long revision) {
+		if (!enabled) {
+			return;
+		}
+
+		if (!recording.isEmpty()) {
+			recording.peek().cut();
+		}
+
+		recording.push(new Fragment(owner, revision));
+	}
+
+	public void end() {
+		if (!enabled) {
+			return;
+		}
+
+		Fragment fragment = recording.pop();
+		fragment.finish();
+		add(fragment);
+	}
+
+	/** Writes a cached fragment in place of serializing its owner */
+	public void replay(Fragment fragment) throws IOException {
+		if (enabled) {
+			if (!recording.isEmpty()) {
+				recording.peek().cut();
+			}
+			add(fragment);
+		}
+
+		write(fragment);
+	}
+
+	public void splice(Object splice) throws IOException {
+		if (enabled && !recording.isEmpty()) {
+			Fragment fragment = recording.peek();
+			fragment.cut();
+			fragment.segments.add(splice);
+		}
+
+		spliceWriter.writeSplice(splice, baseStream);
+	}
+
+	/** Called once the whole document has been written */
+	public void finish() {
+		if (enabled && root != null) {
+			cache.retainReachable(root);
+		}
+	}
+
+	private void add(Fragment fragment) {
+		if (recording.isEmpty()) {
+			root = fragment;
+		} else {
+			recording.peek().segments.add(fragment);
+		}
+
+		cache.put(fragment);
+	}
+
+	private void write(Fragment fragment) throws IOException {
+		for (Object segment : fragment.segments) {
+			if (segment instanceof byte[]) {
+				baseStream.write((byte[]) segment);
+			} else if (segment instanceof Fragment) {
+				write((Fragment) segment);
+			} else {
+				spliceWriter.writeSplice(segment, baseStream);
+			}
+		}
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		write(new byte[] { (byte) oneByte }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int count) throws IOException {
+		baseStream.write(b, offset, count);
+
+		if (enabled && !recording.isEmpty()) {
+			Fragment fragment = recording.peek();
+			if (!cache.fits(fragment.pendingSize() + count)) {
+				// Over the memory budget, so give up on caching for this save
+				enabled = false;
+				recording.clear();
+				cache.clear();
+				return;
+			}
+
+			fragment.write(b, offset, count);
+		}
+	}
+
+	/** The serializer is flushed at every fragment boundary. Passing that on
+	 * would push lots of tiny writes down the save pipeline, so this is a no-op.
+	 */
+	@Override
+	public void flush() throws IOException {
+	}
+
+	@Override
+	public void close() throws IOException {
+		baseStream.close();
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.save;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.keepassdroid.database.PwDate;
+import com.keepassdroid.database.PwEntryV3;
+import com.keepassdroid.database.PwGroupV3;
+import com.keepassdroid.utils.Types;
+
+/** Serializes KDB groups and entries into a list of little endian buffers,
+ * writing the same bytes as PwGroupOutputV3 and PwEntryOutputV3. Fields are
+ * packed into chunks, while larger attachments are added to the list as
+ * they are, so they aren't copied on their way to the digest and cipher.
+ */
+public class KdbRecordWriter {
+	private static final int CHUNK_SIZE = 64 * 1024;
+	// Smaller attachments are cheaper to copy than to give their own buffer
+	private static final int MIN_SHARED_SIZE = 4 * 1024;
+	private static final int END_FIELD_TYPE = 0xFFFF;
+	private static final int DATE_SIZE = 5;
+
+	private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+	// Chunks allocated here, which hold fields and can be wiped
+	private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	private ByteBuffer current = null;
+	private long length = 0;
+	private int headerHashSize = 0;
+
+	/** Puts the header hash field before the first group. This may come after
+	 * the groups and entries were written, as the records can be serialized
+	 * for the content hash before the header is known.
+	 */
+	public void insertHeaderHash(byte[] block) {
+		finishChunk();
+		
+		ByteBuffer field = ByteBuffer.allocate(6 + block.length).order(ByteOrder.LITTLE_ENDIAN);
+		field.putShort((short) 0x0000);
+		field.putInt(block.length);
+		field.put(block);
+		chunks.add(field);
+		
+		field = field.duplicate();
+		field.flip();
+		buffers.add(0, field);
+		length += field.remaining();
+		headerHashSize = field.remaining();
+	}
+
+	public void writeGroup(PwGroupV3 pg) throws UnsupportedEncodingException {
+		putField(0x0001, 4);
+		current.putInt(pg.groupId);
+
+		putString(0x0002, pg.name);
+
+		putDate(0x0003, pg.tCreation);
+		putDate(0x0004, pg.tLastMod);
+		putDate(0x0005, pg.tLastAccess);
+		putDate(0x0006, pg.tExpire);
+
+		putField(0x0007, 4);
+		current.putInt(pg.icon.iconId);
+
+		putField(0x0008, 2);
+		current.putShort((short) pg.level);
+
+		putField(0x0009, 4);
+		current.putInt(pg.flags);
+
+		putField(END_FIELD_TYPE, 0);
+	}
+
+	public void writeEntry(PwEntryV3 pe) throws UnsupportedEncodingException {
+		putField(0x0001, 16);
+		current.put(Types.UUIDtoBytes(pe.getUUID()));
+
+		putField(0x0002, 4);
+		current.putInt(pe.groupId);
+
+		putField(0x0003, 4);
+		current.putInt(pe.icon.iconId);
+
+		putString(0x0004, pe.title);
+		putString(0x0005, pe.url);
+		putString(0x0006, pe.username);
+
+		byte[] password = pe.getPasswordBytes();
+		putField(0x0007, password.length + 1);
+		current.put(password);
+		current.put((byte) 0);
+
+		putString(0x0008, pe.additional);
+
+		putDate(0x0009, pe.tCreation);
+		putDate(0x000A, pe.tLastMod);
+		putDate(0x000B, pe.tLastAccess);
+		putDate(0x000C, pe.tExpire);
+
+		putString(0x000D, pe.binaryDesc);
+
+		ByteBuffer data = pe.getBinaryBuffer();
+		int dataLength = data == null ? 0 : data.remaining();
+		if ( dataLength >= MIN_SHARED_SIZE ) {
+			putField(0x000E, dataLength, 0);
+			finishChunk();
+			buffers.add(data);
+			length += dataLength;
+		} else {
+			putField(0x000E, dataLength);
+			if ( data != null ) {
+				current.put(data);
+			}
+		}
+
+		putField(END_FIELD_TYPE, 0);
+	}
+
+	/** Number of bytes written so far */
+	public long length() {
+		return length + (current == null ? 0 : current.position());
+	}
+
+	public void update(MessageDigest md) {
+		finishChunk();
+		for (ByteBuffer buffer : buffers) {
+			md.update(buffer.duplicate());
+		}
+	}
+
+	/** Like update, but leaving out the header hash field, which is the only
+	 * part that differs between saves of the same groups and entries.
+	 */
+	public void updateContent(MessageDigest md) {
+		finishChunk();
+		for (int i = 0; i < buffers.size(); i++) {
+			ByteBuffer buffer = buffers.get(i).duplicate();
+			if ( i == 0 && headerHashSize > 0 ) {
+				// The header hash field has a buffer of its own
+				continue;
+			}
+			md.update(buffer);
+		}
+	}
+
+	/** Writes the buffers out in turn, in pieces no larger than a chunk, since
+	 * ciphers allocate their output for each write.
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		finishChunk();
+		byte[] scratch = null;
+		for (ByteBuffer buffer : buffers) {
+			if ( ! buffer.hasArray() ) {
+				if ( scratch == null ) {
+					scratch = new byte[CHUNK_SIZE];
+				}
+				ByteBuffer src = buffer.duplicate();
+				while ( src.hasRemaining() ) {
+					int count = Math.min(scratch.length, src.remaining());
+					src.get(scratch, 0, count);
+					os.write(scratch, 0, count);
+				}
+				continue;
+			}
+			
+			byte[] array = buffer.array();
+			int offset = buffer.arrayOffset() + buffer.position();
+			int end = offset + buffer.remaining();
+			for (int pos = offset; pos < end; pos += CHUNK_SIZE) {
+				os.write(array, pos, Math.min(CHUNK_SIZE, end - pos));
+			}
+		}
+	}
+
+	/** Clears the fields written, which include passwords */
+	public void wipe() {
+		for (ByteBuffer chunk : chunks) {
+			Arrays.fill(chunk.array(), (byte) 0);
+		}
+		if ( current != null ) {
+			Arrays.fill(current.array(), (byte) 0);
+			current = null;
+		}
+		chunks.clear();
+		buffers.clear();
+		length = 0;
+		headerHashSize = 0;
+	}
+
+	/** Starts a field, making sure the current chunk has room for its contents */
+	private void putField(int type, int size) {
+		putField(type, size, size);
+	}
+	
+	private void putField(int type, int size, int contentSize) {
+		reserve(6 + contentSize);
+		current.putShort((short) type);
+		current.putInt(size);
+	}
+
+	private void putString(int type, String str) throws UnsupportedEncodingException {
+		byte[] bytes = Types.cStringBytes(str);
+		putField(type, bytes.length + 1);
+		current.put(bytes);
+		current.put((byte) 0);
+	}
+
+	private void putDate(int type, PwDate date) {
+		putField(type, DATE_SIZE);
+		byte[] cDate = date == null ? null : date.getCDate();
+		if ( cDate != null ) {
+			current.put(cDate);
+		} else {
+			current.put(new byte[DATE_SIZE]);
+		}
+	}
+
+	private void reserve(int size) {
+		if ( current != null && current.remaining() >= size ) {
+			return;
+		}
+
+		finishChunk();
+		current = ByteBuffer.allocate(Math.max(CHUNK_SIZE, size)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void finishChunk() {
+		if ( current == null ) {
+			return;
+		}
+
+		chunks.add(current);
+		if ( current.position() > 0 ) {
+			length += current.position();
+			ByteBuffer filled = current.duplicate();
+			filled.flip();
+			buffers.add(filled);
+		}
+		current = null;
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.save;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.keepassdroid.database.PwDatabaseV4XML;
+
+/** Minimal XML writer for the KDBX document, which encodes straight to UTF-8
+ * bytes in a reusable buffer.
+ *
+ * The output matches what the platform serializer produced, except that
+ * characters which aren't allowed in XML are dropped from all text.
+ */
+public class KdbxXmlWriter {
+	public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+	private static final byte[] DOCUMENT_START = ascii("<?xml version='1.0' encoding='UTF-8' standalone='yes' ?>");
+	private static final byte[] EMPTY_END = ascii(" />");
+	private static final byte[] AMP = ascii("&amp;");
+	private static final byte[] LT = ascii("&lt;");
+	private static final byte[] GT = ascii("&gt;");
+	private static final byte[] QUOT = ascii("&quot;");
+
+	private static final byte[] BASE64 = ascii("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/");
+
+	/** "<Name" and "</Name>" for every element and attribute name in the format */
+	private static final Map<String, byte[]> startTags = new HashMap<String, byte[]>();
+	private static final Map<String, byte[]> endTags = new HashMap<String, byte[]>();
+	private static final Map<String, byte[]> attrNames = new HashMap<String, byte[]>();
+
+	static {
+		for (Field field : PwDatabaseV4XML.class.getFields()) {
+			if (field.getType() != String.class || !Modifier.isStatic(field.getModifiers())) {
+				continue;
+			}
+
+			String name;
+			try {
+				name = (String) field.get(null);
+			} catch (IllegalAccessException e) {
+				continue;
+			}
+
+			if (field.getName().startsWith("Elem")) {
+				startTags.put(name, utf8("<" + name));
+				endTags.put(name, utf8("</" + name + ">"));
+			} else if (field.getName().startsWith("Attr")) {
+				attrNames.put(name, utf8(" " + name + "=\""));
+			}
+		}
+	}
+
+	private OutputStream os;
+	private byte[] buf;
+	private int count = 0;
+	private boolean pending = false;
+
+	public KdbxXmlWriter(OutputStream os) {
+		this(os, DEFAULT_BUFFER_SIZE);
+	}
+
+	public KdbxXmlWriter(OutputStream os, int bufferSize) {
+		this.os = os;
+		buf = new byte[bufferSize];
+	}
+
+	public void startDocument() throws IOException {
+		write(DOCUMENT_START);
+	}
+
+	public void endDocument() throws IOException {
+		flush();
+	}
+
+	public void startTag(String name) throws IOException {
+		closePending();
+
+		byte[] tag = startTags.get(name);
+		if (tag != null) {
+			write(tag);
+		} else {
+			writeByte('<');
+			writeText(name, -1);
+		}
+
+		pending = true;
+	}
+
+	public void attribute(String name, String value) throws IOException {
+		if (!pending) {
+			throw new IllegalStateException("Attribute outside of a start tag.");
+		}
+
+		byte[] attr = attrNames.get(name);
+		if (attr != null) {
+			write(attr);
+		} else {
+			writeByte(' ');
+			writeText(name, -1);
+			writeByte('=');
+			writeByte('"');
+		}
+
+		writeText(value, '"');
+		writeByte('"');
+	}
+
+	public void endTag(String name) throws IOException {
+		if (pending) {
+			write(EMPTY_END);
+			pending = false;
+			return;
+		}
+
+		byte[] tag = endTags.get(name);
+		if (tag != null) {
+			write(tag);
+		} else {
+			writeByte('<');
+			writeByte('/');
+			writeText(name, -1);
+			writeByte('>');
+		}
+	}
+
+	/** Writes escaped text, dropping any characters which aren't valid XML */
+	public void text(String text) throws IOException {
+		closePending();
+
+		if (text != null) {
+			writeText(text, -1);
+		}
+	}
+
+	/** Writes the Base64 encoding of the data as text */
+	public void base64(byte[] data) throws IOException {
+		closePending();
+
+		int len = data.length;
+		int off = 0;
+		while (off < len) {
+			// Encode in runs of whole groups that fit in the buffer
+			int room = (buf.length - count) / 4 * 3;
+			if (room < 3) {
+				drain();
+				continue;
+			}
+
+			int n = Math.min(room, len - off);
+			count = encodeBase64(data, off, n, buf, count);
+			off += n;
+		}
+	}
+
+	/** Passes everything written so far on to the stream. An open start tag is
+	 * completed first, so the stream only sees whole markup.
+	 */
+	public void flush() throws IOException {
+		closePending();
+		drain();
+		os.flush();
+	}
+
+	/** Base64 encodes data into out, returning the offset after the encoding */
+	public static int encodeBase64(byte[] in, int off, int len, byte[] out, int outOff) {
+		int end = off + len;
+		int o = outOff;
+		while (off + 3 <= end) {
+			int bits = ((in[off] & 0xFF) << 16) | ((in[off + 1] & 0xFF) << 8) | (in[off + 2] & 0xFF);
+			out[o++] = BASE64[bits >>> 18];
+			out[o++] = BASE64[(bits >>> 12) & 0x3F];
+			out[o++] = BASE64[(bits >>> 6) & 0x3F];
+			out[o++] = BASE64[bits & 0x3F];
+			off += 3;
+		}
+
+		int rest = end - off;
+		if (rest > 0) {
+			int bits = (in[off] & 0xFF) << 16;
+			if (rest == 2) {
+				bits |= (in[off + 1] & 0xFF) << 8;
+			}
+
+			out[o++] = BASE64[bits >>> 18];
+			out[o++] = BASE64[(bits >>> 12) & 0x3F];
+			out[o++] = rest == 2 ? BASE64[(bits >>> 6) & 0x3F] : (byte) '=';
+			out[o++] = (byte) '=';
+		}
+
+		return o;
+	}
+
+	public static int base64Length(int len) {
+		return (len + 2) / 3 * 4;
+	}
+
+	private void closePending() throws IOException {
+		if (pending) {
+			writeByte('>');
+			pending = false;
+		}
+	}
+
+	/** Escapes, filters and encodes text in a single pass, without allocating.
+	 *
+	 * @param quote Quote character to escape inside attribute values, or -1
+	 */
+	private void writeText(String text, int quote) throws IOException {
+		int len = text.length();
+		for (int i = 0; i < len; i++) {
+			char ch = text.charAt(i);
+
+			if (ch < 0x80) {
+				if (ch >= 0x20) {
+					switch (ch) {
+					case '&':
+						write(AMP);
+						break;
+					case '<':
+						write(LT);
+						break;
+					case '>':
+						write(GT);
+						break;
+					case '"':
+						if (quote == '"') {
+							write(QUOT);
+						} else {
+							writeByte(ch);
+						}
+						break;
+					default:
+						if (count == buf.length) {
+							drain();
+						}
+						buf[count++] = (byte) ch;
+					}
+				} else if (ch == 0x9 || ch == 0xA || ch == 0xD) {
+					if (quote == -1) {
+						writeByte(ch);
+					} else {
+						writeCharRef(ch);
+					}
+				}
+				// Other control characters aren't valid XML
+			} else if (ch < 0x800) {
+				ensure(2);
+				buf[count++] = (byte) (0xC0 | (ch >> 6));
+				buf[count++] = (byte) (0x80 | (ch & 0x3F));
+			} else if (Character.isHighSurrogate(ch)) {
+				if (i + 1 < len && Character.isLowSurrogate(text.charAt(i + 1))) {
+					int cp = Character.toCodePoint(ch, text.charAt(++i));
+					ensure(4);
+					buf[count++] = (byte) (0xF0 | (cp >> 18));
+					buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[count++] = (byte) (0x80 | (cp & 0x3F));
+				}
+				// Unpaired surrogates are dropped
+			} else if (Character.isLowSurrogate(ch) || ch == 0xFFFE || ch == 0xFFFF) {
+				// Not valid XML
+			} else {
+				ensure(3);
+				buf[count++] = (byte) (0xE0 | (ch >> 12));
+				buf[count++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+				buf[count++] = (byte) (0x80 | (ch & 0x3F));
+			}
+		}
+	}
+
+	private void writeCharRef(char ch) throws IOException {
+		writeByte('&');
+		writeByte('#');
+		write(ascii(String.valueOf((int) ch)));
+		writeByte(';');
+	}
+
+	private void writeByte(int b) throws IOException {
+		if (count == buf.length) {
+			drain();
+		}
+
+		buf[count++] = (byte) b;
+	}
+
+	private void write(byte[] b) throws IOException {
+		if (b.length > buf.length - count) {
+			drain();
+
+			if (b.length > buf.length) {
+				os.write(b);
+				return;
+			}
+		}
+
+		System.arraycopy(b, 0, buf, count, b.length);
+		count += b.length;
+	}
+
+	private void ensure(int n) throws IOException {
+		if (buf.length - count < n) {
+			drain();
+		}
+	}
+
+	private void drain() throws IOException {
+		if (count > 0) {
+			os.write(buf, 0, count);
+			count = 0;
+		}
+	}
+
+	private static byte[] ascii(String text) {
+		byte[] out = new byte[text.length()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = (byte) text.charAt(i);
+		}
+
+		return out;
+	}
+
+	private static byte[] utf8(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
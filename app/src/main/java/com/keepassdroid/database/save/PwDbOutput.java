@@ -43,10 +43,24 @@ public abstract class PwDbOutput {
 		return null;
 	}
 	
+	/** Drops what is kept from one save of pm to the next, once pm is closed */
+	public static void release(PwDatabase pm) {
+		if ( pm instanceof PwDatabaseV4 ) {
+			FragmentCache.release((PwDatabaseV4)pm);
+		}
+	}
+	
 	protected PwDbOutput(OutputStream os) {
 		mOS = os;
 	}
 	
+	/** Sets where output writes to, so the content hash can be checked before
+	 * anything is opened for writing
+	 */
+	public void setOutputStream(OutputStream os) {
+		mOS = os;
+	}
+	
 	protected SecureRandom setIVs(PwDbHeader header) throws PwDbOutputException  {
 		SecureRandom random;
 		try {
@@ -65,4 +79,20 @@ public abstract class PwDbOutput {
 	
 	public abstract PwDbHeader outputHeader(OutputStream os) throws PwDbOutputException;
 	
+	/** Hash of the serialized groups and entries, with none of the per-save
+	 * randomness, so that unchanged databases can be recognized. After output
+	 * this comes from the serialization that was written, otherwise the
+	 * database is serialized for the hash first. Call discard if output
+	 * doesn't follow.
+	 */
+	public abstract byte[] getContentHash() throws PwDbOutputException;
+	
+	/** Releases what getContentHash kept for output, when output won't be
+	 * called after all.
+	 */
+	public void discard() {
+		
+	}
+	
+	
 }
\ No newline at end of file
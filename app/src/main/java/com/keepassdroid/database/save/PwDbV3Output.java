@@ -19,10 +19,10 @@
  */
 package com.keepassdroid.database.save;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.security.DigestOutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -52,6 +52,8 @@ import com.keepassdroid.stream.NullOutputStream;
 public class PwDbV3Output extends PwDbOutput {
 	private PwDatabaseV3 mPM;
 	private byte[] headerHashBlock;
+	private KdbRecordWriter body;
+	private byte[] contentHash = null;
 	
 	public PwDbV3Output(PwDatabaseV3 pm, OutputStream os) {
 		super(os);
@@ -93,10 +95,10 @@ public class PwDbV3Output extends PwDbOutput {
 		try {
 			cipher.init( Cipher.ENCRYPT_MODE, new SecretKeySpec(finalKey, "AES" ), new IvParameterSpec(header.encryptionIV) );
 			CipherOutputStream cos = new CipherOutputStream(mOS, cipher);
-			BufferedOutputStream bos = new BufferedOutputStream(cos);
-			outputPlanGroupAndEntries(bos);
-			bos.flush();
-			bos.close();
+			
+			// The groups and entries were already serialized by outputHeader
+			body.writeTo(cos);
+			cos.close();
 
 		} catch (InvalidKeyException e) {
 			throw new PwDbOutputException("Invalid key");
@@ -104,6 +106,10 @@ public class PwDbV3Output extends PwDbOutput {
 			throw new PwDbOutputException("Invalid algorithm parameter.");
 		} catch (IOException e) {
 			throw new PwDbOutputException("Failed to output final encrypted part.");
+		} finally {
+			CipherFactory.release(cipher);
+			body.wipe();
+			body = null;
 		}
 	}
 	
@@ -165,29 +171,28 @@ public class PwDbV3Output extends PwDbOutput {
 		byte[] headerHash = headerDigest.digest();
 		headerHashBlock = getHeaderHashBuffer(headerHash);
 		
-		// Output database for the purpose of calculating the content checksum
-		nos = new NullOutputStream();
-		DigestOutputStream dos = new DigestOutputStream(nos, md);
-		BufferedOutputStream bos = new BufferedOutputStream(dos);
-		try {
-			outputPlanGroupAndEntries(bos);
-			bos.flush();
-			bos.close();
-		} catch (IOException e) {
-			throw new PwDbOutputException("Failed to generate checksum.");
+		// Serialize the groups and entries once, keeping them for output(). They
+		// may have been serialized already for getContentHash.
+		if (body == null) {
+			body = serializeRecords();
+		}
+		if (useHeaderHash() && headerHashBlock != null) {
+			body.insertHeaderHash(headerHashBlock);
 		}
+		body.update(md);
 
 		header.contentsHash = md.digest();
 		
+		if (contentHash == null) {
+			MessageDigest content = newDigest();
+			body.updateContent(content);
+			contentHash = content.digest();
+		}
+		
 		// Output header for real output, containing content hash
 		pho = new PwDbHeaderOutputV3(header, os);
 		try {
-			pho.outputStart();
-			dos.on(false);
-			pho.outputContentHash();
-			dos.on(true);
-			pho.outputEnd();
-			dos.flush();
+			pho.output();
 		} catch (IOException e) {
 			throw new PwDbOutputException(e);
 		}
@@ -196,39 +201,81 @@ public class PwDbV3Output extends PwDbOutput {
 	}
 	
 	public void outputPlanGroupAndEntries(OutputStream os) throws PwDbOutputException  {
-		LEDataOutputStream los = new LEDataOutputStream(os);
-		
-		if (useHeaderHash() && headerHashBlock != null) {
-		    try {
-			    los.writeUShort(0x0000);
-			    los.writeInt(headerHashBlock.length);
-			    los.write(headerHashBlock);
-		    } catch (IOException e) {
-			    throw new PwDbOutputException("Failed to output header hash: " + e.getMessage());
-		    }
+		KdbRecordWriter records = serializeRecords();
+		try {
+			records.writeTo(os);
+		} catch (IOException e) {
+			throw new PwDbOutputException("Failed to output groups and entries: " + e.getMessage());
+		} finally {
+			records.wipe();
 		}
-		
-		// Groups
-		List<PwGroup> groups = mPM.getGroups();
-		for ( int i = 0; i < groups.size(); i++ ) {
-			PwGroupV3 pg = (PwGroupV3) groups.get(i);
-			PwGroupOutputV3 pgo = new PwGroupOutputV3(pg, os);
-			try {
-				pgo.output();
-			} catch (IOException e) {
-				throw new PwDbOutputException("Failed to output a group: " + e.getMessage());
+	}
+	
+	private KdbRecordWriter serializeRecords() throws PwDbOutputException {
+		KdbRecordWriter records = new KdbRecordWriter();
+		boolean done = false;
+		try {
+			// Groups
+			List<PwGroup> groups = mPM.getGroups();
+			for ( int i = 0; i < groups.size(); i++ ) {
+				PwGroupV3 pg = (PwGroupV3) groups.get(i);
+				try {
+					records.writeGroup(pg);
+				} catch (UnsupportedEncodingException e) {
+					throw new PwDbOutputException("Failed to output a group: " + e.getMessage());
+				}
+			}
+			
+			// Entries
+			for (int i = 0; i < mPM.entries.size(); i++ ) {
+				PwEntryV3 pe = (PwEntryV3) mPM.entries.get(i);
+				try {
+					records.writeEntry(pe);
+				} catch (UnsupportedEncodingException e) {
+					throw new PwDbOutputException("Failed to output an entry.");
+				}
 			}
+			
+			done = true;
+			return records;
+		} finally {
+			if (!done) {
+				records.wipe();
+			}
+		}
+	}
+	
+	@Override
+	public byte[] getContentHash() throws PwDbOutputException {
+		if (contentHash != null) {
+			return contentHash;
 		}
 		
-		// Entries
-		for (int i = 0; i < mPM.entries.size(); i++ ) {
-			PwEntryV3 pe = (PwEntryV3) mPM.entries.get(i);
-			PwEntryOutputV3 peo = new PwEntryOutputV3(pe, os);
-			try {
-				peo.output();
-			} catch (IOException e) {
-				throw new PwDbOutputException("Failed to output an entry.");
-			}
+		prepForOutput();
+		
+		// Kept for output(), which only adds the header hash field in front
+		body = serializeRecords();
+		
+		MessageDigest md = newDigest();
+		body.updateContent(md);
+		contentHash = md.digest();
+		
+		return contentHash;
+	}
+	
+	@Override
+	public void discard() {
+		if (body != null) {
+			body.wipe();
+			body = null;
+		}
+	}
+	
+	private static MessageDigest newDigest() throws PwDbOutputException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new PwDbOutputException("SHA-256 not implemented here.");
 		}
 	}
 	
@@ -23,12 +23,15 @@ import static com.keepassdroid.database.PwDatabaseV4XML.*;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Stack;
 import java.util.UUID;
 import java.util.zip.GZIPOutputStream;
 
@@ -36,17 +39,11 @@ import javax.crypto.Cipher;
 import javax.crypto.CipherOutputStream;
 
 import org.bouncycastle.crypto.StreamCipher;
-import org.xmlpull.v1.XmlSerializer;
-
-import android.util.Xml;
-import biz.source_code.base64Coder.Base64Coder;
 
 import com.keepassdroid.crypto.CipherFactory;
 import com.keepassdroid.crypto.PwStreamCipherFactory;
 import com.keepassdroid.database.BinaryPool;
 import com.keepassdroid.database.CrsAlgorithm;
-import com.keepassdroid.database.EntryHandler;
-import com.keepassdroid.database.GroupHandler;
 import com.keepassdroid.database.ITimeLogger;
 import com.keepassdroid.database.PwCompressionAlgorithm;
 import com.keepassdroid.database.PwDatabaseV4;
@@ -63,157 +60,330 @@ import com.keepassdroid.database.PwGroup;
 import com.keepassdroid.database.PwGroupV4;
 import com.keepassdroid.database.PwIconCustom;
 import com.keepassdroid.database.exception.PwDbOutputException;
+import com.keepassdroid.database.save.FragmentCache.BinaryRef;
+import com.keepassdroid.database.save.FragmentCache.Fragment;
+import com.keepassdroid.database.save.FragmentCache.ProtectedValue;
 import com.keepassdroid.database.security.ProtectedBinary;
 import com.keepassdroid.database.security.ProtectedString;
 import com.keepassdroid.stream.HashedBlockOutputStream;
-import com.keepassdroid.utils.EmptyUtils;
+import com.keepassdroid.stream.NullOutputStream;
+import com.keepassdroid.stream.ParallelGZIPOutputStream;
+import com.keepassdroid.stream.PipelineOutputStream;
 import com.keepassdroid.utils.MemUtil;
 import com.keepassdroid.utils.Types;
 
 public class PwDbV4Output extends PwDbOutput {
+	
+	private static final byte[] PROTECTED_VALUE_START = ascii("<" + ElemValue + " " + AttrProtected + "=\"" + ValTrue + "\">");
+	private static final byte[] PROTECTED_VALUE_EMPTY = ascii("<" + ElemValue + " " + AttrProtected + "=\"" + ValTrue + "\" />");
+	private static final byte[] VALUE_END = ascii("</" + ElemValue + ">");
+	
+	private static byte[] ascii(String text) {
+		try {
+			return text.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	PwDatabaseV4 mPM;
 	private StreamCipher randomStream;
 	private BinaryPool binPool;
-	private XmlSerializer xml;
+	private KdbxXmlWriter xml;
 	private PwDbHeaderV4 header;
 	private byte[] hashOfHeader;
+	private FragmentRecorder recorder;
+	private boolean parallelCompression = false;
+	private Cipher cipher;
+	private DigestOutputStream contentStream = null;
+	private byte[] contentHash = null;
 	
 	protected PwDbV4Output(PwDatabaseV4 pm, OutputStream os) {
 		super(os);
 		
 		mPM = pm;
 	}
+	
+	/** Compress gzip payloads in parallel chunks. The file is still a standard
+	 * gzip stream, so this doesn't change the compression algorithm.
+	 */
+	public void setParallelCompression(boolean parallel) {
+		parallelCompression = parallel;
+	}
 
 	@Override
 	public void output() throws PwDbOutputException {
 		header = (PwDbHeaderV4 ) outputHeader(mOS);
 		
 		CipherOutputStream cos = attachStreamEncryptor(header, mOS);
+		MessageDigest content = newDigest();
 		
-		OutputStream compressed;
+		PipelineOutputStream encrypt = null;
+		PipelineOutputStream hash = null;
+		ParallelGZIPOutputStream parallelGzip = null;
+		PipelineOutputStream compress = null;
 		try {
 			cos.write(header.streamStartBytes);
 			
-			HashedBlockOutputStream hashed = new HashedBlockOutputStream(cos);
+			// Each stage runs on its own thread: serialization on this one, then
+			// compression, block hashing, and finally encryption and the write.
+			encrypt = new PipelineOutputStream(cos, "Save: encrypt");
+			hash = new PipelineOutputStream(new HashedBlockOutputStream(encrypt), "Save: hash");
+			PipelineOutputStream head = hash;
 			
 			if ( mPM.compressionAlgorithm == PwCompressionAlgorithm.Gzip ) {
-				compressed = new GZIPOutputStream(hashed); 
-			} else {
-				compressed = hashed;
+				OutputStream gzip;
+				if ( parallelCompression ) {
+					parallelGzip = new ParallelGZIPOutputStream(head);
+					gzip = parallelGzip;
+				} else {
+					gzip = new GZIPOutputStream(head);
+				}
+				compress = new PipelineOutputStream(gzip, "Save: compress");
+				head = compress;
 			}
 	
-			outputDatabase(compressed);
-			compressed.close();
+			// The content hash is taken on the way, rather than serializing again for it
+			contentStream = new DigestOutputStream(head, content);
+			outputDatabase(contentStream);
+			head.close();
+			contentHash = content.digest();
 		} catch (IllegalArgumentException e) {
+			abort(compress, parallelGzip, hash, encrypt);
 			throw new PwDbOutputException(e);
 		} catch (IllegalStateException e) {
+			abort(compress, parallelGzip, hash, encrypt);
 			throw new PwDbOutputException(e);
 		} catch (IOException e) {
+			abort(compress, parallelGzip, hash, encrypt);
 			throw new PwDbOutputException(e);
+		} catch (RuntimeException e) {
+			abort(compress, parallelGzip, hash, encrypt);
+			throw e;
+		} finally {
+			// Closing or aborting the pipeline waits for every stage, so nothing
+			// uses the cipher any more
+			CipherFactory.release(cipher);
 		}
 	}
 	
-	private class GroupWriter extends GroupHandler<PwGroup> {
-		private Stack<PwGroupV4> groupStack;
+	@Override
+	public byte[] getContentHash() throws PwDbOutputException {
+		if (contentHash != null) {
+			return contentHash;
+		}
+		
+		MessageDigest md = newDigest();
+		
+		// Nothing is kept of the encrypted values, so any inner stream key will do
+		randomStream = PwStreamCipherFactory.getInstance(CrsAlgorithm.Salsa20, new byte[32]);
+		hashOfHeader = null;
 		
-		public GroupWriter(Stack<PwGroupV4> gs) {
-			groupStack = gs;
+		try {
+			contentStream = new DigestOutputStream(new NullOutputStream(), md);
+			outputDatabase(contentStream);
+			contentStream.close();
+		} catch (IllegalArgumentException e) {
+			throw new PwDbOutputException(e);
+		} catch (IllegalStateException e) {
+			throw new PwDbOutputException(e);
+		} catch (IOException e) {
+			throw new PwDbOutputException(e);
 		}
-
-		@Override
-		public boolean operate(PwGroup g) {
-			PwGroupV4 group = (PwGroupV4) g;
-			assert(group != null);
-			
-			while(true) {
-				try {
-					if (group.parent == groupStack.peek()) {
-						groupStack.push(group);
-						startGroup(group);
-						break;
-					} else {
-						groupStack.pop();
-						if (groupStack.size() <= 0) return false;
-						endGroup();
-					}
-				} catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-			}
-			
-			return true;
+		
+		return md.digest();
+	}
+	
+	private static MessageDigest newDigest() throws PwDbOutputException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new PwDbOutputException("SHA-256 not implemented here.");
 		}
 	}
 	
-	private class EntryWriter extends EntryHandler<PwEntry> {
-
-		@Override
-		public boolean operate(PwEntry e) {
-			PwEntryV4 entry = (PwEntryV4) e;
-			assert(entry != null);
-			
-			try {
-				writeEntry(entry, false);
-			} catch (IOException ex) {
-				throw new RuntimeException(ex);
-			}
-			
-			return true;
+	/** Protected values are encrypted differently on every save, so the content
+	 * hash is given the value itself while its encryption is written.
+	 */
+	private void pauseContentHash(byte[] value) {
+		contentStream.on(false);
+		if (value != null) {
+			contentStream.getMessageDigest().update(value);
+		}
+	}
+	
+	private void resumeContentHash() {
+		contentStream.on(true);
+	}
+	
+	/** Stops the pipeline from the head down. No stage is closed, so neither
+	 * the gzip trailer nor the final cipher block gets written, and a failed
+	 * save can not pass for a complete file. Stages that were never built are
+	 * null.
+	 */
+	private void abort(PipelineOutputStream compress, ParallelGZIPOutputStream parallelGzip,
+			PipelineOutputStream hash, PipelineOutputStream encrypt) {
+		if ( compress != null ) {
+			compress.abort();
+		}
+		
+		if ( parallelGzip != null ) {
+			parallelGzip.abort();
 		}
 		
+		if ( hash != null ) {
+			hash.abort();
+		}
+		
+		if ( encrypt != null ) {
+			encrypt.abort();
+		}
 	}
 	
 	private void outputDatabase(OutputStream os) throws IllegalArgumentException, IllegalStateException, IOException {
 		binPool = new BinaryPool((PwGroupV4)mPM.rootGroup);
 		
-		xml = Xml.newSerializer();
+		FragmentCache cache = FragmentCache.getInstance(mPM);
+		// Saves of the same database may come from more than one thread
+		synchronized (cache) {
+			cache.validate(getCacheSignature());
+			recorder = new FragmentRecorder(os, cache, new SpliceRenderer());
+			
+			xml = new KdbxXmlWriter(recorder);
+			xml.startDocument();
+			
+			xml.startTag(ElemDocNode);
+			
+			writeMeta();
+			
+			xml.startTag(ElemRoot);
+			writeGroup((PwGroupV4) mPM.rootGroup);
+			
+			writeList(ElemDeletedObjects, mPM.deletedObjects);
+			
+			xml.endTag(ElemRoot);
+			
+			xml.endTag(ElemDocNode);
+			xml.endDocument();
+			
+			recorder.finish();
+		}
+	}
+	
+	/** Settings which change how groups are serialized */
+	private String getCacheSignature() {
+		MemoryProtectionConfig mp = mPM.memoryProtection;
+		return "" + mPM.compressionAlgorithm + mp.protectTitle + mp.protectUserName + mp.protectPassword + mp.protectUrl + mp.protectNotes;
+	}
+	
+	/** Writes a group subtree, replaying cached fragments where nothing changed */
+	private void writeGroup(PwGroupV4 group) throws IllegalArgumentException, IllegalStateException, IOException {
+		long revision = group.getRevision();
 		
-		xml.setOutput(os, "UTF-8");
-		xml.startDocument("UTF-8", true);
+		// Everything the serializer buffered belongs to the enclosing fragment
+		xml.flush();
 		
-		xml.startTag(null, ElemDocNode);
+		Fragment cached = recorder.getCached(group, revision);
+		if (cached != null) {
+			recorder.replay(cached);
+			return;
+		}
 		
-		writeMeta();
+		recorder.begin(group, revision);
 		
-		PwGroupV4 root = (PwGroupV4) mPM.rootGroup;
-		xml.startTag(null, ElemRoot);
-		startGroup(root);
-		Stack<PwGroupV4> groupStack = new Stack<PwGroupV4>();
-		groupStack.push(root);
+		startGroup(group);
 		
-		if (!root.preOrderTraverseTree(new GroupWriter(groupStack), new EntryWriter())) throw new RuntimeException("Writing groups failed");
+		for (PwEntry entry : group.childEntries) {
+			writeGroupEntry((PwEntryV4) entry);
+		}
 		
-		while (groupStack.size() > 1) {
-			xml.endTag(null, ElemGroup);
-			groupStack.pop();
+		for (PwGroup child : group.childGroups) {
+			writeGroup((PwGroupV4) child);
 		}
 		
 		endGroup();
 		
-		writeList(ElemDeletedObjects, mPM.deletedObjects);
+		xml.flush();
+		recorder.end();
+	}
+	
+	private void writeGroupEntry(PwEntryV4 entry) throws IllegalArgumentException, IllegalStateException, IOException {
+		// History items aren't part of the entry's own revision. Revisions only
+		// grow, so a change to any of them raises the latest one.
+		long revision = entry.getRevision();
+		for (PwEntryV4 hist : entry.history) {
+			revision = Math.max(revision, hist.getRevision());
+		}
+		
+		xml.flush();
 		
-		xml.endTag(null, ElemRoot);
+		Fragment cached = recorder.getCached(entry, revision);
+		if (cached != null) {
+			recorder.replay(cached);
+			return;
+		}
 		
-		xml.endTag(null, ElemDocNode);
-		xml.endDocument();
+		recorder.begin(entry, revision);
+		writeEntry(entry, false);
+		xml.flush();
+		recorder.end();
+	}
+	
+	private class SpliceRenderer implements FragmentRecorder.SpliceWriter {
 		
+		@Override
+		public void writeSplice(Object splice, OutputStream os) throws IOException {
+			if (splice instanceof ProtectedValue) {
+				byte[] data = ((ProtectedValue) splice).data;
+				
+				int valLength = data.length;
+				if (valLength > 0) {
+					byte[] encoded = new byte[valLength];
+					randomStream.processBytes(data, 0, valLength, encoded, 0);
+					
+					byte[] text = new byte[KdbxXmlWriter.base64Length(valLength)];
+					KdbxXmlWriter.encodeBase64(encoded, 0, valLength, text, 0);
+					
+					os.write(PROTECTED_VALUE_START);
+					pauseContentHash(data);
+					os.write(text);
+					resumeContentHash();
+					os.write(VALUE_END);
+				} else {
+					os.write(PROTECTED_VALUE_EMPTY);
+				}
+			} else if (splice instanceof BinaryRef) {
+				String ref = binPool.poolFind(((BinaryRef) splice).binary);
+				if (ref == null) {
+					throw new IOException("Binary missing from the pool.");
+				}
+				
+				os.write(("<" + ElemValue + " " + AttrRef + "=\"" + ref + "\" />").getBytes("UTF-8"));
+			} else {
+				throw new IOException("Unknown splice point.");
+			}
+		}
 	}
 	
 	private void writeMeta() throws IllegalArgumentException, IllegalStateException, IOException {
-		xml.startTag(null, ElemMeta);
+		xml.startTag(ElemMeta);
 		
 		writeObject(ElemGenerator, mPM.localizedAppName);
 		
 		if (hashOfHeader != null) {
-			writeObject(ElemHeaderHash, String.valueOf(Base64Coder.encode(hashOfHeader)));
+			// Differs on every save, so it is left out of the content hash
+			xml.flush();
+			pauseContentHash(null);
+			writeObject(ElemHeaderHash, hashOfHeader);
+			xml.flush();
+			resumeContentHash();
 		}
 		
-		writeObject(ElemDbName, mPM.name, true);
+		writeObject(ElemDbName, mPM.name);
 		writeObject(ElemDbNameChanged, mPM.nameChanged);
-		writeObject(ElemDbDesc, mPM.description, true);
+		writeObject(ElemDbDesc, mPM.description);
 		writeObject(ElemDbDescChanged, mPM.descriptionChanged);
-		writeObject(ElemDbDefaultUser, mPM.defaultUserName, true);
+		writeObject(ElemDbDefaultUser, mPM.defaultUserName);
 		writeObject(ElemDbDefaultUserChanged, mPM.defaultUserNameChanged);
 		writeObject(ElemDbMntncHistoryDays, mPM.maintenanceHistoryDays);
 		writeObject(ElemDbColor, mPM.color);
@@ -239,12 +409,11 @@ public class PwDbV4Output extends PwDbOutput {
 		writeBinPool();
 		writeList(ElemCustomData, mPM.customData);
 		
-		xml.endTag(null, ElemMeta);
+		xml.endTag(ElemMeta);
 		
 	}
 	
 	private CipherOutputStream attachStreamEncryptor(PwDbHeaderV4 header, OutputStream os) throws PwDbOutputException {
-		Cipher cipher;
 		try {
 			mPM.makeFinalKey(header.masterSeed, header.transformSeed, (int)mPM.numKeyEncRounds);
 			cipher = CipherFactory.getInstance(mPM.dataCipher, Cipher.ENCRYPT_MODE, mPM.finalKey, header.encryptionIV);
@@ -295,7 +464,7 @@ public class PwDbV4Output extends PwDbOutput {
 	}
 	
 	private void startGroup(PwGroupV4 group) throws IllegalArgumentException, IllegalStateException, IOException {
-		xml.startTag(null, ElemGroup);
+		xml.startTag(ElemGroup);
 		writeObject(ElemUuid, group.uuid);
 		writeObject(ElemName, group.name);
 		writeObject(ElemNotes, group.notes);
@@ -315,13 +484,13 @@ public class PwDbV4Output extends PwDbOutput {
 	}
 	
 	private void endGroup() throws IllegalArgumentException, IllegalStateException, IOException {
-		xml.endTag(null, ElemGroup);
+		xml.endTag(ElemGroup);
 	}
 	
 	private void writeEntry(PwEntryV4 entry, boolean isHistory) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(entry != null);
 		
-		xml.startTag(null, ElemEntry);
+		xml.startTag(ElemEntry);
 		
 		writeObject(ElemUuid, entry.uuid);
 		writeObject(ElemIcon, entry.icon.iconId);
@@ -347,76 +516,81 @@ public class PwDbV4Output extends PwDbOutput {
 			assert(entry.history.size() == 0);
 		}
 		
-		xml.endTag(null, ElemEntry);
+		xml.endTag(ElemEntry);
 	}
 	
 
 	private void writeObject(String key, ProtectedBinary value, boolean allowRef) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(key != null && value != null);
 		
-		xml.startTag(null, ElemBinary);
-		xml.startTag(null, ElemKey);
-		xml.text(safeXmlString(key));
-		xml.endTag(null, ElemKey);
+		xml.startTag(ElemBinary);
+		xml.startTag(ElemKey);
+		xml.text(key);
+		xml.endTag(ElemKey);
 		
-		xml.startTag(null, ElemValue);
 		String strRef = null;
 		if (allowRef) {
 			strRef = binPool.poolFind(value);
 		}
 		
+		// Pool ids and protected values are different on every save, so these
+		// go through the recorder as splice points.
 		if (strRef != null) {
-			xml.attribute(null, AttrRef, strRef);
+			xml.flush();
+			recorder.splice(new BinaryRef(value));
+		}
+		else if (value.isProtected()) {
+			xml.flush();
+			recorder.splice(new ProtectedValue(value.readData()));
 		}
 		else {
+			xml.startTag(ElemValue);
 			subWriteValue(value);
+			xml.endTag(ElemValue);
 		}
-		xml.endTag(null, ElemValue);
 		
-		xml.endTag(null, ElemBinary);
+		xml.endTag(ElemBinary);
 	}
 	
 	private void subWriteValue(ProtectedBinary value) throws IllegalArgumentException, IllegalStateException, IOException {
 		if (value.isProtected()) {
-			xml.attribute(null, AttrProtected, ValTrue);
+			xml.attribute(AttrProtected, ValTrue);
 			
 			int valLength = value.length();
 			if (valLength > 0) {
+				byte[] data = value.readData();
 				byte[] encoded = new byte[valLength];
-				randomStream.processBytes(value.getData(), 0, valLength, encoded, 0);
+				randomStream.processBytes(data, 0, valLength, encoded, 0);
 				
-				xml.text(String.valueOf(Base64Coder.encode(encoded)));
+				xml.flush();
+				pauseContentHash(data);
+				xml.base64(encoded);
+				xml.flush();
+				resumeContentHash();
 			}
 			
 		} else {
 			if (mPM.compressionAlgorithm == PwCompressionAlgorithm.Gzip) {
-				xml.attribute(null, AttrCompressed, ValTrue);
-				byte[] raw = value.getData();
-				byte[] compressed = MemUtil.compress(raw);
-				xml.text(String.valueOf(Base64Coder.encode(compressed)));
+				xml.attribute(AttrCompressed, ValTrue);
+				byte[] compressed = value.getCompressedData();
+				if (compressed == null) {
+					compressed = MemUtil.compress(value.readData());
+				}
+				xml.base64(compressed);
 			} else {
-				byte[] raw = value.getData();
-				xml.text(String.valueOf(Base64Coder.encode(raw)));
+				byte[] raw = value.readData();
+				xml.base64(raw);
 			}
 			
 		}
 	}
 	
-	private void writeObject(String name, String value, boolean filterXmlChars) throws IllegalArgumentException, IllegalStateException, IOException {
+	private void writeObject(String name, String value) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(name != null && value != null);
 		
-		xml.startTag(null, name);
-		
-		if (filterXmlChars) {
-			value = safeXmlString(value);
-		}
-		
+		xml.startTag(name);
 		xml.text(value);
-		xml.endTag(null, name);
-	}
-	
-	private void writeObject(String name, String value) throws IllegalArgumentException, IllegalStateException, IOException {
-		writeObject(name, value, false);
+		xml.endTag(name);
 	}
 	
 	private void writeObject(String name, Date value) throws IllegalArgumentException, IllegalStateException, IOException {
@@ -443,41 +617,46 @@ public class PwDbV4Output extends PwDbOutput {
 	}
 	
 	private void writeObject(String name, UUID uuid) throws IllegalArgumentException, IllegalStateException, IOException {
-		byte[] data = Types.UUIDtoBytes(uuid);
-		writeObject(name, String.valueOf(Base64Coder.encode(data)));
+		writeObject(name, Types.UUIDtoBytes(uuid));
+	}
+	
+	private void writeObject(String name, byte[] data) throws IllegalArgumentException, IllegalStateException, IOException {
+		xml.startTag(name);
+		xml.base64(data);
+		xml.endTag(name);
 	}
 	
 	private void writeObject(String name, String keyName, String keyValue, String valueName, String valueValue) throws IllegalArgumentException, IllegalStateException, IOException {
-		xml.startTag(null, name);
+		xml.startTag(name);
 		
-		xml.startTag(null, keyName);
-		xml.text(safeXmlString(keyValue));
-		xml.endTag(null, keyName);
+		xml.startTag(keyName);
+		xml.text(keyValue);
+		xml.endTag(keyName);
 		
-		xml.startTag(null, valueName);
-		xml.text(safeXmlString(valueValue));
-		xml.endTag(null, valueName);
+		xml.startTag(valueName);
+		xml.text(valueValue);
+		xml.endTag(valueName);
 		
-		xml.endTag(null, name);
+		xml.endTag(name);
 	}
 	
 	private void writeList(String name, AutoType autoType) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(name != null && autoType != null);
 		
-		xml.startTag(null, name);
+		xml.startTag(name);
 		
 		writeObject(ElemAutoTypeEnabled, autoType.enabled);
 		writeObject(ElemAutoTypeObfuscation, autoType.obfuscationOptions);
 		
 		if (autoType.defaultSequence.length() > 0) {
-			writeObject(ElemAutoTypeDefaultSeq, autoType.defaultSequence, true);
+			writeObject(ElemAutoTypeDefaultSeq, autoType.defaultSequence);
 		}
 		
 		for (Entry<String, String> pair : autoType.entrySet()) {
 			writeObject(ElemAutoTypeItem, ElemWindow, pair.getKey(), ElemKeystrokeSequence, pair.getValue());
 		}
 		
-		xml.endTag(null, name);
+		xml.endTag(name);
 		
 	}
 
@@ -494,12 +673,11 @@ public class PwDbV4Output extends PwDbOutput {
 	private void writeObject(String key, ProtectedString value, boolean isEntryString) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(key !=null && value != null);
 		
-		xml.startTag(null, ElemString);
-		xml.startTag(null, ElemKey);
-		xml.text(safeXmlString(key));
-		xml.endTag(null, ElemKey);
+		xml.startTag(ElemString);
+		xml.startTag(ElemKey);
+		xml.text(key);
+		xml.endTag(ElemKey);
 		
-		xml.startTag(null, ElemValue);
 		boolean protect = value.isProtected();
 		if (isEntryString) {
 			if (key.equals(PwDefsV4.TITLE_FIELD)) {
@@ -520,35 +698,28 @@ public class PwDbV4Output extends PwDbOutput {
 		}
 		
 		if (protect) {
-			xml.attribute(null, AttrProtected, ValTrue);
-			
-			byte[] data = value.toString().getBytes("UTF-8");
-			int valLength = data.length;
-			
-			if (valLength > 0) {
-				byte[] encoded = new byte[valLength];
-				randomStream.processBytes(data, 0, valLength, encoded, 0);
-				xml.text(String.valueOf(Base64Coder.encode(encoded)));
-			}
+			xml.flush();
+			recorder.splice(new ProtectedValue(value.getUtf8()));
 		}
 		else {
-			xml.text(safeXmlString(value.toString()));
+			xml.startTag(ElemValue);
+			xml.text(value.toString());
+			xml.endTag(ElemValue);
 		}
 		
-		xml.endTag(null, ElemValue);
-		xml.endTag(null, ElemString);
+		xml.endTag(ElemString);
 		
 	}
 
 	private void writeObject(String name, PwDeletedObject value) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(name != null && value != null);
 		
-		xml.startTag(null, name);
+		xml.startTag(name);
 		
 		writeObject(ElemUuid, value.uuid);
 		writeObject(ElemDeletionTime, value.getDeletionTime());
 		
-		xml.endTag(null, name);
+		xml.endTag(name);
 	}
 
 	private void writeList(Map<String, ProtectedBinary> binaries) throws IllegalArgumentException, IllegalStateException, IOException {
@@ -563,20 +734,20 @@ public class PwDbV4Output extends PwDbOutput {
 	private void writeList(String name, List<PwDeletedObject> value) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(name != null && value != null);
 		
-		xml.startTag(null, name);
+		xml.startTag(name);
 		
 		for (PwDeletedObject pdo : value) {
 			writeObject(ElemDeletedObject, pdo);
 		}
 		
-		xml.endTag(null, name);
+		xml.endTag(name);
 		
 	}
 
 	private void writeList(String name, MemoryProtectionConfig value) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(name != null && value != null);
 		
-		xml.startTag(null, name);
+		xml.startTag(name);
 		
 		writeObject(ElemProtTitle, value.protectTitle);
 		writeObject(ElemProtUserName, value.protectUserName);
@@ -584,28 +755,28 @@ public class PwDbV4Output extends PwDbOutput {
 		writeObject(ElemProtURL, value.protectUrl);
 		writeObject(ElemProtNotes, value.protectNotes);
 		
-		xml.endTag(null, name);
+		xml.endTag(name);
 		
 	}
 	
 	private void writeList(String name, Map<String, String> customData) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(name != null && customData != null);
 		
-		xml.startTag(null, name);
+		xml.startTag(name);
 		
 		for (Entry<String, String> pair : customData.entrySet()) {
 			writeObject(ElemStringDictExItem, ElemKey, pair.getKey(), ElemValue, pair.getValue());
 			  
 		}
 		
-		xml.endTag(null, name);
+		xml.endTag(name);
 		
 	}
 	
 	private void writeList(String name, ITimeLogger it) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(name != null && it != null);
 		
-		xml.startTag(null, name);
+		xml.startTag(name);
 		
 		writeObject(ElemLastModTime, it.getLastModificationTime());
 		writeObject(ElemCreationTime, it.getCreationTime());
@@ -615,19 +786,19 @@ public class PwDbV4Output extends PwDbOutput {
 		writeObject(ElemUsageCount, it.getUsageCount());
 		writeObject(ElemLocationChanged, it.getLocationChanged());
 		
-		xml.endTag(null, name);
+		xml.endTag(name);
 	}
 
 	private void writeList(String name, List<PwEntryV4> value, boolean isHistory) throws IllegalArgumentException, IllegalStateException, IOException {
 		assert(name != null && value != null);
 		
-		xml.startTag(null, name);
+		xml.startTag(name);
 		
 		for (PwEntryV4 entry : value) {
 			writeEntry(entry, isHistory);
 		}
 		
-		xml.endTag(null, name);
+		xml.endTag(name);
 		
 	}
 
@@ -635,58 +806,35 @@ public class PwDbV4Output extends PwDbOutput {
 		List<PwIconCustom> customIcons = mPM.customIcons;
 		if (customIcons.size() == 0) return;
 		
-		xml.startTag(null, ElemCustomIcons);
+		xml.startTag(ElemCustomIcons);
 		
 		for (PwIconCustom icon : customIcons) {
-			xml.startTag(null, ElemCustomIconItem);
+			xml.startTag(ElemCustomIconItem);
 			
 			writeObject(ElemCustomIconItemID, icon.uuid);
-			writeObject(ElemCustomIconItemData, String.valueOf(Base64Coder.encode(icon.imageData)));
+			writeObject(ElemCustomIconItemData, icon.imageData);
 			
-			xml.endTag(null, ElemCustomIconItem);
+			xml.endTag(ElemCustomIconItem);
 		}
 		
-		xml.endTag(null, ElemCustomIcons);
+		xml.endTag(ElemCustomIcons);
 	}
 	
 	private void writeBinPool() throws IllegalArgumentException, IllegalStateException, IOException {
-		xml.startTag(null, ElemBinaries);
+		xml.startTag(ElemBinaries);
 		
 		for (Entry<String, ProtectedBinary> pair : binPool.entrySet()) {
-			xml.startTag(null, ElemBinary);
-			xml.attribute(null, AttrId, pair.getKey());
+			xml.startTag(ElemBinary);
+			xml.attribute(AttrId, pair.getKey());
 			
 			subWriteValue(pair.getValue());
 			
-			xml.endTag(null, ElemBinary);
+			xml.endTag(ElemBinary);
 			
 		}
 		
-		xml.endTag(null, ElemBinaries);
-		
-	}
-
-	private String safeXmlString(String text) {
-		if (EmptyUtils.isNullOrEmpty(text)) {
-			return text;
-		}
-		
-		StringBuilder sb = new StringBuilder();
-		
-		char ch;
-		for (int i = 0; i < text.length(); i++) {
-			ch = text.charAt(i);
-			
-			if(((ch >= 0x20) && (ch <= 0xD7FF)) ||              
-			        (ch == 0x9) || (ch == 0xA) || (ch == 0xD) ||
-			        ((ch >= 0xE000) && (ch <= 0xFFFD))) {
-				
-				sb.append(ch);
-			}
-
-		}
+		xml.endTag(ElemBinaries);
 		
-		return sb.toString();
 	}
 
 }
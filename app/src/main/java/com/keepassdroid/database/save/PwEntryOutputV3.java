@@ -65,9 +65,21 @@ public class PwEntryOutputV3 {
 		mPE = pe;
 		mOS = os;
 	}
+	
+	/** Output a series of entries to the stream, with {@link #output(PwEntryV3)}
+	 * @param os
+	 */
+	public PwEntryOutputV3(OutputStream os) {
+		this(null, os);
+	}
 
-	//NOTE: Need be to careful about using ints.  The actual type written to file is a unsigned int
 	public void output() throws IOException {
+		output(mPE);
+	}
+
+	//NOTE: Need be to careful about using ints.  The actual type written to file is a unsigned int
+	public void output(PwEntryV3 pe) throws IOException {
+		mPE = pe;
 		
 		outputBytes += 134;  // Length of fixed size fields
 		
@@ -58,8 +58,21 @@ public class PwGroupOutputV3 {
 		mPG = pg;
 		mOS = os;
 	}
+	
+	/** Output a series of groups to the stream, with {@link #output(PwGroupV3)}
+	 * @param os
+	 */
+	public PwGroupOutputV3(OutputStream os) {
+		this(null, os);
+	}
 
 	public void output() throws IOException {
+		output(mPG);
+	}
+
+	public void output(PwGroupV3 pg) throws IOException {
+		mPG = pg;
+		
 		//NOTE: Need be to careful about using ints.  The actual type written to file is a unsigned int, but most values can't be greater than 2^31, so it probably doesn't matter.
 
 		// Group ID
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.database.save;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+
+import com.keepassdroid.database.ITimeLogger;
+import com.keepassdroid.database.PwDatabaseV4;
+import com.keepassdroid.database.PwDatabaseV4.MemoryProtectionConfig;
+import com.keepassdroid.database.PwDeletedObject;
+import com.keepassdroid.database.PwEntry;
+import com.keepassdroid.database.PwEntryV4;
+import com.keepassdroid.database.PwEntryV4.AutoType;
+import com.keepassdroid.database.PwGroup;
+import com.keepassdroid.database.PwGroupV4;
+import com.keepassdroid.database.PwIconCustom;
+import com.keepassdroid.database.security.ProtectedBinary;
+import com.keepassdroid.database.security.ProtectedString;
+
+/** Writes the contents of a .kdbx database in a compact binary form, read back
+ * by SnapshotInputV4. Strings and byte arrays are length prefixed, times are
+ * milliseconds since the epoch, and attachments are stored as held in memory.
+ * Every attachment is written once, and referred to by its index.
+ */
+public class SnapshotOutputV4 {
+	public static final int FLAG_PROTECTED = 1;
+	public static final int FLAG_COMPRESSED = 2;
+	
+	public static final long NULL_DATE = Long.MIN_VALUE;
+	public static final int NULL_BOOLEAN = 2;
+	
+	private PwDatabaseV4 db;
+	private DataOutputStream out;
+	private Map<ProtectedBinary, Integer> binaries = new IdentityHashMap<ProtectedBinary, Integer>();
+	
+	public SnapshotOutputV4(PwDatabaseV4 db, OutputStream os) {
+		this.db = db;
+		out = new DataOutputStream(os);
+	}
+	
+	public void output() throws IOException {
+		writeMeta();
+		writeBinaries();
+		writeGroup((PwGroupV4) db.rootGroup);
+		
+		out.writeInt(db.deletedObjects.size());
+		for (PwDeletedObject deleted : db.deletedObjects) {
+			writeUuid(deleted.uuid);
+			writeDate(deleted.getDeletionTime());
+		}
+		
+		out.flush();
+	}
+	
+	private void writeMeta() throws IOException {
+		writeString(db.name);
+		writeDate(db.nameChanged);
+		writeString(db.description);
+		writeDate(db.descriptionChanged);
+		writeString(db.defaultUserName);
+		writeDate(db.defaultUserNameChanged);
+		out.writeLong(db.maintenanceHistoryDays);
+		writeString(db.color);
+		writeDate(db.keyLastChanged);
+		out.writeLong(db.keyChangeRecDays);
+		out.writeLong(db.keyChangeForceDays);
+		
+		MemoryProtectionConfig mp = db.memoryProtection;
+		out.writeBoolean(mp.protectTitle);
+		out.writeBoolean(mp.protectUserName);
+		out.writeBoolean(mp.protectPassword);
+		out.writeBoolean(mp.protectUrl);
+		out.writeBoolean(mp.protectNotes);
+		out.writeBoolean(mp.autoEnableVisualHiding);
+		
+		out.writeBoolean(db.recycleBinEnabled);
+		writeUuid(db.recycleBinUUID);
+		writeDate(db.recycleBinChanged);
+		writeUuid(db.entryTemplatesGroup);
+		writeDate(db.entryTemplatesGroupChanged);
+		out.writeInt(db.historyMaxItems);
+		out.writeLong(db.historyMaxSize);
+		writeUuid(db.lastSelectedGroup);
+		writeUuid(db.lastTopVisibleGroup);
+		
+		out.writeInt(db.customIcons.size());
+		for (PwIconCustom icon : db.customIcons) {
+			writeUuid(icon.uuid);
+			writeBytes(icon.imageData);
+		}
+		
+		out.writeInt(db.customData.size());
+		for (Entry<String, String> pair : db.customData.entrySet()) {
+			writeString(pair.getKey());
+			writeString(pair.getValue());
+		}
+	}
+	
+	private void writeBinaries() throws IOException {
+		List<ProtectedBinary> list = new ArrayList<ProtectedBinary>();
+		collectBinaries((PwGroupV4) db.rootGroup, list);
+		
+		out.writeInt(list.size());
+		for (ProtectedBinary binary : list) {
+			int flags = binary.isProtected() ? FLAG_PROTECTED : 0;
+			
+			byte[] compressed = binary.getCompressedData();
+			if (compressed != null) {
+				out.writeByte(flags | FLAG_COMPRESSED);
+				out.writeInt(binary.length());
+				writeBytes(binary.getHash());
+				writeBytes(compressed);
+			} else {
+				out.writeByte(flags);
+				writeBytes(binary.readData());
+			}
+		}
+	}
+	
+	private void collectBinaries(PwGroupV4 group, List<ProtectedBinary> list) {
+		for (PwEntry entry : group.childEntries) {
+			PwEntryV4 entryV4 = (PwEntryV4) entry;
+			collectBinaries(entryV4, list);
+			
+			for (PwEntryV4 hist : entryV4.history) {
+				collectBinaries(hist, list);
+			}
+		}
+		
+		for (PwGroup child : group.childGroups) {
+			collectBinaries((PwGroupV4) child, list);
+		}
+	}
+	
+	private void collectBinaries(PwEntryV4 entry, List<ProtectedBinary> list) {
+		for (ProtectedBinary binary : entry.binaries.values()) {
+			if (!binaries.containsKey(binary)) {
+				binaries.put(binary, list.size());
+				list.add(binary);
+			}
+		}
+	}
+	
+	private void writeGroup(PwGroupV4 group) throws IOException {
+		writeUuid(group.uuid);
+		writeString(group.name);
+		writeString(group.notes);
+		out.writeInt(group.icon.iconId);
+		writeUuid(group.customIcon.uuid);
+		writeTimes(group);
+		out.writeBoolean(group.isExpanded);
+		writeString(group.defaultAutoTypeSequence);
+		writeBoolean(group.enableAutoType);
+		writeBoolean(group.enableSearching);
+		writeUuid(group.lastTopVisibleEntry);
+		
+		out.writeInt(group.childEntries.size());
+		for (PwEntry entry : group.childEntries) {
+			writeEntry((PwEntryV4) entry);
+			
+			List<PwEntryV4> history = ((PwEntryV4) entry).history;
+			out.writeInt(history.size());
+			for (PwEntryV4 hist : history) {
+				writeEntry(hist);
+			}
+		}
+		
+		out.writeInt(group.childGroups.size());
+		for (PwGroup child : group.childGroups) {
+			writeGroup((PwGroupV4) child);
+		}
+	}
+	
+	private void writeEntry(PwEntryV4 entry) throws IOException {
+		writeUuid(entry.uuid);
+		out.writeInt(entry.icon.iconId);
+		writeUuid(entry.customIcon.uuid);
+		writeString(entry.foregroundColor);
+		writeString(entry.backgroupColor);
+		writeString(entry.overrideURL);
+		writeString(entry.tags);
+		writeTimes(entry);
+		
+		out.writeInt(entry.strings.size());
+		for (Entry<String, ProtectedString> pair : entry.strings.entrySet()) {
+			ProtectedString value = pair.getValue();
+			
+			writeString(pair.getKey());
+			out.writeBoolean(value.isProtected());
+			writeString(value.toString());
+		}
+		
+		out.writeInt(entry.binaries.size());
+		for (Entry<String, ProtectedBinary> pair : entry.binaries.entrySet()) {
+			writeString(pair.getKey());
+			out.writeInt(binaries.get(pair.getValue()));
+		}
+		
+		AutoType autoType = entry.autoType;
+		out.writeBoolean(autoType.enabled);
+		out.writeLong(autoType.obfuscationOptions);
+		writeString(autoType.defaultSequence);
+		
+		out.writeInt(autoType.size());
+		for (Entry<String, String> pair : autoType.entrySet()) {
+			writeString(pair.getKey());
+			writeString(pair.getValue());
+		}
+	}
+	
+	private void writeTimes(ITimeLogger it) throws IOException {
+		writeDate(it.getLastModificationTime());
+		writeDate(it.getCreationTime());
+		writeDate(it.getLastAccessTime());
+		writeDate(it.getExpiryTime());
+		out.writeBoolean(it.expires());
+		out.writeLong(it.getUsageCount());
+		writeDate(it.getLocationChanged());
+	}
+	
+	private void writeString(String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		
+		writeBytes(value.getBytes("UTF-8"));
+	}
+	
+	private void writeBytes(byte[] data) throws IOException {
+		out.writeInt(data.length);
+		out.write(data);
+	}
+	
+	private void writeDate(Date date) throws IOException {
+		out.writeLong(date == null ? NULL_DATE : date.getTime());
+	}
+	
+	private void writeBoolean(Boolean value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL_BOOLEAN);
+		} else {
+			out.writeByte(value ? 1 : 0);
+		}
+	}
+	
+	private void writeUuid(UUID uuid) throws IOException {
+		if (uuid == null) {
+			uuid = PwDatabaseV4.UUID_ZERO;
+		}
+		
+		out.writeLong(uuid.getMostSignificantBits());
+		out.writeLong(uuid.getLeastSignificantBits());
+	}
+}
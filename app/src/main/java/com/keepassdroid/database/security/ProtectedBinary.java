@@ -19,20 +19,47 @@
  */
 package com.keepassdroid.database.security;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import com.keepassdroid.utils.MemUtil;
 
 public class ProtectedBinary {
 	
 	public final static ProtectedBinary EMPTY = new ProtectedBinary();
 	
+	/** Reads the contents again from wherever they are stored */
+	public interface Source {
+		public byte[] read() throws IOException;
+	}
+	
 	private byte[] data;
+	// Gzip compressed contents, kept instead of data to save memory
+	private byte[] compressed = null;
+	// Contents left in the database file, read again when used
+	private Source source = null;
+	private boolean sourceCompressed;
+	// Last contents inflated or fetched, until the memory is needed elsewhere
+	private SoftReference<byte[]> unpacked = null;
+	private int length;
 	private boolean protect;
+	private byte[] hash = null;
 	
 	public boolean isProtected() {
 		return protect;
 	}
 	
 	public int length() {
+		if (compressed != null || source != null) {
+			return length;
+		}
+		
 		if (data == null) {
 			return 0;
 		}
@@ -51,15 +78,186 @@ public class ProtectedBinary {
 		
 	}
 	
+	private ProtectedBinary(boolean enableProtection, byte[] compressed, int length, byte[] hash) {
+		protect = enableProtection;
+		this.compressed = compressed;
+		this.length = length;
+		this.hash = hash;
+	}
+	
+	/** Keeps only the gzip compressed contents in memory, they are inflated
+	 * again on use. The contents are checked here, so a
+	 * corrupt stream is reported while loading rather than on use.
+	 */
+	public static ProtectedBinary fromCompressed(boolean enableProtection, byte[] gzipData) throws IOException {
+		MessageDigest md = getDigest();
+		InputStream is = new GZIPInputStream(new ByteArrayInputStream(gzipData));
+		
+		byte[] buf = new byte[8192];
+		long length = 0;
+		int read;
+		while ((read = is.read(buf)) != -1) {
+			md.update(buf, 0, read);
+			length += read;
+		}
+		is.close();
+		
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Binary is too large.");
+		}
+		
+		return new ProtectedBinary(enableProtection, gzipData, (int) length, md.digest());
+	}
+
+	/** Restores a compressed binary whose length and hash are already known,
+	 * without inflating it.
+	 */
+	public static ProtectedBinary fromCompressed(boolean enableProtection, byte[] gzipData, int length, byte[] hash) {
+		return new ProtectedBinary(enableProtection, gzipData, length, hash);
+	}
+	
+	/** Holds nothing in memory, the contents are fetched from source when
+	 * used and checked against the hash taken while loading.
+	 * 
+	 * @param compressed whether source returns gzip compressed contents
+	 */
+	public static ProtectedBinary fromSource(boolean enableProtection, boolean compressed,
+			int length, byte[] hash, Source source) {
+		ProtectedBinary pb = new ProtectedBinary(enableProtection, null, length, hash);
+		pb.source = source;
+		pb.sourceCompressed = compressed;
+		return pb;
+	}
+	
+	/** Returns a copy holding compressed contents when that takes up less
+	 * memory, otherwise this binary.
+	 */
+	public ProtectedBinary compact() throws IOException {
+		if (compressed != null || source != null || data == null || data.length == 0) {
+			return this;
+		}
+		
+		byte[] gzipData = MemUtil.compress(data);
+		if (gzipData.length >= data.length) {
+			return this;
+		}
+		
+		return new ProtectedBinary(protect, gzipData, data.length, getHash());
+	}
+	
+	public boolean isCompressed() {
+		return compressed != null;
+	}
+	
+	/** Gzip compressed contents, or null when they are held uncompressed */
+	public byte[] getCompressedData() {
+		return compressed;
+	}
+	
+	/** Whether the contents are left in the database file */
+	public boolean isDetached() {
+		return source != null;
+	}
+	
+	/** Approximate number of bytes held in memory for the contents */
+	public int residentSize() {
+		if (source != null) {
+			return 0;
+		}
+		
+		if (compressed != null) {
+			return compressed.length;
+		}
+		
+		return length();
+	}
 	
 	// TODO: replace the byte[] with something like ByteBuffer to make the return
 	// value immutable, so we don't have to worry about making deep copies
 	public byte[] getData() {
-		return data;
+		try {
+			return readData();
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to read binary.", e);
+		}
+	}
+	
+	/** Same as getData, but reports contents which can't be read back from
+	 * the database file any more. Used where the error can be passed on,
+	 * such as while saving.
+	 */
+	public byte[] readData() throws IOException {
+		if (compressed == null && source == null) {
+			return data;
+		}
+		
+		byte[] cached = (unpacked != null) ? unpacked.get() : null;
+		if (cached != null) {
+			return cached;
+		}
+		
+		if (source != null) {
+			cached = fetch();
+		} else {
+			// Already inflated once when this binary was created
+			cached = MemUtil.decompress(compressed);
+		}
+		
+		unpacked = new SoftReference<byte[]>(cached);
+		return cached;
+	}
+	
+	private byte[] fetch() throws IOException {
+		byte[] fetched = source.read();
+		if (sourceCompressed) {
+			fetched = MemUtil.decompress(fetched);
+		}
+		
+		if (!Arrays.equals(getDigest().digest(fetched), hash)) {
+			throw new IOException("Binary has changed in the database file.");
+		}
+		
+		return fetched;
+	}
+	
+	/** SHA-256 of the contents, computed on first use and cached. Callers must
+	 * not modify the array returned by getData after this has been called.
+	 */
+	public byte[] getHash() {
+		if (hash == null) {
+			MessageDigest md = getDigest();
+			
+			if (data != null) {
+				md.update(data);
+			}
+			hash = md.digest();
+		}
+		
+		return hash;
+	}
+	
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not implemented here.");
+		}
 	}
 	
 	public boolean equals(ProtectedBinary rhs) {
-		return (protect == rhs.protect) && Arrays.equals(data, rhs.data);
+		if ((protect != rhs.protect) || (length() != rhs.length())) {
+			return false;
+		}
+		
+		if (hash != null && rhs.hash != null) {
+			return Arrays.equals(hash, rhs.hash);
+		}
+		
+		if (compressed != null || rhs.compressed != null || source != null || rhs.source != null) {
+			return Arrays.equals(getHash(), rhs.getHash());
+		}
+		
+		return Arrays.equals(data, rhs.data);
 	}
 
 }
@@ -19,9 +19,14 @@
  */
 package com.keepassdroid.database.security;
 
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
 public class ProtectedString {
 	
 	private String string;
+	// UTF-8 encoded value, kept instead of string until it is needed
+	private byte[] utf8 = null;
 	private boolean protect;
 	
 	public boolean isProtected() {
@@ -29,6 +34,18 @@ public class ProtectedString {
 	}
 	
 	public int length() {
+		if (utf8 != null) {
+			// UTF-16 length, counted without decoding
+			int len = 0;
+			for (int i = 0; i < utf8.length; i++) {
+				int b = utf8[i] & 0xFF;
+				if ((b & 0xC0) != 0x80) {
+					len += (b >= 0xF0) ? 2 : 1;
+				}
+			}
+			return len;
+		}
+		
 		if (string == null) {
 			return 0;
 		}
@@ -47,7 +64,64 @@ public class ProtectedString {
 		
 	}
 	
+	/** Holds the UTF-8 encoded value, which is only decoded when it is used. */
+	public ProtectedString(boolean enableProtection, byte[] utf8) {
+		protect = enableProtection;
+		this.utf8 = utf8;
+		
+	}
+	
+	/** Approximate number of bytes held in memory for the value */
+	public int residentSize() {
+		if (utf8 != null) {
+			return utf8.length;
+		}
+		
+		return 2 * length();
+	}
+	
+	public boolean contentEquals(ProtectedString rhs) {
+		if (protect != rhs.protect) {
+			return false;
+		}
+		
+		if (utf8 != null && rhs.utf8 != null) {
+			return Arrays.equals(utf8, rhs.utf8);
+		}
+		
+		String str = toString();
+		return (str == null) ? rhs.toString() == null : str.equals(rhs.toString());
+	}
+	
+	/** UTF-8 encoding of the value. When the value is held encoded this is
+	 * the stored array itself, which callers must not modify.
+	 */
+	public byte[] getUtf8() {
+		if (utf8 != null) {
+			return utf8;
+		}
+		
+		if (string == null) {
+			return new byte[0];
+		}
+		
+		try {
+			return string.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException("UTF-8 not supported here.");
+		}
+	}
+	
 	public String toString() {
+		if (utf8 != null) {
+			// Not cached, so the plain text isn't kept around any longer than the caller needs it
+			try {
+				return new String(utf8, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException("UTF-8 not supported here.");
+			}
+		}
+		
 		return string;
 	}
 
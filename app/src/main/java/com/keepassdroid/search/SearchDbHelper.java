@@ -83,11 +83,20 @@ public class SearchDbHelper {
 			PwGroup top = worklist.remove();
 			
 			if (pm.isGroupSearchable(top, isOmitBackup)) {
-				for (PwEntry entry : top.childEntries) {
+				List<PwEntry> entries;
+				List<PwGroup> groups;
+				
+				// A progressive load may still be adding to the group
+				synchronized (top) {
+					entries = new ArrayList<PwEntry>(top.childEntries);
+					groups = new ArrayList<PwGroup>(top.childGroups);
+				}
+				
+				for (PwEntry entry : entries) {
 					processEntries(entry, group.childEntries, qStr, loc);
 				}
 				
-				for (PwGroup childGroup : top.childGroups) {
+				for (PwGroup childGroup : groups) {
 					if (childGroup != null) {
 						worklist.add(childGroup);
 					}
@@ -34,7 +34,9 @@ import com.keepassdroid.view.GroupViewOnlyView;
 public class SearchResults extends GroupBaseActivity {
 	
 	private Database mDb;
-	//private String mQuery;
+	private String mQuery;
+	// Made before a progressive load was done, so run again once it is
+	private boolean mPartial = false;
 	
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
@@ -58,10 +60,12 @@ public class SearchResults extends GroupBaseActivity {
 	}
 	
 	private void performSearch(String query) {
-		query(query.trim());
+		mQuery = query.trim();
+		query(mQuery);
 	}
 	
 	private void query(String query) {
+		mPartial = !mDb.isFullyLoaded();
 		mGroup = mDb.Search(query);
 
 		if ( mGroup == null || mGroup.childEntries.size() < 1 ) {
@@ -75,6 +79,15 @@ public class SearchResults extends GroupBaseActivity {
 		setListAdapter(new PwGroupListAdapter(this, mGroup));
 	}
 	
+	@Override
+	protected void onLoadProgress() {
+		if ( mPartial && mDb.isFullyLoaded() ) {
+			query(mQuery);
+		} else {
+			super.onLoadProgress();
+		}
+	}
+	
 	/*
 	@Override
 	protected void onNewIntent(Intent intent) {
@@ -24,6 +24,8 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 import com.android.keepass.R;
+import com.keepassdroid.compat.BuildCompat;
+import com.keepassdroid.stream.ParallelGZIPOutputStream;
 
 public class PrefsUtil {
 	public static float getListTextSize(Context ctx) {
@@ -31,4 +33,36 @@ public class PrefsUtil {
 		return Float.parseFloat(prefs.getString(ctx.getString(R.string.list_size_key), ctx.getString(R.string.list_size_default)));
 
 	}
+
+	public static boolean supportsParallelCompression() {
+		// Deflater sync flushes are only available from KitKat on
+		return BuildCompat.getSdkVersion() >= BuildCompat.VERSION_KITKAT && ParallelGZIPOutputStream.isUseful();
+	}
+
+	public static boolean useParallelCompression(Context ctx) {
+		if (!supportsParallelCompression()) { return false; }
+
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+		return prefs.getBoolean(ctx.getString(R.string.parallel_compression_key), ctx.getResources().getBoolean(R.bool.parallel_compression_default));
+	}
+
+	public static boolean useBackgroundSave(Context ctx) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+		return prefs.getBoolean(ctx.getString(R.string.background_save_key), ctx.getResources().getBoolean(R.bool.background_save_default));
+	}
+
+	public static boolean useProgressiveLoad(Context ctx) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+		return prefs.getBoolean(ctx.getString(R.string.progressive_load_key), ctx.getResources().getBoolean(R.bool.progressive_load_default));
+	}
+
+	public static boolean useSnapshotCache(Context ctx) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+		return prefs.getBoolean(ctx.getString(R.string.snapshot_cache_key), ctx.getResources().getBoolean(R.bool.snapshot_cache_default));
+	}
+
+	public static boolean openReadOnly(Context ctx) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+		return prefs.getBoolean(ctx.getString(R.string.open_read_only_key), ctx.getResources().getBoolean(R.bool.open_read_only_default));
+	}
 }
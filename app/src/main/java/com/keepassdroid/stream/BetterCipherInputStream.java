@@ -25,6 +25,8 @@ import java.security.GeneralSecurityException;
 import javax.crypto.Cipher;
 import javax.crypto.NullCipher;
 
+import com.keepassdroid.crypto.CipherFactory;
+
 /**
  * This class wraps an {@code InputStream} and a cipher so that {@code read()}
  * methods return data that are read from the underlying {@code InputStream} and
@@ -226,11 +228,15 @@ public class BetterCipherInputStream extends FilterInputStream {
     public void close() throws IOException {
         in.close();
         try {
-            cipher.doFinal();
+            // Already done on reaching the end, and a native cipher can't be finished twice
+            if (!finished) {
+                cipher.doFinal();
+            }
         } catch (GeneralSecurityException ignore) {
             //do like RI does
+        } finally {
+            CipherFactory.release(cipher);
         }
-
     }
 
     /**
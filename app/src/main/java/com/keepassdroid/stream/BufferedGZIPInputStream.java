@@ -0,0 +1,466 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import com.keepassdroid.utils.BufferPool;
+
+/** Gzip decompressor that drives an Inflater with large buffers.
+ *
+ * GZIPInputStream reads its source 512 bytes at a time. This reads a quarter
+ * of a hashed block at once, inflates into an equally large buffer, and
+ * updates the CRC once per buffer. Concatenated members are read as one
+ * stream, like GZIPInputStream does.
+ *
+ * It can also report points where inflating could be restarted later, which
+ * is done the way zlib's zran example does it. The Inflater can't be started
+ * at a bit offset though, so these are only found where the deflate stream
+ * is byte aligned after a sync flush, as ParallelGZIPOutputStream writes.
+ * Compressed data can look like a sync flush, so each point is only reported
+ * once a second Inflater started there has matched the output that follows.
+ */
+public class BufferedGZIPInputStream extends InputStream {
+	
+	/** Told where inflating can be restarted */
+	public interface CheckpointListener {
+		/** A raw Inflater given the input from inputOffset, with window as its
+		 * dictionary, produces the output from outputOffset.
+		 */
+		public void onCheckpoint(long inputOffset, long outputOffset, byte[] window);
+	}
+	
+	public final static int DEFAULT_BUFFER_SIZE = 256 * 1024;
+	public final static int WINDOW_SIZE = 32 * 1024;
+	
+	// The empty stored block of a sync flush
+	private final static byte[] SYNC_MARKER = {0, 0, (byte) 0xFF, (byte) 0xFF};
+	private final static int PROBE_SIZE = 16 * 1024;
+	
+	private final static int GZIP_MAGIC = 0x8b1f;
+	private final static int FHCRC = 2;
+	private final static int FEXTRA = 4;
+	private final static int FNAME = 8;
+	private final static int FCOMMENT = 16;
+	
+	private InputStream baseStream;
+	private Inflater inflater = new Inflater(true);
+	private CRC32 crc = new CRC32();
+	private long size = 0;
+	
+	// Pooled arrays may be longer than this
+	private int bufferSize;
+	
+	private byte[] input;
+	private int inputPos = 0;
+	private int inputLength = 0;
+	
+	private byte[] output;
+	private int outputPos = 0;
+	private int outputLength = 0;
+	
+	private boolean atEnd = false;
+	private boolean closed = false;
+	
+	// Offset of input[0] in the source
+	private long inputOffset = 0;
+	
+	private CheckpointListener checkpoints = null;
+	private long spacing;
+	private long nextCheckpoint;
+	private boolean pendingCheckpoint = false;
+	private boolean outputFull = false;
+	private byte[] window;
+	private int windowLength = 0;
+	
+	// Checks a possible restart point against the real output
+	private Inflater probe = null;
+	private byte[] probeOutput;
+	private long probeInputOffset;
+	private long probeOutputOffset;
+	private byte[] probeWindow;
+	private long probeChecked;
+	
+	public BufferedGZIPInputStream(InputStream is) throws IOException {
+		this(is, DEFAULT_BUFFER_SIZE);
+	}
+	
+	public BufferedGZIPInputStream(InputStream is, int bufferSize) throws IOException {
+		baseStream = is;
+		this.bufferSize = bufferSize;
+		input = BufferPool.acquire(bufferSize);
+		output = BufferPool.acquire(bufferSize);
+		
+		readHeader(true);
+	}
+	
+	/** Reports restart points about every spacing bytes of output, in the first
+	 * member. The start of its data is reported right away, so this must be
+	 * set before anything is read.
+	 */
+	public void setCheckpointListener(long spacing, CheckpointListener listener) {
+		if ( size != 0 || outputLength != 0 ) {
+			throw new IllegalStateException("Data has already been read");
+		}
+		
+		checkpoints = listener;
+		this.spacing = spacing;
+		nextCheckpoint = spacing;
+		window = new byte[WINDOW_SIZE];
+		
+		listener.onCheckpoint(inputOffset + inputPos, 0, new byte[0]);
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if ( outputPos == outputLength && ! inflate() ) {
+			return -1;
+		}
+		
+		return output[outputPos++] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+	
+	@Override
+	public int read(byte[] b, int offset, int length) throws IOException {
+		if ( length == 0 ) {
+			return 0;
+		}
+		
+		if ( outputPos == outputLength && ! inflate() ) {
+			return -1;
+		}
+		
+		int copyLen = Math.min(outputLength - outputPos, length);
+		System.arraycopy(output, outputPos, b, offset, copyLen);
+		outputPos += copyLen;
+		
+		return copyLen;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return outputLength - outputPos;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if ( closed ) {
+			return;
+		}
+		closed = true;
+		
+		inflater.end();
+		endProbe();
+		BufferPool.release(input);
+		BufferPool.release(output);
+		input = null;
+		output = null;
+		
+		baseStream.close();
+	}
+	
+	/** Fills the output buffer.
+	 * 
+	 * @return false at the end of the stream
+	 */
+	private boolean inflate() throws IOException {
+		if ( closed ) {
+			throw new IOException("Stream closed");
+		}
+		
+		while ( ! atEnd ) {
+			if ( inflater.finished() ) {
+				if ( probe != null && probe.finished() ) {
+					reportProbe();
+				}
+				endProbe();
+				
+				// Offsets in later members would need their headers read again
+				checkpoints = null;
+				pendingCheckpoint = false;
+				
+				// Whatever the inflater didn't use belongs to the trailer
+				inputPos = inputLength - inflater.getRemaining();
+				readTrailer();
+				
+				if ( ! readHeader(false) ) {
+					atEnd = true;
+					break;
+				}
+				continue;
+			}
+			
+			// A full output buffer may leave output for the input already given
+			if ( inflater.needsInput() && ! (pendingCheckpoint && outputFull) ) {
+				if ( pendingCheckpoint ) {
+					pendingCheckpoint = false;
+					startProbe();
+				}
+				
+				if ( inputPos == inputLength && ! fill() ) {
+					throw new EOFException("Unexpected end of ZLIB input stream");
+				}
+				
+				int end = inputLength;
+				if ( checkpoints != null && probe == null && size >= nextCheckpoint ) {
+					// Stop the input just past a sync flush, where the data is byte aligned
+					int marker = findSyncMarker(inputPos, inputLength);
+					if ( marker != -1 ) {
+						end = marker;
+						pendingCheckpoint = true;
+					}
+				}
+				
+				inflater.setInput(input, inputPos, end - inputPos);
+				if ( probe != null ) {
+					probe.setInput(input, inputPos, end - inputPos);
+				}
+				inputPos = end;
+			}
+			
+			int count;
+			try {
+				count = inflater.inflate(output, 0, bufferSize);
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+			outputFull = count == bufferSize;
+			
+			if ( count > 0 ) {
+				crc.update(output, 0, count);
+				size += count;
+				
+				if ( checkpoints != null ) {
+					updateWindow(count);
+				}
+				if ( probe != null ) {
+					checkProbe(count);
+				}
+				
+				outputPos = 0;
+				outputLength = count;
+				return true;
+			}
+			
+			if ( inflater.needsDictionary() ) {
+				throw new ZipException("Preset dictionaries are not supported");
+			}
+		}
+		
+		outputPos = 0;
+		outputLength = 0;
+		return false;
+	}
+	
+	/** Offset just past the first sync marker in the range, or -1 */
+	private int findSyncMarker(int start, int end) {
+		for (int i = start; i + SYNC_MARKER.length <= end; i++) {
+			if ( input[i] == 0 && input[i + 1] == 0 && input[i + 2] == SYNC_MARKER[2] && input[i + 3] == SYNC_MARKER[3] ) {
+				return i + SYNC_MARKER.length;
+			}
+		}
+		
+		return -1;
+	}
+	
+	/** Keeps the last WINDOW_SIZE bytes of output */
+	private void updateWindow(int count) {
+		if ( count >= WINDOW_SIZE ) {
+			System.arraycopy(output, count - WINDOW_SIZE, window, 0, WINDOW_SIZE);
+			windowLength = WINDOW_SIZE;
+			return;
+		}
+		
+		int keep = Math.min(windowLength, WINDOW_SIZE - count);
+		System.arraycopy(window, windowLength - keep, window, 0, keep);
+		System.arraycopy(output, 0, window, keep, count);
+		windowLength = keep + count;
+	}
+	
+	/** Starts a second Inflater where all input so far has been used */
+	private void startProbe() {
+		probeWindow = new byte[windowLength];
+		System.arraycopy(window, 0, probeWindow, 0, windowLength);
+		probeInputOffset = inputOffset + inputPos;
+		probeOutputOffset = size;
+		probeChecked = 0;
+		
+		probe = new Inflater(true);
+		if ( windowLength > 0 ) {
+			probe.setDictionary(probeWindow);
+		}
+		if ( probeOutput == null ) {
+			probeOutput = new byte[PROBE_SIZE];
+		}
+	}
+	
+	/** Compares what the probe makes of the same input with the last count bytes of output */
+	private void checkProbe(int count) {
+		int checked = 0;
+		try {
+			while ( checked < count ) {
+				int n = probe.inflate(probeOutput, 0, Math.min(PROBE_SIZE, count - checked));
+				if ( n == 0 ) {
+					break;
+				}
+				
+				for (int i = 0; i < n; i++) {
+					if ( probeOutput[i] != output[checked + i] ) {
+						endProbe();
+						return;
+					}
+				}
+				checked += n;
+			}
+		} catch (DataFormatException e) {
+			// Not a real sync point
+			endProbe();
+			return;
+		}
+		
+		if ( checked < count ) {
+			endProbe();
+			return;
+		}
+		
+		probeChecked += count;
+		if ( probeChecked >= PROBE_SIZE ) {
+			reportProbe();
+			endProbe();
+		}
+	}
+	
+	private void reportProbe() {
+		checkpoints.onCheckpoint(probeInputOffset, probeOutputOffset, probeWindow);
+		nextCheckpoint = probeOutputOffset + spacing;
+	}
+	
+	private void endProbe() {
+		if ( probe != null ) {
+			probe.end();
+			probe = null;
+		}
+		probeWindow = null;
+	}
+	
+	private boolean fill() throws IOException {
+		inputOffset += inputLength;
+		
+		int read = baseStream.read(input, 0, bufferSize);
+		if ( read <= 0 ) {
+			inputPos = 0;
+			inputLength = 0;
+			return false;
+		}
+		
+		inputPos = 0;
+		inputLength = read;
+		return true;
+	}
+	
+	private int readUByte() throws IOException {
+		if ( inputPos == inputLength && ! fill() ) {
+			throw new EOFException("Unexpected end of GZIP stream");
+		}
+		
+		return input[inputPos++] & 0xFF;
+	}
+	
+	private int readUShort() throws IOException {
+		return readUByte() | (readUByte() << 8);
+	}
+	
+	private long readUInt() throws IOException {
+		return ((long) readUShort()) | ((long) readUShort() << 16);
+	}
+	
+	private void skipBytes(int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			readUByte();
+		}
+	}
+	
+	/** Reads a member header, and readies the inflater for its data.
+	 * 
+	 * @return false if there is no further member
+	 */
+	private boolean readHeader(boolean first) throws IOException {
+		if ( ! first && inputPos == inputLength && ! fill() ) {
+			return false;
+		}
+		
+		if ( readUByte() != (GZIP_MAGIC & 0xFF) || readUByte() != (GZIP_MAGIC >> 8) ) {
+			if ( first ) {
+				throw new ZipException("Not in GZIP format");
+			}
+			
+			// Trailing data after a member is ignored, as GZIPInputStream does
+			return false;
+		}
+		
+		if ( readUByte() != 8 ) {
+			throw new ZipException("Unsupported compression method");
+		}
+		
+		int flags = readUByte();
+		// Modification time, extra flags and OS
+		skipBytes(6);
+		
+		if ( (flags & FEXTRA) != 0 ) {
+			skipBytes(readUShort());
+		}
+		if ( (flags & FNAME) != 0 ) {
+			while ( readUByte() != 0 );
+		}
+		if ( (flags & FCOMMENT) != 0 ) {
+			while ( readUByte() != 0 );
+		}
+		if ( (flags & FHCRC) != 0 ) {
+			skipBytes(2);
+		}
+		
+		inflater.reset();
+		crc.reset();
+		size = 0;
+		
+		return true;
+	}
+	
+	private void readTrailer() throws IOException {
+		long storedCrc = readUInt();
+		long storedSize = readUInt();
+		
+		if ( storedCrc != crc.getValue() || storedSize != (size & 0xFFFFFFFFL) ) {
+			throw new ZipException("Corrupt GZIP trailer");
+		}
+	}
+	
+}
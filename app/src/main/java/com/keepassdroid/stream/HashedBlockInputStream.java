@@ -19,6 +19,7 @@
  */
 package com.keepassdroid.stream;
 
+import com.keepassdroid.utils.BufferPool;
 import com.keepassdroid.utils.Types;
 
 import java.io.IOException;
@@ -30,13 +31,30 @@ import java.util.Arrays;
 
 public class HashedBlockInputStream extends InputStream {
 	
+	/** Told where each block is, as it is read */
+	public interface BlockListener {
+		/**
+		 * @param offset of the block header, from the start of this stream's source
+		 * @param length of the data in the block
+		 */
+		public void onBlock(long index, long offset, int length);
+	}
+	
+	public final static int HEADER_SIZE = 40;
 	private final static int HASH_SIZE = 32;
+	private final static int INITIAL_BUFFER_SIZE = 1024 * 1024;
 
 	private LEDataInputStream baseStream;
 	private int bufferPos = 0;
+	// Reused between blocks, only bufferLength bytes of it are valid
 	private byte[] buffer = new byte[0];
+	private int bufferLength = 0;
 	private long bufferIndex = 0;
 	private boolean atEnd = false;
+	private byte[] storedHash = new byte[HASH_SIZE];
+	private MessageDigest md = null;
+	private BlockListener listener = null;
+	private long sourceOffset = 0;
 	
 	
 	@Override
@@ -45,7 +63,17 @@ public class HashedBlockInputStream extends InputStream {
 	}
 
 	public HashedBlockInputStream(InputStream is) {
+		this(is, 0);
+	}
+	
+	/** Starts reading at the block with this index, rather than the first */
+	public HashedBlockInputStream(InputStream is, long firstIndex) {
 		baseStream = new LEDataInputStream(is);
+		bufferIndex = firstIndex;
+	}
+	
+	public void setBlockListener(BlockListener listener) {
+		this.listener = listener;
 	}
 	
 	@Override
@@ -55,7 +83,7 @@ public class HashedBlockInputStream extends InputStream {
 		int remaining = length;
 		
 		while ( remaining > 0 ) {
-			if ( bufferPos == buffer.length ) {
+			if ( bufferPos == bufferLength ) {
 				// Get more from the source into the buffer
 				if ( ! ReadHashedBlock() ) {
 					return length - remaining;
@@ -64,7 +92,7 @@ public class HashedBlockInputStream extends InputStream {
 			}
 
 			// Copy from buffer out
-			int copyLen = Math.min(buffer.length - bufferPos, remaining);
+			int copyLen = Math.min(bufferLength - bufferPos, remaining);
 			
 			System.arraycopy(buffer, bufferPos, b, offset, copyLen);
 			
@@ -84,20 +112,20 @@ public class HashedBlockInputStream extends InputStream {
 	private boolean ReadHashedBlock() throws IOException {
 		if ( atEnd ) return false;
 		
+		// Nothing is handed out until the next block has been checked
 		bufferPos = 0;
+		bufferLength = 0;
 		
 		long index = baseStream.readUInt();
 		if ( index != bufferIndex ) {
 			throw new IOException("Invalid data format");
 		}
-		bufferIndex++;
 		
-		byte[] storedHash = baseStream.readBytes(32);
-		if ( storedHash == null || storedHash.length != HASH_SIZE) {
+		if ( baseStream.readBytes(storedHash, 0, HASH_SIZE) != HASH_SIZE ) {
 			throw new IOException("Invalid data format");
 		}
 		
-		int bufferSize = LEDataInputStream.readInt(baseStream);
+		int bufferSize = baseStream.readInt();
 		if ( bufferSize < 0 ) {
 			throw new IOException("Invalid data format");
 		}
@@ -110,23 +138,38 @@ public class HashedBlockInputStream extends InputStream {
 			}
 				
 			atEnd = true;
-			buffer = new byte[0];
+			releaseBuffer();
 			return false;
 		}
 		
-		buffer = baseStream.readBytes(bufferSize);
-		if ( buffer == null || buffer.length != bufferSize ) {
-			throw new IOException("Invalid data format");
+		// The buffer only grows as data arrives, so a corrupt size runs into
+		// the end of the stream instead of a huge allocation
+		int count = 0;
+		while ( count < bufferSize ) {
+			if ( count == buffer.length ) {
+				byte[] larger = BufferPool.acquire(Math.min(bufferSize, Math.max(count * 2, INITIAL_BUFFER_SIZE)));
+				System.arraycopy(buffer, 0, larger, 0, count);
+				BufferPool.release(buffer);
+				buffer = larger;
+			}
+			
+			int read = baseStream.readBytes(buffer, count, Math.min(buffer.length, bufferSize) - count);
+			if ( read == 0 ) {
+				throw new IOException("Invalid data format");
+			}
+			count += read;
 		}
 		
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance("SHA-256");
-		} catch (NoSuchAlgorithmException e) {
-			throw new IOException("SHA-256 not implemented here.");
+		if ( md == null ) {
+			try {
+				md = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException("SHA-256 not implemented here.");
+			}
 		}
 		
-		byte[] computedHash = md.digest(buffer);
+		md.update(buffer, 0, bufferSize);
+		byte[] computedHash = md.digest();
 		if ( computedHash == null || computedHash.length != HASH_SIZE ) {
 			throw new IOException("Hash wrong size");
 		}
@@ -134,6 +177,13 @@ public class HashedBlockInputStream extends InputStream {
 		if ( ! Arrays.equals(storedHash, computedHash) ) {
 			throw new IOException("Hashes didn't match.");
 		}
+		bufferLength = bufferSize;
+		
+		if ( listener != null ) {
+			listener.onBlock(bufferIndex, sourceOffset, bufferSize);
+		}
+		sourceOffset += HEADER_SIZE + bufferSize;
+		bufferIndex++;
 
 		return true;
 	}
@@ -147,7 +197,7 @@ public class HashedBlockInputStream extends InputStream {
 	public int read() throws IOException {
 		if ( atEnd ) return -1;
 		
-		if ( bufferPos == buffer.length ) {
+		if ( bufferPos == bufferLength ) {
 			if ( ! ReadHashedBlock() ) return -1;
 		}
 		
@@ -157,8 +207,20 @@ public class HashedBlockInputStream extends InputStream {
 		return output;
 	}
 
+	/** Index of the block being read, or of the block that failed its checks */
+	public long getBlockIndex() {
+		return bufferIndex;
+	}
+
+	private void releaseBuffer() {
+		BufferPool.release(buffer);
+		buffer = new byte[0];
+		bufferLength = 0;
+	}
+
 	@Override
 	public void close() throws IOException {
+		releaseBuffer();
 		baseStream.close();
 	}
 
@@ -32,6 +32,8 @@ public class LEDataInputStream extends InputStream {
 	public static final long INT_TO_LONG_MASK = 0xffffffffL;
 	
 	private InputStream baseStream;
+	// Primitive values are read through this rather than a new array each time
+	private final byte[] scratch = new byte[8];
 
 	public LEDataInputStream(InputStream in) {
 		baseStream = in;
@@ -43,17 +45,27 @@ public class LEDataInputStream extends InputStream {
 	 * @throws IOException
 	 */
 	public long readUInt() throws IOException {
-		return readUInt(baseStream);
+		return (readInt() & INT_TO_LONG_MASK);
 	}
 	
 	public int readInt() throws IOException {
-		return readInt(baseStream);
+		readScratch(4);
+		
+		return readInt(scratch, 0);
 	}
 	
 	public long readLong() throws IOException {
-		byte[] buf = readBytes(8);
+		readScratch(8);
 		
-		return readLong(buf, 0);
+		return readLong(scratch, 0);
+	}
+	
+	/** Bytes past the end of the stream read as zero */
+	private void readScratch(int length) throws IOException {
+		int count = readBytes(scratch, 0, length);
+		while ( count < length ) {
+			scratch[count++] = 0;
+		}
 	}
 	
 	@Override
@@ -105,34 +117,64 @@ public class LEDataInputStream extends InputStream {
 	public byte[] readBytes(int length) throws IOException {
 		byte[] buf = new byte[length];
 		
+		int count = readBytes(buf, 0, length);
+		if ( count < length ) {
+			// Stop early
+			byte[] early = new byte[count];
+			System.arraycopy(buf, 0, early, 0, count);
+			return early;
+		}
+		
+		return buf;
+	}
+	
+	/** Reads into an existing buffer until length bytes or the end of the stream.
+	 * 
+	 * @return the number of bytes read
+	 */
+	public int readBytes(byte[] buf, int offset, int length) throws IOException {
 		int count = 0;
 		while ( count < length ) {
-			int read = read(buf, count, length - count);
+			int read = read(buf, offset + count, length - count);
 			
 			// Reached end
 			if ( read == -1 ) {
-				// Stop early
-				byte[] early = new byte[count];
-				System.arraycopy(buf, 0, early, 0, count);
-				return early;
+				break;
 			}
 			
 			count += read;
 		}
 		
-		return buf;
+		return count;
 	}
 
 	public static int readUShort(InputStream is) throws IOException {
-		  byte[] buf = new byte[2];
-		  
-		  is.read(buf, 0, 2);
-		  
-		  return readUShort(buf, 0); 
-	  }
+		if ( is instanceof LEDataInputStream ) {
+			return ((LEDataInputStream) is).readUShort();
+		}
+		
+		return (int) readLE(is, 2);
+	}
 	
 	public int readUShort() throws IOException {
-		return readUShort(baseStream);
+		readScratch(2);
+		
+		return readUShort(scratch, 0);
+	}
+	
+	/** Reads a little endian value a byte at a time, for streams without a scratch buffer */
+	private static long readLE(InputStream is, int length) throws IOException {
+		long value = 0;
+		for (int i = 0; i < length; i++) {
+			int b = is.read();
+			if ( b == -1 ) {
+				break;
+			}
+			
+			value |= ((long) b) << (8 * i);
+		}
+		
+		return value;
 	}
 
 	/**
@@ -158,12 +200,12 @@ public class LEDataInputStream extends InputStream {
 	  }
 
 	public static int readInt(InputStream is) throws IOException {
-		  byte[] buf = new byte[4];
-	
-		  is.read(buf, 0, 4);
-		  
-		  return readInt(buf, 0);
-	  }
+		if ( is instanceof LEDataInputStream ) {
+			return ((LEDataInputStream) is).readInt();
+		}
+		
+		return (int) readLE(is, 4);
+	}
 
 	public static long readUInt(InputStream is) throws IOException {
 		  return (readInt(is) & INT_TO_LONG_MASK);
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import com.keepassdroid.crypto.ParallelCBCDecryptor;
+
+/** Decrypts CBC content read from a stream with a ParallelCBCDecryptor, a
+ * batch at a time. One block past each batch is read ahead, to know whether
+ * the batch is the last one and so has to have its padding removed.
+ */
+public class ParallelCBCInputStream extends InputStream {
+	private static final int BLOCK_SIZE = ParallelCBCDecryptor.BLOCK_SIZE;
+	
+	private final InputStream in;
+	private final ParallelCBCDecryptor decryptor;
+	private final byte[] buf;
+	private final int batchSize;
+	private byte[] iv;
+	// First block of the next batch, already read
+	private byte[] ahead = null;
+	private int pos = 0;
+	private int count = 0;
+	private boolean finished = false;
+	
+	public ParallelCBCInputStream(InputStream in, ParallelCBCDecryptor decryptor, byte[] iv) {
+		this.in = in;
+		this.decryptor = decryptor;
+		this.iv = iv.clone();
+		batchSize = decryptor.getBatchSize();
+		buf = new byte[batchSize + BLOCK_SIZE];
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if ( pos == count && !fill() ) {
+			return -1;
+		}
+		
+		return buf[pos++] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if ( len == 0 ) {
+			return 0;
+		}
+		
+		if ( pos == count && !fill() ) {
+			return -1;
+		}
+		
+		int read = Math.min(len, count - pos);
+		System.arraycopy(buf, pos, b, off, read);
+		pos += read;
+		
+		return read;
+	}
+	
+	@Override
+	public int available() {
+		return count - pos;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		decryptor.close();
+		Arrays.fill(buf, (byte) 0);
+		in.close();
+	}
+	
+	private boolean fill() throws IOException {
+		while ( pos == count ) {
+			if ( finished ) {
+				return false;
+			}
+			
+			int len = 0;
+			if ( ahead != null ) {
+				System.arraycopy(ahead, 0, buf, 0, BLOCK_SIZE);
+				len = BLOCK_SIZE;
+			}
+			len += readFully(buf, len, buf.length - len);
+			
+			boolean last = len <= batchSize;
+			int cryptLen = Math.min(len, batchSize);
+			ahead = last ? null : ParallelCBCDecryptor.copyBlock(buf, batchSize);
+			byte[] nextIv = cryptLen >= BLOCK_SIZE ? ParallelCBCDecryptor.copyBlock(buf, cryptLen - BLOCK_SIZE) : iv;
+			
+			try {
+				count = decryptor.decrypt(iv, buf, 0, cryptLen, last, ahead);
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e.getMessage());
+			}
+			
+			iv = nextIv;
+			pos = 0;
+			finished = last;
+		}
+		
+		return true;
+	}
+	
+	private int readFully(byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while ( total < len ) {
+			int read = in.read(b, off + total, len - total);
+			if ( read == -1 ) {
+				break;
+			}
+			total += read;
+		}
+		
+		return total;
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/** Gzip compressor which deflates fixed size chunks on a pool of threads.
+ *
+ * Every chunk is compressed independently, primed with the last 32K of the
+ * chunk before it, and ended with a sync flush so the pieces join into one
+ * deflate stream. The result is a normal single member gzip file that
+ * GZIPInputStream reads unchanged.
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+
+	public final static int DEFAULT_CHUNK_SIZE = 128 * 1024;
+
+	private final static int DICT_SIZE = 32 * 1024;
+	private final static byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private static class Pending {
+		public final byte[] input;
+		public final Future<byte[]> output;
+
+		public Pending(byte[] input, Future<byte[]> output) {
+			this.input = input;
+			this.output = output;
+		}
+	}
+
+	private OutputStream baseStream;
+	private ExecutorService pool;
+	private LinkedList<Pending> pending = new LinkedList<Pending>();
+	private LinkedList<byte[]> freeChunks = new LinkedList<byte[]>();
+	private byte[] lastWritten = null;
+	private int maxPending;
+	private int chunkSize;
+	private CRC32 crc = new CRC32();
+	private long size = 0;
+	private byte[] chunk;
+	private int chunkPos = 0;
+	private byte[] prevChunk = null;
+	private boolean closed = false;
+
+	public static boolean isUseful() {
+		return Runtime.getRuntime().availableProcessors() > 1;
+	}
+
+	public ParallelGZIPOutputStream(OutputStream os) throws IOException {
+		this(os, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+	}
+
+	public ParallelGZIPOutputStream(OutputStream os, int threads, int chunkSize) throws IOException {
+		if ( threads <= 0 ) {
+			threads = 1;
+		}
+
+		if ( chunkSize < DICT_SIZE ) {
+			chunkSize = DICT_SIZE;
+		}
+
+		baseStream = os;
+		this.chunkSize = chunkSize;
+		maxPending = threads * 2;
+		chunk = new byte[chunkSize];
+
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Save: deflate");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		baseStream.write(HEADER);
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		if ( chunkPos == chunkSize ) {
+			submit(false);
+		}
+
+		chunk[chunkPos++] = (byte) oneByte;
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int count) throws IOException {
+		checkOpen();
+
+		while ( count > 0 ) {
+			if ( chunkPos == chunkSize ) {
+				submit(false);
+			}
+
+			int copyLen = Math.min(chunkSize - chunkPos, count);
+			System.arraycopy(b, offset, chunk, chunkPos, copyLen);
+
+			chunkPos += copyLen;
+			offset += copyLen;
+			count -= copyLen;
+		}
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if ( closed ) {
+			return;
+		}
+
+		try {
+			submit(true);
+
+			while ( pending.size() > 0 ) {
+				writeOldest();
+			}
+
+			writeTrailer();
+		} finally {
+			closed = true;
+			pool.shutdownNow();
+		}
+
+		baseStream.close();
+	}
+
+	/** Stops the deflate threads without writing the trailer or closing the
+	 * base stream.
+	 */
+	public void abort() {
+		closed = true;
+		pool.shutdownNow();
+		pending.clear();
+	}
+
+	private void checkOpen() throws IOException {
+		if ( closed ) {
+			throw new IOException("Stream is closed.");
+		}
+	}
+
+	private void submit(boolean last) throws IOException {
+		checkOpen();
+
+		crc.update(chunk, 0, chunkPos);
+		size += chunkPos;
+
+		byte[] dict = prevChunk;
+		int dictLen = dict == null ? 0 : Math.min(DICT_SIZE, dict.length);
+		Future<byte[]> out = pool.submit(new DeflateJob(chunk, chunkPos, dict, dictLen, last));
+		pending.add(new Pending(chunk, out));
+
+		prevChunk = chunk;
+		chunk = freeChunks.size() > 0 ? freeChunks.removeFirst() : new byte[chunkSize];
+		chunkPos = 0;
+
+		if ( pending.size() >= maxPending ) {
+			writeOldest();
+		}
+	}
+
+	private void writeOldest() throws IOException {
+		Pending p = pending.removeFirst();
+
+		byte[] deflated;
+		try {
+			deflated = p.output.get();
+		} catch (InterruptedException e) {
+			closed = true;
+			pool.shutdownNow();
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing.");
+		} catch (ExecutionException e) {
+			closed = true;
+			pool.shutdownNow();
+			IOException ioe = new IOException("Compression failed.");
+			ioe.initCause(e.getCause());
+			throw ioe;
+		}
+
+		baseStream.write(deflated);
+
+		// The chunk before this one was only needed as a dictionary, and this
+		// job is done with it.
+		if ( lastWritten != null ) {
+			freeChunks.add(lastWritten);
+		}
+		lastWritten = p.input;
+	}
+
+	private void writeTrailer() throws IOException {
+		byte[] trailer = new byte[8];
+		LEDataOutputStream.writeInt((int) crc.getValue(), trailer, 0);
+		LEDataOutputStream.writeInt((int) size, trailer, 4);
+
+		baseStream.write(trailer);
+	}
+
+	private static class DeflateJob implements Callable<byte[]> {
+		private byte[] input;
+		private int len;
+		private byte[] dict;
+		private int dictLen;
+		private boolean last;
+
+		public DeflateJob(byte[] input, int len, byte[] dict, int dictLen, boolean last) {
+			this.input = input;
+			this.len = len;
+			this.dict = dict;
+			this.dictLen = dictLen;
+			this.last = last;
+		}
+
+		@Override
+		public byte[] call() {
+			Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				if ( dict != null ) {
+					def.setDictionary(dict, dict.length - dictLen, dictLen);
+				}
+
+				def.setInput(input, 0, len);
+				if ( last ) {
+					def.finish();
+				}
+
+				byte[] out = new byte[len + (len >> 3) + 64];
+				int outPos = 0;
+				while ( true ) {
+					if ( outPos == out.length ) {
+						byte[] grown = new byte[out.length * 2];
+						System.arraycopy(out, 0, grown, 0, outPos);
+						out = grown;
+					}
+
+					int space = out.length - outPos;
+					int count;
+					if ( last ) {
+						count = def.deflate(out, outPos, space);
+					} else {
+						count = def.deflate(out, outPos, space, Deflater.SYNC_FLUSH);
+					}
+					outPos += count;
+
+					if ( last ? def.finished() : count < space ) {
+						break;
+					}
+				}
+
+				byte[] result = new byte[outPos];
+				System.arraycopy(out, 0, result, 0, outPos);
+				return result;
+			} finally {
+				def.end();
+			}
+		}
+	}
+}
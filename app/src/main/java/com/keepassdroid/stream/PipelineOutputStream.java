@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.stream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/** Hands writes off to a worker thread which feeds them to the base stream.
+ *
+ * Data is copied into a fixed ring of chunks, so the writer only blocks when
+ * the worker falls a full ring behind. Chunks are consumed strictly in the
+ * order they were written. A failure on the worker side is rethrown to the
+ * writer on its next write or on close.
+ */
+public class PipelineOutputStream extends OutputStream {
+
+	public final static int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	public final static int DEFAULT_DEPTH = 4;
+
+	private static class Chunk {
+		public final byte[] data;
+		public int len = 0;
+
+		public Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	// Markers which are passed through the full queue in place of data
+	private final Chunk CLOSE = new Chunk(0);
+	private final Chunk ABORT = new Chunk(0);
+
+	private OutputStream baseStream;
+	private BlockingQueue<Chunk> free;
+	private BlockingQueue<Chunk> full;
+	private CountDownLatch done = new CountDownLatch(1);
+	private volatile Throwable failure = null;
+	private volatile boolean aborted = false;
+	private Chunk current;
+	private boolean closed = false;
+
+	public PipelineOutputStream(OutputStream os, String name) {
+		this(os, name, DEFAULT_CHUNK_SIZE, DEFAULT_DEPTH);
+	}
+
+	public PipelineOutputStream(OutputStream os, String name, int chunkSize, int depth) {
+		if ( chunkSize <= 0 ) {
+			chunkSize = DEFAULT_CHUNK_SIZE;
+		}
+
+		if ( depth <= 0 ) {
+			depth = DEFAULT_DEPTH;
+		}
+
+		baseStream = os;
+
+		// One extra slot so the close and abort markers never block
+		free = new ArrayBlockingQueue<Chunk>(depth);
+		full = new ArrayBlockingQueue<Chunk>(depth + 1);
+		for ( int i = 1; i < depth; i++ ) {
+			free.add(new Chunk(chunkSize));
+		}
+		current = new Chunk(chunkSize);
+
+		Thread worker = new Thread(new Worker(), name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	@Override
+	public void write(int oneByte) throws IOException {
+		checkOpen();
+
+		if ( current.len == current.data.length ) {
+			handOff();
+		}
+
+		current.data[current.len++] = (byte) oneByte;
+	}
+
+	@Override
+	public void write(byte[] b, int offset, int count) throws IOException {
+		checkOpen();
+
+		while ( count > 0 ) {
+			if ( current.len == current.data.length ) {
+				handOff();
+			}
+
+			int copyLen = Math.min(current.data.length - current.len, count);
+			System.arraycopy(b, offset, current.data, current.len, copyLen);
+
+			current.len += copyLen;
+			offset += copyLen;
+			count -= copyLen;
+		}
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	/** Passes any partially filled chunk on to the worker. This does not wait
+	 * for the base stream to be flushed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkOpen();
+
+		if ( current.len > 0 ) {
+			handOff();
+		}
+	}
+
+	/** Waits for all pending chunks to be written, then closes the base stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		if ( closed ) {
+			return;
+		}
+
+		if ( current.len > 0 && failure == null ) {
+			handOff();
+		}
+
+		finish(CLOSE);
+
+		checkFailure();
+	}
+
+	/** Drops any pending data and waits for the worker to stop. The base stream
+	 * is neither flushed nor closed, so a compressor or cipher below is not
+	 * finished off into a complete looking file. Chained stages have to be
+	 * aborted on their own.
+	 */
+	public void abort() {
+		if ( closed ) {
+			return;
+		}
+
+		closed = true;
+		aborted = true;
+		full.offer(ABORT);
+
+		boolean interrupted = false;
+		while ( true ) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void finish(Chunk marker) throws IOException {
+		closed = true;
+
+		// The full queue has room for a marker on top of every chunk
+		full.offer(marker);
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			throw interrupted();
+		}
+	}
+
+	private void handOff() throws IOException {
+		checkFailure();
+
+		try {
+			full.put(current);
+			current = free.take();
+		} catch (InterruptedException e) {
+			throw interrupted();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if ( closed ) {
+			throw new IOException("Stream is closed.");
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable t = failure;
+		if ( t == null ) {
+			return;
+		}
+
+		if ( t instanceof IOException ) {
+			throw (IOException) t;
+		}
+
+		IOException e = new IOException(t.getMessage());
+		e.initCause(t);
+		throw e;
+	}
+
+	/** Gives up on the stream, without leaving the worker waiting for data
+	 * that will never come.
+	 */
+	private IOException interrupted() {
+		closed = true;
+		aborted = true;
+		full.offer(ABORT);
+
+		Thread.currentThread().interrupt();
+		return new IOException("Interrupted while writing.");
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			try {
+				Chunk chunk;
+				while ( (chunk = full.take()) != CLOSE && chunk != ABORT ) {
+					// Keep recycling chunks after a failure, so the writer never
+					// waits on a worker that stopped consuming.
+					if ( failure == null && !aborted ) {
+						try {
+							baseStream.write(chunk.data, 0, chunk.len);
+						} catch (Throwable t) {
+							failure = t;
+						}
+					}
+
+					chunk.len = 0;
+					free.put(chunk);
+				}
+
+				if ( !aborted ) {
+					try {
+						baseStream.close();
+					} catch (Throwable t) {
+						if ( failure == null ) {
+							failure = t;
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				failure = e;
+			} finally {
+				done.countDown();
+			}
+		}
+	}
+}
@@ -45,6 +45,9 @@ public class TimeoutHelper {
 		
 		if ( App.getDB().Loaded() ) {
 	        Timeout.start(act);
+	        
+	        // Don't leave edits waiting in memory while we're in the background
+	        App.getDB().saveScheduler.flushAsync();
 		}
 
 	}
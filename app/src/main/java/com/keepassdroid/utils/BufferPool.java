@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.keepassdroid.utils;
+
+import java.util.Arrays;
+
+/** Reusable byte arrays for short lived buffers on the load and save paths.
+ *
+ * Each thread keeps its own free lists, so no locking is needed. Arrays come
+ * in power of two size classes and may be longer than asked for. A released
+ * array must not be used again by the caller. Arrays are cleared when
+ * released, as they may have held decrypted database contents.
+ */
+public class BufferPool {
+	private static final int MIN_SHIFT = 10; // 1 KiB
+	private static final int MAX_SHIFT = 20; // 1 MiB, the usual hashed block size
+	private static final int PER_CLASS = 2;
+	
+	private static final ThreadLocal<BufferPool> pools = new ThreadLocal<BufferPool>() {
+		@Override
+		protected BufferPool initialValue() {
+			return new BufferPool();
+		}
+	};
+	
+	private final byte[][][] free = new byte[MAX_SHIFT - MIN_SHIFT + 1][PER_CLASS][];
+	private final int[] count = new int[MAX_SHIFT - MIN_SHIFT + 1];
+	
+	/** Returns an array of at least size bytes */
+	public static byte[] acquire(int size) {
+		return pools.get().get(size);
+	}
+	
+	/** Clears an array and returns it to the pool of the calling thread.
+	 * Arrays that didn't come from acquire are cleared but not kept.
+	 */
+	public static void release(byte[] buf) {
+		if (buf != null) {
+			pools.get().put(buf);
+		}
+	}
+	
+	private static int shiftFor(int size) {
+		int shift = MIN_SHIFT;
+		while (shift <= MAX_SHIFT && (1 << shift) < size) {
+			shift++;
+		}
+		
+		return shift;
+	}
+	
+	private byte[] get(int size) {
+		int shift = shiftFor(size);
+		if (shift > MAX_SHIFT) {
+			return new byte[size];
+		}
+		
+		int i = shift - MIN_SHIFT;
+		if (count[i] > 0) {
+			count[i]--;
+			byte[] buf = free[i][count[i]];
+			free[i][count[i]] = null;
+			return buf;
+		}
+		
+		return new byte[1 << shift];
+	}
+	
+	private void put(byte[] buf) {
+		// Cleared even when it isn't kept, the caller is done with it
+		Arrays.fill(buf, (byte) 0);
+		
+		int len = buf.length;
+		if (len < (1 << MIN_SHIFT) || len > (1 << MAX_SHIFT) || (len & (len - 1)) != 0) {
+			return;
+		}
+		
+		int i = shiftFor(len) - MIN_SHIFT;
+		for (int j = 0; j < count[i]; j++) {
+			if (free[i][j] == buf) {
+				// Released twice
+				return;
+			}
+		}
+		
+		if (count[i] < PER_CLASS) {
+			free[i][count[i]++] = buf;
+		}
+	}
+}
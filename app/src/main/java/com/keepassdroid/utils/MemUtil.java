@@ -20,31 +20,123 @@
 package com.keepassdroid.utils;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 public class MemUtil {
+	// Deflate can't do better than about 1032:1, larger sizes are corrupt
+	private static final int MAX_RATIO = 1032;
+	
 	public static byte[] decompress(byte[] input) throws IOException {
-		ByteArrayInputStream bais = new ByteArrayInputStream(input);
-		GZIPInputStream gzis = new GZIPInputStream(bais);
+		long size = gzipSize(input);
+		if (size >= 0 && size <= (long) input.length * MAX_RATIO) {
+			// Read straight into an array of the final size
+			GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(input));
+			byte[] output = new byte[(int) size];
+			
+			boolean complete = readFully(gzis, output) == output.length && gzis.read() == -1;
+			gzis.close();
+			if (complete) {
+				return output;
+			}
+			
+			// The trailer only covers the last member of a multi-member stream
+		}
+		
+		GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(input));
+		PooledOutput out = new PooledOutput(input.length * 4);
+		try {
+			Util.copyStream(gzis, out);
+			gzis.close();
+			
+			return out.toByteArray();
+		} finally {
+			out.release();
+		}
+	}
+	
+	public static byte[] compress(byte[] input) throws IOException {
+		PooledOutput out = new PooledOutput(input.length / 2 + 64);
+		try {
+			GZIPOutputStream gzos = new GZIPOutputStream(out);
+			gzos.write(input);
+			gzos.close();
+			
+			return out.toByteArray();
+		} finally {
+			out.release();
+		}
+	}
+	
+	/** Uncompressed size from the gzip trailer, or -1 if there isn't one */
+	private static long gzipSize(byte[] input) {
+		int len = input.length;
+		if (len < 18) {
+			return -1;
+		}
 		
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		Util.copyStream(gzis, baos);
+		return (input[len - 4] & 0xFFL) | ((input[len - 3] & 0xFFL) << 8)
+				| ((input[len - 2] & 0xFFL) << 16) | ((input[len - 1] & 0xFFL) << 24);
+	}
+	
+	private static int readFully(InputStream is, byte[] buf) throws IOException {
+		int count = 0;
+		while (count < buf.length) {
+			int read = is.read(buf, count, buf.length - count);
+			if (read == -1) {
+				break;
+			}
+			count += read;
+		}
 		
-		return baos.toByteArray();
+		return count;
 	}
 	
-	public static byte[] compress(byte[] input) throws IOException {		
-		ByteArrayInputStream bais = new ByteArrayInputStream(input);
+	/** Collects output in pooled arrays, which are only copied out once at the end */
+	private static class PooledOutput extends OutputStream {
+		private byte[] buf;
+		private int count = 0;
+		
+		public PooledOutput(int size) {
+			buf = BufferPool.acquire(size);
+		}
+		
+		@Override
+		public void write(int b) {
+			ensureCapacity(1);
+			buf[count++] = (byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensureCapacity(len);
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+		
+		private void ensureCapacity(int extra) {
+			if (count + extra > buf.length) {
+				byte[] larger = BufferPool.acquire(Math.max(buf.length * 2, count + extra));
+				System.arraycopy(buf, 0, larger, 0, count);
+				BufferPool.release(buf);
+				buf = larger;
+			}
+		}
 		
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		GZIPOutputStream gzos = new GZIPOutputStream(baos);
-		Util.copyStream(bais, gzos);
-		gzos.close();
+		public byte[] toByteArray() {
+			byte[] output = new byte[count];
+			System.arraycopy(buf, 0, output, 0, count);
+			
+			return output;
+		}
 		
-		return baos.toByteArray();
+		public void release() {
+			BufferPool.release(buf);
+			buf = null;
+		}
 	}
 
 }
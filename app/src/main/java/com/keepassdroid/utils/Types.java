@@ -127,6 +127,21 @@ public class Types {
 	  return jstring;
   }
 
+  /** UTF-8 bytes of a string as stored in a cstring field, without the
+   * terminating null. A null string has no bytes.
+   */
+  public static byte[] cStringBytes(String str) throws UnsupportedEncodingException {
+	  if ( str == null ) {
+		  return new byte[0];
+	  }
+	  
+	  if ( REPLACE ) {
+		  str = str.replace(SEP, CRLF);
+	  }
+	  
+	  return str.getBytes("UTF-8");
+  }
+
   public static int writeCString(String str, OutputStream os) throws IOException {
 	  if ( str == null ) {
 		  // Write out a null character
@@ -84,10 +84,14 @@ public class Util {
 	}
 	
 	public static void copyStream(InputStream in, OutputStream out) throws IOException {
-		byte[] buf = new byte[1024];
-		int read;
-		while ((read = in.read(buf)) != -1) {
-			out.write(buf, 0, read);
+		byte[] buf = BufferPool.acquire(8192);
+		try {
+			int read;
+			while ((read = in.read(buf)) != -1) {
+				out.write(buf, 0, read);
+			}
+		} finally {
+			BufferPool.release(buf);
 		}
 	}
 
@@ -1,3 +1,3 @@
-APP_MODULES      := aes sha final-key
+APP_MODULES      := aes sha twofish final-key
 APP_OPTIM        := release
 APP_ABI          := all
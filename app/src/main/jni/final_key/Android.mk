@@ -7,9 +7,9 @@ LOCAL_MODULE := final-key
 LOCAL_SRC_FILES := \
 	kpd_jni.c
 
-LOCAL_C_INCLUDES := $(LOCAL_PATH)/../sha $(LOCAL_PATH)/../aes
+LOCAL_C_INCLUDES := $(LOCAL_PATH)/../sha $(LOCAL_PATH)/../aes $(LOCAL_PATH)/../twofish
 
-LOCAL_STATIC_LIBRARIES := aes sha
+LOCAL_STATIC_LIBRARIES := aes sha twofish
 
 LOCAL_LDLIBS := -llog
 
@@ -1,5 +1,5 @@
 /*
-  This is a JNI wrapper for AES & SHA source code on Android.
+  This is a JNI wrapper for AES, Twofish & SHA source code on Android.
   Copyright (C) 2010 Michael Mohr
 
   This program is free software: you can redistribute it and/or modify
@@ -37,6 +37,7 @@
 
 #include "aes.h"
 #include "sha2.h"
+#include "twofish.h"
 
 static JavaVM *cached_vm;
 static jclass bad_arg, no_mem, bad_padding, short_buf, block_size;
@@ -47,18 +48,31 @@ typedef enum {
   FINALIZED
 } edir_t;
 
+// Must match the ALGORITHM_ constants in NativeCipherSpi.java
+typedef enum {
+  ALGORITHM_AES = 0,
+  ALGORITHM_TWOFISH = 1
+} calg_t;
+
 #define AES_BLOCK_SIZE 16
 #define CACHE_SIZE 32
 
-typedef struct _aes_state {
+typedef struct _cipher_state {
+  calg_t algorithm;
   edir_t direction;
   uint32_t cache_len;
   uint8_t iv[16], cache[CACHE_SIZE];
-  uint8_t ctx[sizeof(aes_encrypt_ctx)]; // 244
-} aes_state;
-
-#define ENC_CTX(state) (((aes_encrypt_ctx *)((state)->ctx)))
-#define DEC_CTX(state) (((aes_decrypt_ctx *)((state)->ctx)))
+  union {
+    uint8_t aes[sizeof(aes_encrypt_ctx)]; // 244
+    twofish_ctx twofish;
+  } ctx;
+  // kept between update calls, only used when the output overlaps the input
+  void *scratch;
+  uint32_t scratch_size;
+} cipher_state;
+
+#define ENC_CTX(state) (((aes_encrypt_ctx *)((state)->ctx.aes)))
+#define DEC_CTX(state) (((aes_decrypt_ctx *)((state)->ctx.aes)))
 #define ALIGN_EXTRA 15
 #define ALIGN16(x) (void *)(((uintptr_t)(x)+ALIGN_EXTRA) & ~ 0x0F)
 
@@ -100,6 +114,7 @@ JNIEXPORT jint JNICALL JNI_OnLoad( JavaVM *vm, void *reserved ) {
   block_size = (*env)->NewGlobalRef(env, cls);
 
   aes_init();
+  twofish_init();
 
   return JNI_VERSION_1_6;
 }
@@ -118,39 +133,113 @@ JNIEXPORT void JNICALL JNI_OnUnload( JavaVM *vm, void *reserved ) {
   return;
 }
 
-JNIEXPORT jlong JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nInit(JNIEnv *env, jobject this, jboolean encrypting, jbyteArray key, jbyteArray iv) {
-  uint8_t ckey[32];
-  aes_state *state;
+// Both ciphers are 128 bit block ciphers used in CBC mode, only the block functions differ
+static int cbc_crypt(cipher_state *state, const uint8_t *in, uint8_t *out, int len) {
+  if( state->algorithm == ALGORITHM_TWOFISH ) {
+    if( state->direction == ENCRYPTION )
+      return twofish_cbc_encrypt(in, out, len, state->iv, &state->ctx.twofish);
+    else
+      return twofish_cbc_decrypt(in, out, len, state->iv, &state->ctx.twofish);
+  }
+
+  if( state->direction == ENCRYPTION )
+    return aes_cbc_encrypt(in, out, len, state->iv, ENC_CTX(state));
+  else
+    return aes_cbc_decrypt(in, out, len, state->iv, DEC_CTX(state));
+}
+
+/* Checks the arguments of nInit and nReset, throwing if they are invalid */
+static int check_key_args(JNIEnv *env, jint algorithm, jbyteArray key, jbyteArray iv) {
   jint key_len = (*env)->GetArrayLength(env, key);
   jint iv_len = (*env)->GetArrayLength(env, iv);
 
   if( ! ( key_len == 16 || key_len == 24 || key_len == 32 ) || iv_len != 16 ) {
     (*env)->ThrowNew(env, bad_arg, "Invalid length of key or iv");
-    return -1;
+    return 0;
   }
 
-  state = (aes_state *)malloc(sizeof(aes_state));
-  if( state == NULL ) {
-    (*env)->ThrowNew(env, no_mem, "Cannot allocate memory for the encryption state");
-    return -1;
+  if( algorithm != ALGORITHM_AES && algorithm != ALGORITHM_TWOFISH ) {
+    (*env)->ThrowNew(env, bad_arg, "Unknown cipher algorithm");
+    return 0;
   }
-  memset(state, 0, sizeof(aes_state));
 
-  (*env)->GetByteArrayRegion(env, key, (jint)0, key_len, (jbyte *)ckey);
-  (*env)->GetByteArrayRegion(env, iv, (jint)0, iv_len, (jbyte *)state->iv);
+  return 1;
+}
+
+/* Clears everything but the scratch buffer, which stays allocated for reuse */
+static void wipe_state(cipher_state *state) {
+  void *scratch = state->scratch;
+  uint32_t scratch_size = state->scratch_size;
+
+  if( scratch )
+    memset(scratch, 0, scratch_size + ALIGN_EXTRA);
+  memset(state, 0, sizeof(cipher_state));
+  state->scratch = scratch;
+  state->scratch_size = scratch_size;
+  state->direction = FINALIZED;
+}
+
+/* Keys a new or wiped state, the arguments must have been checked */
+static void setup_state(JNIEnv *env, cipher_state *state, jint algorithm, jboolean encrypting, jbyteArray key, jbyteArray iv) {
+  uint8_t ckey[32];
+  jint key_len = (*env)->GetArrayLength(env, key);
 
-  if( encrypting ) {
-    state->direction = ENCRYPTION;
+  (*env)->GetByteArrayRegion(env, key, (jint)0, key_len, (jbyte *)ckey);
+  (*env)->GetByteArrayRegion(env, iv, (jint)0, AES_BLOCK_SIZE, (jbyte *)state->iv);
+
+  state->algorithm = (calg_t)algorithm;
+  state->direction = encrypting ? ENCRYPTION : DECRYPTION;
+  state->cache_len = 0;
+  if( state->algorithm == ALGORITHM_TWOFISH ) {
+    twofish_set_key(ckey, key_len, &state->ctx.twofish);
+  } else if( encrypting ) {
     aes_encrypt_key(ckey, key_len, ENC_CTX(state));
   } else {
-    state->direction = DECRYPTION;
     aes_decrypt_key(ckey, key_len, DEC_CTX(state));
   }
+  memset(ckey, 0, sizeof(ckey));
+}
+
+JNIEXPORT jlong JNICALL Java_com_keepassdroid_crypto_NativeCipherSpi_nInit(JNIEnv *env, jobject this, jint algorithm, jboolean encrypting, jbyteArray key, jbyteArray iv) {
+  cipher_state *state;
+
+  if( !check_key_args(env, algorithm, key, iv) )
+    return -1;
+
+  state = (cipher_state *)malloc(sizeof(cipher_state));
+  if( state == NULL ) {
+    (*env)->ThrowNew(env, no_mem, "Cannot allocate memory for the encryption state");
+    return -1;
+  }
+  memset(state, 0, sizeof(cipher_state));
+
+  setup_state(env, state, algorithm, encrypting, key, iv);
 
   return (jlong)state;
 }
 
-JNIEXPORT void JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nCleanup(JNIEnv *env, jclass this, jlong state) {
+/* Reuses a context for a new key and iv, as if it came from nInit */
+JNIEXPORT void JNICALL Java_com_keepassdroid_crypto_NativeCipherSpi_nReset(JNIEnv *env, jclass this, jlong state, jint algorithm, jboolean encrypting, jbyteArray key, jbyteArray iv) {
+  cipher_state *c_state = (cipher_state *)state;
+
+  if( !check_key_args(env, algorithm, key, iv) )
+    return;
+
+  wipe_state(c_state);
+  setup_state(env, c_state, algorithm, encrypting, key, iv);
+}
+
+/* Clears the key material of a context that is kept for reuse */
+JNIEXPORT void JNICALL Java_com_keepassdroid_crypto_NativeCipherSpi_nWipe(JNIEnv *env, jclass this, jlong state) {
+  wipe_state((cipher_state *)state);
+}
+
+JNIEXPORT void JNICALL Java_com_keepassdroid_crypto_NativeCipherSpi_nCleanup(JNIEnv *env, jclass this, jlong state) {
+  cipher_state *c_state = (cipher_state *)state;
+
+  wipe_state(c_state);
+  free(c_state->scratch);
+  memset((void *)state, 0, sizeof(cipher_state));
   free((void *)state);
 }
 
@@ -163,13 +252,92 @@ JNIEXPORT void JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nCleanup(
   not a full block.
 */
 
-JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nUpdate(JNIEnv *env, jobject this,
+#define UPDATE_OK 0
+#define UPDATE_FAILED 1
+#define UPDATE_NO_MEM 2
+
+/*
+  Runs the cached bytes followed by inputLen bytes of in through the cipher.
+  outLen bytes are written to out and the rest is cached for the next call.
+  Nothing is allocated unless out overlaps the part of in still to be read,
+  then in is first copied to the scratch buffer kept in the state.
+*/
+static int update_blocks(cipher_state *c_state, const uint8_t *in, uint32_t inputLen, uint8_t *out, uint32_t outLen) {
+  uint8_t head[CACHE_SIZE] __attribute__ ((aligned (16)));
+  uint32_t cached = c_state->cache_len, headLen, bytes2cache;
+
+  // output written behind the input still to be read is safe, as each block is read before it is written
+  if( (uintptr_t)out + cached > (uintptr_t)in && (uintptr_t)out < (uintptr_t)in + inputLen ) {
+    if( c_state->scratch_size < inputLen ) {
+      void *scratch = realloc(c_state->scratch, inputLen + ALIGN_EXTRA);
+      if( scratch == NULL )
+        return UPDATE_NO_MEM;
+      c_state->scratch = scratch;
+      c_state->scratch_size = inputLen;
+    }
+    memcpy(ALIGN16(c_state->scratch), in, inputLen);
+    in = ALIGN16(c_state->scratch);
+  }
+
+  // blocks which start in the cache are put together first
+  headLen = (cached + AES_BLOCK_SIZE - 1) & ~(AES_BLOCK_SIZE - 1);
+  if( headLen > outLen )
+    headLen = outLen;
+  if( headLen > cached ) {
+    memcpy(head, c_state->cache, cached);
+    memcpy(head + cached, in, headLen - cached);
+    if( cbc_crypt(c_state, head, out, headLen) != EXIT_SUCCESS )
+      return UPDATE_FAILED;
+  } else if( headLen ) {
+    if( cbc_crypt(c_state, c_state->cache, out, headLen) != EXIT_SUCCESS )
+      return UPDATE_FAILED;
+  }
+
+  // the remaining whole blocks come straight from the input
+  if( outLen > headLen ) {
+    if( cbc_crypt(c_state, in + (headLen - cached), out + headLen, outLen - headLen) != EXIT_SUCCESS )
+      return UPDATE_FAILED;
+  }
+
+  // cache whatever follows the output for the next call
+  bytes2cache = cached + inputLen - outLen;
+  if( outLen < cached ) {
+    memmove(c_state->cache, c_state->cache + outLen, cached - outLen);
+    memcpy(c_state->cache + (cached - outLen), in, inputLen);
+  } else {
+    memcpy(c_state->cache, in + (outLen - cached), bytes2cache);
+  }
+  c_state->cache_len = bytes2cache;
+  memset(head, 0, sizeof(head));
+
+  return UPDATE_OK;
+}
+
+/* Output length of an update, 0 when everything fits in the cache */
+static uint32_t update_length(cipher_state *c_state, uint32_t inputLen) {
+  uint32_t cryptLen = inputLen + c_state->cache_len;
+
+  if( cryptLen < CACHE_SIZE )
+    return 0;
+
+  // now we're guaranteed that cryptLen >= CACHE_SIZE (32)
+  // mask bottom 4 bits plus 1 block, the output length is aligned to a 16-byte boundary
+  return cryptLen - ((cryptLen & 15) + AES_BLOCK_SIZE);
+}
+
+static void throw_update_error(JNIEnv *env, int ret) {
+  if( ret == UPDATE_NO_MEM )
+    (*env)->ThrowNew(env, no_mem, "Unable to allocate scratch space for overlapping buffers");
+  else
+    (*env)->ThrowNew(env, bad_arg, "Failed to encrypt input data"); // FIXME: get a better exception class for this...
+}
+
+JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeCipherSpi_nUpdate(JNIEnv *env, jobject this,
 	jlong state, jbyteArray input, jint inputOffset, jint inputLen, jbyteArray output, jint outputOffset, jint outputSize) {
-  int aes_ret;
-  uint32_t outLen, bytes2cache, cryptLen;
-  void *in, *out;
+  uint32_t outLen;
   uint8_t *c_input, *c_output;
-  aes_state *c_state;
+  cipher_state *c_state;
+  int ret;
 
   #if defined(KPD_DEBUG)
   __android_log_print(ANDROID_LOG_INFO, "kpd_jni.c/nUpdate", "entry: inputLen=%d, outputSize=%d", inputLen, outputSize);
@@ -180,76 +348,107 @@ JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nUpdate(J
     (*env)->ThrowNew(env, bad_arg, "nUpdate: called with 1 or more invalid arguments");
     return -1;
   }
-  c_state = (aes_state *)state;
+  c_state = (cipher_state *)state;
   if( c_state->direction == FINALIZED ) {
     (*env)->ThrowNew(env, bad_arg, "Trying to update a finalized state");
     return -1;
   }
+  // the arrays are accessed directly below, so check what GetByteArrayRegion used to
+  if( inputOffset < 0 || inputLen < 0 || inputOffset > (*env)->GetArrayLength(env, input) - inputLen ) {
+    (*env)->ThrowNew(env, bad_arg, "Input range is outside of the array");
+    return -1;
+  }
 
-  // step 1.5: calculate cryptLen and outLen
-  cryptLen = inputLen + c_state->cache_len;
-  if( cryptLen < CACHE_SIZE ) {
+  // step 1.5: calculate outLen, small inputs only fill the cache
+  outLen = update_length(c_state, inputLen);
+  if( outLen == 0 ) {
     (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)(c_state->cache + c_state->cache_len));
-    c_state->cache_len = cryptLen;
+    c_state->cache_len += inputLen;
     return 0;
   }
-  // now we're guaranteed that cryptLen >= CACHE_SIZE (32)
-  bytes2cache = (cryptLen & 15) + AES_BLOCK_SIZE; // mask bottom 4 bits plus 1 block
-  outLen = (cryptLen - bytes2cache); // output length is now aligned to a 16-byte boundary
-  if( outLen > (uint32_t)outputSize ) {
+  if( outLen > (uint32_t)outputSize || outLen > (uint32_t)((*env)->GetArrayLength(env, output) - outputOffset) ) {
     (*env)->ThrowNew(env, bad_arg, "Output buffer does not have enough space");
     return -1;
   }
 
-  // step 2: allocate memory to hold input and output data
-  in = malloc(cryptLen+ALIGN_EXTRA);
-  if( in == NULL ) {
-    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption input");
+  // step 2: en/decrypt straight between the Java arrays, no JNI calls until they are released
+  c_input = (*env)->GetPrimitiveArrayCritical(env, input, NULL);
+  if( c_input == NULL ) {
+    (*env)->ThrowNew(env, no_mem, "Unable to access the input array");
     return -1;
   }
-  c_input = ALIGN16(in);
+  if( (*env)->IsSameObject(env, input, output) ) {
+    c_output = c_input;
+  } else {
+    c_output = (*env)->GetPrimitiveArrayCritical(env, output, NULL);
+    if( c_output == NULL ) {
+      (*env)->ReleasePrimitiveArrayCritical(env, input, c_input, JNI_ABORT);
+      (*env)->ThrowNew(env, no_mem, "Unable to access the output array");
+      return -1;
+    }
+  }
+
+  ret = update_blocks(c_state, c_input + inputOffset, inputLen, c_output + outputOffset, outLen);
 
-  out = malloc(outLen+ALIGN_EXTRA);
-  if( out == NULL ) {
-    free(in);
-    (*env)->ThrowNew(env, no_mem, "Unable to allocate heap space for encryption output");
+  // step 3: cleanup and return
+  if( c_output != c_input )
+    (*env)->ReleasePrimitiveArrayCritical(env, output, c_output, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, input, c_input, c_output != c_input ? JNI_ABORT : 0);
+
+  if( ret != UPDATE_OK ) {
+    throw_update_error(env, ret);
     return -1;
   }
-  c_output = ALIGN16(out);
 
-  // step 3: copy data from Java and en/decrypt it
-  if( c_state->cache_len ) {
-    memcpy(c_input, c_state->cache, c_state->cache_len);
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)(c_input + c_state->cache_len));
-  } else {
-    (*env)->GetByteArrayRegion(env, input, inputOffset, inputLen, (jbyte *)c_input);
+  #if defined(KPD_DEBUG)
+  __android_log_print(ANDROID_LOG_INFO, "kpd_jni.c/nUpdate", "exit: outLen=%d", outLen);
+  #endif
+
+  return outLen;
+}
+
+/* The same as nUpdate for direct ByteBuffers, offsets are from the buffer addresses */
+JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeCipherSpi_nUpdateDirect(JNIEnv *env, jobject this,
+	jlong state, jobject input, jint inputOffset, jint inputLen, jobject output, jint outputOffset, jint outputSize) {
+  uint32_t outLen;
+  uint8_t *c_input, *c_output;
+  cipher_state *c_state;
+  int ret;
+
+  if( !inputLen || inputLen < 0 || inputOffset < 0 || outputOffset < 0 || !input || !output ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateDirect: called with 1 or more invalid arguments");
+    return -1;
   }
-  if( c_state->direction == ENCRYPTION )
-    aes_ret = aes_cbc_encrypt(c_input, c_output, outLen, c_state->iv, ENC_CTX(c_state));
-  else
-    aes_ret = aes_cbc_decrypt(c_input, c_output, outLen, c_state->iv, DEC_CTX(c_state));
-  if( aes_ret != EXIT_SUCCESS ) {
-    free(in);
-    free(out);
-    (*env)->ThrowNew(env, bad_arg, "Failed to encrypt input data"); // FIXME: get a better exception class for this...
+  c_state = (cipher_state *)state;
+  if( c_state->direction == FINALIZED ) {
+    (*env)->ThrowNew(env, bad_arg, "Trying to update a finalized state");
     return -1;
   }
-  (*env)->SetByteArrayRegion(env, output, outputOffset, outLen, (jbyte *)c_output);
-
-  // step 4: cleanup and return
-  if( bytes2cache ) {
-    c_state->cache_len = bytes2cache; // set new cache length
-    memcpy(c_state->cache, (c_input + outLen), bytes2cache); // cache overflow bytes for next call
-  } else {
-    c_state->cache_len = 0;
+  c_input = (*env)->GetDirectBufferAddress(env, input);
+  c_output = (*env)->GetDirectBufferAddress(env, output);
+  if( c_input == NULL || c_output == NULL ) {
+    (*env)->ThrowNew(env, bad_arg, "nUpdateDirect: buffers must be direct");
+    return -1;
   }
+  c_input += inputOffset;
+  c_output += outputOffset;
 
-  free(in);
-  free(out);
+  outLen = update_length(c_state, inputLen);
+  if( outLen == 0 ) {
+    memcpy(c_state->cache + c_state->cache_len, c_input, inputLen);
+    c_state->cache_len += inputLen;
+    return 0;
+  }
+  if( outLen > (uint32_t)outputSize ) {
+    (*env)->ThrowNew(env, bad_arg, "Output buffer does not have enough space");
+    return -1;
+  }
 
-  #if defined(KPD_DEBUG)
-  __android_log_print(ANDROID_LOG_INFO, "kpd_jni.c/nUpdate", "exit: outLen=%d", outLen);
-  #endif
+  ret = update_blocks(c_state, c_input, inputLen, c_output, outLen);
+  if( ret != UPDATE_OK ) {
+    throw_update_error(env, ret);
+    return -1;
+  }
 
   return outLen;
 }
@@ -258,12 +457,12 @@ JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nUpdate(J
   outputSize must be at least 32 for encryption since the buffer may contain >= 1 full block
   outputSize must be at least 16 for decryption
 */
-JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nFinal(JNIEnv *env, jobject this,
+JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeCipherSpi_nFinal(JNIEnv *env, jobject this,
 	jlong state, jboolean doPadding, jbyteArray output, jint outputOffset, jint outputSize) {
   int i;
   uint32_t padValue, paddedCacheLen;
   uint8_t final_output[CACHE_SIZE] __attribute__ ((aligned (16)));
-  aes_state *c_state;
+  cipher_state *c_state;
 
   #if defined(KPD_DEBUG)
   __android_log_print(ANDROID_LOG_INFO, "kpd_jni.c/nFinal", "entry: outputOffset=%d, outputSize=%d", outputOffset, outputSize);
@@ -273,17 +472,30 @@ JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nFinal(JN
     (*env)->ThrowNew(env, bad_arg, "Invalid argument(s) passed to nFinal");
     return -1;
   }
-  c_state = (aes_state *)state;
+  c_state = (cipher_state *)state;
   if( c_state->direction == FINALIZED ) {
     (*env)->ThrowNew(env, bad_arg, "This state has already been finalized");
     return -1;
   }
 
-  // allow fetching of remaining bytes from cache
+  // without padding the cache must hold whole blocks, which are processed as they are
   if( !doPadding ) {
-    (*env)->SetByteArrayRegion(env, output, outputOffset, c_state->cache_len, (jbyte *)c_state->cache);
+    paddedCacheLen = c_state->cache_len;
+    if( paddedCacheLen & (AES_BLOCK_SIZE-1) ) {
+      (*env)->ThrowNew(env, block_size, "Input length is not a multiple of the block size");
+      return -1;
+    }
+    if( outputSize < (jint)paddedCacheLen ) {
+      (*env)->ThrowNew(env, short_buf, "Insufficient space in output buffer");
+      return -1;
+    }
+    if( cbc_crypt(c_state, c_state->cache, final_output, paddedCacheLen) != EXIT_SUCCESS ) {
+      (*env)->ThrowNew(env, bad_arg, "Failed to process the final data block(s)"); // FIXME: get a better exception class for this...
+      return -1;
+    }
+    (*env)->SetByteArrayRegion(env, output, outputOffset, paddedCacheLen, (jbyte *)final_output);
     c_state->direction = FINALIZED;
-    return c_state->cache_len;
+    return paddedCacheLen;
   }
 
   #if defined(KPD_DEBUG)
@@ -303,7 +515,7 @@ JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nFinal(JN
     padValue = paddedCacheLen - c_state->cache_len;
     if(!padValue) padValue = 16;
     memset(c_state->cache + c_state->cache_len, padValue, padValue);
-    if( aes_cbc_encrypt(c_state->cache, final_output, paddedCacheLen, c_state->iv, ENC_CTX(c_state)) != EXIT_SUCCESS ) {
+    if( cbc_crypt(c_state, c_state->cache, final_output, paddedCacheLen) != EXIT_SUCCESS ) {
       (*env)->ThrowNew(env, bad_arg, "Failed to encrypt the final data block(s)"); // FIXME: get a better exception class for this...
       return -1;
     }
@@ -324,7 +536,7 @@ JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nFinal(JN
       (*env)->ThrowNew(env, bad_padding, "Incomplete final block in cache for decryption state");
       return -1;
     }
-    if( aes_cbc_decrypt(c_state->cache, final_output, paddedCacheLen, c_state->iv, DEC_CTX(c_state)) != EXIT_SUCCESS ) {
+    if( cbc_crypt(c_state, c_state->cache, final_output, paddedCacheLen) != EXIT_SUCCESS ) {
       (*env)->ThrowNew(env, bad_arg, "Failed to decrypt the final data block(s)"); // FIXME: get a better exception class for this...
       return -1;
     }
@@ -361,10 +573,10 @@ JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nFinal(JN
   }
 }
 
-JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeAESCipherSpi_nGetCacheSize(JNIEnv* env, jobject this, jlong state) {
-  aes_state *c_state;
+JNIEXPORT jint JNICALL Java_com_keepassdroid_crypto_NativeCipherSpi_nGetCacheSize(JNIEnv* env, jobject this, jlong state) {
+  cipher_state *c_state;
 
-  c_state = (aes_state *)state;
+  c_state = (cipher_state *)state;
   if( c_state->direction == FINALIZED ) {
     (*env)->ThrowNew(env, bad_arg, "Invalid state");
     return -1;
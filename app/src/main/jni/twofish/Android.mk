@@ -0,0 +1,10 @@
+LOCAL_PATH := $(call my-dir)
+
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := twofish
+
+LOCAL_SRC_FILES := \
+	twofish.c
+
+include $(BUILD_STATIC_LIBRARY)
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+/*
+  Twofish as specified in "Twofish: A 128-Bit Block Cipher" by Schneier et
+  al. The key dependent S-boxes are expanded into full 8x32 bit tables when
+  the key is set, so each round is four table lookups per g function.
+*/
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "twofish.h"
+
+#define ROL(x, n) (((x) << (n)) | ((x) >> (32 - (n))))
+#define ROR(x, n) (((x) >> (n)) | ((x) << (32 - (n))))
+
+#define B0(x) ((uint8_t)(x))
+#define B1(x) ((uint8_t)((x) >> 8))
+#define B2(x) ((uint8_t)((x) >> 16))
+#define B3(x) ((uint8_t)((x) >> 24))
+
+#define MDS_POLY 0x169  // x^8 + x^6 + x^5 + x^3 + 1
+#define RS_POLY  0x14D  // x^8 + x^6 + x^3 + x^2 + 1
+
+static uint8_t q[2][256];
+
+// 4 bit permutations making up q0 and q1
+static const uint8_t qt[2][4][16] = {
+  {
+    { 0x8, 0x1, 0x7, 0xD, 0x6, 0xF, 0x3, 0x2, 0x0, 0xB, 0x5, 0x9, 0xE, 0xC, 0xA, 0x4 },
+    { 0xE, 0xC, 0xB, 0x8, 0x1, 0x2, 0x3, 0x5, 0xF, 0x4, 0xA, 0x6, 0x7, 0x0, 0x9, 0xD },
+    { 0xB, 0xA, 0x5, 0xE, 0x6, 0xD, 0x9, 0x0, 0xC, 0x8, 0xF, 0x3, 0x2, 0x4, 0x7, 0x1 },
+    { 0xD, 0x7, 0xF, 0x4, 0x1, 0x2, 0x6, 0xE, 0x9, 0xB, 0x3, 0x0, 0x8, 0x5, 0xC, 0xA }
+  },
+  {
+    { 0x2, 0x8, 0xB, 0xD, 0xF, 0x7, 0x6, 0xE, 0x3, 0x1, 0x9, 0x4, 0x0, 0xA, 0xC, 0x5 },
+    { 0x1, 0xE, 0x2, 0xB, 0x4, 0xC, 0x3, 0x7, 0x6, 0xD, 0xA, 0x5, 0xF, 0x9, 0x0, 0x8 },
+    { 0x4, 0xC, 0x7, 0x5, 0x1, 0x6, 0x9, 0xA, 0x0, 0xE, 0xD, 0x8, 0x2, 0xB, 0x3, 0xF },
+    { 0xB, 0x9, 0x5, 0x1, 0xC, 0x3, 0xD, 0xE, 0x6, 0x4, 0x7, 0xF, 0x2, 0x0, 0x8, 0xA }
+  }
+};
+
+static const uint8_t rs[4][8] = {
+  { 0x01, 0xA4, 0x55, 0x87, 0x5A, 0x58, 0xDB, 0x9E },
+  { 0xA4, 0x56, 0x82, 0xF3, 0x1E, 0xC6, 0x68, 0xE5 },
+  { 0x02, 0xA1, 0xFC, 0xC1, 0x47, 0xAE, 0x3D, 0x19 },
+  { 0xA4, 0x55, 0x87, 0x5A, 0x58, 0xDB, 0x9E, 0x03 }
+};
+
+static const uint8_t mds[4][4] = {
+  { 0x01, 0xEF, 0x5B, 0x5B },
+  { 0x5B, 0xEF, 0xEF, 0x01 },
+  { 0xEF, 0x5B, 0x01, 0xEF },
+  { 0xEF, 0x01, 0xEF, 0x5B }
+};
+
+static uint8_t ror4(uint8_t x) {
+  return ((x >> 1) | (x << 3)) & 0x0F;
+}
+
+static uint8_t gf_mult(uint8_t a, uint8_t b, uint32_t poly) {
+  uint32_t r = 0, x = a;
+
+  while( b ) {
+    if( b & 1 )
+      r ^= x;
+    x <<= 1;
+    if( x & 0x100 )
+      x ^= poly;
+    b >>= 1;
+  }
+
+  return (uint8_t)r;
+}
+
+void twofish_init(void) {
+  int i, n;
+  uint8_t a, b, c, d;
+
+  for( n = 0; n < 2; n++ ) {
+    for( i = 0; i < 256; i++ ) {
+      a = i >> 4;
+      b = i & 0x0F;
+      c = qt[n][0][a ^ b];
+      d = qt[n][1][a ^ ror4(b) ^ ((8 * a) & 0x0F)];
+      a = qt[n][2][c ^ d];
+      b = qt[n][3][c ^ ror4(d) ^ ((8 * c) & 0x0F)];
+      q[n][i] = (uint8_t)((b << 4) | a);
+    }
+  }
+}
+
+static uint32_t rs_word(const uint8_t *m) {
+  int i, j;
+  uint32_t r = 0;
+
+  for( i = 0; i < 4; i++ ) {
+    uint8_t v = 0;
+    for( j = 0; j < 8; j++ )
+      v ^= gf_mult(rs[i][j], m[j], RS_POLY);
+    r |= (uint32_t)v << (8 * i);
+  }
+
+  return r;
+}
+
+static uint32_t mds_column(int col, uint8_t y) {
+  int i;
+  uint32_t r = 0;
+
+  for( i = 0; i < 4; i++ )
+    r |= (uint32_t)gf_mult(mds[i][col], y, MDS_POLY) << (8 * i);
+
+  return r;
+}
+
+/* The byte permutations of h for byte position n, keyed by l[0..k-1] */
+static uint8_t h_byte(int n, uint8_t x, const uint32_t *l, int k) {
+  static const int order[4][5] = {
+    // q applied for the l[3], l[2], l[1], l[0] steps and the last one
+    { 1, 1, 0, 0, 1 },
+    { 0, 1, 1, 0, 0 },
+    { 0, 0, 0, 1, 1 },
+    { 1, 0, 1, 1, 0 }
+  };
+  int sh = 8 * n;
+
+  if( k == 4 )
+    x = q[order[n][0]][x] ^ (uint8_t)(l[3] >> sh);
+  if( k >= 3 )
+    x = q[order[n][1]][x] ^ (uint8_t)(l[2] >> sh);
+  x = q[order[n][2]][x] ^ (uint8_t)(l[1] >> sh);
+  x = q[order[n][3]][x] ^ (uint8_t)(l[0] >> sh);
+  return q[order[n][4]][x];
+}
+
+static uint32_t h(uint32_t x, const uint32_t *l, int k) {
+  int n;
+  uint32_t r = 0;
+
+  for( n = 0; n < 4; n++ )
+    r ^= mds_column(n, h_byte(n, (uint8_t)(x >> (8 * n)), l, k));
+
+  return r;
+}
+
+static uint32_t load32(const uint8_t *p) {
+  return (uint32_t)p[0] | ((uint32_t)p[1] << 8) | ((uint32_t)p[2] << 16) | ((uint32_t)p[3] << 24);
+}
+
+static void store32(uint8_t *p, uint32_t v) {
+  p[0] = (uint8_t)v;
+  p[1] = (uint8_t)(v >> 8);
+  p[2] = (uint8_t)(v >> 16);
+  p[3] = (uint8_t)(v >> 24);
+}
+
+int twofish_set_key(const uint8_t *key, int key_len, twofish_ctx *ctx) {
+  uint32_t me[4], mo[4], sk[4], a, b;
+  int i, n, k;
+
+  if( key_len != 16 && key_len != 24 && key_len != 32 )
+    return EXIT_FAILURE;
+  k = key_len / 8;
+
+  for( i = 0; i < k; i++ ) {
+    me[i] = load32(key + 8 * i);
+    mo[i] = load32(key + 8 * i + 4);
+    sk[k - 1 - i] = rs_word(key + 8 * i);
+  }
+
+  for( i = 0; i < 20; i++ ) {
+    a = h(2 * i * 0x01010101u, me, k);
+    b = h((2 * i + 1) * 0x01010101u, mo, k);
+    b = ROL(b, 8);
+    ctx->k[2 * i] = a + b;
+    b = a + 2 * b;
+    ctx->k[2 * i + 1] = ROL(b, 9);
+  }
+
+  for( n = 0; n < 4; n++ )
+    for( i = 0; i < 256; i++ )
+      ctx->s[n][i] = mds_column(n, h_byte(n, (uint8_t)i, sk, k));
+
+  memset(me, 0, sizeof(me));
+  memset(mo, 0, sizeof(mo));
+  memset(sk, 0, sizeof(sk));
+
+  return EXIT_SUCCESS;
+}
+
+#define G0(ctx, x) ((ctx)->s[0][B0(x)] ^ (ctx)->s[1][B1(x)] ^ (ctx)->s[2][B2(x)] ^ (ctx)->s[3][B3(x)])
+#define G1(ctx, x) ((ctx)->s[0][B3(x)] ^ (ctx)->s[1][B0(x)] ^ (ctx)->s[2][B1(x)] ^ (ctx)->s[3][B2(x)])
+
+void twofish_encrypt(const uint8_t *in, uint8_t *out, const twofish_ctx *ctx) {
+  uint32_t x0, x1, x2, x3, t0, t1;
+  const uint32_t *k = ctx->k;
+  int r;
+
+  x0 = load32(in) ^ k[0];
+  x1 = load32(in + 4) ^ k[1];
+  x2 = load32(in + 8) ^ k[2];
+  x3 = load32(in + 12) ^ k[3];
+
+  for( r = 0; r < 16; r += 2 ) {
+    t0 = G0(ctx, x0);
+    t1 = G1(ctx, x1);
+    x2 ^= t0 + t1 + k[2 * r + 8];
+    x2 = ROR(x2, 1);
+    x3 = ROL(x3, 1) ^ (t0 + 2 * t1 + k[2 * r + 9]);
+
+    t0 = G0(ctx, x2);
+    t1 = G1(ctx, x3);
+    x0 ^= t0 + t1 + k[2 * r + 10];
+    x0 = ROR(x0, 1);
+    x1 = ROL(x1, 1) ^ (t0 + 2 * t1 + k[2 * r + 11]);
+  }
+
+  store32(out, x2 ^ k[4]);
+  store32(out + 4, x3 ^ k[5]);
+  store32(out + 8, x0 ^ k[6]);
+  store32(out + 12, x1 ^ k[7]);
+}
+
+void twofish_decrypt(const uint8_t *in, uint8_t *out, const twofish_ctx *ctx) {
+  uint32_t x0, x1, x2, x3, t0, t1;
+  const uint32_t *k = ctx->k;
+  int r;
+
+  x2 = load32(in) ^ k[4];
+  x3 = load32(in + 4) ^ k[5];
+  x0 = load32(in + 8) ^ k[6];
+  x1 = load32(in + 12) ^ k[7];
+
+  for( r = 14; r >= 0; r -= 2 ) {
+    t0 = G0(ctx, x2);
+    t1 = G1(ctx, x3);
+    x0 = ROL(x0, 1) ^ (t0 + t1 + k[2 * r + 10]);
+    x1 ^= t0 + 2 * t1 + k[2 * r + 11];
+    x1 = ROR(x1, 1);
+
+    t0 = G0(ctx, x0);
+    t1 = G1(ctx, x1);
+    x2 = ROL(x2, 1) ^ (t0 + t1 + k[2 * r + 8]);
+    x3 ^= t0 + 2 * t1 + k[2 * r + 9];
+    x3 = ROR(x3, 1);
+  }
+
+  store32(out, x0 ^ k[0]);
+  store32(out + 4, x1 ^ k[1]);
+  store32(out + 8, x2 ^ k[2]);
+  store32(out + 12, x3 ^ k[3]);
+}
+
+int twofish_cbc_encrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const twofish_ctx *ctx) {
+  int i;
+
+  if( len < 0 || len % TWOFISH_BLOCK_SIZE )
+    return EXIT_FAILURE;
+
+  for( ; len > 0; len -= TWOFISH_BLOCK_SIZE ) {
+    for( i = 0; i < TWOFISH_BLOCK_SIZE; i++ )
+      iv[i] ^= in[i];
+    twofish_encrypt(iv, iv, ctx);
+    memcpy(out, iv, TWOFISH_BLOCK_SIZE);
+    in += TWOFISH_BLOCK_SIZE;
+    out += TWOFISH_BLOCK_SIZE;
+  }
+
+  return EXIT_SUCCESS;
+}
+
+int twofish_cbc_decrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const twofish_ctx *ctx) {
+  uint8_t block[TWOFISH_BLOCK_SIZE], next[TWOFISH_BLOCK_SIZE];
+  int i;
+
+  if( len < 0 || len % TWOFISH_BLOCK_SIZE )
+    return EXIT_FAILURE;
+
+  for( ; len > 0; len -= TWOFISH_BLOCK_SIZE ) {
+    // Kept aside since out may overwrite in
+    memcpy(next, in, TWOFISH_BLOCK_SIZE);
+    twofish_decrypt(in, block, ctx);
+    for( i = 0; i < TWOFISH_BLOCK_SIZE; i++ )
+      out[i] = block[i] ^ iv[i];
+    memcpy(iv, next, TWOFISH_BLOCK_SIZE);
+    in += TWOFISH_BLOCK_SIZE;
+    out += TWOFISH_BLOCK_SIZE;
+  }
+
+  return EXIT_SUCCESS;
+}
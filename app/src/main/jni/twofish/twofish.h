@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 Brian Pellin.
+ *     
+ * This file is part of KeePassDroid.
+ *
+ *  KeePassDroid is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  KeePassDroid is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with KeePassDroid.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+#ifndef TWOFISH_H
+#define TWOFISH_H
+
+#include <stdint.h>
+
+#define TWOFISH_BLOCK_SIZE 16
+
+typedef struct _twofish_ctx {
+  uint32_t k[40];      // whitening and round subkeys
+  uint32_t s[4][256];  // key dependent S-boxes combined with the MDS matrix
+} twofish_ctx;
+
+/* Builds the fixed permutation tables, call once before any other function */
+void twofish_init(void);
+
+/* key_len is in bytes and must be 16, 24 or 32 */
+int twofish_set_key(const uint8_t *key, int key_len, twofish_ctx *ctx);
+
+void twofish_encrypt(const uint8_t *in, uint8_t *out, const twofish_ctx *ctx);
+void twofish_decrypt(const uint8_t *in, uint8_t *out, const twofish_ctx *ctx);
+
+/*
+  Multi-block CBC. len must be a multiple of the block size, iv is updated
+  so the next call continues the chain. in and out may be the same buffer.
+  Both return EXIT_SUCCESS, or EXIT_FAILURE on a bad length.
+*/
+int twofish_cbc_encrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const twofish_ctx *ctx);
+int twofish_cbc_decrypt(const uint8_t *in, uint8_t *out, int len, uint8_t *iv, const twofish_ctx *ctx);
+
+#endif